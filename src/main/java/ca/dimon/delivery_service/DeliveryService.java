@@ -4,15 +4,29 @@ import ca.dimon.aeronmessaging.client.AeronMessagingClient;
 import ca.dimon.aeronmessaging.client.AeronMessagingClientConfiguration;
 import ca.dimon.delivery_service.message.Message;
 import ca.dimon.delivery_service.message.MessageHeaderMimeType;
+import ca.dimon.delivery_service.message.MessagePool;
+import ca.dimon.delivery_service.queue.PriorityLaneQueue;
 import ca.dimon.delivery_service.common.FunctionResult;
 import ca.dimon.delivery_service.common.Aid;
+import ca.dimon.delivery_service.subscription.ISubscriptionListener;
 import ca.dimon.delivery_service.subscription.SubscriberDetails;
 import ca.dimon.delivery_service.transport.Transport;
 import ca.dimon.delivery_service.transport.TransportType;
 import ca.dimon.delivery_service.transport.Transportable;
+import ca.dimon.delivery_service.transport.InboxOverflowPolicy;
 import ca.dimon.delivery_service.transport.LoopbackTransport;
 import ca.dimon.delivery_service.transport.LocalTransport;
+import ca.dimon.delivery_service.transport.AeronBridge;
 import ca.dimon.delivery_service.transport.AeronTransport;
+import ca.dimon.delivery_service.router.IdleStrategy;
+import ca.dimon.delivery_service.router.CreditGate;
+import ca.dimon.delivery_service.router.DeliveryBatch;
+import ca.dimon.delivery_service.router.FlowController;
+import ca.dimon.delivery_service.router.IShardKeyExtractor;
+import ca.dimon.delivery_service.router.RouterShard;
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.common.HashedTimerWheel;
+import ca.dimon.delivery_service.router.ParkingIdleStrategy;
 // --- these are from "aeronmessaging" dependency project ---(begin)-----------
 import ca.dimon.aeronmessaging.common.IMessageHandler;
 import ca.dimon.aeronmessaging.server.AeronMessagingServer;
@@ -24,15 +38,25 @@ import ca.dimon.delivery_service.common.AeronMessagingConfiguration;
 // --- these are from "aeronmessaging" dependency project ---(end)-----------
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
+import ca.dimon.delivery_service.subscription.TopicEqualsMatcher;
+import ca.dimon.delivery_service.subscription.TopicTrie;
+import ca.dimon.delivery_service.subscription.TopicWildcardMatcher;
+import ca.dimon.delivery_service.subscription.TransactionIdMatcher;
+import ca.dimon.delivery_service.subscription.PredicateMatcher;
+import ca.dimon.delivery_service.subscription.CompiledPredicateSet;
 import java.time.Clock;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <pre>
@@ -52,6 +76,73 @@ public class DeliveryService extends Transportable {
     // Common subscription table
     private final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_common = new ConcurrentHashMap<>();
 
+    // The "subscriptions_common" table above holds ALL the common subscriptions (it is used by visualizers,
+    // unsubscribe() etc.), but for routing we split them into 2 groups:
+    //   - subscriptions_common_topic_index: all the TopicEqualsMatcher subscriptions indexed by topic, so we find
+    //     all of them with a single O(1) lookup by the message "to" header:
+    //       - key = topic (String)
+    //       - value = all the subscribers of that topic (copy-on-write array, replaced on each change)
+    //   - subscriptions_common_topic_trie: all the TopicWildcardMatcher subscriptions ("/md/#" etc.) stored in a
+    //     topic trie, so matching costs O(topic depth) instead of O(number of wildcard subscriptions).
+    //   - subscriptions_common_predicates: all the PredicateMatcher (declarative HeaderPredicate) subscriptions.
+    //     For routing they are compiled into one shared CompiledPredicateSet (each distinct sub-predicate is
+    //     evaluated at most once per message). It is re-compiled lazily: any change only sets the "dirty" flag
+    //     and the next routed message re-compiles it (so subscribing 10k predicates in a row costs 1 compilation).
+    //   - subscriptions_common_opaque: all the other ("opaque" lambda) subscriptions, which we still have to
+    //     evaluate one by one.
+    // All changes to these tables are done under subscriptions_common_lock, while routing threads only read them.
+    private final ConcurrentHashMap<String, SubscriberDetails[]> subscriptions_common_topic_index = new ConcurrentHashMap<>();
+    private final TopicTrie subscriptions_common_topic_trie = new TopicTrie();
+    private final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_common_predicates = new ConcurrentHashMap<>();
+    private volatile CompiledPredicateSet subscriptions_common_compiled_predicates = null;
+    private volatile boolean subscriptions_common_predicates_dirty = false;
+    private final Histogram subscriptions_common_predicates_evaluated_nodes_histogram = new Histogram("compiled_predicates_evaluated_nodes");
+    private final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_common_opaque = new ConcurrentHashMap<>();
+
+    // Immutable snapshot of the "subscriptions_common_opaque" table above (each SubscriberDetails knows its
+    // subscription_matcher, so it is an array of (matcher, details) pairs). Routing threads walk this flat
+    // array instead of iterating the map key set and calling get() for every matching key. The snapshot is
+    // rebuilt (under subscriptions_common_lock) on every change and published by the volatile write.
+    // Subscriptions change rarely while routing happens on every message, so it is a good trade.
+    private volatile SubscriberDetails[] subscriptions_common_opaque_snapshot = new SubscriberDetails[0];
+    private final Object subscriptions_common_lock = new Object();
+
+    // Who wants to know about the subscriptions_common changes (see add_subscription_listener()). Copy-on-write
+    // array, changed under subscriptions_common_lock.
+    private volatile ISubscriptionListener[] subscription_listeners = new ISubscriptionListener[0];
+
+    // Opt-in route cache (see enable_route_cache()): resolved "common" subscribers per routing key.
+    //   - route_cache.get(mime_type): key = "to" header, value = subscribers resolved at the given epoch
+    //   - subscriptions_common_epoch: bumped on every subscribe / unsubscribe / expiry in the "common" table,
+    //     cached entries from the older epochs are invalid (and get re-resolved on the next message)
+    //   - subscriptions_common_not_cacheable_count: number of matchers which depend on something other than the
+    //     routing headers (see SubscriptionMatcher.depends_only_on_routing_headers()), while there's at least one
+    //     such matcher we can't use the cache.
+    public static final int ROUTE_CACHE_MAX_SIZE = 4096;
+
+    // Opt-in "frozen fan-out" mode (see set_freeze_on_fan_out()): route() freezes each message before
+    // delivering it, so all the subscribers share one read-only instance.
+    private volatile boolean freeze_on_fan_out = false;
+    private volatile boolean route_cache_enabled = false;
+    private final AtomicLong subscriptions_common_epoch = new AtomicLong();
+    private volatile int subscriptions_common_not_cacheable_count = 0;
+    private final EnumMap<MessageHeaderMimeType, ConcurrentHashMap<String, RouteCacheEntry>> route_cache = new EnumMap<>(MessageHeaderMimeType.class);
+    private final LongAdder route_cache_hit_count = new LongAdder();
+    private final LongAdder route_cache_miss_count = new LongAdder();
+    private final LongAdder route_cache_invalidated_count = new LongAdder();
+    private final LongAdder route_cache_bypass_count = new LongAdder();
+
+    private static final class RouteCacheEntry {
+
+        final long epoch;
+        final SubscriberDetails[] subscribers;
+
+        RouteCacheEntry(long epoch, SubscriberDetails[] subscribers) {
+            this.epoch = epoch;
+            this.subscribers = subscribers;
+        }
+    }
+
     // Transactions subscription table (while transaction sent and we're waiting for the response(s)
     // we'll route all the messages with mime_type: message/response back to the original requestor based
     // on this subscription table. Records should last only ut to "transaction timeout" time 
@@ -63,6 +154,14 @@ public class DeliveryService extends Transportable {
     //
     private final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_transactions = new ConcurrentHashMap<>();
 
+    // Routing index for the "subscriptions_transactions" table above. All transaction subscriptions
+    // use TransactionIdMatcher, so the RESPONSE routing is a single O(1) lookup by the message
+    // "transaction_id" header instead of calling matchers one by one until the right one is found:
+    //    - key = transaction_id (String)
+    //    - value = SubscriberDetails (the same instance as in "subscriptions_transactions")
+    //
+    private final ConcurrentHashMap<String, SubscriberDetails> subscriptions_transactions_by_id = new ConcurrentHashMap<>();
+
     // The "subscriptions_transactions_sniffers" with a HashMap<String uri, SubscriberDetails> 
     // for all the instances who wants to also listen responses to other instances (like sniffers).
     // Only useful for some debugging and stats. Reason - we don't want to use both subscription
@@ -75,6 +174,14 @@ public class DeliveryService extends Transportable {
     // (useful only for debugging, and educational purposes) and normally should be empty,
     private final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_transactions_sniffers = new ConcurrentHashMap<>();
 
+    // Immutable snapshot of the "subscriptions_transactions_sniffers" table (same idea as subscriptions_common_opaque_snapshot),
+    // rebuilt under subscriptions_transactions_sniffers_lock.
+    private volatile SubscriberDetails[] subscriptions_transactions_sniffers_snapshot = new SubscriberDetails[0];
+    private final Object subscriptions_transactions_sniffers_lock = new Object();
+
+    // Reusable (per routing thread) list for the subscribers found by route(), so we don't allocate a new list per message
+    private final ThreadLocal<ArrayList<SubscriberDetails>> route_found_subscribers = ThreadLocal.withInitial(ArrayList::new);
+
     // We store all of the existing transports "connected" to this delivery service here.
     //   - key = client instance uri (String)
     //   - value = reference to the transport instance associated with this client (strictly one transport per client)
@@ -86,13 +193,14 @@ public class DeliveryService extends Transportable {
     // also "constructor vs static factories": https://www.baeldung.com/java-constructors-vs-static-factory-methods
     private static volatile DeliveryService instance = null;
 
-    // Each time we route a message (see functions find_subscriptions_common() and find_subscriptions_transactions())
-    // we periodically check subscription expiration and remove expired items. These 2 values allow us to avoid doing
-    // expired records check on every message (note: we don't have dedicated "garbage collector" thread and instead 
-    // we use "lazy-style cleanup" when we cleanup only "on occasion", so if no messages flying by, then stale
-    // subscription records might sit in the tables for a loong long time..
-    private long check_expired_subscriptions_common_min_interval_ms = 1000;
-    private long check_expired_subscriptions_transactions_min_interval_ms = 1000;
+    // All the subscriptions with expiration (SubscriberDetails.expiration_epoch_ms is set) are tracked by
+    // this hashed timer wheel. It runs in its own thread and removes each expired record in O(1) (see
+    // expire_subscription()), so neither routing threads pay for the cleanup nor stale records stay in
+    // the tables when there's no traffic. Tick is 10ms and 512 buckets give us ~5 seconds per wheel
+    // rotation (longer expirations simply wait for several rotations).
+    public static final long SUBSCRIPTIONS_EXPIRATION_TICK_DURATION_MS = 10;
+    public static final int SUBSCRIPTIONS_EXPIRATION_WHEEL_SIZE = 512;
+    private final HashedTimerWheel subscriptions_expiration_timer_wheel = new HashedTimerWheel("subscriptions_expiration_timer_wheel", SUBSCRIPTIONS_EXPIRATION_TICK_DURATION_MS, SUBSCRIPTIONS_EXPIRATION_WHEEL_SIZE);
 
     /**
      * Static factory to generate the DeliveryService instance.
@@ -122,18 +230,21 @@ public class DeliveryService extends Transportable {
                     // Kick-start own message shovelling thread
                     instance.run_own_shovel_incoming_messages_thread();
 
+                    // Start the subscriptions expiration timer wheel thread
+                    instance.subscriptions_expiration_timer_wheel.start();
+
                     // Start Aeron client or server (depending on the aeron_settings) only if the 'aeron_messaging_configuration' is not null
                     if (aeron_messaging_configuration != null) {
                         // Yes we should enable Aeron. Checking role:
                         switch (aeron_messaging_configuration.get_role()) {
                             case CLIENT:
                                 // Strart Aeron client
-                                instance.start_aeron_client(aeron_messaging_configuration.aeron_client_configuration);
+                                instance.start_aeron_client(aeron_messaging_configuration);
                                 break;
                             case SERVER:
                                 // Start aeron_messaging_server in it's own thread, we'll use it's public
                                 // methods to enqueue (send) / dequeue (receive) messages
-                                instance.start_aeron_server(aeron_messaging_configuration.aeron_server_configuration);
+                                instance.start_aeron_server(aeron_messaging_configuration);
                                 break;
                             default:
                         }
@@ -147,6 +258,18 @@ public class DeliveryService extends Transportable {
     // ----------------------------------- AeronMessaging client/server (begin) -----------------
     private AeronMessagingServer aeron_messaging_server;
     private AeronMessagingClient aeron_messaging_client;
+    // Bridges the AeronMessaging traffic into our routing tables (see AeronBridge), null if Aeron is not enabled
+    private volatile AeronBridge aeron_bridge;
+
+    /**
+     * @return the bridge between AeronMessaging and the routing tables, or
+     * null if Aeron is not enabled (or no frame sender is configured). Its outgoing frame sender (see
+     * IRemoteFrameSender) comes from the AeronMessagingConfiguration
+     * (server_frame_sender_factory / client_frame_sender_factory).
+     */
+    public AeronBridge get_aeron_bridge() {
+        return aeron_bridge;
+    }
 
     /**
      * <pre>
@@ -159,6 +282,9 @@ public class DeliveryService extends Transportable {
      * </pre>
      */
     private void stop_aeron() {
+        if (aeron_bridge != null) {
+            aeron_bridge.stop();
+        }
         if (aeron_messaging_server != null) {
             aeron_messaging_server.close();
         }
@@ -172,18 +298,32 @@ public class DeliveryService extends Transportable {
      * MessageHandler will be responsible for the incoming (via Aeron) messages processing.
      * We register an instance of this type with the aeron_messaging_server by the following call:
      *     aeron_messaging_server.register_external_message_handler(message_handler);
+     * and on the client side with the client_message_handler_registrar of the configuration (see
+     * AeronMessagingConfiguration). On the client side everything comes from the server, so all the
+     * frames go to its peer (AeronBridge.SERVER_SESSION_ID), whatever session id the client library reports.
      * </pre>
      */
     private class MessageHandler implements IMessageHandler {
 
         @Override
         public void process_all_clients_message(String message) {
-            System.out.println("process_all_clients_message: message: " + message);
+            AeronBridge bridge = aeron_bridge;
+            if (bridge != null) {
+                bridge.on_all_clients_message(message);
+            }
         }
 
         @Override
         public void process_private_message(Integer session_id, String message) {
-            System.out.println("process_private_message: session_id: " + session_id + ", message: " + message);
+            AeronBridge bridge = aeron_bridge;
+            if (bridge == null) {
+                return;
+            }
+            if (bridge.is_hub()) {
+                bridge.on_private_message(session_id, message);
+            } else {
+                bridge.on_all_clients_message(message);
+            }
         }
     }
 
@@ -195,11 +335,20 @@ public class DeliveryService extends Transportable {
      *
      * @throws Exception
      */
-    private void start_aeron_server(AeronMessagingServerConfiguration aeron_server_configuration)
+    private void start_aeron_server(AeronMessagingConfiguration aeron_messaging_configuration)
             throws Exception {
 
         // Start aeron_messaging_server in it's own thread, we'll use it's public methods to enqueue (send) / dequeue (receive) messages
-        aeron_messaging_server = create(Clock.systemUTC(), aeron_server_configuration);
+        aeron_messaging_server = create(Clock.systemUTC(), aeron_messaging_configuration.aeron_server_configuration);
+
+        // The server is the hub: it relays the messages between its clients (remote peers show up with their first frame).
+        // Outgoing frames of each peer go to its client session, the way the application's aeronmessaging version sends them.
+        if (aeron_messaging_configuration.server_frame_sender_factory != null) {
+            AeronBridge bridge = new AeronBridge(get_uri() + "_aeron_bridge", this, true);
+            bridge.set_frame_sender(aeron_messaging_configuration.server_frame_sender_factory.apply(aeron_messaging_server));
+            bridge.start();
+            aeron_bridge = bridge;
+        }
         aeron_messaging_server.register_external_message_handler(message_handler);
         aeron_messaging_server.aeron_messaging_server_thread = new Thread(aeron_messaging_server);
         aeron_messaging_server.aeron_messaging_server_thread.start();
@@ -215,11 +364,23 @@ public class DeliveryService extends Transportable {
 //        }
     }
 
-    private void start_aeron_client(AeronMessagingClientConfiguration aeron_client_configuration)
+    private void start_aeron_client(AeronMessagingConfiguration aeron_messaging_configuration)
             throws Exception {
 
         // Start aeron_messaging_server in it's own thread, we'll use it's public methods to enqueue (send) / dequeue (receive) messages
-        aeron_messaging_client = AeronMessagingClient.create(aeron_client_configuration);
+        aeron_messaging_client = AeronMessagingClient.create(aeron_messaging_configuration.aeron_client_configuration);
+
+        // The client has the only remote peer (the server), its outgoing frames go over the client session
+        if (aeron_messaging_configuration.client_frame_sender_factory != null) {
+            AeronBridge bridge = new AeronBridge(get_uri() + "_aeron_bridge", this, false);
+            bridge.set_frame_sender(aeron_messaging_configuration.client_frame_sender_factory.apply(aeron_messaging_client));
+            bridge.get_or_create_peer(AeronBridge.SERVER_SESSION_ID);
+            bridge.start();
+            aeron_bridge = bridge;
+        }
+        if (aeron_messaging_configuration.client_message_handler_registrar != null) {
+            aeron_messaging_configuration.client_message_handler_registrar.accept(aeron_messaging_client, message_handler);
+        }
         aeron_messaging_client.aeron_messaging_client_thread = new Thread(aeron_messaging_client);
         aeron_messaging_client.aeron_messaging_client_thread.start();
 
@@ -245,6 +406,428 @@ public class DeliveryService extends Transportable {
      * </pre>
      */
     private DeliveryService() {
+        // The router inbox collects messages from all the participants, so let's make it much bigger than a regular one.
+        // It has the priority lanes, so a burst of publishes doesn't hold the responses back (see PriorityLaneQueue).
+        super(new PriorityLaneQueue(DELIVERY_SERVICE_INCOMING_MESSAGES_QUEUE_CAPACITY));
+        router_lanes = (PriorityLaneQueue) incoming_messages_queue;
+        // Publishers wait for the router to catch up (up to the timeout, then their publish() gets INBOX_FULL)
+        set_inbox_overflow_policy(InboxOverflowPolicy.BLOCK, DEFAULT_INBOX_BLOCK_TIMEOUT_MS);
+
+        // One route cache table per mime_type (filled once here, only read afterwards)
+        for (MessageHeaderMimeType mime_type : MessageHeaderMimeType.values()) {
+            route_cache.put(mime_type, new ConcurrentHashMap<>());
+        }
+    }
+
+    public static final int DELIVERY_SERVICE_INCOMING_MESSAGES_QUEUE_CAPACITY = 65536;
+
+    // Our inbox (same instance as incoming_messages_queue)
+    private final PriorityLaneQueue router_lanes;
+
+    /**
+     * <pre>
+     * Priority lanes of the router inbox. Tune them at any time, examples:
+     *   get_router_lanes().set_weights(new int[]{16, 4, 1});  // responses get 16 of every 21 routing slots
+     *   get_router_lanes().set_lanes_enabled(false);         // back to a single FIFO
+     * In the sharded routing mode each shard inbox has its own lanes (see RouterShard.get_lanes()), set up
+     * like these ones when the shards are created. Use set_router_lane_weights() / set_router_lanes_enabled()
+     * to change them all at once.
+     *
+     * </pre>
+     *
+     * @return
+     */
+    public PriorityLaneQueue get_router_lanes() {
+        return router_lanes;
+    }
+
+    /**
+     * Same as get_router_lanes().set_weights(), applied to the router shard
+     * lanes as well (if any).
+     *
+     * @param weights
+     */
+    public synchronized void set_router_lane_weights(int[] weights) {
+        router_lanes.set_weights(weights);
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            for (RouterShard shard : shards) {
+                shard.get_lanes().set_weights(weights);
+            }
+        }
+    }
+
+    /**
+     * Same as get_router_lanes().set_lanes_enabled(), applied to the router
+     * shard lanes as well (if any).
+     *
+     * @param lanes_enabled
+     */
+    public synchronized void set_router_lanes_enabled(boolean lanes_enabled) {
+        router_lanes.set_lanes_enabled(lanes_enabled);
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            for (RouterShard shard : shards) {
+                shard.get_lanes().set_lanes_enabled(lanes_enabled);
+            }
+        }
+    }
+
+    // What the shovel thread does when its inbox is empty (see router.IdleStrategy).
+    // Default is to park and get woken up by enqueue(), so there is neither "up to 1ms"
+    // delay nor 100% cpu usage. Volatile, since it can be swapped at runtime.
+    private volatile IdleStrategy idle_strategy = new ParkingIdleStrategy();
+
+    /**
+     * <pre>
+     * Choose how the shovel thread idles when there are no messages to route:
+     *   - BusySpinIdleStrategy  - lowest latency, burns 1 core
+     *   - YieldingIdleStrategy  - low latency, burns 1 core but shares it
+     *   - BackoffIdleStrategy   - spin, then yield, then park with exponential backoff
+     *   - ParkingIdleStrategy   - park until enqueue() signals us (default)
+     *
+     * Can be called at any time, the shovel thread picks the new strategy on its next pass.
+     *
+     * </pre>
+     *
+     * @param idle_strategy
+     */
+    public void set_idle_strategy(IdleStrategy idle_strategy) {
+        IdleStrategy old_idle_strategy = this.idle_strategy;
+        this.idle_strategy = idle_strategy;
+
+        // The shovel thread might be parked inside the old strategy, wake it up.
+        old_idle_strategy.signal();
+    }
+
+    public IdleStrategy get_idle_strategy() {
+        return idle_strategy;
+    }
+
+    /**
+     * Same as Transportable.offer() (so enqueue() too), but also signal the
+     * shovel thread, so it can wake up (if it is parked) and route the message
+     * right away. The router inbox overflow policy (see
+     * set_inbox_overflow_policy()) is what the publishers see as the
+     * backpressure: with the REJECT policy (or BLOCK with a timeout) their
+     * publish() returns FunctionResult.INBOX_FULL once the router falls
+     * behind. In the sharded routing mode the same policy applies to the
+     * shard inboxes (see RouterShard).
+     *
+     * @param message
+     */
+    @Override
+    public FunctionResult offer(Message message) {
+        // In sharded routing mode the message goes straight into one of the shards
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            return shards[select_router_shard(message, shards.length)].offer(message);
+        }
+
+        FunctionResult result = super.offer(message);
+        idle_strategy.signal();
+        return result;
+    }
+
+    @Override
+    public int offer_all(List<Message> messages) {
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                if (shards[select_router_shard(message, shards.length)].offer(message).failed()) {
+                    // Same as Transportable.offer_all(): the caller still owns the rest, count them all
+                    increment_not_taken_stats(messages.size() - i - 1);
+                    return i;
+                }
+            }
+            return messages.size();
+        }
+
+        int taken_count = super.offer_all(messages);
+        idle_strategy.signal();
+        return taken_count;
+    }
+
+    /**
+     * Router inbox overflow policy (see Transportable.set_inbox_overflow_policy()),
+     * applied to the router shard inboxes as well.
+     *
+     * @param inbox_overflow_policy
+     * @param block_timeout_ms
+     */
+    @Override
+    public void set_inbox_overflow_policy(InboxOverflowPolicy inbox_overflow_policy, long block_timeout_ms) {
+        super.set_inbox_overflow_policy(inbox_overflow_policy, block_timeout_ms);
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            for (RouterShard shard : shards) {
+                shard.set_inbox_overflow_policy(inbox_overflow_policy, block_timeout_ms);
+            }
+        }
+    }
+
+    // Sharded routing mode (optional, disabled by default). When enabled, enqueue() hashes the message "shard key"
+    // (the "to" header by default) and puts the message into one of the router_shards, each with its own inbox and
+    // its own routing thread. Messages with the same shard key always go to the same shard, so FIFO order per
+    // destination is preserved. Null means "single-threaded mode" - everything is routed by our own shovel thread.
+    private volatile RouterShard[] router_shards = null;
+    private volatile IShardKeyExtractor shard_key_extractor = message -> message.header_get_to();
+
+    public static final int DEFAULT_ROUTER_SHARD_QUEUE_CAPACITY = 16384;
+
+    /**
+     * Switch to the sharded routing mode with "shard_count" router threads
+     * each owning a partition chosen by hashing the "to" header.
+     *
+     * @param shard_count
+     * @return
+     */
+    public FunctionResult enable_sharded_routing(int shard_count) {
+        return enable_sharded_routing(shard_count, DEFAULT_ROUTER_SHARD_QUEUE_CAPACITY, message -> message.header_get_to());
+    }
+
+    /**
+     * <pre>
+     * Switch to the sharded routing mode. Should be called once at startup (before
+     * participants start sending messages): messages already sitting in the main inbox
+     * are still routed by the main shovel thread, so FIFO order is only guaranteed for
+     * messages enqueued after this call.
+     *
+     * </pre>
+     *
+     * @param shard_count number of router threads
+     * @param shard_queue_capacity capacity of each shard inbox
+     * @param shard_key_extractor gives the key to hash (messages with equal
+     * keys are routed in FIFO order by the same shard)
+     * @return
+     */
+    public synchronized FunctionResult enable_sharded_routing(int shard_count, int shard_queue_capacity, IShardKeyExtractor shard_key_extractor) {
+        if (router_shards != null) {
+            String error_details = "Error: enable_sharded_routing(): sharded routing mode is already enabled (" + router_shards.length + " shards).";
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("enable_sharded_routing_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        if (shard_count < 1) {
+            String error_details = "Error: enable_sharded_routing(): shard_count must be positive, got: " + shard_count;
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("enable_sharded_routing_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+
+        RouterShard[] shards = new RouterShard[shard_count];
+        for (int i = 0; i < shard_count; i++) {
+            shards[i] = new RouterShard(i, this, shard_queue_capacity, new ParkingIdleStrategy());
+            shards[i].start();
+        }
+        this.shard_key_extractor = shard_key_extractor;
+        this.router_shards = shards;
+        return new FunctionResult().set_success();
+    }
+
+    public boolean is_sharded_routing_enabled() {
+        return router_shards != null;
+    }
+
+    /**
+     * @return router shards or null if we're in the (default)
+     * single-threaded routing mode.
+     */
+    public RouterShard[] get_router_shards() {
+        return router_shards;
+    }
+
+    private int select_router_shard(Message message, int shard_count) {
+        Object shard_key = shard_key_extractor.get_shard_key(message);
+        if (shard_key == null) {
+            return 0;
+        }
+        int hash = shard_key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % shard_count;
+    }
+
+    /**
+     * Visualize router shards (queue depth, routed messages count and
+     * throughput since the previous call) as an ascii-table (String).
+     *
+     * @return
+     */
+    public String visualize_router_shards() {
+        StringBuilder result = new StringBuilder();
+        RouterShard[] shards = router_shards;
+        result.append("----------------------------------------------[ router shards ]-------------------------------------------\n");
+        if (shards == null) {
+            result.append("sharded routing is disabled (single-threaded routing mode)\n");
+        } else {
+            result.append(Aid.pad_string_with_spaces(" shard #", 8)
+                    + " | " + Aid.pad_string_with_spaces(" queue depth", 20)
+                    + " | " + Aid.pad_string_with_spaces(" routed messages", 18)
+                    + " | throughput (msg/s)\n");
+            for (RouterShard shard : shards) {
+                result.append(
+                        Aid.pad_string_with_spaces(" " + shard.get_shard_number(), 8)
+                        + " | " + Aid.pad_string_with_spaces(" " + shard.get_queue_depth() + " / " + shard.get_queue_capacity(), 20)
+                        + " | " + Aid.pad_string_with_spaces(" " + shard.get_routed_messages_count(), 18)
+                        + " | " + String.format("%.1f", shard.get_throughput_messages_per_second())
+                        + "\n");
+            }
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+
+    // Credit-based flow control (optional, disabled by default): producers spend one credit per message
+    // enqueued into the router and get them back in batches once routed (see FlowController)
+    private volatile FlowController flow_controller = null;
+
+    /**
+     * Enable the credit-based flow control with the default settings (see
+     * FlowController): the publishers slow down before the router and the
+     * subscriber inboxes overflow.
+     */
+    public void enable_flow_control() {
+        enable_flow_control(new FlowController(() -> idle_strategy.signal()));
+    }
+
+    /**
+     * Enable the credit-based flow control with the given controller (its
+     * router_signal should wake the shovel thread up, like the default one).
+     * Messages already in flight carry the credits of the previous controller
+     * (if any), which simply go back to it.
+     *
+     * @param flow_controller
+     */
+    public void enable_flow_control(FlowController flow_controller) {
+        this.flow_controller = flow_controller;
+    }
+
+    public void disable_flow_control() {
+        this.flow_controller = null;
+    }
+
+    /**
+     * @return the flow controller or null if the flow control is disabled
+     */
+    public FlowController get_flow_controller() {
+        return flow_controller;
+    }
+
+    /**
+     * Visualize the flow control credits of all the producing transports
+     * (who is throttled and why).
+     *
+     * @return
+     */
+    public String visualize_flow_control() {
+        FlowController current_flow_controller = flow_controller;
+        return current_flow_controller != null ? current_flow_controller.visualize() : "flow control: disabled\n";
+    }
+
+    // Batch routing: the shovel thread drains up to "route_batch_size" messages per pass, routes them all
+    // with a single clock read and then delivers them grouped by destination transport (one bulk enqueue
+    // per client inbox per batch). Setting route_batch_size to 1 gets us back to "one message at a time".
+    private volatile int route_batch_size = 64;
+
+    // These are only touched by the shovel thread
+    private final ArrayList<Message> route_batch_messages = new ArrayList<>();
+    private final DeliveryBatch route_delivery_batch = new DeliveryBatch();
+    private final FunctionResult route_batch_function_result = new FunctionResult();
+
+    // Batch routing stats (histograms are thread-safe, so anyone can read them at any time)
+    private final Histogram route_batch_size_histogram = new Histogram("route_batch_size");
+    private final Histogram route_batch_latency_ns_histogram = new Histogram("route_batch_latency_ns");
+    private final Histogram route_message_latency_ns_histogram = new Histogram("route_message_latency_ns");
+
+    public void set_route_batch_size(int route_batch_size) {
+        this.route_batch_size = Math.max(1, route_batch_size);
+    }
+
+    public int get_route_batch_size() {
+        return route_batch_size;
+    }
+
+    public Histogram get_route_batch_size_histogram() {
+        return route_batch_size_histogram;
+    }
+
+    public Histogram get_route_batch_latency_ns_histogram() {
+        return route_batch_latency_ns_histogram;
+    }
+
+    public Histogram get_route_message_latency_ns_histogram() {
+        return route_message_latency_ns_histogram;
+    }
+
+    /**
+     * Visualize batch routing stats (batch sizes and route latency) as a
+     * multi-line String.
+     *
+     * @return
+     */
+    public String visualize_route_stats() {
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ route stats ]-------------------------------------------\n");
+        result.append("route_batch_size (configured): ").append(route_batch_size).append("\n");
+        result.append(route_batch_size_histogram.visualize()).append("\n");
+        result.append(route_batch_latency_ns_histogram.visualize()).append("\n");
+        result.append(route_message_latency_ns_histogram.visualize()).append("\n");
+        result.append(router_lanes.visualize());
+        RouterShard[] shards = router_shards;
+        if (shards != null) {
+            for (RouterShard shard : shards) {
+                result.append(shard.get_uri()).append(" ").append(shard.get_lanes().visualize());
+            }
+        }
+        result.append("route cache: ").append(route_cache_enabled ? "enabled" : "disabled")
+                .append(", hits: ").append(route_cache_hit_count.sum())
+                .append(", misses: ").append(route_cache_miss_count.sum())
+                .append(", invalidated: ").append(route_cache_invalidated_count.sum())
+                .append(", bypass: ").append(route_cache_bypass_count.sum())
+                .append(", epoch: ").append(subscriptions_common_epoch.get())
+                .append("\n");
+        MessagePool message_pool = Message.get_default_pool();
+        result.append("message pool: ").append(message_pool != null ? message_pool.get_uri() + " " + message_pool.get_stats() : "disabled").append("\n");
+        result.append("subscriptions expiration timer wheel: ").append(subscriptions_expiration_timer_wheel.get_stats()).append("\n");
+        result.append(subscriptions_expiration_timer_wheel.get_expired_per_tick_histogram().visualize()).append("\n");
+        result.append(subscriptions_expiration_timer_wheel.get_tick_duration_ns_histogram().visualize()).append("\n");
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+
+    /**
+     * Drain up to route_batch_size messages from our inbox and route them all
+     * in one go: one System.currentTimeMillis() for the whole batch, one
+     * reused FunctionResult and all the deliveries grouped by transport
+     * (see DeliveryBatch).
+     *
+     * @return number of routed messages (zero if the inbox was empty)
+     */
+    private int route_batch() {
+        int batch_size = incoming_messages_queue.drain_to(route_batch_messages, route_batch_size);
+        if (batch_size == 0) {
+            return 0;
+        }
+
+        long start_ns = System.nanoTime();
+        long now_epoch_ms = System.currentTimeMillis();
+        for (int i = 0; i < batch_size; i++) {
+            // Note: route() reports errors and increases stats by itself, nothing else to do here on failure.
+            route(route_batch_messages.get(i), now_epoch_ms, route_batch_function_result, route_delivery_batch);
+        }
+        route_delivery_batch.flush();
+        route_batch_messages.clear();
+
+        long batch_latency_ns = System.nanoTime() - start_ns;
+        route_batch_size_histogram.record(batch_size);
+        route_batch_latency_ns_histogram.record(batch_latency_ns);
+        route_message_latency_ns_histogram.record(batch_latency_ns / batch_size);
+        this.increment_stats("route_batch_count");
+        this.increment_stats("route_batch_messages_count", batch_size);
+        return batch_size;
     }
 
     // Delivery Service has it's own dequeue thread
@@ -262,20 +845,35 @@ public class DeliveryService extends Transportable {
 
                 // Quickly process all incoming messages (basically re-enqueue them in different destination by means of 
                 // connected transports and subscription tables. Busy loop, no sleep, until we shovel them all.
-                while (incoming_messages_queue.size() > 0) {
-                    Message message = incoming_messages_queue.remove(0);
-                    FunctionResult route_result = route(message);
-                    if (route_result.failed()) {
-                        // At least log error and increase stats
-                        ; // don't report error / increase stats here, it was already done inside route() f-n.
+                int work_count = 0;
+                if (route_batch_size > 1) {
+                    // Batch mode: drain and route up to route_batch_size messages per pass
+                    int batch_size;
+                    while ((batch_size = route_batch()) > 0) {
+                        work_count += batch_size;
+                    }
+                } else {
+                    // One message at a time
+                    Message message;
+                    while ((message = incoming_messages_queue.poll()) != null) {
+                        FunctionResult route_result = route(message);
+                        if (route_result.failed()) {
+                            // At least log error and increase stats
+                            ; // don't report error / increase stats here, it was already done inside route() f-n.
+                        }
+                        work_count++;
                     }
                 }
 
-                // Sleep 1 ms before checking queue size again. (this would prevent 100% cpu
-                // usage spikes at a price of adding "up to 1ms" delay into message processing.
-                // TODO: figure out how to signal this thread to process incoming message 
-                // as soon as it is placed in the queue, so we'll no need any sleep at all!-)
-                Aid.sleep_ms(1);
+                // Hand the credits of the routed messages back to the producers (see FlowController)
+                FlowController current_flow_controller = flow_controller;
+                if (current_flow_controller != null) {
+                    work_count += current_flow_controller.grant_credits();
+                }
+
+                // Let the idle strategy decide what to do next: return right away if we did some work,
+                // otherwise spin / yield / park until enqueue() signals us (see set_idle_strategy()).
+                idle_strategy.idle(work_count);
             }
         };
         Thread thread = new Thread(runnable);
@@ -298,11 +896,48 @@ public class DeliveryService extends Transportable {
      * @param expire_on_epoch_ms
      */
     public void subscribe(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
-        // Add +1 item into subscriptions_common lookup table
-        subscriptions_common.put(subscription_matcher, subscriber_details);
+        synchronized (subscriptions_common_lock) {
+            // Let subscriber_details know its matcher (we need it when we find subscriber_details via the topic index)
+            subscriber_details.subscription_matcher = subscription_matcher;
+
+            // Invalidate the route cache
+            subscriptions_common_epoch.incrementAndGet();
+            if (!subscription_matcher.depends_only_on_routing_headers()) {
+                subscriptions_common_not_cacheable_count++;
+            }
+
+            // Add +1 item into subscriptions_common lookup table
+            SubscriberDetails replaced_subscriber_details = subscriptions_common.put(subscription_matcher, subscriber_details);
+            if (replaced_subscriber_details != null) {
+                // Same matcher subscribed again, forget the old record
+                remove_from_subscriptions_common_routing_tables(subscription_matcher, replaced_subscriber_details);
+                cancel_subscription_expiration(replaced_subscriber_details);
+            }
+
+            // Either index it by topic, put it into the topic trie, into the compiled predicates or into the "opaque" (linear scan) table
+            if (subscription_matcher instanceof TopicEqualsMatcher) {
+                String topic = ((TopicEqualsMatcher) subscription_matcher).get_topic();
+                subscriptions_common_topic_index.put(topic, SubscriberDetails.array_append(subscriptions_common_topic_index.get(topic), subscriber_details));
+            } else if (subscription_matcher instanceof TopicWildcardMatcher) {
+                subscriptions_common_topic_trie.add(((TopicWildcardMatcher) subscription_matcher).get_pattern_levels(), subscriber_details);
+            } else if (subscription_matcher instanceof PredicateMatcher) {
+                subscriptions_common_predicates.put(subscription_matcher, subscriber_details);
+                subscriptions_common_predicates_dirty = true;
+            } else {
+                subscriptions_common_opaque.put(subscription_matcher, subscriber_details);
+                subscriptions_common_opaque_snapshot = subscriptions_common_opaque.values().toArray(new SubscriberDetails[0]);
+            }
+
+            for (ISubscriptionListener subscription_listener : subscription_listeners) {
+                subscription_listener.on_subscribed(subscription_matcher, subscriber_details);
+            }
+        }
 
         // Also create +1 subscription record (duplicate) inside transport object (only per that particular transport)
         subscriber_details.transport.subscriptions_common.put(subscription_matcher, subscriber_details); // we duplicate subscription record inside transport just as a fancy way to transport to be aware about it's subscriptoins w/o lookup through all 3 delivery system subscription lookup tables.
+
+        // Remove it automatically once expired (if expiration is set)
+        schedule_subscription_expiration(subscriptions_common, subscription_matcher, subscriber_details);
     }
 
     /**
@@ -322,7 +957,8 @@ public class DeliveryService extends Transportable {
      */
     public void subscribe_transaction(final String transaction_id, SubscriberDetails subscriber_details) {
 
-        SubscriptionMatcher subscription_matcher = new SubscriptionMatcher(message -> message.headers.get("transaction_id").equals(transaction_id));
+        TransactionIdMatcher subscription_matcher = new TransactionIdMatcher(transaction_id);
+        subscriber_details.subscription_matcher = subscription_matcher;
 
         // If by this time the subsciber_details does not have "description" property set,
         // lets put there transaction_id value (that field is like an optional comment,
@@ -338,6 +974,45 @@ public class DeliveryService extends Transportable {
 
         // Also create +1 subscription record (duplicate) inside transport object (only per that particular transport)
         subscriber_details.transport.subscriptions_transactions.put(subscription_matcher, subscriber_details); // we duplicate subscription record inside transport just as a fancy way to transport to be aware about it's subscriptoins w/o lookup through all 3 delivery system subscription lookup tables.
+
+        // And finally index it by transaction_id (used for the response routing). Transaction ids are
+        // supposed to be unique, but if the same id is re-used then the newest subscription wins and
+        // we drop the old one from both tables (otherwise it would sit there until it expires).
+        SubscriberDetails replaced_subscriber_details = subscriptions_transactions_by_id.put(transaction_id, subscriber_details);
+        if (replaced_subscriber_details != null && replaced_subscriber_details != subscriber_details) {
+            SubscriptionMatcher replaced_subscription_matcher = replaced_subscriber_details.subscription_matcher;
+            if (replaced_subscription_matcher != null && subscriptions_transactions.remove(replaced_subscription_matcher) != null) {
+                replaced_subscriber_details.transport.subscriptions_transactions.remove(replaced_subscription_matcher);
+            }
+            cancel_subscription_expiration(replaced_subscriber_details);
+            this.increment_stats("subscribe_transaction_replaced_count");
+        }
+
+        // Remove it automatically once the transaction is expired (if expiration is set)
+        schedule_subscription_expiration(subscriptions_transactions, subscription_matcher, subscriber_details);
+    }
+
+    /**
+     * Undo subscribe_transaction(), ex: the request never made it into the
+     * router inbox (see LocalTransport.deliver_request()), so no response is
+     * coming. Only exactly this subscriber_details is removed (the same
+     * transaction_id might have been re-subscribed since).
+     *
+     * @param transaction_id
+     * @param subscriber_details
+     * @return true if the subscription was found and removed
+     */
+    public boolean unsubscribe_transaction(final String transaction_id, SubscriberDetails subscriber_details) {
+        SubscriptionMatcher subscription_matcher = subscriber_details.subscription_matcher;
+        if (subscription_matcher == null || !subscriptions_transactions.remove(subscription_matcher, subscriber_details)) {
+            // Not subscribed (or already expired), nothing to do
+            return false;
+        }
+        subscriptions_transactions_by_id.remove(transaction_id, subscriber_details);
+        subscriber_details.transport.subscriptions_transactions.remove(subscription_matcher, subscriber_details);
+        cancel_subscription_expiration(subscriber_details);
+        this.increment_stats("unsubscribe_transaction_count");
+        return true;
     }
 
     /**
@@ -347,10 +1022,21 @@ public class DeliveryService extends Transportable {
      */
     public void subscribe_transactions_sniffers(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
         // Add +1 item into subscriptions_transactions_sniffers lookup table
-        subscriptions_transactions_sniffers.put(subscription_matcher, subscriber_details);
+        subscriber_details.subscription_matcher = subscription_matcher;
+        SubscriberDetails replaced_subscriber_details;
+        synchronized (subscriptions_transactions_sniffers_lock) {
+            replaced_subscriber_details = subscriptions_transactions_sniffers.put(subscription_matcher, subscriber_details);
+            subscriptions_transactions_sniffers_snapshot = subscriptions_transactions_sniffers.values().toArray(new SubscriberDetails[0]);
+        }
+        if (replaced_subscriber_details != null) {
+            cancel_subscription_expiration(replaced_subscriber_details);
+        }
 
         // Add +1 item into subscriptions_transactions_sniffers inside transport (only holds "per this particula transport" subscriptions copies)
         subscriber_details.transport.subscriptions_transactions_sniffers.put(subscription_matcher, subscriber_details); // we duplicate subscription record inside transport just as a fancy way to transport to be aware about it's subscriptoins w/o lookup through all 3 delivery system subscription lookup tables.
+
+        // Remove it automatically once expired (if expiration is set)
+        schedule_subscription_expiration(subscriptions_transactions_sniffers, subscription_matcher, subscriber_details);
     }
 
     /**
@@ -385,21 +1071,21 @@ public class DeliveryService extends Transportable {
         // We could use only one SubscriberDetails, but let's make them all different instances due to the different comments we put inside "subscriber_details.description" field.
         {
             // Extra brackets would make declarations "local" and not visible in the next block, where we could accidentally missuse them.
-            SubscriptionMatcher subscription_matcher = new SubscriptionMatcher(message -> message.headers.get("to").equals("/broadcast"));
+            SubscriptionMatcher subscription_matcher = new TopicEqualsMatcher("/broadcast");
             SubscriberDetails subscriber_details = new SubscriberDetails(participsnts_transport);
             subscriber_details.description = "/broadcast";
             subscribe(subscription_matcher, subscriber_details);
         }
 
         {
-            SubscriptionMatcher subscription_matcher = new SubscriptionMatcher(message -> message.headers.get("to").equals("/local/broadcast"));
+            SubscriptionMatcher subscription_matcher = new TopicEqualsMatcher("/local/broadcast");
             SubscriberDetails subscriber_details = new SubscriberDetails(participsnts_transport);
             subscriber_details.description = "/local/broadcast";
             subscribe(subscription_matcher, subscriber_details);
         }
 
         {
-            SubscriptionMatcher subscription_matcher = new SubscriptionMatcher(message -> message.headers.get("to").equals(participant.get_uri()));
+            SubscriptionMatcher subscription_matcher = new TopicEqualsMatcher(participant.get_uri());
             SubscriberDetails subscriber_details = new SubscriberDetails(participsnts_transport);
             subscriber_details.description = "by participant uri";
             subscribe(subscription_matcher, subscriber_details);
@@ -417,11 +1103,86 @@ public class DeliveryService extends Transportable {
      */
     public void unsubscribe(SubscriptionMatcher subscription_matcher) {
         SubscriberDetails deleted_subscriber_details;
-        deleted_subscriber_details = subscriptions_common.remove(subscription_matcher);
+        synchronized (subscriptions_common_lock) {
+            deleted_subscriber_details = subscriptions_common.remove(subscription_matcher);
+            if (deleted_subscriber_details == null) {
+                // Not subscribed (or already expired), nothing to do
+                return;
+            }
+            remove_from_subscriptions_common_routing_tables(subscription_matcher, deleted_subscriber_details);
+        }
+        cancel_subscription_expiration(deleted_subscriber_details);
 
         deleted_subscriber_details.transport.subscriptions_common.remove(subscription_matcher); // we duplicated subscription record inside transport just as a fancy way to transport to be aware about it's subscriptoins w/o lookup through all 3 delivery system subscription lookup tables. So now it is time to delete it.
     }
 
+    /**
+     * Remove given subscription from the tables we use for routing
+     * (subscriptions_common_topic_index, subscriptions_common_topic_trie,
+     * subscriptions_common_predicates or subscriptions_common_opaque).
+     * Caller must hold subscriptions_common_lock.
+     *
+     * @param subscription_matcher
+     * @param subscriber_details
+     */
+    private void remove_from_subscriptions_common_routing_tables(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
+        // Invalidate the route cache
+        subscriptions_common_epoch.incrementAndGet();
+        if (!subscription_matcher.depends_only_on_routing_headers()) {
+            subscriptions_common_not_cacheable_count--;
+        }
+
+        if (subscription_matcher instanceof TopicEqualsMatcher) {
+            String topic = ((TopicEqualsMatcher) subscription_matcher).get_topic();
+            SubscriberDetails[] topic_subscribers = SubscriberDetails.array_remove(subscriptions_common_topic_index.get(topic), subscriber_details);
+            if (topic_subscribers == null) {
+                subscriptions_common_topic_index.remove(topic);
+            } else {
+                subscriptions_common_topic_index.put(topic, topic_subscribers);
+            }
+        } else if (subscription_matcher instanceof TopicWildcardMatcher) {
+            subscriptions_common_topic_trie.remove(((TopicWildcardMatcher) subscription_matcher).get_pattern_levels(), subscriber_details);
+        } else if (subscription_matcher instanceof PredicateMatcher) {
+            if (subscriptions_common_predicates.remove(subscription_matcher, subscriber_details)) {
+                subscriptions_common_predicates_dirty = true;
+            }
+        } else {
+            if (subscriptions_common_opaque.remove(subscription_matcher, subscriber_details)) {
+                subscriptions_common_opaque_snapshot = subscriptions_common_opaque.values().toArray(new SubscriberDetails[0]);
+            }
+        }
+
+        for (ISubscriptionListener subscription_listener : subscription_listeners) {
+            subscription_listener.on_unsubscribed(subscription_matcher, subscriber_details);
+        }
+    }
+
+    /**
+     * Start notifying the listener about the subscriptions_common changes.
+     * The listener is first told about all the current subscriptions (as if
+     * they were just subscribed), so it never misses one.
+     *
+     * @param subscription_listener
+     */
+    public void add_subscription_listener(ISubscriptionListener subscription_listener) {
+        synchronized (subscriptions_common_lock) {
+            for (Map.Entry<SubscriptionMatcher, SubscriberDetails> entry : subscriptions_common.entrySet()) {
+                subscription_listener.on_subscribed(entry.getKey(), entry.getValue());
+            }
+            ISubscriptionListener[] listeners = Arrays.copyOf(subscription_listeners, subscription_listeners.length + 1);
+            listeners[listeners.length - 1] = subscription_listener;
+            subscription_listeners = listeners;
+        }
+    }
+
+    public void remove_subscription_listener(ISubscriptionListener subscription_listener) {
+        synchronized (subscriptions_common_lock) {
+            ArrayList<ISubscriptionListener> listeners = new ArrayList<>(Arrays.asList(subscription_listeners));
+            listeners.remove(subscription_listener);
+            subscription_listeners = listeners.toArray(new ISubscriptionListener[0]);
+        }
+    }
+
     /**
      * DeliveryService (aka "router") transparently bypassing all the incoming
      * messages (from all kinds of connected to the delivery service transport
@@ -459,6 +1220,8 @@ public class DeliveryService extends Transportable {
      */
     public void process_message_from_loopback_transport(Message message) {
 
+        // Done with the message (we own one reference of the pooled message, just like any other subscriber)
+        message.release();
     }
 
     /**
@@ -470,22 +1233,51 @@ public class DeliveryService extends Transportable {
      */
     public FunctionResult route(Message message) {
         FunctionResult function_result = new FunctionResult();
+        long now_epoch_ms = System.currentTimeMillis();
+        return route(message, now_epoch_ms, function_result, null);
+    }
+
+    /**
+     * The "batch-friendly" version of route(message): the caller passes the
+     * current time (so the whole batch shares one clock read), the
+     * FunctionResult instance to be (re)used and the DeliveryBatch to collect
+     * deliveries into. If delivery_batch is null, messages are delivered to
+     * the subscribers right away.
+     *
+     * Pooled messages (see MessagePool): route() retains the message once per
+     * subscriber delivery and then releases the reference handed over by the
+     * producer, so the message goes back to the pool once the last subscriber
+     * releases it (or right away, if it was dropped or had no subscribers).
+     *
+     * @param message
+     * @param now_epoch_ms
+     * @param function_result
+     * @param delivery_batch
+     * @return the given function_result
+     */
+    public FunctionResult route(Message message, long now_epoch_ms, FunctionResult function_result, DeliveryBatch delivery_batch) {
+        try {
+            return route_message(message, now_epoch_ms, function_result, delivery_batch);
+        } finally {
+            // Done routing: the flow control credit goes back to the producer (see FlowController)
+            CreditGate.release_credit(message);
+            // Drop the producer reference (no-op for non-pooled messages)
+            message.release();
+        }
+    }
+
+    private FunctionResult route_message(Message message, long now_epoch_ms, FunctionResult function_result, DeliveryBatch delivery_batch) {
 
         // Check if the message is expired, then simply drop it
-        Long expiration_epoch_ms = (Long) message.headers.get("expiration_epoch_ms");
-        if (expiration_epoch_ms != null) {
-            // Message has "expiration_epoch_ms" header present
-            if (expiration_epoch_ms != 0) {             // TODO: instead of blindly cast, make sure to check types and catch exceptions
-                // Message has "expiration_epoch_ms" header non-zero value
-                long now_epoch_ms = System.currentTimeMillis();
-                if (expiration_epoch_ms < now_epoch_ms) {
-                    // increment stats "route_dropped_messsages_count"
-                    this.increment_stats("route_dropped_messsages_count");
-
-                    // Expired, drop message (not an error)
-                    function_result.succeed();
-                    return function_result;
-                }
+        long expiration_epoch_ms = message.header_get_expiration_epoch_ms();
+        if (expiration_epoch_ms != 0) {
+            // Message has "expiration_epoch_ms" header non-zero value
+            if (expiration_epoch_ms < now_epoch_ms) {
+                // increment stats "route_dropped_messsages_count"
+                this.increment_stats("route_dropped_messsages_count");
+
+                // Expired, drop message (not an error)
+                return function_result.set_success();
             }
         }
 
@@ -499,24 +1291,39 @@ public class DeliveryService extends Transportable {
             this.increment_stats("route_errors_count");   // this is our "per function name" errors counter
 
             // Return failure
-            function_result.set_fail(error_details);
-            return function_result;
+            return function_result.set_fail(error_details);
+        }
+
+        // Frozen fan-out mode: same instance goes to all the subscribers, nobody can change what others see
+        if (freeze_on_fan_out) {
+            message.freeze();
         }
 
         // Route the message depending on the message type (publish, request, response).
-        List<SubscriberDetails> found_subscribers = null;
+        // Found subscribers are collected into the reusable (per thread) list, which we clear right after the delivery.
+        ArrayList<SubscriberDetails> found_subscribers = route_found_subscribers.get();
         switch (mime_type) {
 
             case PUBLISH:
             case REQUEST:
+                // Try the route cache first (if enabled and usable for the current subscriptions)
+                SubscriberDetails[] cached_subscribers = route_cache_enabled ? find_subscriptions_common_cached(message, mime_type) : null;
+                if (cached_subscribers != null) {
+                    for (SubscriberDetails subscriber_details : cached_subscribers) {
+                        deliver_to_subscriber(subscriber_details, message, delivery_batch);
+                    }
+                    break;
+                }
+
                 // Find all matching subscriptions
-                found_subscribers = find_subscriptions(message, subscriptions_common);
+                find_subscriptions(message, subscriptions_common, found_subscribers);
 
                 // Iterate all found subscriber_details and send them a message
-                for (SubscriberDetails subscriber_details : found_subscribers) {
+                for (int i = 0; i < found_subscribers.size(); i++) {
                     // Send message to i-th subscriber
-                    subscriber_details.transport.deliver_back_to_client(message);
+                    deliver_to_subscriber(found_subscribers.get(i), message, delivery_batch);
                 }
+                found_subscribers.clear();
                 break;
 
             case RESPONSE:
@@ -524,7 +1331,7 @@ public class DeliveryService extends Transportable {
                 SubscriberDetails found_subscriber = find_subscription(message, subscriptions_transactions);
                 if (found_subscriber != null) {
                     // There can be either 1 or none records found, so it is "safe assumption"
-                    found_subscriber.transport.deliver_back_to_client(message);
+                    deliver_to_subscriber(found_subscriber, message, delivery_batch);
                 } else {
                     // Failed to route the response. No subscribed transport found. But it is not necessarely an error.
                     // There can be several reasons:
@@ -533,26 +1340,50 @@ public class DeliveryService extends Transportable {
                 }
 
                 // Also do the lookup in 3rd subscription lookup table "subscriptions_transactions_sniffers"
-                found_subscribers = find_subscriptions(message, subscriptions_transactions_sniffers);
+                find_subscriptions(message, subscriptions_transactions_sniffers, found_subscribers);
 
                 // Iterate all found subscriber_details and send them a message
-                for (SubscriberDetails subscriber_details : found_subscribers) {
+                for (int i = 0; i < found_subscribers.size(); i++) {
                     // Send message to the i-th subscriber
-                    subscriber_details.transport.deliver_back_to_client(message);
+                    deliver_to_subscriber(found_subscribers.get(i), message, delivery_batch);
                 }
+                found_subscribers.clear();
                 break;
 
             default:
                 // Note: stats will be increased and error reported by the caller f-n, so no hustle here..
                 // error out`
                 String error_details = "Error: failed to route(message): unknown message mime_type: " + message.mime_type;
-                function_result.set_fail(error_details);
-                return function_result;
+                return function_result.set_fail(error_details);
         }
 
         // Return result: success
-        function_result.set_success();
-        return function_result;
+        return function_result.set_success();
+    }
+
+    /**
+     * Either deliver the message to the subscriber right away (if
+     * delivery_batch is null) or collect it into the delivery_batch, which
+     * will be flushed at the end of the batch. Pooled messages are retained
+     * here (the subscriber owns that reference and must release() it).
+     *
+     * @param subscriber_details
+     * @param message
+     * @param delivery_batch
+     */
+    private void deliver_to_subscriber(SubscriberDetails subscriber_details, Message message, DeliveryBatch delivery_batch) {
+        // One reference per delivery, released by the subscriber once processed (no-op for non-pooled messages)
+        message.retain();
+        // Flow control: hold the producer credits back while this subscriber inbox is congested
+        CreditGate credit_gate = message.get_credit_gate();
+        if (credit_gate != null) {
+            credit_gate.get_flow_controller().on_delivery(credit_gate, subscriber_details.transport);
+        }
+        if (delivery_batch == null) {
+            subscriber_details.transport.deliver_back_to_client(message);
+        } else {
+            delivery_batch.add(subscriber_details.transport, message);
+        }
     }
 
     /**
@@ -595,6 +1426,12 @@ public class DeliveryService extends Transportable {
                     + ")"
                     + "\n");
         }
+        result.append("topic index: " + subscriptions_common_topic_index.size() + " topics"
+                + " | topic trie: " + subscriptions_common_topic_trie.get_node_count() + " nodes, "
+                + subscriptions_common_topic_trie.get_subscriptions_count() + " subscriptions, "
+                + subscriptions_common_topic_trie.get_match_depth_histogram().visualize()
+                + " | predicates: " + visualize_compiled_predicates()
+                + " | opaque: " + subscriptions_common_opaque.size() + " subscriptions\n");
         result.append("-----------------------------------------------------------------------------------------------\n");
 
         return result.toString();
@@ -658,25 +1495,12 @@ public class DeliveryService extends Transportable {
         return result.toString();
     }
 
-    /**
-     * <pre>
-     * Timestamps table indicating when we last time cleared expired subscriptions from the
-     * subscription lookup tables. This is used in the find_subscriptions() function.
-     * HashMap has:
-     *   - key = lookup_table_identity_hashcode
-     *   - value = Long epoch_ms value indicating when last time we run cleanup on the given lookup table
-     *
-     * </pre>
-     */
-    private HashMap<String, Long> last_time_lookup_table_garbage_collection_timestamps = new HashMap<>(3);
-
     /**
      * Look through the whole subscriptions_common table and return all the
      * matching subscription details list.
      *
-     * Also periodically do the "garbage collection" by removing expired
-     * subscriptions. We don't have to do it on every message, but rather once
-     * every 10-20 seconds should be fine.
+     * Note: expired subscriptions are removed by the timer wheel thread (see
+     * schedule_subscription_expiration()), not here on the routing path.
      *
      * @param message
      * @return
@@ -690,94 +1514,354 @@ public class DeliveryService extends Transportable {
 
         // Function return the list of found subscribers
         List<SubscriberDetails> subscribers = new ArrayList<>();
+        find_subscriptions(message, lookup_table, subscribers);
+        return subscribers;
+    }
 
-        // Initialize 1st time seen lookup table "last time garbage collector called" timestamp with zero.
-        String lookup_table_identity_hashcode = Aid.get_instance_identity_hashcode(lookup_table);
-        if (last_time_lookup_table_garbage_collection_timestamps.get(lookup_table_identity_hashcode) == null) {
-            last_time_lookup_table_garbage_collection_timestamps.put(lookup_table_identity_hashcode, 0L);
+    /**
+     * Same as find_subscriptions(message, lookup_table), but the found
+     * subscribers are added to the given (caller-owned, reusable) list, so
+     * nothing gets allocated per message.
+     *
+     * @param message
+     * @param lookup_table
+     * @param subscribers found subscribers are added here
+     */
+    public void find_subscriptions(Message message, ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> lookup_table, List<SubscriberDetails> subscribers) {
+
+        // The "transactions" table is looked up by transaction_id (see subscriptions_transactions_by_id),
+        // there's at most 1 subscriber per transaction_id.
+        if (lookup_table == this.subscriptions_transactions) {
+            SubscriberDetails subscriber_details = find_subscription_by_transaction_id(message);
+            if (subscriber_details != null) {
+                subscribers.add(subscriber_details);
+            }
+            return;
         }
 
-        // Get the "last time garbage collector called" from the table
-        Long last_time_lookup_table_garbage_collection_epoch_ms = last_time_lookup_table_garbage_collection_timestamps.get(lookup_table_identity_hashcode);
-
-        // Figure out if it is a time to garbage-collect (delete expired records) subscription_common table.
-        long now_epoch_ms = System.currentTimeMillis();
-        boolean time_to_cleanup = now_epoch_ms - last_time_lookup_table_garbage_collection_epoch_ms > check_expired_subscriptions_common_min_interval_ms;
-        if (time_to_cleanup) {
-            // Update the "last time garbage collector called" value
-            last_time_lookup_table_garbage_collection_timestamps.put(lookup_table_identity_hashcode, now_epoch_ms);
-        }
-
-        // Check if it is time to cleanup
-        if (time_to_cleanup) {
-
-            // OLD NICE-WAY to cleanup was these 5 lines.. new way (after we added "per-transport" 3 subscription tables inside each tranport is a FOR-loop below.. a bit more complex, but works file!
-//                // Iterating over and removing from a map: https://stackoverflow.com/questions/1884889/iterating-over-and-removing-from-a-map
-//                lookup_table.entrySet().removeIf(
-//                        e
-//                        -> e.getValue().expiration_epoch_ms != null
-//                        && e.getValue().expiration_epoch_ms != 0
-//                        && e.getValue().expiration_epoch_ms <= now_epoch_ms);
-            for (Entry<SubscriptionMatcher, SubscriberDetails> entry : lookup_table.entrySet()) {
-                SubscriptionMatcher subscription_matcher = entry.getKey();
-                SubscriberDetails subscriber_details = entry.getValue();
-
-                // Check expiration timestamp - is it set and is it in the past already?
-                if (subscriber_details.expiration_epoch_ms != null
-                        && subscriber_details.expiration_epoch_ms != 0
-                        && subscriber_details.expiration_epoch_ms <= now_epoch_ms) {
-
-                    // Delete found expired entry from the lookup_table
-                    lookup_table.remove(subscription_matcher);
-
-                    // Since we keep a copy of the subscription tables inside each transport
-                    // (with all the records concerning that particular transport)
-                    // we must remove given record from that particular transport as well:
-                    //
-                    // Lets figure out which 1 of 3 tables we're cleaning now (what was passed as "lookup_table"):
-                    int number_of_removed_records = 0;
-                    if (lookup_table == this.subscriptions_common) {
-                        SubscriberDetails removed_subscriber_details = subscriber_details.transport.subscriptions_common.remove(subscription_matcher);
-                        number_of_removed_records += removed_subscriber_details != null ? 1 : 0;
-
-                    } else if (lookup_table == this.subscriptions_transactions) {
-                        SubscriberDetails removed_subscriber_details = subscriber_details.transport.subscriptions_transactions.remove(subscription_matcher);
-                        number_of_removed_records += removed_subscriber_details != null ? 1 : 0;
-                    } else if (lookup_table == this.subscriptions_transactions_sniffers) {
-                        SubscriberDetails removed_subscriber_details = subscriber_details.transport.subscriptions_transactions_sniffers.remove(subscription_matcher);
-                        number_of_removed_records += removed_subscriber_details != null ? 1 : 0;
-                    } else {
-                        // Error: unknown type of the 'lookup_table' reference passes!
-                        String error_details = "Error: while trying to cleanup expired subscripions got unknown lookup table reference.";
-                        System.err.println(error_details);
-                        this.increment_stats("errors_count");
-                        this.increment_stats("find_subscriptions_errors_count");
-                    }
-                    // Check we actually found and removed exactly 1 record from 1 of 3 tables above (subscriber_details.transport.subscriptions_*)
-                    if (number_of_removed_records != 1) {
-                        // Error: find_subscriptions(): while removing expored records: failed check was: Check we actually found and removed exactly 1 record from 1 of 3 tables above (subscriber_details.transport.subscriptions_*)
-                        String error_details = "Error: find_subscriptions(): while removing expored records: failed check was: Check we actually found and removed exactly 1 record from 1 of 3 tables above (subscriber_details.transport.subscriptions_*).";
-                        System.err.println(error_details);
-                        this.increment_stats("errors_count");
-                        this.increment_stats("find_subscriptions_errors_count");
+        // The "common" table is special: TopicEqualsMatcher subscriptions are found by a single O(1) lookup
+        // in the topic index, TopicWildcardMatcher ones by walking the topic trie, PredicateMatcher ones
+        // by the compiled predicates and only the rest ("opaque" lambda matchers) are evaluated one by one.
+        SubscriberDetails[] snapshot;
+        if (lookup_table == this.subscriptions_common) {
+            String to = message.header_get_to();
+            if (to != null) {
+                SubscriberDetails[] topic_subscribers = subscriptions_common_topic_index.get(to);
+                if (topic_subscribers != null) {
+                    for (SubscriberDetails subscriber_details : topic_subscribers) {
+                        subscriber_details.subscription_matcher.increment_stats("match_found_count");
+                        subscribers.add(subscriber_details);
                     }
                 }
+                if (!subscriptions_common_topic_trie.is_empty()) {
+                    subscriptions_common_topic_trie.match(to, subscribers);
+                }
+            }
+            CompiledPredicateSet compiled_predicates = get_compiled_predicates();
+            if (compiled_predicates != null) {
+                compiled_predicates.match(message, subscribers);
+            }
+            snapshot = subscriptions_common_opaque_snapshot;
+        } else if (lookup_table == this.subscriptions_transactions_sniffers) {
+            snapshot = subscriptions_transactions_sniffers_snapshot;
+        } else {
+            // Some other table (not one of ours), no snapshot for it: walk the entries (still no get() per match)
+            for (Entry<SubscriptionMatcher, SubscriberDetails> entry : lookup_table.entrySet()) {
+                if (entry.getKey().match(message)) {
+                    subscribers.add(entry.getValue());
+                }
             }
+            return;
         }
 
-        // Loop all items in the subscriptions_common table and find ones with
-        // matching subscription (ones with subscription_matcher.match(message) returns true)
-        for (SubscriptionMatcher subscription_matcher : lookup_table.keySet()) {
-            if (subscription_matcher.match(message)) {
+        // Walk the snapshot array and find ones with matching subscription
+        // (ones with subscription_matcher.match(message) returns true)
+        for (SubscriberDetails subscriber_details : snapshot) {
+            if (subscriber_details.subscription_matcher.match(message)) {
                 // Collect SubscriberDetails (basically subscribed "transports")
-                subscribers.add(lookup_table.get(subscription_matcher));
+                subscribers.add(subscriber_details);
             }
         }
+    }
+
+    /**
+     * If the given subscription has expiration set, then schedule its removal
+     * in the subscriptions_expiration_timer_wheel (the returned timeout is
+     * kept in subscriber_details, so unsubscribe() can cancel it).
+     *
+     * @param lookup_table one of our 3 subscription tables
+     * @param subscription_matcher
+     * @param subscriber_details
+     */
+    private void schedule_subscription_expiration(ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> lookup_table, SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
+        Long expiration_epoch_ms = subscriber_details.expiration_epoch_ms;
+        if (expiration_epoch_ms == null || expiration_epoch_ms == 0) {
+            // Subscription lasts forever
+            return;
+        }
+        subscriber_details.expiration_timeout = subscriptions_expiration_timer_wheel.schedule(
+                expiration_epoch_ms,
+                () -> expire_subscription(lookup_table, subscription_matcher, subscriber_details));
+    }
 
-        // Return all found matchign subscribers
+    private void cancel_subscription_expiration(SubscriberDetails subscriber_details) {
+        HashedTimerWheel.Timeout expiration_timeout = subscriber_details.expiration_timeout;
+        if (expiration_timeout != null) {
+            expiration_timeout.cancel();
+            subscriber_details.expiration_timeout = null;
+        }
+    }
+
+    /**
+     * Called by the timer wheel thread when the subscription expires: remove
+     * it from the given lookup table, from the corresponding routing index (if
+     * any) and from the per-transport copy of the table.
+     *
+     * @param lookup_table
+     * @param subscription_matcher
+     * @param subscriber_details
+     */
+    private void expire_subscription(ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> lookup_table, SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
+        subscriber_details.expiration_timeout = null;
+
+        // Someone might have extended the expiration after we scheduled it, then simply re-schedule.
+        Long expiration_epoch_ms = subscriber_details.expiration_epoch_ms;
+        if (expiration_epoch_ms == null || expiration_epoch_ms == 0) {
+            return;
+        }
+        if (expiration_epoch_ms > System.currentTimeMillis()) {
+            schedule_subscription_expiration(lookup_table, subscription_matcher, subscriber_details);
+            return;
+        }
+
+        // Delete expired entry from the lookup_table. Note: we only remove exactly this subscriber_details (the same
+        // matcher might have been re-subscribed since), if it is not there then there's nothing to do.
+        int number_of_removed_records = 0;
+        if (lookup_table == this.subscriptions_common) {
+            synchronized (subscriptions_common_lock) {
+                if (!subscriptions_common.remove(subscription_matcher, subscriber_details)) {
+                    return;
+                }
+                remove_from_subscriptions_common_routing_tables(subscription_matcher, subscriber_details);
+            }
+            // Since we keep a copy of the subscription tables inside each transport
+            // (with all the records concerning that particular transport)
+            // we must remove given record from that particular transport as well:
+            number_of_removed_records += subscriber_details.transport.subscriptions_common.remove(subscription_matcher, subscriber_details) ? 1 : 0;
+
+        } else if (lookup_table == this.subscriptions_transactions) {
+            if (!subscriptions_transactions.remove(subscription_matcher, subscriber_details)) {
+                return;
+            }
+            if (subscription_matcher instanceof TransactionIdMatcher) {
+                subscriptions_transactions_by_id.remove(((TransactionIdMatcher) subscription_matcher).get_transaction_id(), subscriber_details);
+            }
+            number_of_removed_records += subscriber_details.transport.subscriptions_transactions.remove(subscription_matcher, subscriber_details) ? 1 : 0;
+
+        } else if (lookup_table == this.subscriptions_transactions_sniffers) {
+            synchronized (subscriptions_transactions_sniffers_lock) {
+                if (!subscriptions_transactions_sniffers.remove(subscription_matcher, subscriber_details)) {
+                    return;
+                }
+                subscriptions_transactions_sniffers_snapshot = subscriptions_transactions_sniffers.values().toArray(new SubscriberDetails[0]);
+            }
+            number_of_removed_records += subscriber_details.transport.subscriptions_transactions_sniffers.remove(subscription_matcher, subscriber_details) ? 1 : 0;
+
+        } else {
+            // Error: unknown type of the 'lookup_table' reference passes!
+            String error_details = "Error: expire_subscription(): got unknown lookup table reference.";
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("expire_subscription_errors_count");
+            return;
+        }
+
+        // Check we actually found and removed exactly 1 record from the transport copy of the table (subscriber_details.transport.subscriptions_*)
+        if (number_of_removed_records != 1) {
+            String error_details = "Error: expire_subscription(): failed check was: Check we actually found and removed exactly 1 record from 1 of 3 tables (subscriber_details.transport.subscriptions_*).";
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("expire_subscription_errors_count");
+        }
+        this.increment_stats("expired_subscriptions_count");
+    }
+
+    public HashedTimerWheel get_subscriptions_expiration_timer_wheel() {
+        return subscriptions_expiration_timer_wheel;
+    }
+
+    /**
+     * Find the only subscriber (if any) waiting for the response with the
+     * message "transaction_id" header (single O(1) lookup in the
+     * subscriptions_transactions_by_id index).
+     *
+     * @param message
+     * @return found subscriber details or null
+     */
+    private SubscriberDetails find_subscription_by_transaction_id(Message message) {
+        String transaction_id = message.header_get_transaction_id();
+        if (transaction_id == null) {
+            return null;
+        }
+        SubscriberDetails subscriber_details = subscriptions_transactions_by_id.get(transaction_id);
+        if (subscriber_details != null) {
+            subscriber_details.subscription_matcher.increment_stats("match_found_count");
+        }
+        return subscriber_details;
+    }
+
+    /**
+     * <pre>
+     * Route cache lookup for the "common" subscriptions (PUBLISH and REQUEST messages). On a miss
+     * (or if the cached entry is from an older subscriptions epoch) resolve the subscribers the
+     * regular way (see find_subscriptions()) and cache them.
+     *
+     * Return null if the cache can't be used for this message, i.e. if there's at least one matcher
+     * which depends on something other than the routing headers or the message has no "to" header.
+     *
+     * </pre>
+     *
+     * @param message
+     * @param mime_type
+     * @return resolved subscribers (do not modify the array) or null
+     */
+    private SubscriberDetails[] find_subscriptions_common_cached(Message message, MessageHeaderMimeType mime_type) {
+        String to = message.header_get_to();
+        if (subscriptions_common_not_cacheable_count > 0 || to == null) {
+            route_cache_bypass_count.increment();
+            return null;
+        }
+
+        // Read the epoch before resolving, so any concurrent change invalidates what we're about to cache
+        long epoch = subscriptions_common_epoch.get();
+        ConcurrentHashMap<String, RouteCacheEntry> cache = route_cache.get(mime_type);
+        RouteCacheEntry entry = cache.get(to);
+        if (entry != null && entry.epoch == epoch) {
+            route_cache_hit_count.increment();
+            // Keep matcher stats the same as without the cache
+            for (SubscriberDetails subscriber_details : entry.subscribers) {
+                subscriber_details.subscription_matcher.increment_stats("match_found_count");
+            }
+            return entry.subscribers;
+        }
+        if (entry != null) {
+            route_cache_invalidated_count.increment();
+        }
+        route_cache_miss_count.increment();
+
+        ArrayList<SubscriberDetails> found_subscribers = route_found_subscribers.get();
+        find_subscriptions(message, subscriptions_common, found_subscribers);
+        SubscriberDetails[] subscribers = found_subscribers.toArray(new SubscriberDetails[found_subscribers.size()]);
+        found_subscribers.clear();
+        if (cache.size() >= ROUTE_CACHE_MAX_SIZE) {
+            // Too many distinct destinations, start over (hot ones will be back soon)
+            cache.clear();
+        }
+        cache.put(to, new RouteCacheEntry(epoch, subscribers));
         return subscribers;
     }
 
+    /**
+     * <pre>
+     * Enable / disable the route cache: for PUBLISH and REQUEST messages remember the resolved
+     * subscribers per (mime_type, "to") and re-use them for the following messages with the same
+     * routing headers. Any subscribe() / unsubscribe() / expiry in the "common" table invalidates
+     * the whole cache (by bumping the subscriptions epoch).
+     *
+     * The cache is only used while all the "common" subscriptions depend only on the routing
+     * headers (see SubscriptionMatcher.depends_only_on_routing_headers(): TopicEqualsMatcher,
+     * TopicWildcardMatcher, PredicateMatcher over "to" / "mime_type" and lambdas declared as such),
+     * otherwise messages are routed the regular way (and counted as "bypass").
+     *
+     * </pre>
+     *
+     * @param enabled
+     */
+    public void enable_route_cache(boolean enabled) {
+        route_cache_enabled = enabled;
+        if (!enabled) {
+            for (ConcurrentHashMap<String, RouteCacheEntry> cache : route_cache.values()) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * <pre>
+     * Frozen fan-out mode (disabled by default). When enabled, route() freezes every message
+     * (see Message.freeze()) before handing it to the subscribers, so the one instance can go to
+     * thousands of subscribers with no copies and no risk that one of them changes the headers
+     * others see: any attempt to modify frozen headers throws UnsupportedOperationException.
+     * Subscribers who need a modified version (ex: to forward it with different headers) use
+     * message.derive(), which is a cheap copy-on-write overlay rather than a deep copy.
+     *
+     * </pre>
+     *
+     * @param freeze_on_fan_out
+     */
+    public void set_freeze_on_fan_out(boolean freeze_on_fan_out) {
+        this.freeze_on_fan_out = freeze_on_fan_out;
+    }
+
+    public boolean is_freeze_on_fan_out() {
+        return freeze_on_fan_out;
+    }
+
+    public boolean is_route_cache_enabled() {
+        return route_cache_enabled;
+    }
+
+    public long get_route_cache_hit_count() {
+        return route_cache_hit_count.sum();
+    }
+
+    public long get_route_cache_miss_count() {
+        return route_cache_miss_count.sum();
+    }
+
+    public long get_route_cache_invalidated_count() {
+        return route_cache_invalidated_count.sum();
+    }
+
+    public long get_route_cache_bypass_count() {
+        return route_cache_bypass_count.sum();
+    }
+
+    /**
+     * Get the compiled PredicateMatcher subscriptions (re-compile them first if
+     * they were changed since the last compilation).
+     *
+     * @return compiled set or null if there are no PredicateMatcher
+     * subscriptions
+     */
+    private CompiledPredicateSet get_compiled_predicates() {
+        if (subscriptions_common_predicates_dirty) {
+            synchronized (subscriptions_common_lock) {
+                if (subscriptions_common_predicates_dirty) {
+                    subscriptions_common_compiled_predicates = subscriptions_common_predicates.isEmpty()
+                            ? null
+                            : CompiledPredicateSet.compile(subscriptions_common_predicates, subscriptions_common_predicates_evaluated_nodes_histogram);
+                    subscriptions_common_predicates_dirty = false;
+                    this.increment_stats("compile_predicates_count");
+                }
+            }
+        }
+        return subscriptions_common_compiled_predicates;
+    }
+
+    private String visualize_compiled_predicates() {
+        CompiledPredicateSet compiled_predicates = get_compiled_predicates();
+        if (compiled_predicates == null) {
+            return "0 subscriptions";
+        }
+        return compiled_predicates.get_subscriptions_count() + " subscriptions, "
+                + compiled_predicates.get_roots_count() + " distinct roots ("
+                + compiled_predicates.get_unguarded_roots_count() + " unguarded), "
+                + compiled_predicates.get_nodes_count() + " distinct predicates, "
+                + compiled_predicates.get_equals_groups_count() + " equals groups, "
+                + subscriptions_common_predicates_evaluated_nodes_histogram.visualize();
+    }
+
     /**
      * The find_subscription() (singular) is a special case for calling
      * find_subscriptions() (plural) when we don't need to keep looking to the
@@ -790,6 +1874,11 @@ public class DeliveryService extends Transportable {
      * @return
      */
     public SubscriberDetails find_subscription(Message message, ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> lookup_table) {
+        // Response routing hot path: direct lookup, no list allocation.
+        if (lookup_table == this.subscriptions_transactions) {
+            return find_subscription_by_transaction_id(message);
+        }
+
         boolean return_on_first_found = true;
         List<SubscriberDetails> subscriptions = find_subscriptions(message, lookup_table, return_on_first_found);
         if (subscriptions.size() == 1) {
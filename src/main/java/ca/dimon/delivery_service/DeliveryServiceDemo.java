@@ -10,6 +10,7 @@ import ca.dimon.delivery_service.message.MessageHeaderMimeType;
 import ca.dimon.delivery_service.transport.TransportType;
 import ca.dimon.delivery_service.transport.Transportable;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
+import ca.dimon.delivery_service.subscription.TopicEqualsMatcher;
 import java.util.Arrays;
 
 public class DeliveryServiceDemo {
@@ -228,8 +229,8 @@ public class DeliveryServiceDemo {
                     if (my_client_number == 1) {
                         // Check if subscribed
                         if (is_subscribed == false) {
-                            // Not subscribed yet. Subscribe now by defining ISubscriptionMatcher lambda matcher f-n.
-                            SubscriptionMatcher subscription_matcher = new SubscriptionMatcher(message -> message.headers.get("to").equals("/scanners"));
+                            // Not subscribed yet. Subscribe now by "topic equals" matcher (same as lambda: message -> message.headers.get("to").equals("/scanners"))
+                            SubscriptionMatcher subscription_matcher = new TopicEqualsMatcher("/scanners");
                             subscribe(subscription_matcher, "/scanners"); // Note: the 2nd argument is an optional "comment" / "description".
                             is_subscribed = true;
                         }
@@ -240,8 +241,8 @@ public class DeliveryServiceDemo {
                         System.out.println(get_uri() + " my incoming_messages_queue size: " + incoming_messages_queue.size());
 
                         // all clients: Process all the messages form the "inbox"
-                        while (incoming_messages_queue.size() > 0) {
-                            Message incoming_message = incoming_messages_queue.remove(0);  // pop 1st message from the incoming_messages_queue
+                        Message incoming_message;
+                        while ((incoming_message = incoming_messages_queue.poll()) != null) {  // pop 1st message from the incoming_messages_queue
                             System.out.println(get_uri() + " processing message: " + incoming_message.to_json());
                             // if got request, must send back response:
                             if (incoming_message.headers.get("mime_type").equals(MessageHeaderMimeType.REQUEST)) {
@@ -251,6 +252,8 @@ public class DeliveryServiceDemo {
                                 Message response_message = Message.create_new_response(from, body, incoming_message);
                                 send_response(response_message);
                             }
+                            // Done with the message (returns it to the pool if pooling is enabled, no-op otherwise)
+                            incoming_message.release();
                         }
                     }
 
@@ -0,0 +1,57 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.message.MessagePool;
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * Binary codec: one codec id byte followed by the BinaryMessageFormat frame (written / read by the
+ * per-thread MessageEncoderFlyweight / MessageDecoderFlyweight). Decoded messages are borrowed
+ * from the default MessagePool if pooling is enabled. The body is compressed if the session
+ * BodyCompression says so, compressed bodies are decompressed transparently.
+ *
+ * </pre>
+ */
+public class BinaryMessageCodec extends MessageCodec {
+
+    public static final byte CODEC_ID = 2;
+
+    private final ThreadLocal<MessageEncoderFlyweight> encoder = ThreadLocal.withInitial(MessageEncoderFlyweight::new);
+    private final ThreadLocal<MessageDecoderFlyweight> decoder = ThreadLocal.withInitial(MessageDecoderFlyweight::new);
+
+    public BinaryMessageCodec() {
+        super(CODEC_ID, "binary_codec");
+    }
+
+    protected BinaryMessageCodec(byte codec_id, String name) {
+        super(codec_id, name);
+    }
+
+    @Override
+    protected int encode_frame(Message message, ByteBuffer buffer, int offset, BodyCompression body_compression) {
+        if (offset < 0 || offset + 1 > buffer.limit()) {
+            return -1;
+        }
+        buffer.put(offset, get_codec_id());
+        int frame_length = encoder.get().wrap(buffer, offset + 1).encode(message, body_compression);
+        return frame_length < 0 ? -1 : frame_length + 1;
+    }
+
+    @Override
+    protected Message decode_frame(ByteBuffer buffer, int offset, int length, BodyCompression body_compression) {
+        MessageDecoderFlyweight frame_decoder = decoder.get().wrap(buffer, offset + 1);
+        if (frame_decoder.frame_length() != length - 1) {
+            throw new IllegalArgumentException("frame_length " + frame_decoder.frame_length() + " doesn't match the " + (length - 1) + " bytes payload");
+        }
+        MessagePool pool = Message.get_default_pool();
+        Message message = pool != null ? pool.borrow() : new Message();
+        try {
+            return frame_decoder.decode_into(message, body_compression);
+        } catch (RuntimeException ex) {
+            // Give the borrowed message back (no-op if not pooled)
+            message.release();
+            throw ex;
+        }
+    }
+}
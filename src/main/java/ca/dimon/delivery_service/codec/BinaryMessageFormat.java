@@ -0,0 +1,187 @@
+package ca.dimon.delivery_service.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <pre>
+ * Compact binary wire format of the Message (see MessageEncoderFlyweight / MessageDecoderFlyweight).
+ *
+ * Frame layout (all the numbers are big-endian, the ByteBuffer default order):
+ *
+ *     offset  size     field
+ *     ---------------------------------------------------------------------------------------
+ *      0      int32    frame_length (total frame size in bytes, including this field)
+ *      4      int8     version (see VERSION)
+ *      5      int8     flags (see FLAG_*)
+ *      6      int8     mime_type (MessageHeaderMimeType ordinal + 1, zero means "not set")
+ *      7      int8     padding (zero)
+ *      8      int64    timestamp_epoch_ms                (zero means "not set")
+ *     16      int64    transaction_expiration_epoch_ms   (zero means "not set")
+ *     24      int64    expiration_epoch_ms               (zero means "not set")
+ *     32      string   from
+ *             string   to
+ *             string   transaction_id
+ *             varint   custom headers count
+ *             (string key, value) x custom headers count
+ *             value    body
+ *
+ * where:
+ *   - varint: unsigned LEB128 (7 bits per byte, lowest bits first)
+ *   - string: varint (utf-8 length + 1), zero for null, then utf-8 bytes
+ *   - value:  int8 type tag (see TAG_*), varint payload length, payload:
+ *               TAG_NULL     no payload
+ *               TAG_STRING   utf-8 bytes
+ *               TAG_LONG     zig-zag varint
+ *               TAG_INTEGER  zig-zag varint
+ *               TAG_DOUBLE   int64 (Double.doubleToRawLongBits)
+ *               TAG_BOOLEAN  int8 (0 or 1)
+ *               TAG_BYTES    raw bytes (byte[])
+ *               TAG_JSON     utf-8 json (gson) of any other type (decoded the same way gson decodes
+ *                            the Message.body field: maps, lists, doubles and strings)
+ *               TAG_SCHEMA   varint schema id, then the fields written by the IBodySchema registered
+ *                            for the value class in the BodySchemaRegistry (decoded back into that
+ *                            class, so registered types don't go through json)
+ *
+ * Flags:
+ *   - FLAG_BODY_COMPRESSED: the body value is replaced by varint (encoded body value length) followed
+ *     by the LzCompressor compressed body value (up to the end of the frame), see BodyCompression
+ *
+ * So the well-known headers live at fixed offsets (a decoder can look at mime_type or the expiration
+ * without parsing anything) and the body can be skipped without decoding it (it is length-prefixed).
+ *
+ * </pre>
+ */
+public final class BinaryMessageFormat {
+
+    public static final byte VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+
+    // Fixed part offsets
+    public static final int FRAME_LENGTH_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int FLAGS_OFFSET = 5;
+    public static final int MIME_TYPE_OFFSET = 6;
+    public static final int TIMESTAMP_EPOCH_MS_OFFSET = 8;
+    public static final int TRANSACTION_EXPIRATION_EPOCH_MS_OFFSET = 16;
+    public static final int EXPIRATION_EPOCH_MS_OFFSET = 24;
+    public static final int VARIABLE_PART_OFFSET = 32;
+
+    // Flags
+    public static final byte FLAG_BODY_COMPRESSED = 0x01;
+
+    // Smallest possible frame: fixed part + 3 null strings + zero custom headers + null body
+    public static final int MIN_FRAME_LENGTH = VARIABLE_PART_OFFSET + 3 + 1 + 2;
+
+    // Value type tags
+    public static final byte TAG_NULL = 0;
+    public static final byte TAG_STRING = 1;
+    public static final byte TAG_LONG = 2;
+    public static final byte TAG_INTEGER = 3;
+    public static final byte TAG_DOUBLE = 4;
+    public static final byte TAG_BOOLEAN = 5;
+    public static final byte TAG_BYTES = 6;
+    public static final byte TAG_JSON = 7;
+    public static final byte TAG_SCHEMA = 8;
+
+    private BinaryMessageFormat() {
+    }
+
+    /**
+     * @return number of bytes the varint takes
+     */
+    public static int varint_length(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write unsigned varint at the given index.
+     *
+     * @return number of bytes written
+     */
+    public static int put_varint(ByteBuffer buffer, int index, long value) {
+        int length = 0;
+        while ((value & ~0x7FL) != 0) {
+            buffer.put(index + length++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(index + length++, (byte) value);
+        return length;
+    }
+
+    public static long zig_zag_encode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zig_zag_decode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return true if all the chars are ASCII (so utf-8 length ==
+     * string.length())
+     */
+    public static boolean is_ascii(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the string (see "string" in the class comment) at the given
+     * index. ASCII strings (the usual case) are written char by char, with no
+     * intermediate byte[].
+     *
+     * @return number of bytes written
+     */
+    public static int put_string(ByteBuffer buffer, int index, String string) {
+        if (string == null) {
+            return put_varint(buffer, index, 0);
+        }
+        if (is_ascii(string)) {
+            int length = string.length();
+            int written = put_varint(buffer, index, length + 1);
+            for (int i = 0; i < length; i++) {
+                buffer.put(index + written + i, (byte) string.charAt(i));
+            }
+            return written + length;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        int written = put_varint(buffer, index, bytes.length + 1);
+        put_bytes(buffer, index + written, bytes);
+        return written + bytes.length;
+    }
+
+    /**
+     * Write raw bytes at the given index (no length prefix).
+     */
+    public static void put_bytes(ByteBuffer buffer, int index, byte[] bytes) {
+        put_bytes(buffer, index, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write bytes[bytes_offset, bytes_offset + length) at the given index (no
+     * length prefix).
+     */
+    public static void put_bytes(ByteBuffer buffer, int index, byte[] bytes, int bytes_offset, int length) {
+        if (index < 0 || index + length > buffer.limit()) {
+            throw new IndexOutOfBoundsException("put_bytes: " + length + " bytes at index " + index + " do not fit, limit: " + buffer.limit());
+        }
+        if (buffer.hasArray()) {
+            System.arraycopy(bytes, bytes_offset, buffer.array(), buffer.arrayOffset() + index, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put(index + i, bytes[bytes_offset + i]);
+            }
+        }
+    }
+}
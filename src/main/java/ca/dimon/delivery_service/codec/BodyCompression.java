@@ -0,0 +1,145 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * Per-transport (per CodecSession) body compression settings and stats.
+ *
+ * When enabled, the binary codec compresses the message body (LzCompressor) if its encoded size is
+ * at least threshold_bytes, and sets BinaryMessageFormat.FLAG_BODY_COMPRESSED in the frame header,
+ * so the receiver decompresses it transparently. Only the body is compressed: the well-known and
+ * the custom headers stay readable without decompressing anything (routing, expiration checks).
+ * The body is sent as is if compression doesn't make it smaller (already compressed images, etc.).
+ * Json frames (legacy peers) are never compressed.
+ *
+ * Disabled by default, enable it on the transports which carry the big bodies over the slow links:
+ *     transport.get_codec_session().get_body_compression().set_threshold_bytes(32 * 1024).set_enabled(true);
+ *
+ * Stats: compressed / incompressible / decompressed counts, bytes before and after (the ratio) and
+ * the compress / decompress time histograms ("&lt;uri&gt;_compress_ns", "&lt;uri&gt;_decompress_ns").
+ * The compressed bytes are the body as sent (the original length prefix included) on both sides, so
+ * the sender and the receiver report the same ratio for the same traffic.
+ *
+ * </pre>
+ */
+public class BodyCompression extends ManagedObject {
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 16 * 1024;
+
+    private volatile boolean enabled = false;
+    private volatile int threshold_bytes = DEFAULT_THRESHOLD_BYTES;
+
+    private final LongAdder compressed_count = new LongAdder();
+    private final LongAdder incompressible_count = new LongAdder();
+    private final LongAdder original_bytes = new LongAdder();
+    private final LongAdder compressed_bytes = new LongAdder();
+    private final LongAdder decompressed_count = new LongAdder();
+    private final LongAdder decompressed_original_bytes = new LongAdder();
+    private final LongAdder decompressed_compressed_bytes = new LongAdder();
+    private final Histogram compress_ns_histogram;
+    private final Histogram decompress_ns_histogram;
+
+    public BodyCompression(String uri) {
+        this.set_uri(uri);
+        this.compress_ns_histogram = new Histogram(uri + "_compress_ns");
+        this.decompress_ns_histogram = new Histogram(uri + "_decompress_ns");
+    }
+
+    public BodyCompression set_enabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean is_enabled() {
+        return enabled;
+    }
+
+    /**
+     * @param threshold_bytes smallest encoded body size worth compressing
+     * @return this
+     */
+    public BodyCompression set_threshold_bytes(int threshold_bytes) {
+        if (threshold_bytes < 0) {
+            throw new IllegalArgumentException("BodyCompression: threshold_bytes must be non-negative, got: " + threshold_bytes);
+        }
+        this.threshold_bytes = threshold_bytes;
+        return this;
+    }
+
+    public int get_threshold_bytes() {
+        return threshold_bytes;
+    }
+
+    /**
+     * @param body_length encoded body size
+     * @return true if the body of that size should be compressed
+     */
+    public boolean should_compress(int body_length) {
+        return enabled && body_length >= threshold_bytes;
+    }
+
+    void record_compressed(int original_length, int compressed_length, long elapsed_ns) {
+        compressed_count.increment();
+        original_bytes.add(original_length);
+        compressed_bytes.add(compressed_length);
+        compress_ns_histogram.record(elapsed_ns);
+    }
+
+    // Compression didn't make the body smaller, sent as is (the time is still spent, so it is recorded)
+    void record_incompressible(int original_length, long elapsed_ns) {
+        incompressible_count.increment();
+        original_bytes.add(original_length);
+        compressed_bytes.add(original_length);
+        compress_ns_histogram.record(elapsed_ns);
+    }
+
+    // compressed_length: the body as sent, the same bytes record_compressed() counts
+    void record_decompressed(int compressed_length, int original_length, long elapsed_ns) {
+        decompressed_count.increment();
+        decompressed_compressed_bytes.add(compressed_length);
+        decompressed_original_bytes.add(original_length);
+        decompress_ns_histogram.record(elapsed_ns);
+    }
+
+    public Histogram get_compress_ns_histogram() {
+        return compress_ns_histogram;
+    }
+
+    public Histogram get_decompress_ns_histogram() {
+        return decompress_ns_histogram;
+    }
+
+    /**
+     * @return outgoing bytes after / before compression, in percent (100 if
+     * nothing was compressed yet)
+     */
+    public long get_compression_ratio_percent() {
+        long original = original_bytes.sum();
+        return original > 0 ? compressed_bytes.sum() * 100 / original : 100;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("compressed_count", compressed_count.sum());
+        stats.put("incompressible_count", incompressible_count.sum());
+        stats.put("original_bytes", original_bytes.sum());
+        stats.put("compressed_bytes", compressed_bytes.sum());
+        stats.put("compression_ratio_percent", get_compression_ratio_percent());
+        stats.put("decompressed_count", decompressed_count.sum());
+        stats.put("decompressed_compressed_bytes", decompressed_compressed_bytes.sum());
+        stats.put("decompressed_original_bytes", decompressed_original_bytes.sum());
+        return super.get_stats();
+    }
+
+    public String visualize() {
+        StringBuilder result = new StringBuilder();
+        result.append(get_uri() + ": " + (enabled ? "enabled, threshold " + threshold_bytes + " bytes" : "disabled") + ", stats: " + get_stats() + "\n");
+        result.append(compress_ns_histogram.visualize()).append("\n");
+        result.append(decompress_ns_histogram.visualize()).append("\n");
+        return result.toString();
+    }
+}
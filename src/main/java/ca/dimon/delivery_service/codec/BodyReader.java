@@ -0,0 +1,97 @@
+package ca.dimon.delivery_service.codec;
+
+import static ca.dimon.delivery_service.codec.BinaryMessageFormat.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <pre>
+ * Cursor the IBodySchema.read() reads the body fields with (the mirror of BodyWriter). Reading
+ * beyond the body payload throws IllegalArgumentException, which the codec reports as a malformed
+ * frame.
+ *
+ * </pre>
+ */
+public class BodyReader {
+
+    private ByteBuffer buffer;
+    private int index;
+    private int limit;
+
+    BodyReader wrap(ByteBuffer buffer, int index, int limit) {
+        this.buffer = buffer;
+        this.index = index;
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return true if there are more fields (handy for the fields added to
+     * the schema later: the older senders don't write them)
+     */
+    public boolean has_remaining() {
+        return index < limit;
+    }
+
+    public long get_long() {
+        return zig_zag_decode(get_varint());
+    }
+
+    public int get_int() {
+        return (int) get_long();
+    }
+
+    public double get_double() {
+        check_length(8);
+        double value = Double.longBitsToDouble(buffer.getLong(index));
+        index += 8;
+        return value;
+    }
+
+    public boolean get_boolean() {
+        check_length(1);
+        return buffer.get(index++) != 0;
+    }
+
+    public String get_string() {
+        byte[] bytes = get_bytes();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public byte[] get_bytes() {
+        long length_plus_one = get_varint();
+        if (length_plus_one == 0) {
+            return null;
+        }
+        int length = (int) (length_plus_one - 1);
+        check_length(length);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+        index += length;
+        return bytes;
+    }
+
+    private long get_varint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("BodyReader: malformed varint at " + index);
+            }
+            check_length(1);
+            b = buffer.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private void check_length(int length) {
+        if (length < 0 || index + length > limit) {
+            throw new IllegalArgumentException("BodyReader: " + length + " bytes at " + index + " run beyond the body (limit: " + limit + ")");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.FunctionResult;
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * Registry of the body schemas (see IBodySchema): body class &lt;-&gt; numeric schema id. The binary
+ * codec looks the body (and the custom header values) class up here: registered ones are written
+ * by their schema (no reflection, decoded back into the same class), the rest fall back to gson
+ * json and are counted per class, so visualize_json_fallbacks() shows which classes are worth a
+ * schema (most often / most bytes first).
+ *
+ * Register the schemas at start-up, before the messages start flowing (on both sides: the
+ * receiver must know the schema id to decode the body).
+ *
+ * </pre>
+ */
+public class BodySchemaRegistry extends ManagedObject {
+
+    private static volatile BodySchemaRegistry default_registry;
+
+    private final ConcurrentHashMap<Class<?>, IBodySchema<?>> schemas_by_class = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, IBodySchema<?>> schemas_by_id = new ConcurrentHashMap<>();
+
+    // Per-class json fallback counters: [0] count, [1] json bytes
+    private final ConcurrentHashMap<String, LongAdder[]> json_fallbacks = new ConcurrentHashMap<>();
+    private final LongAdder schema_encoded_count = new LongAdder();
+    private final LongAdder json_fallback_count = new LongAdder();
+
+    public BodySchemaRegistry(String uri) {
+        this.set_uri(uri);
+    }
+
+    /**
+     * @return registry the binary codec uses by default (empty until the
+     * application registers its schemas)
+     */
+    public static BodySchemaRegistry get_default_registry() {
+        if (default_registry == null) {
+            synchronized (BodySchemaRegistry.class) {
+                if (default_registry == null) {
+                    default_registry = new BodySchemaRegistry("default_body_schema_registry");
+                }
+            }
+        }
+        return default_registry;
+    }
+
+    /**
+     * Register the schema (under its schema id and body class).
+     *
+     * @param schema
+     * @return failure if the schema id is negative or either the id or the
+     * class is already registered
+     */
+    public synchronized FunctionResult register(IBodySchema<?> schema) {
+        String error_details = null;
+        if (schema.get_schema_id() < 0) {
+            error_details = "Error: BodySchemaRegistry.register(): negative schema id: " + schema.get_schema_id();
+        } else if (schemas_by_id.containsKey(schema.get_schema_id())) {
+            error_details = "Error: BodySchemaRegistry.register(): schema id " + schema.get_schema_id() + " is already taken by " + schemas_by_id.get(schema.get_schema_id()).get_body_class().getName();
+        } else if (schemas_by_class.containsKey(schema.get_body_class())) {
+            error_details = "Error: BodySchemaRegistry.register(): class " + schema.get_body_class().getName() + " already has schema id " + schemas_by_class.get(schema.get_body_class()).get_schema_id();
+        }
+        if (error_details != null) {
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("register_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        schemas_by_id.put(schema.get_schema_id(), schema);
+        schemas_by_class.put(schema.get_body_class(), schema);
+        return new FunctionResult().set_success();
+    }
+
+    /**
+     * @param body_class
+     * @return the schema or null if the class is not registered
+     */
+    @SuppressWarnings("unchecked")
+    public <T> IBodySchema<T> get_by_class(Class<T> body_class) {
+        return (IBodySchema<T>) schemas_by_class.get(body_class);
+    }
+
+    /**
+     * @param schema_id
+     * @return the schema or null if there's no such schema id registered
+     */
+    public IBodySchema<?> get_by_id(int schema_id) {
+        return schemas_by_id.get(schema_id);
+    }
+
+    public List<IBodySchema<?>> get_schemas() {
+        return new ArrayList<>(schemas_by_id.values());
+    }
+
+    void record_schema_encoded() {
+        schema_encoded_count.increment();
+    }
+
+    /**
+     * Count the value of the unregistered class which was written as json.
+     *
+     * @param value_class
+     * @param json_bytes
+     */
+    void record_json_fallback(Class<?> value_class, int json_bytes) {
+        LongAdder[] counters = json_fallbacks.computeIfAbsent(value_class.getName(), name -> new LongAdder[]{new LongAdder(), new LongAdder()});
+        counters[0].increment();
+        counters[1].add(json_bytes);
+        json_fallback_count.increment();
+    }
+
+    /**
+     * @return class name -&gt; number of values of that class written as json
+     */
+    public Map<String, Long> get_json_fallback_counts() {
+        HashMap<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, LongAdder[]> entry : json_fallbacks.entrySet()) {
+            result.put(entry.getKey(), entry.getValue()[0].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("schemas_count", (long) schemas_by_id.size());
+        stats.put("schema_encoded_count", schema_encoded_count.sum());
+        stats.put("json_fallback_count", json_fallback_count.sum());
+        return super.get_stats();
+    }
+
+    /**
+     * Visualize the classes which fell back to json, the most json bytes
+     * first (so the top lines are the best candidates for a schema).
+     *
+     * @return
+     */
+    public String visualize_json_fallbacks() {
+        ArrayList<Map.Entry<String, LongAdder[]>> entries = new ArrayList<>(json_fallbacks.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[1].sum(), a.getValue()[1].sum()));
+
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ " + get_uri() + " ]-------------------------------------------\n");
+        result.append("registered schemas: " + schemas_by_id.size() + ", values written by schema: " + schema_encoded_count.sum() + ", json fallbacks: " + json_fallback_count.sum() + "\n");
+        for (Map.Entry<String, LongAdder[]> entry : entries) {
+            long count = entry.getValue()[0].sum();
+            long bytes = entry.getValue()[1].sum();
+            result.append(String.format("%12d json values %14d bytes (%6d bytes avg)   %s\n", count, bytes, count > 0 ? bytes / count : 0, entry.getKey()));
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+}
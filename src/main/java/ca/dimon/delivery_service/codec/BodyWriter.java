@@ -0,0 +1,76 @@
+package ca.dimon.delivery_service.codec;
+
+import static ca.dimon.delivery_service.codec.BinaryMessageFormat.*;
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * Cursor the IBodySchema.write() writes the body fields with. Uses the BinaryMessageFormat
+ * primitives (varints, zig-zag, length-prefixed strings), so the schemas don't have to deal with
+ * the byte layout. Running out of the buffer throws IndexOutOfBoundsException, which the encoder
+ * reports as "doesn't fit" (encode() returns -1).
+ *
+ * </pre>
+ */
+public class BodyWriter {
+
+    private ByteBuffer buffer;
+    private int index;
+
+    BodyWriter wrap(ByteBuffer buffer, int index) {
+        this.buffer = buffer;
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * @return current write index (absolute, in the wrapped buffer)
+     */
+    int get_index() {
+        return index;
+    }
+
+    public BodyWriter put_long(long value) {
+        index += put_varint(buffer, index, zig_zag_encode(value));
+        return this;
+    }
+
+    public BodyWriter put_int(int value) {
+        return put_long(value);
+    }
+
+    public BodyWriter put_double(double value) {
+        buffer.putLong(index, Double.doubleToRawLongBits(value));
+        index += 8;
+        return this;
+    }
+
+    public BodyWriter put_boolean(boolean value) {
+        buffer.put(index++, (byte) (value ? 1 : 0));
+        return this;
+    }
+
+    /**
+     * @param value string or null
+     * @return
+     */
+    public BodyWriter put_string(String value) {
+        index += BinaryMessageFormat.put_string(buffer, index, value);
+        return this;
+    }
+
+    /**
+     * @param value bytes or null
+     * @return
+     */
+    public BodyWriter put_bytes(byte[] value) {
+        if (value == null) {
+            index += put_varint(buffer, index, 0);
+            return this;
+        }
+        index += put_varint(buffer, index, value.length + 1);
+        BinaryMessageFormat.put_bytes(buffer, index, value);
+        index += value.length;
+        return this;
+    }
+}
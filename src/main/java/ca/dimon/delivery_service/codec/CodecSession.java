@@ -0,0 +1,205 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.message.Message;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Per-peer (per AeronTransport session) codec state: which codec we use to send messages to the peer.
+ *
+ * Negotiation (at connect time):
+ *   - each side sends the "hello" control frame (see create_hello_frame()) listing the codec ids it
+ *     can decode, most preferred first
+ *   - on the peer "hello" we pick the first codec from the peer list which we also have in our own
+ *     list (so the receiver decides: a debugging tool which only lists json gets json, a WAN peer
+ *     which lists the compressed codec first gets that one, if we have it)
+ *   - until the peer "hello" arrives (or forever, if the peer is a legacy one which never sends it)
+ *     we send json, which every peer understands
+ *
+ * Every data frame starts with its codec id (see MessageCodec), so decode() doesn't depend on the
+ * negotiation at all: both sides can switch at any time and peers can be upgraded one by one.
+ *
+ * The session also owns the body compression settings and stats of its transport (see
+ * get_body_compression()).
+ *
+ * Control frame layout:
+ *     int8 CONTROL_CODEC_ID (0), int8 control type (CONTROL_HELLO), int8 codec ids count, int8 codec ids...
+ *
+ * CONTROL_FRAGMENT frames (the pieces of the big messages, see FrameFragmenter) are put back together
+ * by the transport (FrameReassembler) before they get here, CONTROL_INTEREST frames (the subscriptions
+ * summaries, see InterestSummary) are taken by the AeronBridge and CONTROL_BATCH frames (see
+ * FrameBatcher) are unpacked by the transport, so none of them get here.
+ *
+ * </pre>
+ */
+public class CodecSession extends ManagedObject {
+
+    public static final byte CONTROL_HELLO = 1;
+    public static final byte CONTROL_FRAGMENT = 2;
+    public static final byte CONTROL_INTEREST = 3;
+    public static final byte CONTROL_BATCH = 4;
+
+    private final MessageCodecRegistry registry;
+    private final MessageCodec fallback_codec;
+
+    // Codec ids we can encode / decode, most preferred first
+    private volatile byte[] local_codec_ids;
+
+    // Codec we currently use for the outgoing frames and the peer "hello" list (null until received)
+    private volatile MessageCodec outgoing_codec;
+    private volatile byte[] remote_codec_ids;
+
+    private final BodyCompression body_compression;
+
+    /**
+     * @param uri
+     * @param registry
+     * @param local_codec_ids codec ids we can encode / decode, most preferred
+     * first (unknown to the registry ones are ignored)
+     */
+    public CodecSession(String uri, MessageCodecRegistry registry, byte... local_codec_ids) {
+        this.registry = registry;
+        this.fallback_codec = registry.get(JsonMessageCodec.CODEC_ID);
+        if (fallback_codec == null) {
+            throw new IllegalArgumentException("CodecSession: the json codec (fallback) must be registered in " + registry.get_uri());
+        }
+        this.outgoing_codec = fallback_codec;
+        this.set_uri(uri);
+        this.body_compression = new BodyCompression(uri + "_body_compression");
+        set_local_codec_ids(local_codec_ids);
+    }
+
+    /**
+     * Change our codec preference. The outgoing codec is re-picked right
+     * away (if the peer hello is already received), the peer learns about
+     * the change from our next hello (see create_hello_frame()).
+     *
+     * @param local_codec_ids
+     */
+    public void set_local_codec_ids(byte... local_codec_ids) {
+        byte[] known_codec_ids = new byte[local_codec_ids.length];
+        int count = 0;
+        for (byte codec_id : local_codec_ids) {
+            if (registry.is_registered(codec_id)) {
+                known_codec_ids[count++] = codec_id;
+            } else {
+                System.err.println("Warning: CodecSession " + get_uri() + ": codec id " + codec_id + " is not registered, ignored");
+            }
+        }
+        this.local_codec_ids = Arrays.copyOf(known_codec_ids, count);
+
+        // Already negotiated: re-pick the outgoing codec right away
+        byte[] remote_codec_ids = this.remote_codec_ids;
+        if (remote_codec_ids != null) {
+            outgoing_codec = choose_codec(remote_codec_ids, this.local_codec_ids);
+        }
+    }
+
+    public byte[] get_local_codec_ids() {
+        return local_codec_ids.clone();
+    }
+
+    /**
+     * @return the peer codec ids (from its hello) or null if no hello
+     * received yet
+     */
+    public byte[] get_remote_codec_ids() {
+        byte[] remote_codec_ids = this.remote_codec_ids;
+        return remote_codec_ids != null ? remote_codec_ids.clone() : null;
+    }
+
+    public MessageCodec get_outgoing_codec() {
+        return outgoing_codec;
+    }
+
+    /**
+     * @return body compression settings and stats (disabled by default)
+     */
+    public BodyCompression get_body_compression() {
+        return body_compression;
+    }
+
+    public boolean is_negotiated() {
+        return remote_codec_ids != null;
+    }
+
+    /**
+     * @return the "hello" control frame to be sent to the peer on connect
+     */
+    public ByteBuffer create_hello_frame() {
+        byte[] codec_ids = local_codec_ids;
+        ByteBuffer frame = ByteBuffer.allocate(3 + codec_ids.length);
+        frame.put(0, MessageCodec.CONTROL_CODEC_ID);
+        frame.put(1, CONTROL_HELLO);
+        frame.put(2, (byte) codec_ids.length);
+        for (int i = 0; i < codec_ids.length; i++) {
+            frame.put(3 + i, codec_ids[i]);
+        }
+        return frame;
+    }
+
+    /**
+     * Encode the message with the negotiated codec (compressing the body if
+     * the body compression is enabled and the codec supports it).
+     *
+     * @return frame length or -1 if the frame doesn't fit into the buffer
+     */
+    public int encode(Message message, ByteBuffer buffer, int offset) {
+        return outgoing_codec.encode(message, buffer, offset, body_compression);
+    }
+
+    /**
+     * Process the frame received from the peer: control frames update the
+     * negotiation state, data frames are decoded by the codec their first
+     * byte points to.
+     *
+     * @return decoded message, or null for the control frames and malformed
+     * frames (reported and counted)
+     */
+    public Message decode(ByteBuffer buffer, int offset, int length) {
+        if (length > 0 && buffer.get(offset) == MessageCodec.CONTROL_CODEC_ID) {
+            process_control_frame(buffer, offset, length);
+            return null;
+        }
+        return registry.decode(buffer, offset, length, body_compression);
+    }
+
+    private void process_control_frame(ByteBuffer buffer, int offset, int length) {
+        if (length < 3 || buffer.get(offset + 1) != CONTROL_HELLO || length < 3 + (buffer.get(offset + 2) & 0xFF)) {
+            String error_details = "Error: CodecSession " + get_uri() + ": malformed / unknown control frame (" + length + " bytes)";
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("process_control_frame_errors_count");
+            return;
+        }
+        byte[] codec_ids = new byte[buffer.get(offset + 2) & 0xFF];
+        for (int i = 0; i < codec_ids.length; i++) {
+            codec_ids[i] = buffer.get(offset + 3 + i);
+        }
+        remote_codec_ids = codec_ids;
+        outgoing_codec = choose_codec(codec_ids, local_codec_ids);
+        this.increment_stats("hello_received_count");
+    }
+
+    /**
+     * First codec from the remote (receiver) preference list which we also
+     * support, json if none.
+     */
+    private MessageCodec choose_codec(byte[] remote_codec_ids, byte[] local_codec_ids) {
+        for (byte remote_codec_id : remote_codec_ids) {
+            for (byte local_codec_id : local_codec_ids) {
+                if (remote_codec_id == local_codec_id) {
+                    return registry.get(local_codec_id);
+                }
+            }
+        }
+        return fallback_codec;
+    }
+
+    @Override
+    public String toString() {
+        return get_uri() + ": outgoing codec: " + outgoing_codec + (is_negotiated() ? "" : " (not negotiated yet)");
+    }
+}
@@ -0,0 +1,228 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * <pre>
+ * Coalesces the small outgoing frames of one remote session into the batch frames, so a burst of
+ * small messages costs one publication offer instead of one offer per message. The batch is flushed
+ * (handed to the FrameFragmenter) when whichever comes first:
+ *   - size: the next frame doesn't fit into max_batch_bytes ("flush_size_count")
+ *   - time: the oldest frame in the batch waited max_delay_ns ("flush_time_count"), checked by the
+ *     sender thread with flush_if_due()
+ * Frames too big for a batch go on their own, right after the batch flushed ahead of them
+ * ("flush_bypass_count"), so the order is kept. A batch of one frame is sent as the plain frame.
+ *
+ * Batch size (frames per batch) and batch bytes histograms show where the throughput vs latency
+ * trade-off currently is: all batches of one frame mean max_delay_ns is too short for the traffic,
+ * mostly "size" flushes mean max_batch_bytes could be bigger.
+ *
+ * Batch frame layout (a control frame, see CodecSession):
+ *
+ *     offset  size     field
+ *     ---------------------------------------------------------------------------------------
+ *      0      int8     MessageCodec.CONTROL_CODEC_ID (0)
+ *      1      int8     CodecSession.CONTROL_BATCH
+ *      2      uint16   frames count
+ *      4      frames:  int32 frame length, frame bytes (a complete frame, starting with its codec id)
+ *
+ * </pre>
+ */
+public class FrameBatcher extends ManagedObject {
+
+    public static final int COUNT_OFFSET = 2;
+    public static final int HEADER_LENGTH = 4;
+    public static final int FRAME_LENGTH_PREFIX = 4;
+    public static final int MAX_FRAMES_COUNT = 0xFFFF;
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+    public static final long DEFAULT_MAX_DELAY_NS = 50_000; // 50 us
+
+    private final int max_batch_bytes;
+    private volatile long max_delay_ns;
+    private volatile boolean enabled = true;
+
+    private final ByteBuffer batch_buffer;
+    private int batch_length = HEADER_LENGTH;
+    private int batch_frames_count = 0;
+    private long batch_first_frame_ns = 0;
+
+    private final Histogram batch_frames_histogram;
+    private final Histogram batch_bytes_histogram;
+
+    public FrameBatcher(String uri) {
+        this(uri, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_NS);
+    }
+
+    /**
+     * @param uri
+     * @param max_batch_bytes biggest batch frame (keep it within the
+     * fragmenter max_frame_length, so the batches are never fragmented)
+     * @param max_delay_ns longest time the first frame of the batch waits
+     * for the others
+     */
+    public FrameBatcher(String uri, int max_batch_bytes, long max_delay_ns) {
+        if (max_batch_bytes <= HEADER_LENGTH + FRAME_LENGTH_PREFIX || max_delay_ns < 0) {
+            throw new IllegalArgumentException("FrameBatcher: max_batch_bytes must be above " + (HEADER_LENGTH + FRAME_LENGTH_PREFIX) + " and max_delay_ns not negative, got: " + max_batch_bytes + ", " + max_delay_ns);
+        }
+        this.max_batch_bytes = max_batch_bytes;
+        this.max_delay_ns = max_delay_ns;
+        this.batch_buffer = ByteBuffer.allocate(max_batch_bytes);
+        this.set_uri(uri);
+        this.batch_frames_histogram = new Histogram(uri + "_batch_frames");
+        this.batch_bytes_histogram = new Histogram(uri + "_batch_bytes");
+    }
+
+    /**
+     * Turn batching on / off (off: every frame goes on its own).
+     *
+     * @param enabled
+     * @return this (for chaining)
+     */
+    public FrameBatcher set_enabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean is_enabled() {
+        return enabled;
+    }
+
+    public FrameBatcher set_max_delay_ns(long max_delay_ns) {
+        this.max_delay_ns = Math.max(0, max_delay_ns);
+        return this;
+    }
+
+    public long get_max_delay_ns() {
+        return max_delay_ns;
+    }
+
+    public int get_max_batch_bytes() {
+        return max_batch_bytes;
+    }
+
+    public Histogram get_batch_frames_histogram() {
+        return batch_frames_histogram;
+    }
+
+    public Histogram get_batch_bytes_histogram() {
+        return batch_bytes_histogram;
+    }
+
+    /**
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return true if the frame at the offset is a batch frame
+     */
+    public static boolean is_batch(ByteBuffer buffer, int offset, int length) {
+        return length >= HEADER_LENGTH && buffer.get(offset) == MessageCodec.CONTROL_CODEC_ID && buffer.get(offset + 1) == CodecSession.CONTROL_BATCH;
+    }
+
+    /**
+     * Add the encoded frame to the current batch (copied, so the buffer can
+     * be reused right away), flushing the batch into the fragmenter first if
+     * the frame doesn't fit.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param now_ns System.nanoTime()
+     * @param fragmenter
+     */
+    public synchronized void offer(ByteBuffer buffer, int offset, int length, long now_ns, FrameFragmenter fragmenter) {
+        if (!enabled || HEADER_LENGTH + FRAME_LENGTH_PREFIX + length > max_batch_bytes) {
+            if (batch_frames_count > 0) {
+                flush(fragmenter, "flush_bypass_count");
+            }
+            fragmenter.offer(buffer, offset, length);
+            this.increment_stats("unbatched_frames_count");
+            return;
+        }
+        if (batch_length + FRAME_LENGTH_PREFIX + length > max_batch_bytes || batch_frames_count == MAX_FRAMES_COUNT) {
+            flush(fragmenter, "flush_size_count");
+        }
+        if (batch_frames_count == 0) {
+            batch_first_frame_ns = now_ns;
+        }
+        batch_buffer.putInt(batch_length, length);
+        for (int i = 0; i < length; i++) {
+            batch_buffer.put(batch_length + FRAME_LENGTH_PREFIX + i, buffer.get(offset + i));
+        }
+        batch_length += FRAME_LENGTH_PREFIX + length;
+        batch_frames_count++;
+    }
+
+    /**
+     * Flush the batch if its first frame waited long enough.
+     *
+     * @param now_ns System.nanoTime()
+     * @param fragmenter
+     * @return true if flushed
+     */
+    public synchronized boolean flush_if_due(long now_ns, FrameFragmenter fragmenter) {
+        if (batch_frames_count == 0 || now_ns - batch_first_frame_ns < max_delay_ns) {
+            return false;
+        }
+        flush(fragmenter, "flush_time_count");
+        return true;
+    }
+
+    /**
+     * Flush the batch right away (ex: before closing the session).
+     *
+     * @param fragmenter
+     */
+    public synchronized void flush(FrameFragmenter fragmenter) {
+        if (batch_frames_count > 0) {
+            flush(fragmenter, "flush_explicit_count");
+        }
+    }
+
+    public synchronized boolean has_pending_frames() {
+        return batch_frames_count > 0;
+    }
+
+    private void flush(FrameFragmenter fragmenter, String flush_reason_stats_key) {
+        if (batch_frames_count == 1) {
+            // No point in the batch header for a single frame
+            fragmenter.offer(batch_buffer, HEADER_LENGTH + FRAME_LENGTH_PREFIX, batch_length - HEADER_LENGTH - FRAME_LENGTH_PREFIX);
+        } else {
+            batch_buffer.put(0, MessageCodec.CONTROL_CODEC_ID);
+            batch_buffer.put(1, CodecSession.CONTROL_BATCH);
+            batch_buffer.putShort(COUNT_OFFSET, (short) batch_frames_count);
+            fragmenter.offer(batch_buffer, 0, batch_length);
+        }
+        batch_frames_histogram.record(batch_frames_count);
+        batch_bytes_histogram.record(batch_length);
+        this.increment_stats(flush_reason_stats_key);
+        this.increment_stats("batched_frames_count", batch_frames_count);
+        batch_length = HEADER_LENGTH;
+        batch_frames_count = 0;
+    }
+
+    /**
+     * Visualize the flush reasons and the batch size histograms.
+     *
+     * @return
+     */
+    public String visualize() {
+        StringBuilder result = new StringBuilder();
+        result.append(get_uri()).append(": ").append(enabled ? "enabled" : "disabled")
+                .append(", max_batch_bytes: ").append(max_batch_bytes)
+                .append(", max_delay_ns: ").append(max_delay_ns)
+                .append(", stats: ").append(get_stats()).append("\n");
+        result.append(batch_frames_histogram.visualize()).append("\n");
+        result.append(batch_bytes_histogram.visualize()).append("\n");
+        return result.toString();
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("pending_frames", (long) batch_frames_count);
+        return super.get_stats();
+    }
+}
@@ -0,0 +1,205 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * <pre>
+ * Outgoing frames queue of one remote session, which splits the big encoded messages into fragments
+ * (no bigger than max_frame_length) and interleaves them with the small messages, so a 800 KB
+ * snapshot doesn't hold the publication while the small messages wait behind it (head-of-line
+ * blocking). The publisher thread takes the frames one by one with poll() and offers them to the
+ * publication.
+ *
+ * Scheduling: up to small_frames_burst small frames, then one fragment of the big message at the
+ * head (which then goes to the tail, so several big messages share the link round robin), and so
+ * on. Small frames keep their order, but a small message queued after a big one is usually
+ * delivered before it.
+ *
+ * Fragment frame layout (a control frame, see CodecSession):
+ *
+ *     offset  size     field
+ *     ---------------------------------------------------------------------------------------
+ *      0      int8     MessageCodec.CONTROL_CODEC_ID (0)
+ *      1      int8     CodecSession.CONTROL_FRAGMENT
+ *      2      int64    message id (unique within the session)
+ *     10      int32    total length of the encoded message (the original frame)
+ *     14      int32    offset of this fragment payload in the original frame
+ *     18      bytes    payload (up to the end of the fragment frame)
+ *
+ * The receiver puts the payloads together (see FrameReassembler) and decodes the original frame.
+ *
+ * The queue is bounded by max_queued_bytes: once it holds that much, is_full() is true and the
+ * producer (see AeronTransport.queue_outgoing_message()) must wait until the publisher takes some
+ * frames. The check happens before a message is queued, so the queue may go over the limit by at
+ * most one message.
+ *
+ * </pre>
+ */
+public class FrameFragmenter extends ManagedObject {
+
+    public static final int MESSAGE_ID_OFFSET = 2;
+    public static final int TOTAL_LENGTH_OFFSET = 10;
+    public static final int FRAGMENT_OFFSET_OFFSET = 14;
+    public static final int HEADER_LENGTH = 18;
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024;
+    public static final int DEFAULT_SMALL_FRAMES_BURST = 8;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+
+    private final int max_frame_length;
+    private final int small_frames_burst;
+    private final long max_queued_bytes;
+
+    private final ArrayDeque<byte[]> small_frames = new ArrayDeque<>();
+    private final ArrayDeque<OutgoingMessage> large_messages = new ArrayDeque<>();
+    private long next_message_id = 1;
+    private int small_frames_in_a_row = 0;
+    private long queued_bytes = 0;
+
+    private static class OutgoingMessage {
+
+        final long message_id;
+        final byte[] frame;
+        int sent_length = 0;
+
+        OutgoingMessage(long message_id, byte[] frame) {
+            this.message_id = message_id;
+            this.frame = frame;
+        }
+    }
+
+    public FrameFragmenter(String uri) {
+        this(uri, DEFAULT_MAX_FRAME_LENGTH, DEFAULT_SMALL_FRAMES_BURST, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param uri
+     * @param max_frame_length biggest frame poll() returns (bigger messages
+     * are fragmented)
+     * @param small_frames_burst how many small frames may go between two
+     * fragments
+     * @param max_queued_bytes is_full() from this many queued bytes on
+     */
+    public FrameFragmenter(String uri, int max_frame_length, int small_frames_burst, long max_queued_bytes) {
+        if (max_frame_length <= HEADER_LENGTH || small_frames_burst < 1 || max_queued_bytes < 1) {
+            throw new IllegalArgumentException("FrameFragmenter: max_frame_length must be above " + HEADER_LENGTH + ", small_frames_burst and max_queued_bytes positive, got: " + max_frame_length + ", " + small_frames_burst + ", " + max_queued_bytes);
+        }
+        this.max_frame_length = max_frame_length;
+        this.small_frames_burst = small_frames_burst;
+        this.max_queued_bytes = max_queued_bytes;
+        this.set_uri(uri);
+    }
+
+    public int get_max_frame_length() {
+        return max_frame_length;
+    }
+
+    /**
+     * @param buffer
+     * @param offset
+     * @return true if the frame at the offset is a fragment frame
+     */
+    public static boolean is_fragment(ByteBuffer buffer, int offset, int length) {
+        return length >= 2 && buffer.get(offset) == MessageCodec.CONTROL_CODEC_ID && buffer.get(offset + 1) == CodecSession.CONTROL_FRAGMENT;
+    }
+
+    /**
+     * Queue the encoded message (copied, so the buffer can be reused right
+     * away).
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     */
+    public synchronized void offer(ByteBuffer buffer, int offset, int length) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = buffer.get(offset + i);
+        }
+        queued_bytes += length;
+        if (length <= max_frame_length) {
+            small_frames.addLast(frame);
+            this.increment_stats("small_frames_count");
+        } else {
+            large_messages.addLast(new OutgoingMessage(next_message_id++, frame));
+            this.increment_stats("large_messages_count");
+        }
+    }
+
+    /**
+     * Write the next frame (a small message or the next fragment of a big
+     * one) into the buffer.
+     *
+     * @param buffer
+     * @param offset
+     * @return frame length, 0 if there's nothing queued, -1 if the buffer is
+     * too small for the next frame (it stays queued)
+     */
+    public synchronized int poll(ByteBuffer buffer, int offset) {
+        boolean take_small_frame = !small_frames.isEmpty() && (large_messages.isEmpty() || small_frames_in_a_row < small_frames_burst);
+        if (take_small_frame) {
+            byte[] frame = small_frames.peekFirst();
+            if (offset < 0 || offset + frame.length > buffer.limit()) {
+                return -1;
+            }
+            BinaryMessageFormat.put_bytes(buffer, offset, frame);
+            small_frames.pollFirst();
+            small_frames_in_a_row++;
+            queued_bytes -= frame.length;
+            return frame.length;
+        }
+
+        OutgoingMessage message = large_messages.peekFirst();
+        if (message == null) {
+            return 0;
+        }
+        int payload_length = Math.min(max_frame_length - HEADER_LENGTH, message.frame.length - message.sent_length);
+        if (offset < 0 || offset + HEADER_LENGTH + payload_length > buffer.limit()) {
+            return -1;
+        }
+        buffer.put(offset, MessageCodec.CONTROL_CODEC_ID);
+        buffer.put(offset + 1, CodecSession.CONTROL_FRAGMENT);
+        buffer.putLong(offset + MESSAGE_ID_OFFSET, message.message_id);
+        buffer.putInt(offset + TOTAL_LENGTH_OFFSET, message.frame.length);
+        buffer.putInt(offset + FRAGMENT_OFFSET_OFFSET, message.sent_length);
+        BinaryMessageFormat.put_bytes(buffer, offset + HEADER_LENGTH, message.frame, message.sent_length, payload_length);
+        message.sent_length += payload_length;
+        queued_bytes -= payload_length;
+        small_frames_in_a_row = 0;
+        this.increment_stats("fragments_count");
+
+        // Round robin between the big messages
+        large_messages.pollFirst();
+        if (message.sent_length < message.frame.length) {
+            large_messages.addLast(message);
+        }
+        return HEADER_LENGTH + payload_length;
+    }
+
+    /**
+     * @return true if the queue holds max_queued_bytes (or more): no more
+     * messages until the publisher takes some frames
+     */
+    public synchronized boolean is_full() {
+        return queued_bytes >= max_queued_bytes;
+    }
+
+    public long get_max_queued_bytes() {
+        return max_queued_bytes;
+    }
+
+    public synchronized boolean is_empty() {
+        return small_frames.isEmpty() && large_messages.isEmpty();
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("queued_small_frames", (long) small_frames.size());
+        stats.put("queued_large_messages", (long) large_messages.size());
+        stats.put("queued_bytes", queued_bytes);
+        return super.get_stats();
+    }
+}
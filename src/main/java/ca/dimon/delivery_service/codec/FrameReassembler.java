@@ -0,0 +1,286 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Incoming side of the FrameFragmenter: puts the fragments of the big messages back together into
+ * off-heap (direct) buffers, so the big bodies don't churn the heap.
+ *
+ * Bounds:
+ *   - max_message_length: bigger messages are refused (their fragments are dropped and counted)
+ *   - max_reserved_bytes: all the reassembly buffers together (in use + kept for reuse); when a new
+ *     message doesn't fit, the spare buffers are freed first, then the message is refused
+ *   - timeout_ms: reassemblies which got no fragment for that long are dropped (the sender died or
+ *     was restarted mid-message), see expire_incomplete()
+ *   - max_incomplete_count: messages in progress, the refused ones included (they are tracked until
+ *     their last fragment, so it is known where the next message starts); new messages above it are
+ *     refused right away and not tracked at all
+ *
+ * The fragmenter sends the fragments of each message in order, so a reassembly only starts with the
+ * first fragment (offset 0): the fragments of a message we don't track are dropped (and counted as
+ * "orphan_fragments_count").
+ *
+ * Buffers are power-of-two sized and reused. Usage:
+ *     ByteBuffer frame = reassembler.on_fragment(buffer, offset, length, now_epoch_ms);
+ *     if (frame != null) {
+ *         Message message = codec_session.decode(frame, 0, frame.limit());
+ *         reassembler.release_buffer(frame);
+ *     }
+ *
+ * </pre>
+ */
+public class FrameReassembler extends ManagedObject {
+
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_RESERVED_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_MAX_INCOMPLETE_COUNT = 256;
+
+    private static final int MIN_BUFFER_CAPACITY = 4096;
+
+    private final int max_message_length;
+    private final long max_reserved_bytes;
+    private final long timeout_ms;
+    private final int max_incomplete_count;
+
+    private final HashMap<Long, Reassembly> reassemblies = new HashMap<>();
+    // Spare buffers by capacity (index: log2 of the capacity)
+    private final ArrayList<ArrayDeque<ByteBuffer>> spare_buffers = new ArrayList<>(32);
+    private long reserved_bytes = 0;
+    private long last_expire_check_epoch_ms = 0;
+
+    private static class Reassembly {
+
+        // null if the message was refused (fragments are just counted until the last one)
+        final ByteBuffer buffer;
+        final int total_length;
+        int received_length = 0;
+        long last_fragment_epoch_ms;
+
+        Reassembly(ByteBuffer buffer, int total_length, long now_epoch_ms) {
+            this.buffer = buffer;
+            this.total_length = total_length;
+            this.last_fragment_epoch_ms = now_epoch_ms;
+        }
+    }
+
+    public FrameReassembler(String uri) {
+        this(uri, DEFAULT_MAX_MESSAGE_LENGTH, DEFAULT_MAX_RESERVED_BYTES, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_INCOMPLETE_COUNT);
+    }
+
+    public FrameReassembler(String uri, int max_message_length, long max_reserved_bytes, long timeout_ms) {
+        this(uri, max_message_length, max_reserved_bytes, timeout_ms, DEFAULT_MAX_INCOMPLETE_COUNT);
+    }
+
+    public FrameReassembler(String uri, int max_message_length, long max_reserved_bytes, long timeout_ms, int max_incomplete_count) {
+        this.max_message_length = max_message_length;
+        this.max_reserved_bytes = max_reserved_bytes;
+        this.timeout_ms = timeout_ms;
+        this.max_incomplete_count = max_incomplete_count;
+        this.set_uri(uri);
+        for (int i = 0; i < 32; i++) {
+            spare_buffers.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Add the fragment to its message.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param now_epoch_ms
+     * @return the complete original frame (from 0 to limit) once the last
+     * fragment arrives, null otherwise (and for the malformed / refused
+     * fragments, which are reported and counted). Give the returned buffer
+     * back with release_buffer() once it is decoded.
+     */
+    public synchronized ByteBuffer on_fragment(ByteBuffer buffer, int offset, int length, long now_epoch_ms) {
+        expire_incomplete_if_due(now_epoch_ms);
+        if (length < FrameFragmenter.HEADER_LENGTH) {
+            report_error("fragment is too short: " + length + " bytes");
+            return null;
+        }
+        long message_id = buffer.getLong(offset + FrameFragmenter.MESSAGE_ID_OFFSET);
+        int total_length = buffer.getInt(offset + FrameFragmenter.TOTAL_LENGTH_OFFSET);
+        int fragment_offset = buffer.getInt(offset + FrameFragmenter.FRAGMENT_OFFSET_OFFSET);
+        int payload_length = length - FrameFragmenter.HEADER_LENGTH;
+        this.increment_stats("fragments_count");
+
+        Reassembly reassembly = reassemblies.get(message_id);
+        if (reassembly == null) {
+            if (total_length <= 0) {
+                report_error("message " + message_id + ": bad total length: " + total_length);
+                return null;
+            }
+            if (fragment_offset != 0) {
+                // We missed (or refused) the start of this message
+                this.increment_stats("orphan_fragments_count");
+                return null;
+            }
+            if (reassemblies.size() >= max_incomplete_count) {
+                expire_incomplete(now_epoch_ms);
+                if (reassemblies.size() >= max_incomplete_count) {
+                    report_refused("message " + message_id + " of " + total_length + " bytes: " + reassemblies.size() + " messages are in progress already (max_incomplete_count)");
+                    return null;
+                }
+            }
+            ByteBuffer reassembly_buffer = null;
+            if (total_length > max_message_length) {
+                report_refused("message " + message_id + " of " + total_length + " bytes is above max_message_length " + max_message_length);
+            } else {
+                reassembly_buffer = allocate_buffer(total_length);
+                if (reassembly_buffer == null) {
+                    report_refused("message " + message_id + " of " + total_length + " bytes doesn't fit into max_reserved_bytes " + max_reserved_bytes + " (reserved: " + reserved_bytes + ")");
+                }
+            }
+            reassembly = new Reassembly(reassembly_buffer, total_length, now_epoch_ms);
+            reassemblies.put(message_id, reassembly);
+        }
+
+        if (total_length != reassembly.total_length || fragment_offset < 0 || payload_length > reassembly.total_length - reassembly.received_length || fragment_offset > reassembly.total_length - payload_length) {
+            report_error("message " + message_id + ": fragment (offset " + fragment_offset + ", " + payload_length + " bytes, total " + total_length + ") doesn't fit the message (total " + reassembly.total_length + ", received " + reassembly.received_length + "), message dropped");
+            drop(message_id, reassembly);
+            return null;
+        }
+        if (reassembly.buffer != null) {
+            for (int i = 0; i < payload_length; i++) {
+                reassembly.buffer.put(fragment_offset + i, buffer.get(offset + FrameFragmenter.HEADER_LENGTH + i));
+            }
+        }
+        reassembly.received_length += payload_length;
+        reassembly.last_fragment_epoch_ms = now_epoch_ms;
+
+        if (reassembly.received_length < reassembly.total_length) {
+            return null;
+        }
+        reassemblies.remove(message_id);
+        if (reassembly.buffer == null) {
+            // Refused message is over
+            return null;
+        }
+        this.increment_stats("reassembled_count");
+        reassembly.buffer.limit(reassembly.total_length);
+        return reassembly.buffer;
+    }
+
+    /**
+     * Give the buffer returned by on_fragment() back (for reuse).
+     *
+     * @param buffer
+     */
+    public synchronized void release_buffer(ByteBuffer buffer) {
+        buffer.clear();
+        spare_buffers.get(Integer.numberOfTrailingZeros(buffer.capacity())).push(buffer);
+    }
+
+    /**
+     * Same as expire_incomplete(), but at most once per min(timeout_ms, 1 s)
+     * (and only if something is in progress), so it is cheap enough for the
+     * duty cycle of the thread which owns the transport (see AeronBridge).
+     *
+     * @param now_epoch_ms
+     * @return number of the dropped reassemblies
+     */
+    public synchronized int expire_incomplete_if_due(long now_epoch_ms) {
+        if (reassemblies.isEmpty() || now_epoch_ms - last_expire_check_epoch_ms < Math.min(timeout_ms, 1000)) {
+            return 0;
+        }
+        return expire_incomplete(now_epoch_ms);
+    }
+
+    /**
+     * Drop the reassemblies which got no fragment for timeout_ms. Called on
+     * the incoming fragments anyway and from the AeronBridge duty cycle (see
+     * expire_incomplete_if_due()), so the stalled ones go away even when the
+     * fragments stop coming altogether.
+     *
+     * @param now_epoch_ms
+     * @return number of the dropped reassemblies
+     */
+    public synchronized int expire_incomplete(long now_epoch_ms) {
+        last_expire_check_epoch_ms = now_epoch_ms;
+        int expired_count = 0;
+        Iterator<Map.Entry<Long, Reassembly>> iterator = reassemblies.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Reassembly> entry = iterator.next();
+            Reassembly reassembly = entry.getValue();
+            if (now_epoch_ms - reassembly.last_fragment_epoch_ms < timeout_ms) {
+                continue;
+            }
+            System.err.println("Error: FrameReassembler " + get_uri() + ": message " + entry.getKey() + " timed out after " + reassembly.received_length + " of " + reassembly.total_length + " bytes");
+            iterator.remove();
+            if (reassembly.buffer != null) {
+                release_buffer(reassembly.buffer);
+            }
+            expired_count++;
+        }
+        if (expired_count > 0) {
+            this.increment_stats("errors_count", expired_count);
+            this.increment_stats("timed_out_count", expired_count);
+        }
+        return expired_count;
+    }
+
+    public synchronized int get_incomplete_count() {
+        return reassemblies.size();
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("incomplete_count", (long) reassemblies.size());
+        stats.put("reserved_bytes", reserved_bytes);
+        return super.get_stats();
+    }
+
+    private ByteBuffer allocate_buffer(int length) {
+        int capacity = Math.max(MIN_BUFFER_CAPACITY, Integer.highestOneBit(length - 1) << 1);
+        if (capacity < length) {
+            // Above 2^30
+            return null;
+        }
+        ArrayDeque<ByteBuffer> same_size_buffers = spare_buffers.get(Integer.numberOfTrailingZeros(capacity));
+        if (!same_size_buffers.isEmpty()) {
+            return same_size_buffers.pop();
+        }
+        if (reserved_bytes + capacity > max_reserved_bytes) {
+            // Free the spare buffers of the other sizes and try again
+            for (ArrayDeque<ByteBuffer> buffers : spare_buffers) {
+                while (!buffers.isEmpty()) {
+                    reserved_bytes -= buffers.pop().capacity();
+                }
+            }
+            if (reserved_bytes + capacity > max_reserved_bytes) {
+                return null;
+            }
+        }
+        reserved_bytes += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private void drop(long message_id, Reassembly reassembly) {
+        reassemblies.remove(message_id);
+        if (reassembly.buffer != null) {
+            release_buffer(reassembly.buffer);
+        }
+    }
+
+    private void report_error(String details) {
+        System.err.println("Error: FrameReassembler " + get_uri() + ".on_fragment(): " + details);
+        this.increment_stats("errors_count");
+        this.increment_stats("on_fragment_errors_count");
+    }
+
+    private void report_refused(String details) {
+        System.err.println("Error: FrameReassembler " + get_uri() + ".on_fragment(): " + details + ", refused");
+        this.increment_stats("errors_count");
+        this.increment_stats("refused_count");
+    }
+}
@@ -0,0 +1,58 @@
+package ca.dimon.delivery_service.codec;
+
+/**
+ * <pre>
+ * Hand-written (or generated) binary encoder / decoder of one body class, registered in the
+ * BodySchemaRegistry under a numeric schema id. The binary codec writes such bodies as
+ * TAG_SCHEMA values (schema id + whatever write() puts there), so they travel without gson
+ * reflection and come back as the same class on the receiver side (instead of the LinkedTreeMap).
+ *
+ * Both peers must register the same schema under the same id. Once used on the wire the schema id
+ * and the field order are the contract: add new fields at the end (and let read() check
+ * reader.has_remaining() for them), never reuse the ids.
+ *
+ * Usage example:
+ *     public class QuoteSchema implements IBodySchema&lt;Quote&gt; {
+ *         public int get_schema_id() { return 100; }
+ *         public Class&lt;Quote&gt; get_body_class() { return Quote.class; }
+ *         public void write(Quote quote, BodyWriter writer) {
+ *             writer.put_string(quote.symbol).put_double(quote.price).put_long(quote.quantity);
+ *         }
+ *         public Quote read(BodyReader reader) {
+ *             return new Quote(reader.get_string(), reader.get_double(), reader.get_long());
+ *         }
+ *     }
+ *     BodySchemaRegistry.get_default_registry().register(new QuoteSchema());
+ *
+ * </pre>
+ *
+ * @param <T> body class
+ */
+public interface IBodySchema<T> {
+
+    /**
+     * @return schema id (non-negative, unique within the registry)
+     */
+    int get_schema_id();
+
+    /**
+     * @return body class (exact match, subclasses are not looked up)
+     */
+    Class<T> get_body_class();
+
+    /**
+     * Write the body fields (the writer takes care of the buffer bounds).
+     *
+     * @param body
+     * @param writer
+     */
+    void write(T body, BodyWriter writer);
+
+    /**
+     * Read the body fields in the same order they were written.
+     *
+     * @param reader
+     * @return decoded body
+     */
+    T read(BodyReader reader);
+}
@@ -0,0 +1,55 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.message.Message;
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <pre>
+ * Plain (compact) gson json codec, handy for the debugging tools and the legacy peers. There is no
+ * extra codec id byte: the json object always starts with '{', which is the codec id. Json frames
+ * are never compressed (see BodyCompression), the legacy peers wouldn't understand them.
+ *
+ * </pre>
+ */
+public class JsonMessageCodec extends MessageCodec {
+
+    public static final byte CODEC_ID = '{';
+
+    // Gson instances are thread-safe
+    private final Gson gson = new Gson();
+
+    public JsonMessageCodec() {
+        super(CODEC_ID, "json_codec");
+    }
+
+    @Override
+    protected int encode_frame(Message message, ByteBuffer buffer, int offset, BodyCompression body_compression) {
+        byte[] json = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+        if (offset < 0 || offset + json.length > buffer.limit()) {
+            return -1;
+        }
+        BinaryMessageFormat.put_bytes(buffer, offset, json);
+        return json.length;
+    }
+
+    @Override
+    protected Message decode_frame(ByteBuffer buffer, int offset, int length, BodyCompression body_compression) {
+        String json;
+        if (buffer.hasArray()) {
+            json = new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+            json = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Message message = gson.fromJson(json, Message.class);
+        if (message == null) {
+            throw new IllegalArgumentException("empty json frame");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,224 @@
+package ca.dimon.delivery_service.codec;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Fast pure-Java LZ77 compressor (the LZ4 block format: sequences of literals + back-references
+ * within the last 64 KB). No dependencies, no native code, no allocation per call (the hash table
+ * is reused), which is what we want on the transport threads: the ratio is modest (2-4x on the
+ * typical json-ish snapshots), but it compresses hundreds of MB per second per core.
+ *
+ * Sequence layout:
+ *     int8     token: high 4 bits literals length, low 4 bits (match length - 4), 15 means "more
+ *              length bytes follow" (each 255 byte adds 255, the first byte below 255 ends it)
+ *     (int8)   extra literals length bytes
+ *     bytes    literals
+ *     int16    match offset (little-endian, 1..65535), absent in the last sequence
+ *     (int8)   extra match length bytes
+ *
+ * Not thread-safe (the hash table): keep one per thread, as the encoder flyweight does.
+ *
+ * </pre>
+ */
+public class LzCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 65535;
+    // The last match must start at least MF_LIMIT bytes before the end, the last LAST_LITERALS bytes are
+    // always literals (the LZ4 block format rules)
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    // Incompressible data: search step grows by one every 2^SKIP_TRIGGER misses
+    private static final int SKIP_TRIGGER = 6;
+
+    // Position + 1 of the last 4-byte sequence with the given hash (0 means "empty")
+    private final int[] hash_table = new int[1 << HASH_LOG];
+
+    /**
+     * Compress src[src_offset, src_offset + src_length) into dst starting
+     * at dst_offset.
+     *
+     * @return compressed length or -1 if it doesn't fit into dst_max_length
+     * bytes (so the caller can pass "original length - 1" and get -1 for the
+     * incompressible data right away)
+     */
+    public int compress(byte[] src, int src_offset, int src_length, byte[] dst, int dst_offset, int dst_max_length) {
+        int src_end = src_offset + src_length;
+        int dst_end = dst_offset + Math.min(dst_max_length, dst.length - dst_offset);
+        int anchor = src_offset;
+        int dp = dst_offset;
+
+        if (src_length > MF_LIMIT) {
+            Arrays.fill(hash_table, 0);
+            int match_start_limit = src_end - MF_LIMIT;
+            int match_end_limit = src_end - LAST_LITERALS;
+            int ip = src_offset;
+            int search_count = 1 << SKIP_TRIGGER;
+            while (ip < match_start_limit) {
+                int sequence = read_int(src, ip);
+                int hash = hash(sequence);
+                int ref = hash_table[hash] - 1;
+                hash_table[hash] = ip + 1;
+                if (ref < src_offset || ip - ref > MAX_OFFSET || read_int(src, ref) != sequence) {
+                    ip += search_count++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                search_count = 1 << SKIP_TRIGGER;
+
+                // Extend the match backwards (into the pending literals) and forwards
+                while (ip > anchor && ref > src_offset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int match_end = ip + MIN_MATCH;
+                int ref_end = ref + MIN_MATCH;
+                while (match_end < match_end_limit && src[match_end] == src[ref_end]) {
+                    match_end++;
+                    ref_end++;
+                }
+
+                dp = put_sequence(src, anchor, ip - anchor, ip - ref, match_end - ip - MIN_MATCH, dst, dp, dst_end);
+                if (dp < 0) {
+                    return -1;
+                }
+                ip = match_end;
+                anchor = ip;
+            }
+        }
+
+        // Last literals
+        dp = put_sequence(src, anchor, src_end - anchor, 0, -1, dst, dp, dst_end);
+        return dp < 0 ? -1 : dp - dst_offset;
+    }
+
+    /**
+     * Decompress src[src_offset, src_offset + src_length) into dst starting
+     * at dst_offset.
+     *
+     * @return decompressed length
+     * @throws IllegalArgumentException if the data is malformed or doesn't
+     * fit into dst_max_length bytes
+     */
+    public static int decompress(byte[] src, int src_offset, int src_length, byte[] dst, int dst_offset, int dst_max_length) {
+        int sp = src_offset;
+        int src_end = src_offset + src_length;
+        int dp = dst_offset;
+        int dst_end = dst_offset + Math.min(dst_max_length, dst.length - dst_offset);
+        try {
+            while (true) {
+                if (sp >= src_end) {
+                    throw new IllegalArgumentException("LzCompressor: truncated input (" + src_length + " bytes)");
+                }
+                int token = src[sp++] & 0xFF;
+
+                // Literals
+                int literals_length = token >>> 4;
+                if (literals_length == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        literals_length += b;
+                    } while (b == 255);
+                }
+                if (sp + literals_length > src_end || dp + literals_length > dst_end) {
+                    throw new IllegalArgumentException("LzCompressor: literals run beyond the " + (sp + literals_length > src_end ? "input" : "output"));
+                }
+                System.arraycopy(src, sp, dst, dp, literals_length);
+                sp += literals_length;
+                dp += literals_length;
+                if (sp == src_end) {
+                    return dp - dst_offset;
+                }
+
+                // Match
+                if (sp + 2 > src_end) {
+                    throw new IllegalArgumentException("LzCompressor: truncated input (" + src_length + " bytes)");
+                }
+                int match_offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+                sp += 2;
+                int match_length = token & 0x0F;
+                if (match_length == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        match_length += b;
+                    } while (b == 255);
+                }
+                match_length += MIN_MATCH;
+                int ref = dp - match_offset;
+                if (match_offset == 0 || ref < dst_offset || dp + match_length > dst_end) {
+                    throw new IllegalArgumentException("LzCompressor: bad match (offset " + match_offset + ", length " + match_length + ") at output " + (dp - dst_offset));
+                }
+                // Byte by byte: the match may overlap the output (ex: offset 1 repeats the last byte)
+                for (int i = 0; i < match_length; i++) {
+                    dst[dp + i] = dst[ref + i];
+                }
+                dp += match_length;
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("LzCompressor: truncated input (" + src_length + " bytes)");
+        }
+    }
+
+    /**
+     * Write one sequence (match_length_minus_min &lt; 0 means the last one,
+     * literals only).
+     *
+     * @return new dst position or -1 if it doesn't fit
+     */
+    private static int put_sequence(byte[] src, int literals_offset, int literals_length, int match_offset, int match_length_minus_min, byte[] dst, int dp, int dst_end) {
+        if (!fits(literals_length, match_length_minus_min, dp, dst_end)) {
+            return -1;
+        }
+        int token_index = dp++;
+        int token = (Math.min(literals_length, 15) << 4) | (match_length_minus_min < 0 ? 0 : Math.min(match_length_minus_min, 15));
+        if (literals_length >= 15) {
+            dp = put_length(literals_length - 15, dst, dp);
+        }
+        System.arraycopy(src, literals_offset, dst, dp, literals_length);
+        dp += literals_length;
+        if (match_length_minus_min >= 0) {
+            dst[dp++] = (byte) match_offset;
+            dst[dp++] = (byte) (match_offset >>> 8);
+            if (match_length_minus_min >= 15) {
+                dp = put_length(match_length_minus_min - 15, dst, dp);
+            }
+        }
+        dst[token_index] = (byte) token;
+        return dp;
+    }
+
+    // Does the sequence (token, lengths, literals, offset) fit into dst?
+    private static boolean fits(int literals_length, int match_length_minus_min, int dp, int dst_end) {
+        int length = 1 + literals_length;
+        if (literals_length >= 15) {
+            length += (literals_length - 15) / 255 + 1;
+        }
+        if (match_length_minus_min >= 0) {
+            length += 2;
+            if (match_length_minus_min >= 15) {
+                length += (match_length_minus_min - 15) / 255 + 1;
+            }
+        }
+        return dp + length <= dst_end;
+    }
+
+    private static int put_length(int length, byte[] dst, int dp) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int read_int(byte[] src, int index) {
+        return (src[index] & 0xFF) | ((src[index + 1] & 0xFF) << 8) | ((src[index + 2] & 0xFF) << 16) | ((src[index + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,171 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.message.Message;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * Message codec "SPI": turns the Message into the wire frame and back. Codecs are registered in the
+ * MessageCodecRegistry by their codec id, which is also the first byte of every frame the codec
+ * produces, so the receiver always knows how to decode the frame, no matter what was negotiated
+ * (see CodecSession).
+ *
+ *     codec id   codec                  frame
+ *     ---------------------------------------------------------------------------------------
+ *     0          (reserved)             control frames (see CodecSession)
+ *     2          BinaryMessageCodec     codec id + BinaryMessageFormat frame
+ *     '{'        JsonMessageCodec       plain gson json (its own first byte is the codec id, so the
+ *                                       legacy peers which only speak json keep working)
+ *
+ * Implementations only have to provide encode_frame() / decode_frame(), while encode() / decode()
+ * keep the per-codec stats: messages and bytes on the wire in each direction, errors and the
+ * encode / decode time histograms ("&lt;codec name&gt;_encode_ns", "&lt;codec name&gt;_decode_ns").
+ * Codecs must be thread-safe (the same instance is shared by all the sessions).
+ *
+ * </pre>
+ */
+public abstract class MessageCodec extends ManagedObject {
+
+    public static final byte CONTROL_CODEC_ID = 0;
+
+    private final byte codec_id;
+    private final String name;
+
+    private final LongAdder encoded_count = new LongAdder();
+    private final LongAdder encoded_bytes = new LongAdder();
+    private final LongAdder decoded_count = new LongAdder();
+    private final LongAdder decoded_bytes = new LongAdder();
+    private final Histogram encode_ns_histogram;
+    private final Histogram decode_ns_histogram;
+
+    protected MessageCodec(byte codec_id, String name) {
+        if (codec_id == CONTROL_CODEC_ID) {
+            throw new IllegalArgumentException("MessageCodec: codec id " + CONTROL_CODEC_ID + " is reserved for the control frames");
+        }
+        this.codec_id = codec_id;
+        this.name = name;
+        this.encode_ns_histogram = new Histogram(name + "_encode_ns");
+        this.decode_ns_histogram = new Histogram(name + "_decode_ns");
+        this.set_uri(name);
+    }
+
+    /**
+     * Write the whole frame (starting with the codec id byte) at the given
+     * offset.
+     *
+     * @param message
+     * @param buffer
+     * @param offset
+     * @param body_compression per-transport body compression settings and
+     * stats, or null (codecs which can't compress ignore it)
+     * @return frame length or -1 if the frame doesn't fit into the buffer
+     */
+    protected abstract int encode_frame(Message message, ByteBuffer buffer, int offset, BodyCompression body_compression);
+
+    /**
+     * Decode the frame (starting with the codec id byte) at the given
+     * offset.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param body_compression where to record the decompression stats, or
+     * null
+     * @return decoded message
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    protected abstract Message decode_frame(ByteBuffer buffer, int offset, int length, BodyCompression body_compression);
+
+    /**
+     * Encode the message (no body compression) and count it.
+     *
+     * @return frame length or -1 if the frame doesn't fit into the buffer
+     */
+    public final int encode(Message message, ByteBuffer buffer, int offset) {
+        return encode(message, buffer, offset, null);
+    }
+
+    /**
+     * Encode the message and count it (see encode_frame()).
+     *
+     * @return frame length or -1 if the frame doesn't fit into the buffer
+     */
+    public final int encode(Message message, ByteBuffer buffer, int offset, BodyCompression body_compression) {
+        long start_ns = System.nanoTime();
+        int frame_length = encode_frame(message, buffer, offset, body_compression);
+        encode_ns_histogram.record(System.nanoTime() - start_ns);
+        if (frame_length >= 0) {
+            encoded_count.increment();
+            encoded_bytes.add(frame_length);
+        }
+        return frame_length;
+    }
+
+    /**
+     * Decode the frame and count it.
+     *
+     * @return decoded message or null if the frame is malformed (error is
+     * reported and counted)
+     */
+    public final Message decode(ByteBuffer buffer, int offset, int length) {
+        return decode(buffer, offset, length, null);
+    }
+
+    /**
+     * Decode the frame and count it (see decode_frame()).
+     *
+     * @return decoded message or null if the frame is malformed (error is
+     * reported and counted)
+     */
+    public final Message decode(ByteBuffer buffer, int offset, int length, BodyCompression body_compression) {
+        long start_ns = System.nanoTime();
+        Message message;
+        try {
+            message = decode_frame(buffer, offset, length, body_compression);
+        } catch (RuntimeException ex) {
+            String error_details = "Error: MessageCodec " + name + ".decode(): failed to decode " + length + " bytes frame: " + ex;
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("decode_errors_count");
+            return null;
+        }
+        decode_ns_histogram.record(System.nanoTime() - start_ns);
+        decoded_count.increment();
+        decoded_bytes.add(length);
+        return message;
+    }
+
+    public byte get_codec_id() {
+        return codec_id;
+    }
+
+    public String get_name() {
+        return name;
+    }
+
+    public Histogram get_encode_ns_histogram() {
+        return encode_ns_histogram;
+    }
+
+    public Histogram get_decode_ns_histogram() {
+        return decode_ns_histogram;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("encoded_count", encoded_count.sum());
+        stats.put("encoded_bytes", encoded_bytes.sum());
+        stats.put("decoded_count", decoded_count.sum());
+        stats.put("decoded_bytes", decoded_bytes.sum());
+        return super.get_stats();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (codec id " + codec_id + ")";
+    }
+}
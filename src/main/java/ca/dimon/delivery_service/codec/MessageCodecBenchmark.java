@@ -0,0 +1,209 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.message.Message;
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * <pre>
+ * Round-trip check and micro-benchmark of the binary codec (MessageEncoderFlyweight /
+ * MessageDecoderFlyweight) against the gson path (ManagedObject.to_json() and plain reused Gson).
+ *
+ * Run it with:
+ *     java -cp target/delivery_service-0.1.0.jar ca.dimon.delivery_service.codec.MessageCodecBenchmark [iterations]
+ *
+ * First it round-trips a few typical messages (publish / request / response, with and without custom
+ * headers, String / Map / byte[] bodies and a typed body with the registered IBodySchema) and exits
+ * with status 1 if any of them didn't survive the round trip. Then it prints ns per encode+decode and
+ * the message size for each path, and the classes which fell back to json.
+ *
+ * </pre>
+ */
+public class MessageCodecBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        BodySchemaRegistry.get_default_registry().register(new QuoteSchema());
+        Message[] messages = create_sample_messages();
+
+        // Round-trip check
+        int failed_count = 0;
+        for (Message message : messages) {
+            String error_details = check_round_trip(message);
+            if (error_details != null) {
+                System.err.println("Error: round trip failed: " + error_details);
+                failed_count++;
+            }
+        }
+        System.out.println("round trip: " + (messages.length - failed_count) + " / " + messages.length + " messages ok");
+        if (failed_count > 0) {
+            System.exit(1);
+        }
+
+        // Benchmark (each path runs twice, the first run is a warm-up)
+        for (int run = 0; run < 2; run++) {
+            boolean warm_up = run == 0;
+            benchmark("to_json() (pretty gson)", iterations / 10, warm_up, MessageCodecBenchmark::round_trip_to_json, messages);
+            benchmark("gson (reused instance)", iterations, warm_up, MessageCodecBenchmark::round_trip_gson, messages);
+            benchmark("binary flyweight", iterations, warm_up, MessageCodecBenchmark::round_trip_binary, messages);
+        }
+        System.out.println(BodySchemaRegistry.get_default_registry().visualize_json_fallbacks());
+    }
+
+    /**
+     * Sample typed body (and its schema) to see the TAG_SCHEMA path.
+     */
+    private static class Quote {
+
+        String symbol;
+        double bid;
+        double ask;
+        long quantity;
+
+        Quote(String symbol, double bid, double ask, long quantity) {
+            this.symbol = symbol;
+            this.bid = bid;
+            this.ask = ask;
+            this.quantity = quantity;
+        }
+    }
+
+    private static class QuoteSchema implements IBodySchema<Quote> {
+
+        @Override
+        public int get_schema_id() {
+            return 1;
+        }
+
+        @Override
+        public Class<Quote> get_body_class() {
+            return Quote.class;
+        }
+
+        @Override
+        public void write(Quote quote, BodyWriter writer) {
+            writer.put_string(quote.symbol).put_double(quote.bid).put_double(quote.ask).put_long(quote.quantity);
+        }
+
+        @Override
+        public Quote read(BodyReader reader) {
+            return new Quote(reader.get_string(), reader.get_double(), reader.get_double(), reader.get_long());
+        }
+    }
+
+    private interface IRoundTrip {
+
+        int round_trip(Message message);
+    }
+
+    private static final Gson GSON = new Gson();
+    private static final MessageEncoderFlyweight ENCODER = new MessageEncoderFlyweight();
+    private static final MessageDecoderFlyweight DECODER = new MessageDecoderFlyweight();
+    private static final ByteBuffer BUFFER = ByteBuffer.allocateDirect(64 * 1024);
+
+    // Prevents the JIT from throwing the decoded messages away
+    private static long blackhole = 0;
+
+    private static int round_trip_to_json(Message message) {
+        String json = message.to_json();
+        Message decoded = GSON.fromJson(json, Message.class);
+        blackhole += decoded.headers.size();
+        return json.length();
+    }
+
+    private static int round_trip_gson(Message message) {
+        String json = GSON.toJson(message);
+        Message decoded = GSON.fromJson(json, Message.class);
+        blackhole += decoded.headers.size();
+        return json.length();
+    }
+
+    private static int round_trip_binary(Message message) {
+        int frame_length = ENCODER.wrap(BUFFER, 0).encode(message);
+        Message decoded = DECODER.wrap(BUFFER, 0).decode();
+        blackhole += decoded.headers.size();
+        return frame_length;
+    }
+
+    private static void benchmark(String name, int iterations, boolean warm_up, IRoundTrip path, Message[] messages) {
+        long total_size = 0;
+        long start_ns = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            total_size += path.round_trip(messages[i % messages.length]);
+        }
+        long elapsed_ns = System.nanoTime() - start_ns;
+        if (!warm_up) {
+            System.out.println(String.format("%-26s %10d ns per encode+decode, %6d bytes (chars for json) per message average",
+                    name, elapsed_ns / iterations, total_size / iterations));
+        }
+    }
+
+    private static Message[] create_sample_messages() {
+        Message publish = Message.create_new_publish("market_data_feed", "/md/AAPL", "AAPL 187.25 x 300");
+
+        Message publish_with_headers = Message.create_new_publish("market_data_feed", "/md/MSFT", "MSFT 411.10 x 100");
+        publish_with_headers.headers.put("symbol", "MSFT");
+        publish_with_headers.headers.put("price", 411.10);
+        publish_with_headers.headers.put("quantity", 100L);
+        publish_with_headers.headers.put("is_snapshot", false);
+        publish_with_headers.headers.set_expiration_epoch_ms(System.currentTimeMillis() + 5000);
+
+        LinkedHashMap<String, Object> request_body = new LinkedHashMap<>();
+        request_body.put("command", "get_positions");
+        request_body.put("account", "U1234567");
+        Message request = Message.create_new_request("client_1", "/positions", request_body);
+        request.headers.set_transaction_id("transactioon-id-6f1c3c2e-6b9a-4f0e-9f58-2a8a2b0c5d11");
+
+        Message response = Message.create_new_response("positions_service", new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, request);
+
+        Message unicode = Message.create_new_publish("client_é", "/news/日本", "¿Qué tal? 😀");
+        unicode.headers.put("lang", "日本語");
+
+        Message quote = Message.create_new_publish("market_data_feed", "/md/quotes/IBM", new Quote("IBM", 183.52, 183.57, 1200));
+
+        return new Message[]{publish, publish_with_headers, request, response, unicode, quote};
+    }
+
+    /**
+     * @return null if the message survives the binary round trip (both heap
+     * and direct buffers), error details otherwise
+     */
+    private static String check_round_trip(Message message) {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096)}) {
+            // Encode at non-zero offset, so we're sure offsets are handled
+            int frame_length = new MessageEncoderFlyweight().wrap(buffer, 7).encode(message);
+            if (frame_length < 0) {
+                return "message didn't fit into " + buffer.capacity() + " bytes buffer";
+            }
+            MessageDecoderFlyweight decoder = new MessageDecoderFlyweight().wrap(buffer, 7);
+            if (decoder.frame_length() != frame_length) {
+                return "frame_length mismatch: " + decoder.frame_length() + " != " + frame_length;
+            }
+            if (!decoder.to_equals(message.header_get_to())) {
+                return "to_equals(\"" + message.header_get_to() + "\") returned false";
+            }
+            Message decoded = decoder.decode();
+            if (!decoded.headers.entrySet().equals(message.headers.entrySet())) {
+                return "headers mismatch: " + decoded.headers + " != " + message.headers;
+            }
+            boolean body_equals = message.body instanceof byte[]
+                    ? decoded.body instanceof byte[] && Arrays.equals((byte[]) message.body, (byte[]) decoded.body)
+                    : Objects.equals(GSON.toJson(message.body), GSON.toJson(decoded.body));
+            if (!body_equals) {
+                return "body mismatch: " + GSON.toJson(decoded.body) + " != " + GSON.toJson(message.body);
+            }
+            if (message.body instanceof Quote && !(decoded.body instanceof Quote)) {
+                return "body type mismatch: " + (decoded.body == null ? null : decoded.body.getClass().getName()) + " != " + Quote.class.getName();
+            }
+
+            // Too small buffer must be reported (not thrown)
+            if (new MessageEncoderFlyweight().wrap(ByteBuffer.allocate(frame_length - 1), 0).encode(message) != -1) {
+                return "encode() into too small buffer didn't return -1";
+            }
+        }
+        return null;
+    }
+}
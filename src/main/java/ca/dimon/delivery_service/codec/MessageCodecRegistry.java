@@ -0,0 +1,148 @@
+package ca.dimon.delivery_service.codec;
+
+import ca.dimon.delivery_service.common.FunctionResult;
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.message.Message;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <pre>
+ * Registry of the message codecs keyed by the codec id (one byte, see MessageCodec). The default
+ * registry (get_default_registry()) knows the json and the binary codecs, more can be registered
+ * at start-up (before the sessions start negotiating).
+ *
+ * decode() picks the codec by the first byte of the frame, so frames of different codecs can be
+ * mixed on the same session (ex: while the session is still negotiating, or while the peers are
+ * being upgraded one by one).
+ *
+ * </pre>
+ */
+public class MessageCodecRegistry extends ManagedObject {
+
+    private static volatile MessageCodecRegistry default_registry;
+
+    // Indexed by (codec id & 0xFF)
+    private final AtomicReferenceArray<MessageCodec> codecs_by_id = new AtomicReferenceArray<>(256);
+
+    public MessageCodecRegistry(String uri) {
+        this.set_uri(uri);
+    }
+
+    /**
+     * @return registry with the json and the binary codecs registered
+     */
+    public static MessageCodecRegistry get_default_registry() {
+        if (default_registry == null) {
+            synchronized (MessageCodecRegistry.class) {
+                if (default_registry == null) {
+                    MessageCodecRegistry registry = new MessageCodecRegistry("default_codec_registry");
+                    registry.register(new JsonMessageCodec());
+                    registry.register(new BinaryMessageCodec());
+                    default_registry = registry;
+                }
+            }
+        }
+        return default_registry;
+    }
+
+    /**
+     * Register the codec (under its codec id).
+     *
+     * @param codec
+     * @return failure if another codec is already registered with the same id
+     */
+    public synchronized FunctionResult register(MessageCodec codec) {
+        int index = codec.get_codec_id() & 0xFF;
+        if (codecs_by_id.get(index) != null) {
+            String error_details = "Error: MessageCodecRegistry.register(): codec id " + codec.get_codec_id() + " is already taken by " + codecs_by_id.get(index);
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("register_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        codecs_by_id.set(index, codec);
+        return new FunctionResult().set_success();
+    }
+
+    /**
+     * @param codec_id
+     * @return the codec or null if there's no such codec registered
+     */
+    public MessageCodec get(byte codec_id) {
+        return codecs_by_id.get(codec_id & 0xFF);
+    }
+
+    public boolean is_registered(byte codec_id) {
+        return get(codec_id) != null;
+    }
+
+    public synchronized List<MessageCodec> get_codecs() {
+        ArrayList<MessageCodec> codecs = new ArrayList<>();
+        for (int i = 0; i < codecs_by_id.length(); i++) {
+            MessageCodec codec = codecs_by_id.get(i);
+            if (codec != null) {
+                codecs.add(codec);
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * Decode the frame by the codec its first byte points to.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return decoded message or null if the codec is unknown or the frame is
+     * malformed (reported and counted either way)
+     */
+    public Message decode(ByteBuffer buffer, int offset, int length) {
+        return decode(buffer, offset, length, null);
+    }
+
+    /**
+     * Decode the frame by the codec its first byte points to, recording the
+     * body decompression stats (if any) in the given BodyCompression.
+     *
+     * @return decoded message or null if the codec is unknown or the frame is
+     * malformed (reported and counted either way)
+     */
+    public Message decode(ByteBuffer buffer, int offset, int length, BodyCompression body_compression) {
+        if (length <= 0) {
+            this.increment_stats("errors_count");
+            this.increment_stats("decode_errors_count");
+            return null;
+        }
+        byte codec_id = buffer.get(offset);
+        MessageCodec codec = get(codec_id);
+        if (codec == null) {
+            String error_details = "Error: MessageCodecRegistry.decode(): unknown codec id: " + codec_id;
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("decode_errors_count");
+            return null;
+        }
+        return codec.decode(buffer, offset, length, body_compression);
+    }
+
+    /**
+     * Visualize per-codec stats (messages and bytes on the wire, encode /
+     * decode time).
+     *
+     * @return
+     */
+    public String visualize_codecs_stats() {
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ " + get_uri() + " ]-------------------------------------------\n");
+        for (MessageCodec codec : get_codecs()) {
+            result.append(codec).append(": ").append(codec.get_stats()).append("\n");
+            result.append(codec.get_encode_ns_histogram().visualize()).append("\n");
+            result.append(codec.get_decode_ns_histogram().visualize()).append("\n");
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+}
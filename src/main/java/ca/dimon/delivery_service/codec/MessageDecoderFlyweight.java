@@ -0,0 +1,398 @@
+package ca.dimon.delivery_service.codec;
+
+import static ca.dimon.delivery_service.codec.BinaryMessageFormat.*;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.message.MessageHeaderMimeType;
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <pre>
+ * Reads the Message in the BinaryMessageFormat straight from the ByteBuffer. It is a "flyweight":
+ * one instance is wrapped over different frames again and again (keep one per thread), and the
+ * fixed-offset fields (mime_type, timestamps, frame length) are read right from the buffer without
+ * decoding the whole frame, so the receiver can check / drop the message before paying for
+ * decode_into().
+ *
+ * Usage example:
+ *     MessageDecoderFlyweight decoder = new MessageDecoderFlyweight();
+ *     decoder.wrap(buffer, offset);
+ *     if (decoder.expiration_epoch_ms() != 0 &amp;&amp; decoder.expiration_epoch_ms() &lt; now_epoch_ms) {
+ *         ... expired, skip decoder.frame_length() bytes
+ *     }
+ *     Message message = decoder.decode_into(new Message());
+ *
+ * </pre>
+ */
+public class MessageDecoderFlyweight {
+
+    private static final MessageHeaderMimeType[] MIME_TYPES = MessageHeaderMimeType.values();
+
+    private final Gson gson = new Gson();
+
+    private final BodySchemaRegistry body_schema_registry;
+    private final BodyReader body_reader = new BodyReader();
+
+    private ByteBuffer buffer;
+    private int offset;
+    // End of the data being read (the frame end, or the decompressed body end while reading it)
+    private int limit;
+
+    // Offsets of the variable part strings (resolved on wrap)
+    private int to_index;
+    private int transaction_id_index;
+    private int custom_headers_index;
+
+    // Reading cursor (used while decoding the variable part)
+    private int cursor;
+
+    // Scratch array for the strings in the direct (not array-backed) buffers
+    private byte[] scratch = new byte[256];
+
+    // Decompressed body (see FLAG_BODY_COMPRESSED), grows on demand
+    private byte[] decompressed_body = new byte[0];
+    private ByteBuffer decompressed_body_buffer = ByteBuffer.wrap(decompressed_body);
+
+    public MessageDecoderFlyweight() {
+        this(BodySchemaRegistry.get_default_registry());
+    }
+
+    /**
+     * @param body_schema_registry schemas to decode TAG_SCHEMA values with
+     * (must know every schema id the sender uses)
+     */
+    public MessageDecoderFlyweight(BodySchemaRegistry body_schema_registry) {
+        this.body_schema_registry = body_schema_registry;
+    }
+
+    /**
+     * Wrap the frame which starts at the given offset.
+     *
+     * @param buffer must use BinaryMessageFormat.BYTE_ORDER (the ByteBuffer
+     * default order)
+     * @param offset
+     * @return this decoder
+     * @throws IllegalArgumentException if the frame is malformed
+     * (unsupported version, too short or runs beyond the buffer limit)
+     */
+    public MessageDecoderFlyweight wrap(ByteBuffer buffer, int offset) {
+        if (buffer.order() != BYTE_ORDER) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: buffer must be " + BYTE_ORDER + ", got: " + buffer.order());
+        }
+        if (offset < 0 || offset + MIN_FRAME_LENGTH > buffer.limit()) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: no frame at offset " + offset + ", buffer limit: " + buffer.limit());
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        int frame_length = frame_length();
+        if (frame_length < MIN_FRAME_LENGTH || offset + frame_length > buffer.limit()) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: bad frame_length: " + frame_length + " at offset " + offset + ", buffer limit: " + buffer.limit());
+        }
+        if (version() != VERSION) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: unsupported version: " + version());
+        }
+        this.limit = offset + frame_length;
+
+        // Resolve the variable part strings offsets (just the lengths are read, no strings decoded)
+        cursor = offset + VARIABLE_PART_OFFSET;
+        skip_string();
+        to_index = cursor;
+        skip_string();
+        transaction_id_index = cursor;
+        skip_string();
+        custom_headers_index = cursor;
+        return this;
+    }
+
+    // ----------------------------------- fixed-offset fields -----------------------------------
+    //
+    public int frame_length() {
+        return buffer.getInt(offset + FRAME_LENGTH_OFFSET);
+    }
+
+    public byte version() {
+        return buffer.get(offset + VERSION_OFFSET);
+    }
+
+    public byte flags() {
+        return buffer.get(offset + FLAGS_OFFSET);
+    }
+
+    public boolean is_body_compressed() {
+        return (flags() & FLAG_BODY_COMPRESSED) != 0;
+    }
+
+    public MessageHeaderMimeType mime_type() {
+        int mime_type = buffer.get(offset + MIME_TYPE_OFFSET);
+        return mime_type > 0 && mime_type <= MIME_TYPES.length ? MIME_TYPES[mime_type - 1] : null;
+    }
+
+    public long timestamp_epoch_ms() {
+        return buffer.getLong(offset + TIMESTAMP_EPOCH_MS_OFFSET);
+    }
+
+    public long transaction_expiration_epoch_ms() {
+        return buffer.getLong(offset + TRANSACTION_EXPIRATION_EPOCH_MS_OFFSET);
+    }
+
+    public long expiration_epoch_ms() {
+        return buffer.getLong(offset + EXPIRATION_EPOCH_MS_OFFSET);
+    }
+
+    // ----------------------------------- variable part -----------------------------------
+    //
+    public String from() {
+        cursor = offset + VARIABLE_PART_OFFSET;
+        return read_string();
+    }
+
+    public String to() {
+        cursor = to_index;
+        return read_string();
+    }
+
+    public String transaction_id() {
+        cursor = transaction_id_index;
+        return read_string();
+    }
+
+    /**
+     * Compare the "to" header with the given string without decoding it (no
+     * allocation for the ASCII strings).
+     *
+     * @param expected_to
+     * @return
+     */
+    public boolean to_equals(String expected_to) {
+        cursor = to_index;
+        long length_plus_one = read_varint();
+        if (length_plus_one == 0 || expected_to == null) {
+            return length_plus_one == 0 && expected_to == null;
+        }
+        int length = (int) (length_plus_one - 1);
+        if (!is_ascii(expected_to)) {
+            return expected_to.equals(new String(read_bytes(length), 0, length, StandardCharsets.UTF_8));
+        }
+        if (length != expected_to.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(cursor + i) != (byte) expected_to.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the whole frame into the given (empty) message, for example
+     * borrowed from the MessagePool.
+     *
+     * @param message
+     * @return the given message
+     */
+    public Message decode_into(Message message) {
+        return decode_into(message, null);
+    }
+
+    /**
+     * Decode the whole frame into the given (empty) message, decompressing
+     * the body if the frame says so.
+     *
+     * @param message
+     * @param body_compression where to record the decompression stats (null
+     * is fine: compressed bodies are decompressed anyway)
+     * @return the given message
+     */
+    public Message decode_into(Message message, BodyCompression body_compression) {
+        // Typed headers first, so the custom headers with the well-known names (if any) override them
+        // exactly the same way as they did on the sender side
+        message.headers.set_mime_type(mime_type());
+        message.headers.set_timestamp_epoch_ms(timestamp_epoch_ms());
+        message.headers.set_transaction_expiration_epoch_ms(transaction_expiration_epoch_ms());
+        message.headers.set_expiration_epoch_ms(expiration_epoch_ms());
+        message.headers.set_from(from());
+        message.headers.set_to(to());
+        message.headers.set_transaction_id(transaction_id());
+
+        cursor = custom_headers_index;
+        long custom_headers_count = read_varint();
+        for (long i = 0; i < custom_headers_count; i++) {
+            String key = read_string();
+            message.headers.put(key, read_value());
+        }
+        message.body = is_body_compressed() ? read_compressed_value(body_compression) : read_value();
+        return message;
+    }
+
+    public Message decode() {
+        return decode_into(new Message());
+    }
+
+    // ----------------------------------- helpers -----------------------------------
+    //
+    private long read_varint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("MessageDecoderFlyweight: malformed varint at " + cursor);
+            }
+            b = buffer.get(cursor++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private void skip_string() {
+        long length_plus_one = read_varint();
+        if (length_plus_one > 0) {
+            cursor += (int) (length_plus_one - 1);
+        }
+    }
+
+    private String read_string() {
+        long length_plus_one = read_varint();
+        if (length_plus_one == 0) {
+            return null;
+        }
+        return read_utf8((int) (length_plus_one - 1));
+    }
+
+    private String read_utf8(int length) {
+        check_length(length);
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + cursor, length, StandardCharsets.UTF_8);
+        } else {
+            string = new String(read_bytes(length), 0, length, StandardCharsets.UTF_8);
+        }
+        cursor += length;
+        return string;
+    }
+
+    // Copy the bytes at cursor into the scratch array (cursor is not moved)
+    private byte[] read_bytes(int length) {
+        check_length(length);
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(cursor + i);
+        }
+        return scratch;
+    }
+
+    private void check_length(int length) {
+        if (length < 0 || cursor + length > limit) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: length " + length + " at " + cursor + " runs beyond the frame");
+        }
+    }
+
+    /**
+     * Decompress the body (varint original length + compressed bytes up to
+     * the end of the frame) and read the value from the decompressed copy.
+     */
+    private Object read_compressed_value(BodyCompression body_compression) {
+        long start_ns = System.nanoTime();
+        // The body as sent (length prefix included), the encoder counts the same bytes
+        int sent_body_length = limit - cursor;
+        int original_length = (int) read_varint();
+        int compressed_length = limit - cursor;
+        check_length(compressed_length);
+        // LZ can't expand more than ~255x, so a bigger claim is a malformed (or malicious) frame
+        if (original_length < 0 || (long) original_length > (long) compressed_length * 255 + 16) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: bad compressed body length: " + original_length + " (" + compressed_length + " bytes compressed)");
+        }
+
+        byte[] src;
+        int src_offset;
+        if (buffer.hasArray()) {
+            src = buffer.array();
+            src_offset = buffer.arrayOffset() + cursor;
+        } else {
+            src = read_bytes(compressed_length);
+            src_offset = 0;
+        }
+        if (decompressed_body.length < original_length) {
+            decompressed_body = new byte[Math.max(original_length, decompressed_body.length * 2)];
+            decompressed_body_buffer = ByteBuffer.wrap(decompressed_body);
+        }
+        int decompressed_length = LzCompressor.decompress(src, src_offset, compressed_length, decompressed_body, 0, original_length);
+        if (decompressed_length != original_length) {
+            throw new IllegalArgumentException("MessageDecoderFlyweight: compressed body decompressed into " + decompressed_length + " bytes instead of " + original_length);
+        }
+        long elapsed_ns = System.nanoTime() - start_ns;
+
+        // Read the value from the decompressed copy, then switch back to the frame
+        ByteBuffer frame_buffer = this.buffer;
+        int frame_limit = this.limit;
+        buffer = decompressed_body_buffer;
+        cursor = 0;
+        limit = original_length;
+        Object value;
+        try {
+            value = read_value();
+        } finally {
+            buffer = frame_buffer;
+            limit = frame_limit;
+            cursor = frame_limit;
+        }
+        if (body_compression != null) {
+            body_compression.record_decompressed(sent_body_length, original_length, elapsed_ns);
+        }
+        return value;
+    }
+
+    private Object read_value() {
+        byte tag = buffer.get(cursor++);
+        int length = (int) read_varint();
+        check_length(length);
+        int payload_index = cursor;
+        Object value;
+        switch (tag) {
+            case TAG_NULL:
+                value = null;
+                break;
+            case TAG_STRING:
+                value = read_utf8(length);
+                break;
+            case TAG_LONG:
+                value = zig_zag_decode(read_varint());
+                break;
+            case TAG_INTEGER:
+                value = (int) zig_zag_decode(read_varint());
+                break;
+            case TAG_DOUBLE:
+                value = Double.longBitsToDouble(buffer.getLong(cursor));
+                break;
+            case TAG_BOOLEAN:
+                value = buffer.get(cursor) != 0;
+                break;
+            case TAG_BYTES:
+                byte[] bytes = new byte[length];
+                System.arraycopy(read_bytes(length), 0, bytes, 0, length);
+                value = bytes;
+                break;
+            case TAG_JSON:
+                value = gson.fromJson(read_utf8(length), Object.class);
+                break;
+            case TAG_SCHEMA:
+                int schema_id = (int) read_varint();
+                IBodySchema<?> schema = body_schema_registry.get_by_id(schema_id);
+                if (schema == null) {
+                    throw new IllegalArgumentException("MessageDecoderFlyweight: unknown body schema id: " + schema_id + " at " + (payload_index - 1) + " (not registered in " + body_schema_registry.get_uri() + ")");
+                }
+                value = schema.read(body_reader.wrap(buffer, cursor, payload_index + length));
+                break;
+            default:
+                throw new IllegalArgumentException("MessageDecoderFlyweight: unknown value tag: " + tag + " at " + (payload_index - 1));
+        }
+        // Length prefix is the source of truth (the payload might be padded by a newer encoder)
+        cursor = payload_index + length;
+        return value;
+    }
+}
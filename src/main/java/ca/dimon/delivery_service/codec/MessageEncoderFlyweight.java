@@ -0,0 +1,284 @@
+package ca.dimon.delivery_service.codec;
+
+import static ca.dimon.delivery_service.codec.BinaryMessageFormat.*;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.message.MessageHeaderMimeType;
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Writes the Message straight into the ByteBuffer in the BinaryMessageFormat (no intermediate byte
+ * arrays or strings for the well-known headers and the ASCII strings). It is a "flyweight": one
+ * instance is wrapped over different buffers / offsets again and again, so keep one per thread.
+ *
+ * Usage example:
+ *     MessageEncoderFlyweight encoder = new MessageEncoderFlyweight();
+ *     int frame_length = encoder.wrap(buffer, offset).encode(message);
+ *     if (frame_length &lt; 0) {
+ *         ... buffer is too small, grow it and try again
+ *     }
+ *
+ * </pre>
+ */
+public class MessageEncoderFlyweight {
+
+    // Gson is thread-safe, but the encoder isn't anyway (one per thread), so no need to share it
+    private final Gson gson = new Gson();
+
+    private final BodySchemaRegistry body_schema_registry;
+    private final BodyWriter body_writer = new BodyWriter();
+
+    // Body compression (see BodyCompression), scratch arrays grow on demand
+    private final LzCompressor compressor = new LzCompressor();
+    private byte[] uncompressed_scratch = new byte[0];
+    private byte[] compressed_scratch = new byte[0];
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    public MessageEncoderFlyweight() {
+        this(BodySchemaRegistry.get_default_registry());
+    }
+
+    /**
+     * @param body_schema_registry schemas for the body (and custom header
+     * values) classes, the rest is written as json
+     */
+    public MessageEncoderFlyweight(BodySchemaRegistry body_schema_registry) {
+        this.body_schema_registry = body_schema_registry;
+    }
+
+    /**
+     * @param buffer must use BinaryMessageFormat.BYTE_ORDER (the ByteBuffer
+     * default order)
+     * @param offset where to write the frame
+     * @return this encoder
+     */
+    public MessageEncoderFlyweight wrap(ByteBuffer buffer, int offset) {
+        if (buffer.order() != BYTE_ORDER) {
+            throw new IllegalArgumentException("MessageEncoderFlyweight: buffer must be " + BYTE_ORDER + ", got: " + buffer.order());
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public ByteBuffer get_buffer() {
+        return buffer;
+    }
+
+    public int get_offset() {
+        return offset;
+    }
+
+    /**
+     * Encode the message at the wrapped offset. Neither the buffer position
+     * nor its limit are changed.
+     *
+     * @param message
+     * @return frame length (bytes written) or -1 if the frame doesn't fit
+     * into the buffer (between the offset and the buffer limit)
+     */
+    public int encode(Message message) {
+        return encode(message, null);
+    }
+
+    /**
+     * Encode the message at the wrapped offset, compressing the body if the
+     * body_compression says so (and if it gets smaller). Neither the buffer
+     * position nor its limit are changed.
+     *
+     * @param message
+     * @param body_compression settings and stats, null means "don't compress"
+     * @return frame length (bytes written) or -1 if the frame doesn't fit
+     * into the buffer (between the offset and the buffer limit), the body is
+     * encoded uncompressed first, so it must fit as is
+     */
+    public int encode(Message message, BodyCompression body_compression) {
+        try {
+            return encode_or_throw(message, body_compression);
+        } catch (IndexOutOfBoundsException ex) {
+            return -1;
+        }
+    }
+
+    private int encode_or_throw(Message message, BodyCompression body_compression) {
+        // Fixed part
+        MessageHeaderMimeType mime_type = message.header_get_mime_type();
+        buffer.put(offset + VERSION_OFFSET, VERSION);
+        buffer.put(offset + FLAGS_OFFSET, (byte) 0);
+        buffer.put(offset + MIME_TYPE_OFFSET, (byte) (mime_type == null ? 0 : mime_type.ordinal() + 1));
+        buffer.put(offset + MIME_TYPE_OFFSET + 1, (byte) 0);
+        buffer.putLong(offset + TIMESTAMP_EPOCH_MS_OFFSET, message.header_get_timestamp_epoch_ms());
+        buffer.putLong(offset + TRANSACTION_EXPIRATION_EPOCH_MS_OFFSET, message.header_get_transaction_expiration_epoch_ms());
+        buffer.putLong(offset + EXPIRATION_EPOCH_MS_OFFSET, message.header_get_expiration_epoch_ms());
+
+        // Variable part: well-known strings
+        int index = offset + VARIABLE_PART_OFFSET;
+        index += put_string(buffer, index, message.header_get_from());
+        index += put_string(buffer, index, message.header_get_to());
+        index += put_string(buffer, index, message.header_get_transaction_id());
+
+        // Custom headers
+        Map<String, Object> extension_headers = message.headers.get_extension_headers();
+        if (extension_headers == null) {
+            index += put_varint(buffer, index, 0);
+        } else {
+            index += put_varint(buffer, index, extension_headers.size());
+            for (Map.Entry<String, Object> entry : extension_headers.entrySet()) {
+                index += put_string(buffer, index, entry.getKey());
+                index += put_value(index, entry.getValue());
+            }
+        }
+
+        // Body
+        int body_index = index;
+        index += put_value(index, message.body);
+        if (body_compression != null && body_compression.should_compress(index - body_index)) {
+            index = body_index + compress_body(body_index, index - body_index, body_compression);
+        }
+
+        int frame_length = index - offset;
+        buffer.putInt(offset + FRAME_LENGTH_OFFSET, frame_length);
+        return frame_length;
+    }
+
+    /**
+     * Write tagged, length-prefixed value (see "value" in BinaryMessageFormat).
+     *
+     * @return number of bytes written
+     */
+    private int put_value(int index, Object value) {
+        if (value == null) {
+            buffer.put(index, TAG_NULL);
+            return 1 + put_varint(buffer, index + 1, 0);
+        }
+        if (value instanceof String) {
+            // put_string() writes (utf-8 length + 1), which is a valid payload length only for the empty string,
+            // so write the length prefix ourselves
+            String string = (String) value;
+            buffer.put(index, TAG_STRING);
+            if (is_ascii(string)) {
+                int length = string.length();
+                int written = 1 + put_varint(buffer, index + 1, length);
+                for (int i = 0; i < length; i++) {
+                    buffer.put(index + written + i, (byte) string.charAt(i));
+                }
+                return written + length;
+            }
+            return 1 + put_length_prefixed_bytes(index + 1, string.getBytes(StandardCharsets.UTF_8));
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            long zig_zag = zig_zag_encode(((Number) value).longValue());
+            buffer.put(index, value instanceof Long ? TAG_LONG : TAG_INTEGER);
+            int written = 1 + put_varint(buffer, index + 1, varint_length(zig_zag));
+            return written + put_varint(buffer, index + written, zig_zag);
+        }
+        if (value instanceof Double) {
+            buffer.put(index, TAG_DOUBLE);
+            int written = 1 + put_varint(buffer, index + 1, 8);
+            buffer.putLong(index + written, Double.doubleToRawLongBits((Double) value));
+            return written + 8;
+        }
+        if (value instanceof Boolean) {
+            buffer.put(index, TAG_BOOLEAN);
+            int written = 1 + put_varint(buffer, index + 1, 1);
+            buffer.put(index + written, (byte) ((Boolean) value ? 1 : 0));
+            return written + 1;
+        }
+        if (value instanceof byte[]) {
+            buffer.put(index, TAG_BYTES);
+            return 1 + put_length_prefixed_bytes(index + 1, (byte[]) value);
+        }
+
+        // Registered class: written by its schema
+        @SuppressWarnings("unchecked")
+        IBodySchema<Object> schema = (IBodySchema<Object>) body_schema_registry.get_by_class(value.getClass());
+        if (schema != null) {
+            return put_schema_value(index, schema, value);
+        }
+
+        // Anything else: fall back to json (same as the gson path would do) and count it, so we know
+        // which classes are worth a schema
+        byte[] json = gson.toJson(value).getBytes(StandardCharsets.UTF_8);
+        buffer.put(index, TAG_JSON);
+        int written = 1 + put_length_prefixed_bytes(index + 1, json);
+        body_schema_registry.record_json_fallback(value.getClass(), json.length);
+        return written;
+    }
+
+    /**
+     * Write TAG_SCHEMA value. The payload length isn't known until the schema
+     * is done, so the fields go right after the longest (5 bytes) length
+     * prefix and are moved back if the actual prefix is shorter.
+     */
+    private int put_schema_value(int index, IBodySchema<Object> schema, Object value) {
+        int payload_index = index + 1 + 5;
+        int fields_index = payload_index + put_varint(buffer, payload_index, schema.get_schema_id());
+        schema.write(value, body_writer.wrap(buffer, fields_index));
+        int payload_length = body_writer.get_index() - payload_index;
+
+        buffer.put(index, TAG_SCHEMA);
+        int prefix_length = put_varint(buffer, index + 1, payload_length);
+        if (prefix_length < 5) {
+            for (int i = 0; i < payload_length; i++) {
+                buffer.put(index + 1 + prefix_length + i, buffer.get(payload_index + i));
+            }
+        }
+        body_schema_registry.record_schema_encoded();
+        return 1 + prefix_length + payload_length;
+    }
+
+    /**
+     * Compress the already written body value in place (see
+     * FLAG_BODY_COMPRESSED), unless it doesn't get smaller.
+     *
+     * @return new body length
+     */
+    private int compress_body(int body_index, int body_length, BodyCompression body_compression) {
+        long start_ns = System.nanoTime();
+        byte[] src;
+        int src_offset;
+        if (buffer.hasArray()) {
+            src = buffer.array();
+            src_offset = buffer.arrayOffset() + body_index;
+        } else {
+            if (uncompressed_scratch.length < body_length) {
+                uncompressed_scratch = new byte[body_length];
+            }
+            for (int i = 0; i < body_length; i++) {
+                uncompressed_scratch[i] = buffer.get(body_index + i);
+            }
+            src = uncompressed_scratch;
+            src_offset = 0;
+        }
+
+        // Only worth it if the length prefix + compressed body is smaller than the body
+        int max_compressed_length = body_length - varint_length(body_length) - 1;
+        if (compressed_scratch.length < max_compressed_length) {
+            compressed_scratch = new byte[max_compressed_length];
+        }
+        int compressed_length = max_compressed_length > 0
+                ? compressor.compress(src, src_offset, body_length, compressed_scratch, 0, max_compressed_length)
+                : -1;
+        if (compressed_length < 0) {
+            body_compression.record_incompressible(body_length, System.nanoTime() - start_ns);
+            return body_length;
+        }
+
+        int written = put_varint(buffer, body_index, body_length);
+        put_bytes(buffer, body_index + written, compressed_scratch, 0, compressed_length);
+        buffer.put(offset + FLAGS_OFFSET, (byte) (buffer.get(offset + FLAGS_OFFSET) | FLAG_BODY_COMPRESSED));
+        body_compression.record_compressed(body_length, written + compressed_length, System.nanoTime() - start_ns);
+        return written + compressed_length;
+    }
+
+    private int put_length_prefixed_bytes(int index, byte[] bytes) {
+        int written = put_varint(buffer, index, bytes.length);
+        put_bytes(buffer, index + written, bytes);
+        return written + bytes.length;
+    }
+}
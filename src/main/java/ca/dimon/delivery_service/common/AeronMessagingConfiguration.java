@@ -1,13 +1,19 @@
 package ca.dimon.delivery_service.common;
 
+import ca.dimon.aeronmessaging.client.AeronMessagingClient;
 import ca.dimon.aeronmessaging.client.AeronMessagingClientConfiguration;
 import ca.dimon.aeronmessaging.client.ImmutableAeronMessagingClientConfiguration;
+import ca.dimon.aeronmessaging.common.IMessageHandler;
+import ca.dimon.aeronmessaging.server.AeronMessagingServer;
 import ca.dimon.aeronmessaging.server.AeronMessagingServerConfiguration;
 import ca.dimon.aeronmessaging.server.ImmutableAeronMessagingServerConfiguration;
+import ca.dimon.delivery_service.transport.IRemoteFrameSender;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * <pre>
@@ -44,6 +50,17 @@ public class AeronMessagingConfiguration {
     public AeronMessagingServerConfiguration aeron_server_configuration;
     public AeronMessagingClientConfiguration aeron_client_configuration;
 
+    // Outgoing side of the DeliveryService AeronBridge (see IRemoteFrameSender): creates the frame sender on top
+    // of the started server / client. The aeronmessaging version in use decides how a frame is sent and how the
+    // back pressure or "not connected" is reported, so the sender (which must return false in those cases) comes
+    // from the application. Null: no bridge, the remote traffic is not routed at all.
+    public Function<AeronMessagingServer, IRemoteFrameSender> server_frame_sender_factory;
+    public Function<AeronMessagingClient, IRemoteFrameSender> client_frame_sender_factory;
+
+    // Incoming side on the client: hooks the given handler up to the receive callback of the client (the server
+    // has register_external_message_handler() for that). Null: the client takes no remote traffic.
+    public BiConsumer<AeronMessagingClient, IMessageHandler> client_message_handler_registrar;
+
     /**
      * One of 2 available static factories to crate an AeronSettings instance.
      *
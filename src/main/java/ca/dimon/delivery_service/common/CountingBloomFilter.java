@@ -0,0 +1,151 @@
+package ca.dimon.delivery_service.common;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Counting Bloom filter of Strings: might_contain() never says "no" for an added key, but might
+ * say "yes" for a key which was never added (false positive). Unlike the plain Bloom filter each
+ * position is a counter (not a bit), so the keys can also be removed, and two filters with the
+ * same geometry can be merged by adding their counters (see add_at()).
+ *
+ * Positions of the key are computed from the String.hashCode() (which is the same on every JVM),
+ * so the filters built on the different nodes are compatible if the geometry is the same:
+ *     position(i) = (h1 + i * h2) mod counters_count, i = 0 .. hash_count - 1
+ *
+ * False positive rate is about (1 - e^(-hash_count * keys_count / counters_count)) ^ hash_count,
+ * example: 32768 counters, 4 hashes and 2000 keys give about 0.2%.
+ *
+ * Not thread safe.
+ *
+ * </pre>
+ */
+public class CountingBloomFilter {
+
+    public static final int DEFAULT_COUNTERS_COUNT = 32 * 1024;
+    public static final int DEFAULT_HASH_COUNT = 4;
+
+    private final int[] counters;
+    private final int mask;
+    private final int hash_count;
+    private int non_zero_count = 0;
+
+    public CountingBloomFilter() {
+        this(DEFAULT_COUNTERS_COUNT, DEFAULT_HASH_COUNT);
+    }
+
+    /**
+     * @param counters_count power of 2
+     * @param hash_count positions per key (1 .. 16)
+     */
+    public CountingBloomFilter(int counters_count, int hash_count) {
+        if (counters_count <= 0 || Integer.bitCount(counters_count) != 1 || hash_count < 1 || hash_count > 16) {
+            throw new IllegalArgumentException("CountingBloomFilter: counters_count must be a power of 2 and hash_count within 1 .. 16, got: " + counters_count + ", " + hash_count);
+        }
+        this.counters = new int[counters_count];
+        this.mask = counters_count - 1;
+        this.hash_count = hash_count;
+    }
+
+    public int get_counters_count() {
+        return counters.length;
+    }
+
+    public int get_hash_count() {
+        return hash_count;
+    }
+
+    /**
+     * @return how many counters are above zero (the fill ratio is
+     * non_zero_count / counters_count)
+     */
+    public int get_non_zero_count() {
+        return non_zero_count;
+    }
+
+    /**
+     * Compute the positions of the key.
+     *
+     * @param key
+     * @param positions array of at least hash_count elements
+     */
+    public void get_positions(String key, int[] positions) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < hash_count; i++) {
+            positions[i] = (h1 + i * h2) & mask;
+        }
+    }
+
+    public void add(String key) {
+        int[] positions = new int[hash_count];
+        get_positions(key, positions);
+        for (int i = 0; i < hash_count; i++) {
+            add_at(positions[i], 1);
+        }
+    }
+
+    public void remove(String key) {
+        int[] positions = new int[hash_count];
+        get_positions(key, positions);
+        for (int i = 0; i < hash_count; i++) {
+            add_at(positions[i], -1);
+        }
+    }
+
+    public boolean might_contain(String key) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < hash_count; i++) {
+            if (counters[(h1 + i * h2) & mask] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add delta (negative to remove) to the counter at the given position.
+     * Counters never go below zero.
+     *
+     * @param position
+     * @param delta
+     * @return false if the counter would have gone below zero (it is left at
+     * zero then), which means the adds and removes don't match
+     */
+    public boolean add_at(int position, int delta) {
+        int old_value = counters[position];
+        int new_value = old_value + delta;
+        boolean result = true;
+        if (new_value < 0) {
+            new_value = 0;
+            result = false;
+        }
+        counters[position] = new_value;
+        if (old_value == 0 && new_value != 0) {
+            non_zero_count++;
+        } else if (old_value != 0 && new_value == 0) {
+            non_zero_count--;
+        }
+        return result;
+    }
+
+    public int get_counter(int position) {
+        return counters[position];
+    }
+
+    public void clear() {
+        Arrays.fill(counters, 0);
+        non_zero_count = 0;
+    }
+
+    // Murmur3 32-bit finalizer: spreads the String.hashCode() bits over the whole int
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -27,6 +27,10 @@ public class FunctionResult {
     public static final int FAIL = -1;
     public static final int NOT_INITIALIZED = -123;
 
+    // The receiver inbox is full and its overflow policy didn't take the message (see InboxOverflowPolicy).
+    // Not a bug, but the backpressure signal: the caller still owns the message and may retry later.
+    public static final int INBOX_FULL = -2;
+
 // constructors
     public FunctionResult() {
     }
@@ -130,4 +134,17 @@ public class FunctionResult {
     public FunctionResult set_fail() {
         return set_fail("");
     }
+
+    public FunctionResult set_inbox_full(String error_message) {
+        set(FunctionResult.INBOX_FULL, error_message);
+        return this;
+    }
+
+    /**
+     * Usage example: if (publish_result.is_inbox_full()) ... slow down, retry
+     * later
+     */
+    public boolean is_inbox_full() {
+        return result_code == FunctionResult.INBOX_FULL;
+    }
 }
@@ -0,0 +1,286 @@
+package ca.dimon.delivery_service.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <pre>
+ * Hashed timer wheel (see Varghese &amp; Lauck "Hashed and Hierarchical Timing Wheels").
+ * The wheel is an array of buckets (power of 2), each bucket is a doubly-linked list
+ * of timeouts. Each tick (every tick_duration_ms) the wheel thread looks at a single
+ * bucket and runs the tasks which are due, so:
+ *   - schedule() is O(1)
+ *   - cancel() is O(1)
+ *   - expiration costs O(1) per timeout and runs on the wheel own thread (not on
+ *     the routing threads), no matter how big the subscription tables are.
+ *
+ * Timeouts further than one wheel rotation away sit in their bucket for several
+ * rotations (see Timeout.remaining_rounds).
+ *
+ * Usage example:
+ *     HashedTimerWheel timer_wheel = new HashedTimerWheel("my_timer_wheel", 10, 512);
+ *     timer_wheel.start();
+ *     HashedTimerWheel.Timeout timeout = timer_wheel.schedule(System.currentTimeMillis() + 20000, () -&gt; System.out.println("expired!"));
+ *     ...
+ *     timeout.cancel(); // changed our mind
+ *
+ * </pre>
+ */
+public class HashedTimerWheel extends ManagedObject {
+
+    /**
+     * Handle returned by schedule(), can be used to cancel the task.
+     */
+    public static class Timeout {
+
+        private final HashedTimerWheel timer_wheel;
+        private final Runnable task;
+        private final long deadline_epoch_ms;
+
+        // All the fields below are guarded by the timer_wheel monitor
+        private long remaining_rounds;
+        private Timeout previous;
+        private Timeout next;
+        private int bucket_index = -1; // -1 => not in the wheel (expired or cancelled)
+
+        private Timeout(HashedTimerWheel timer_wheel, long deadline_epoch_ms, Runnable task) {
+            this.timer_wheel = timer_wheel;
+            this.deadline_epoch_ms = deadline_epoch_ms;
+            this.task = task;
+        }
+
+        public long get_deadline_epoch_ms() {
+            return deadline_epoch_ms;
+        }
+
+        /**
+         * Remove the timeout from the wheel (task will not be run).
+         *
+         * @return true if cancelled, false if it was already expired or
+         * cancelled before
+         */
+        public boolean cancel() {
+            return timer_wheel.cancel(this);
+        }
+    }
+
+    private final long tick_duration_ms;
+    private final Timeout[] buckets;
+    private final int buckets_mask;
+    private final long start_epoch_ms;
+
+    // The next tick to process (guarded by "this")
+    private long next_tick = 0;
+    private int pending_timeouts_count = 0;
+
+    // Written under "this" by schedule() / cancel() (any thread), read by anyone
+    private volatile long scheduled_count = 0;
+    private volatile long cancelled_count = 0;
+
+    // Written by the wheel thread only (or whoever calls tick()), read by anyone
+    private volatile long ticks_count = 0;
+    private volatile long expired_count = 0;
+
+    // Number of expired timeouts per tick and time spent per tick (including running the tasks)
+    private final Histogram expired_per_tick_histogram;
+    private final Histogram tick_duration_ns_histogram;
+
+    private Thread thread;
+
+    /**
+     * @param uri
+     * @param tick_duration_ms how often the wheel ticks (timeouts precision)
+     * @param wheel_size number of buckets (rounded up to the next power of 2)
+     */
+    public HashedTimerWheel(String uri, long tick_duration_ms, int wheel_size) {
+        if (tick_duration_ms <= 0) {
+            throw new IllegalArgumentException("HashedTimerWheel: tick_duration_ms must be positive, got: " + tick_duration_ms);
+        }
+        if (wheel_size <= 0 || wheel_size > (1 << 30)) {
+            throw new IllegalArgumentException("HashedTimerWheel: wheel_size must be in 1.." + (1 << 30) + " range, got: " + wheel_size);
+        }
+        int size = Integer.highestOneBit(wheel_size);
+        if (size < wheel_size) {
+            size <<= 1;
+        }
+        this.tick_duration_ms = tick_duration_ms;
+        this.buckets = new Timeout[size];
+        this.buckets_mask = size - 1;
+        this.start_epoch_ms = System.currentTimeMillis();
+        this.expired_per_tick_histogram = new Histogram(uri + "_expired_per_tick");
+        this.tick_duration_ns_histogram = new Histogram(uri + "_tick_duration_ns");
+        this.set_uri(uri);
+    }
+
+    /**
+     * Schedule the task to be run (on the wheel thread) at (or a bit after,
+     * up to tick_duration_ms) the given deadline. Deadlines in the past are
+     * run on the next tick.
+     *
+     * @param deadline_epoch_ms
+     * @param task
+     * @return
+     */
+    public synchronized Timeout schedule(long deadline_epoch_ms, Runnable task) {
+        Timeout timeout = new Timeout(this, deadline_epoch_ms, task);
+
+        // The first tick which happens at (or after) the deadline
+        long deadline_tick = (deadline_epoch_ms - start_epoch_ms + tick_duration_ms - 1) / tick_duration_ms;
+        if (deadline_tick < next_tick) {
+            deadline_tick = next_tick;
+        }
+        timeout.remaining_rounds = (deadline_tick - next_tick) / buckets.length;
+
+        // Push it to the head of the bucket list
+        int bucket_index = (int) (deadline_tick & buckets_mask);
+        Timeout head = buckets[bucket_index];
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        buckets[bucket_index] = timeout;
+        timeout.bucket_index = bucket_index;
+
+        pending_timeouts_count++;
+        scheduled_count++;
+        return timeout;
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.bucket_index < 0) {
+            return false;
+        }
+        unlink(timeout);
+        cancelled_count++;
+        return true;
+    }
+
+    // Caller must hold "this" monitor
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket_index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket_index = -1;
+        pending_timeouts_count--;
+    }
+
+    /**
+     * Process all the ticks which are due by now_epoch_ms (normally exactly
+     * one, but more if the wheel thread was late) and run the expired tasks.
+     * Called by the wheel own thread (see start()), but can also be called
+     * manually (if the wheel thread is not started).
+     *
+     * @param now_epoch_ms
+     * @return number of expired (run) tasks
+     */
+    public int tick(long now_epoch_ms) {
+        long tick_start_ns = System.nanoTime();
+        ArrayList<Timeout> expired_timeouts = null;
+        int processed_ticks_count = 0;
+
+        synchronized (this) {
+            while (start_epoch_ms + next_tick * tick_duration_ms <= now_epoch_ms) {
+                int bucket_index = (int) (next_tick & buckets_mask);
+                Timeout timeout = buckets[bucket_index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remaining_rounds <= 0) {
+                        unlink(timeout);
+                        if (expired_timeouts == null) {
+                            expired_timeouts = new ArrayList<>();
+                        }
+                        expired_timeouts.add(timeout);
+                    } else {
+                        timeout.remaining_rounds--;
+                    }
+                    timeout = next;
+                }
+                next_tick++;
+                processed_ticks_count++;
+            }
+        }
+
+        if (processed_ticks_count == 0) {
+            return 0;
+        }
+
+        // Run the tasks outside of the lock, so they can schedule / cancel other timeouts
+        int expired_timeouts_count = expired_timeouts == null ? 0 : expired_timeouts.size();
+        for (int i = 0; i < expired_timeouts_count; i++) {
+            try {
+                expired_timeouts.get(i).task.run();
+            } catch (Exception ex) {
+                String error_details = "Error: HashedTimerWheel.tick(): task failed with exception: " + ex;
+                System.err.println(error_details);
+                this.increment_stats("errors_count");
+                this.increment_stats("tick_errors_count");
+            }
+        }
+
+        ticks_count += processed_ticks_count;
+        expired_count += expired_timeouts_count;
+        expired_per_tick_histogram.record(expired_timeouts_count);
+        tick_duration_ns_histogram.record(System.nanoTime() - tick_start_ns);
+        return expired_timeouts_count;
+    }
+
+    /**
+     * Start the wheel own (daemon) thread, which calls tick() every
+     * tick_duration_ms.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        Runnable runnable = () -> {
+            while (true) {
+                tick(System.currentTimeMillis());
+                try {
+                    Thread.sleep(tick_duration_ms);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        };
+        thread = new Thread(runnable, get_uri());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long get_tick_duration_ms() {
+        return tick_duration_ms;
+    }
+
+    public int get_wheel_size() {
+        return buckets.length;
+    }
+
+    public synchronized int get_pending_timeouts_count() {
+        return pending_timeouts_count;
+    }
+
+    public Histogram get_expired_per_tick_histogram() {
+        return expired_per_tick_histogram;
+    }
+
+    public Histogram get_tick_duration_ns_histogram() {
+        return tick_duration_ns_histogram;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("ticks_count", ticks_count);
+        stats.put("scheduled_count", scheduled_count);
+        stats.put("cancelled_count", cancelled_count);
+        stats.put("expired_count", expired_count);
+        stats.put("pending_timeouts_count", (long) get_pending_timeouts_count());
+        return super.get_stats();
+    }
+}
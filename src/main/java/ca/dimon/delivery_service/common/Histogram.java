@@ -0,0 +1,128 @@
+package ca.dimon.delivery_service.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <pre>
+ * Tiny thread-safe histogram with power-of-2 buckets: bucket #0 counts zeros,
+ * bucket #i counts values in range [2^(i-1), 2^i - 1]. Good enough to see the shape of
+ * latencies (in ns) or batch sizes without any allocation on record().
+ *
+ * Usage example:
+ *     Histogram route_latency_ns_histogram = new Histogram("route_latency_ns");
+ *     route_latency_ns_histogram.record(System.nanoTime() - start_ns);
+ *     System.out.println(route_latency_ns_histogram.visualize());
+ *
+ * </pre>
+ */
+public class Histogram {
+
+    private static final int BUCKETS_COUNT = 65;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public String get_name() {
+        return name;
+    }
+
+    /**
+     * Record one value (negative values are recorded as zeros).
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current_max = max.get();
+        while (value > current_max && !max.compareAndSet(current_max, value)) {
+            current_max = max.get();
+        }
+    }
+
+    public long get_count() {
+        return count.get();
+    }
+
+    public long get_sum() {
+        return sum.get();
+    }
+
+    public long get_max() {
+        return max.get();
+    }
+
+    public double get_mean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Upper bound of the bucket where given percentile falls into.
+     *
+     * @param percentile (0..100)
+     * @return
+     */
+    public long get_value_at_percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold) {
+                long bucket_upper_bound = i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(bucket_upper_bound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long get_bucket_count(int bucket_index) {
+        return buckets.get(bucket_index);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * One-liner summary, example: "route_latency_ns: count=100 mean=1234.5
+     * p50<=1023 p99<=4095 max=3999"
+     *
+     * @return
+     */
+    public String visualize() {
+        return name
+                + ": count=" + get_count()
+                + " mean=" + String.format("%.1f", get_mean())
+                + " p50<=" + get_value_at_percentile(50)
+                + " p90<=" + get_value_at_percentile(90)
+                + " p99<=" + get_value_at_percentile(99)
+                + " max=" + get_max();
+    }
+
+    @Override
+    public String toString() {
+        return visualize();
+    }
+}
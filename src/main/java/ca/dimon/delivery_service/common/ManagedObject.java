@@ -3,6 +3,9 @@ package ca.dimon.delivery_service.common;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The "Managed Object" is pretty much anything that has unique uri and own
@@ -20,6 +23,11 @@ public class ManagedObject {
     public HashMap<String, Object> config = new HashMap<>();
     public HashMap<String, Long> stats = new HashMap<>();
 
+    // Counters of increment_stats(), copied into "stats" by get_stats(). LongAdder, so the router threads
+    // (see DeliveryService.enable_sharded_routing()) don't contend on a monitor per update. Created on the
+    // first increment, so the objects which never count anything (like most of the messages) don't pay for it.
+    private transient volatile ConcurrentHashMap<String, LongAdder> counters;
+
     // The constructor will generate us the default unique (good enough) uri string
     // so all the classes that didn't bother to generate any "human-readable" somewhat
     // more meaningful uri will be good to go w/o additional efforts.
@@ -31,7 +39,20 @@ public class ManagedObject {
         return config;
     }
 
-    public HashMap<String, Long> get_stats() {
+    /**
+     * Stats snapshot: the increment_stats() counters plus whatever the
+     * subclasses put into "stats" (they override it, put their gauges and
+     * return super.get_stats()).
+     *
+     * @return
+     */
+    public synchronized HashMap<String, Long> get_stats() {
+        ConcurrentHashMap<String, LongAdder> current_counters = counters;
+        if (current_counters != null) {
+            for (Map.Entry<String, LongAdder> entry : current_counters.entrySet()) {
+                stats.put(entry.getKey(), entry.getValue().sum());
+            }
+        }
         return stats;
     }
 
@@ -43,6 +64,11 @@ public class ManagedObject {
      * @return
      */
     public Long get_stats_value(String stats_key) {
+        ConcurrentHashMap<String, LongAdder> current_counters = counters;
+        LongAdder counter = current_counters != null ? current_counters.get(stats_key) : null;
+        if (counter != null) {
+            return counter.sum();
+        }
         return stats.get(stats_key);
     }
 
@@ -59,18 +85,42 @@ public class ManagedObject {
      * Increment stats value by given stats_key, add given value. (note: in case
      * of negative values the stats value will go down of course:)
      *
+     * Lock-free: the same object (like DeliveryService or SubscriptionMatcher)
+     * can be updated by several router threads at once (see
+     * DeliveryService.enable_sharded_routing()).
+     *
      * @param stats_key
      * @param value
      */
     public void increment_stats(String stats_key, long value) {
-        // Check if such stats_key already present in stats hashmap
-        Long stats_value = stats.get(stats_key);
-        if (stats_value == null) {
-            // Not yet exist, create new
-            stats.put(stats_key, value);
-        } else {
-            // Allready exists, simply increment by given value
-            stats.put(stats_key, stats_value + value);
+        ConcurrentHashMap<String, LongAdder> current_counters = counters;
+        if (current_counters == null) {
+            current_counters = create_counters();
+        }
+        LongAdder counter = current_counters.get(stats_key);
+        if (counter == null) {
+            counter = current_counters.computeIfAbsent(stats_key, key -> new LongAdder());
+        }
+        counter.add(value);
+    }
+
+    private synchronized ConcurrentHashMap<String, LongAdder> create_counters() {
+        if (counters == null) {
+            counters = new ConcurrentHashMap<>();
+        }
+        return counters;
+    }
+
+    /**
+     * Forget all the stats (ex: the pooled message is about to be reused). Not
+     * synchronized: the caller must be the only one who has the object.
+     */
+    protected void reset_stats() {
+        if (counters != null) {
+            counters = null;
+        }
+        if (!stats.isEmpty()) {
+            stats.clear();
         }
     }
 
@@ -133,12 +183,15 @@ public class ManagedObject {
      * </pre>
      */
     public String to_json() {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
 //        String pretty_json = gson.toJson(toJsonObject());
-        String pretty_json = gson.toJson(this);
+        get_stats();
+        String pretty_json = PRETTY_GSON.toJson(this);
         return pretty_json;
     }
 
+    // Gson instances are thread-safe and expensive to build, so build it once (not on every to_json() call)
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+
 //    /**
 //     * </pre> toJsonObject() generates JSON representation of the instance of
 //     * this class. Note, this JSON representation is not complete and can not be
@@ -2,23 +2,207 @@ package ca.dimon.delivery_service.message;
 
 import ca.dimon.delivery_service.message.MessageHeaderMimeType;
 import ca.dimon.delivery_service.common.ManagedObject;
-import java.util.HashMap;
+import ca.dimon.delivery_service.router.CreditGate;
+import ca.dimon.delivery_service.transport.Transport;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class Message extends ManagedObject {
 
     // headers: key is a header name (always a String), value - any object (example: String, Long, Interger, etc.)
-    public HashMap<String, Object> headers = new HashMap<>();
+    // The well-known headers ("mime_type", "to", "from", "transaction_id" and the timestamps) are kept in typed
+    // fields (see MessageHeaders), use header_get_*() / header_set_*() on the hot paths.
+    public final MessageHeaders headers = new MessageHeaders();
     public Object body;
     public static Long default_transaction_expiration_ms = 1000L;
 
+    // Optional message pool used by the create_new_*() factories (null => pooling disabled, see MessagePool)
+    private static volatile MessagePool default_pool = null;
+
+    // Reference counting of the pooled messages (see retain() / release()). All the pooling fields are
+    // transient, so gson never serializes them. ref_count is only meaningful while pool != null.
+    private static final AtomicIntegerFieldUpdater<Message> REF_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Message.class, "ref_count");
+    private transient volatile int ref_count = 0;
+    private transient volatile MessagePool pool = null;
+
+    // Leak detection (debug mode only, see MessagePool.set_leak_detection_enabled())
+    transient volatile Throwable borrowed_at = null;
+    transient volatile long borrowed_epoch_ms = 0;
+
+    // Remote transport the message came in through (null for the locally produced messages). Never leaves
+    // this node (transient), used to avoid sending the message back where it came from (see AeronBridge).
+    private transient Transport origin_transport = null;
+
+    // Flow control credit this message carries until it is routed (see router.CreditGate), never leaves this node either
+    private transient CreditGate credit_gate = null;
+
+    // When the message was queued (System.nanoTime(), zero if not sampled), see queue.PriorityLaneQueue wait time histograms
+    private transient long queued_ns = 0;
+
     public Message() {
     }
 
+    /**
+     * Enable pooling for all the create_new_*() factories (or disable it by
+     * passing null). See MessagePool for the pooled message lifecycle.
+     *
+     * @param pool
+     */
+    public static void set_default_pool(MessagePool pool) {
+        default_pool = pool;
+    }
+
+    public static MessagePool get_default_pool() {
+        return default_pool;
+    }
+
+    // Borrow a message from the default pool (if any) or simply allocate a new one
+    private static Message allocate() {
+        MessagePool pool = default_pool;
+        return pool != null ? pool.borrow() : new Message();
+    }
+
+    // Called by the MessagePool right before the message is handed out to the borrower
+    void on_borrowed_from(MessagePool pool) {
+        this.pool = pool;
+        this.ref_count = 1;
+    }
+
+    /**
+     * Add one more reference to the pooled message (DeliveryService calls it
+     * once per subscriber delivery). No-op for non-pooled messages.
+     *
+     * @return this message
+     */
+    public Message retain() {
+        MessagePool pool = this.pool;
+        if (pool != null && REF_COUNT_UPDATER.getAndIncrement(this) <= 0) {
+            pool.report_ref_count_error("retain() called on already released message");
+        }
+        return this;
+    }
+
+    /**
+     * Drop one reference to the pooled message. Once the last reference is
+     * dropped the message is reset and goes back to the pool, so it must not
+     * be touched after release(). No-op for non-pooled messages.
+     *
+     * @return true if the message went back to the pool
+     */
+    public boolean release() {
+        MessagePool pool = this.pool;
+        if (pool == null) {
+            return false;
+        }
+        int remaining_ref_count = REF_COUNT_UPDATER.decrementAndGet(this);
+        if (remaining_ref_count == 0) {
+            pool.recycle(this);
+            return true;
+        }
+        if (remaining_ref_count < 0) {
+            // Released too many times, undo the decrement so the next borrower gets a sane counter
+            REF_COUNT_UPDATER.incrementAndGet(this);
+            pool.report_ref_count_error("release() called on already released message");
+        }
+        return false;
+    }
+
+    public int get_ref_count() {
+        return ref_count;
+    }
+
+    public boolean is_pooled() {
+        return pool != null;
+    }
+
+    /**
+     * <pre>
+     * Make the message headers read-only (see MessageHeaders.freeze()), so the same instance can be
+     * handed to any number of subscribers without the risk of one of them changing what others see.
+     * The body is shared by reference and can't be frozen by us: treat it as read-only too (derive
+     * the message and replace the body instead of changing it in place).
+     *
+     * </pre>
+     *
+     * @return this message
+     */
+    public Message freeze() {
+        headers.freeze();
+        return this;
+    }
+
+    public boolean is_frozen() {
+        return headers.is_frozen();
+    }
+
+    /**
+     * @return remote transport the message came in through, or null if it
+     * was produced on this node
+     */
+    public Transport get_origin_transport() {
+        return origin_transport;
+    }
+
+    public void set_origin_transport(Transport origin_transport) {
+        this.origin_transport = origin_transport;
+    }
+
+    /**
+     * @return flow control credit gate of the producer (see
+     * DeliveryService.enable_flow_control()), or null if the message carries
+     * no credit
+     */
+    public CreditGate get_credit_gate() {
+        return credit_gate;
+    }
+
+    public void set_credit_gate(CreditGate credit_gate) {
+        this.credit_gate = credit_gate;
+    }
+
+    public long get_queued_ns() {
+        return queued_ns;
+    }
+
+    public void set_queued_ns(long queued_ns) {
+        this.queued_ns = queued_ns;
+    }
+
+    /**
+     * Cheap modifiable copy of this (usually frozen) message: headers are
+     * copied copy-on-write (see MessageHeaders.derive()) and the body is
+     * shared by reference. Borrowed from the default pool if pooling is
+     * enabled.
+     *
+     * @return
+     */
+    public Message derive() {
+        Message derived_message = allocate();
+        derived_message.headers.copy_on_write_from(headers);
+        derived_message.body = body;
+        derived_message.mime_type = mime_type;
+        derived_message.origin_transport = origin_transport;
+        return derived_message;
+    }
+
+    // Forget everything about the previous use, so the message can be borrowed again (called by the MessagePool)
+    void reset() {
+        headers.reset();
+        body = null;
+        mime_type = null;
+        origin_transport = null;
+        credit_gate = null;
+        queued_ns = 0;
+        reset_stats();
+        if (!config.isEmpty()) {
+            config.clear();
+        }
+    }
+
     /**
      * Static factory method to create new Message instance for the "request"
      * message. See for details:
@@ -34,24 +218,23 @@ public class Message extends ManagedObject {
     }
 
     public static Message create_new_request(String from, String to, Object body, Long transaction_expiration_epoch_ms) {
-        Message message = new Message();
+        Message message = allocate();
 
-        message.headers.put("mime_type", MessageHeaderMimeType.REQUEST);
-        message.headers.put("from", from);
-        message.headers.put("to", to);
+        long now_epoch_ms = System.currentTimeMillis();
+        message.headers.set_mime_type(MessageHeaderMimeType.REQUEST);
+        message.headers.set_from(from);
+        message.headers.set_to(to);
 
         // Set transaction expiration time to either default value or specified by the caller
         if (transaction_expiration_epoch_ms != null) {
-            message.headers.put("transaction_expiration_epoch_ms", transaction_expiration_epoch_ms);
+            message.headers.set_transaction_expiration_epoch_ms(transaction_expiration_epoch_ms);
         } else {
-            long now_epoch_ms = System.currentTimeMillis();
-            message.headers.put("transaction_expiration_epoch_ms", now_epoch_ms + default_transaction_expiration_ms);
+            message.headers.set_transaction_expiration_epoch_ms(now_epoch_ms + default_transaction_expiration_ms);
         }
 
         message.body = body;
         message.mime_type = "speculant/message";
-        long now_epoch_ms = System.currentTimeMillis();
-        message.headers.put("timestamp_epoch_ms", now_epoch_ms);
+        message.headers.set_timestamp_epoch_ms(now_epoch_ms);
         return message;
     }
 
@@ -65,41 +248,37 @@ public class Message extends ManagedObject {
      * @return
      */
     public static Message create_new_response(String from, Object body, Message original_request) {
-        Message message = new Message();
+        Message message = allocate();
 
-        message.headers.put("mime_type", MessageHeaderMimeType.RESPONSE);
-        message.headers.put("from", from);
+        message.headers.set_mime_type(MessageHeaderMimeType.RESPONSE);
+        message.headers.set_from(from);
 
         // Get some headers (i.e. "to:" and "transaction_id:") from the original request
-        message.headers.put("to", original_request.headers.get("from"));
-        message.headers.put("transaction_id", original_request.headers.get("transaction_id"));
+        message.headers.set_to(original_request.headers.get_from());
+        message.headers.set_transaction_id(original_request.headers.get_transaction_id());
         // todo: add here "tunnel-specific ones as well", like: tunnel_headers can be:
         //    - subscriber_transport_uri
         //    - subscriber_aeron_session_id
         // todo: may be it worth copy "all headrers" from the original request? so they all persis? not for now..
         //
         // Preserve the original request header: subscriber_transport_uri
-        if (original_request.headers.get("subscriber_transport_uri") instanceof String) {
-            String subscriber_transport_uri = original_request.headers.get("subscriber_transport_uri").toString();
+        Object subscriber_transport_uri = original_request.headers.get("subscriber_transport_uri");
+        if (subscriber_transport_uri instanceof String) {
             message.headers.put("subscriber_transport_uri", subscriber_transport_uri);
         }
 
         // Preserve the original request header: subscriber_aeron_session_id
-        if (original_request.headers.get("subscriber_aeron_session_id") instanceof String) {
-            String subscriber_aeron_session_id = original_request.headers.get("subscriber_aeron_session_id").toString();
+        Object subscriber_aeron_session_id = original_request.headers.get("subscriber_aeron_session_id");
+        if (subscriber_aeron_session_id instanceof String) {
             message.headers.put("subscriber_aeron_session_id", subscriber_aeron_session_id);
         }
 
         // Preserve the original request header: "transaction_expiration_epoch_ms"
-        if (original_request.headers.get("transaction_expiration_epoch_ms") instanceof Long) {
-            Long transaction_expiration_epoch_ms = (Long)original_request.headers.get("transaction_expiration_epoch_ms");
-            message.headers.put("transaction_expiration_epoch_ms", transaction_expiration_epoch_ms);
-        }
+        message.headers.set_transaction_expiration_epoch_ms(original_request.headers.get_transaction_expiration_epoch_ms());
         
         message.body = body;
         message.mime_type = "speculant/message";
-        long now_epoch_ms = System.currentTimeMillis();
-        message.headers.put("timestamp_epoch_ms", now_epoch_ms);
+        message.headers.set_timestamp_epoch_ms(System.currentTimeMillis());
         return message;
     }
 
@@ -113,25 +292,45 @@ public class Message extends ManagedObject {
      * @return
      */
     public static Message create_new_publish(String from, String to, Object body) {
-        Message message = new Message();
+        Message message = allocate();
 
-        message.headers.put("mime_type", MessageHeaderMimeType.PUBLISH);
-        message.headers.put("from", from);
-        message.headers.put("to", to);
+        message.headers.set_mime_type(MessageHeaderMimeType.PUBLISH);
+        message.headers.set_from(from);
+        message.headers.set_to(to);
         message.body = body;
         message.mime_type = "speculant/message";
-        long now_epoch_ms = System.currentTimeMillis();
-        message.headers.put("timestamp_epoch_ms", now_epoch_ms);
+        message.headers.set_timestamp_epoch_ms(System.currentTimeMillis());
         return message;
     }
 
     public MessageHeaderMimeType header_get_mime_type() {
-        try {
-            return (MessageHeaderMimeType) headers.get("mime_type");
-        } catch (Exception ex) {
-            this.increment_stats("error");
-            return null;
-        }
+        return headers.get_mime_type();
+    }
+
+    // Typed accessors for the well-known headers (no string key lookup, no boxing).
+    // String getters return null and long getters return zero if the header is not set.
+    public String header_get_from() {
+        return headers.get_from();
+    }
+
+    public String header_get_to() {
+        return headers.get_to();
+    }
+
+    public String header_get_transaction_id() {
+        return headers.get_transaction_id();
+    }
+
+    public long header_get_timestamp_epoch_ms() {
+        return headers.get_timestamp_epoch_ms();
+    }
+
+    public long header_get_transaction_expiration_epoch_ms() {
+        return headers.get_transaction_expiration_epoch_ms();
+    }
+
+    public long header_get_expiration_epoch_ms() {
+        return headers.get_expiration_epoch_ms();
     }
 
     /**
@@ -147,10 +346,9 @@ public class Message extends ManagedObject {
      * @return
      */
     public Long time_till_transaction_expiration_ms() {
-        // Check if header is set to long value
-        if (headers.get("transaction_expiration_epoch_ms") instanceof Long) {
-            // Get the value from the header
-            Long transaction_expiration_epoch_ms = (Long) headers.get("transaction_expiration_epoch_ms");
+        // Check if header is set
+        long transaction_expiration_epoch_ms = headers.get_transaction_expiration_epoch_ms();
+        if (transaction_expiration_epoch_ms != 0) {
             // Get current epoch ms time
             long now_epoch_ms = System.currentTimeMillis();
             // Reuturn number of ms till expiration (positive => not expired, negative => expired)
@@ -0,0 +1,623 @@
+package ca.dimon.delivery_service.message;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * <pre>
+ * Message headers with the well-known ones promoted to typed fields:
+ *
+ *     header name                         field type
+ *     -----------------------------------------------------------------
+ *     "mime_type"                         MessageHeaderMimeType
+ *     "from", "to", "transaction_id"      String
+ *     "timestamp_epoch_ms"                long   (0 means "not set")
+ *     "transaction_expiration_epoch_ms"   long   (0 means "not set")
+ *     "expiration_epoch_ms"               long   (0 means "not set")
+ *
+ * All the other (custom) headers go to the "extension" map, which is only allocated when the first
+ * custom header is added. So creating a regular message costs no map and no boxed values, and
+ * routing reads the headers by the typed getters (get_to(), get_mime_type() etc.) without any
+ * string hashing or casts.
+ *
+ * For compatibility the class is still a HashMap&lt;String, Object&gt; "view": get("to"), put("to", ...),
+ * entrySet() etc. work as before (well-known headers are mapped to/from the typed fields), so all
+ * the existing lambda matchers like:
+ *
+ *     message -&gt; message.headers.get("to").equals("/scanners")
+ *
+ * and gson serialization (which walks entrySet()) keep working. Notes on the view:
+ *   - a well-known header put() with unexpected type (ex: "to" = 123 or "timestamp_epoch_ms" = 1.5e12)
+ *     is kept "as is" in the extension map (typed getters still try to make sense of it)
+ *   - putting null (or zero for the long ones) value is the same as removing the header
+ *   - entrySet(), keySet() and values() return read-only snapshots
+ *   - the HashMap storage inherited from the super class is never used
+ *
+ * Frozen headers and copy-on-write overlays: once freeze() is called (see Message.freeze() and
+ * DeliveryService.set_freeze_on_fan_out()) all the mutators throw UnsupportedOperationException, so
+ * one instance can be safely shared by any number of subscribers. A subscriber who needs a modified
+ * version calls derive(): it copies the typed fields (a few references and longs) and shares the
+ * extension map with the original until either side writes a custom header (then the writer gets its
+ * own copy of the map). So deriving costs one small object, not a deep copy.
+ *
+ * </pre>
+ */
+public class MessageHeaders extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String MIME_TYPE = "mime_type";
+    public static final String FROM = "from";
+    public static final String TO = "to";
+    public static final String TRANSACTION_ID = "transaction_id";
+    public static final String TIMESTAMP_EPOCH_MS = "timestamp_epoch_ms";
+    public static final String TRANSACTION_EXPIRATION_EPOCH_MS = "transaction_expiration_epoch_ms";
+    public static final String EXPIRATION_EPOCH_MS = "expiration_epoch_ms";
+
+    // Typed well-known headers
+    private MessageHeaderMimeType mime_type;
+    private String from;
+    private String to;
+    private String transaction_id;
+    private long timestamp_epoch_ms;
+    private long transaction_expiration_epoch_ms;
+    private long expiration_epoch_ms;
+
+    // All the other headers (allocated on the first use)
+    private HashMap<String, Object> extension_headers;
+
+    // Copy-on-write: extension_headers map is shared with another MessageHeaders instance (see derive()),
+    // so it must be copied before our first write into it.
+    private boolean extension_headers_shared = false;
+
+    // Read-only mode (see freeze())
+    private boolean frozen = false;
+
+    // ----------------------------------- typed accessors -----------------------------------
+    //
+    public MessageHeaderMimeType get_mime_type() {
+        if (mime_type != null || extension_headers == null) {
+            return mime_type;
+        }
+        // Not typed (ex: came as a String), try to make sense of it
+        Object value = extension_headers.get(MIME_TYPE);
+        if (value instanceof String) {
+            for (MessageHeaderMimeType type : MessageHeaderMimeType.values()) {
+                if (type.equalsName((String) value) || type.name().equals(value)) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+
+    public String get_from() {
+        return from != null || extension_headers == null ? from : string_or_null(extension_headers.get(FROM));
+    }
+
+    public String get_to() {
+        return to != null || extension_headers == null ? to : string_or_null(extension_headers.get(TO));
+    }
+
+    public String get_transaction_id() {
+        return transaction_id != null || extension_headers == null ? transaction_id : string_or_null(extension_headers.get(TRANSACTION_ID));
+    }
+
+    public long get_timestamp_epoch_ms() {
+        return timestamp_epoch_ms != 0 || extension_headers == null ? timestamp_epoch_ms : long_or_zero(extension_headers.get(TIMESTAMP_EPOCH_MS));
+    }
+
+    public long get_transaction_expiration_epoch_ms() {
+        return transaction_expiration_epoch_ms != 0 || extension_headers == null ? transaction_expiration_epoch_ms : long_or_zero(extension_headers.get(TRANSACTION_EXPIRATION_EPOCH_MS));
+    }
+
+    public long get_expiration_epoch_ms() {
+        return expiration_epoch_ms != 0 || extension_headers == null ? expiration_epoch_ms : long_or_zero(extension_headers.get(EXPIRATION_EPOCH_MS));
+    }
+
+    public void set_mime_type(MessageHeaderMimeType mime_type) {
+        check_not_frozen();
+        remove_extension_header(MIME_TYPE);
+        this.mime_type = mime_type;
+    }
+
+    public void set_from(String from) {
+        check_not_frozen();
+        remove_extension_header(FROM);
+        this.from = from;
+    }
+
+    public void set_to(String to) {
+        check_not_frozen();
+        remove_extension_header(TO);
+        this.to = to;
+    }
+
+    public void set_transaction_id(String transaction_id) {
+        check_not_frozen();
+        remove_extension_header(TRANSACTION_ID);
+        this.transaction_id = transaction_id;
+    }
+
+    public void set_timestamp_epoch_ms(long timestamp_epoch_ms) {
+        check_not_frozen();
+        remove_extension_header(TIMESTAMP_EPOCH_MS);
+        this.timestamp_epoch_ms = timestamp_epoch_ms;
+    }
+
+    public void set_transaction_expiration_epoch_ms(long transaction_expiration_epoch_ms) {
+        check_not_frozen();
+        remove_extension_header(TRANSACTION_EXPIRATION_EPOCH_MS);
+        this.transaction_expiration_epoch_ms = transaction_expiration_epoch_ms;
+    }
+
+    public void set_expiration_epoch_ms(long expiration_epoch_ms) {
+        check_not_frozen();
+        remove_extension_header(EXPIRATION_EPOCH_MS);
+        this.expiration_epoch_ms = expiration_epoch_ms;
+    }
+
+    /**
+     * @return custom (not well-known) headers (read-only) or null if there
+     * are none
+     */
+    public Map<String, Object> get_extension_headers() {
+        return extension_headers != null ? Collections.unmodifiableMap(extension_headers) : null;
+    }
+
+    // ----------------------------------- freeze / derive -----------------------------------
+    //
+    /**
+     * Make the headers read-only: from now on all the mutators throw
+     * UnsupportedOperationException. There is no way back (use derive() to
+     * get a modifiable copy).
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean is_frozen() {
+        return frozen;
+    }
+
+    /**
+     * Cheap modifiable copy of these headers: typed fields are copied, the
+     * custom headers map is shared copy-on-write (see the class comment).
+     *
+     * @return
+     */
+    public MessageHeaders derive() {
+        MessageHeaders derived_headers = new MessageHeaders();
+        derived_headers.copy_on_write_from(this);
+        return derived_headers;
+    }
+
+    /**
+     * Overwrite these (modifiable) headers with the given ones, sharing the
+     * custom headers map copy-on-write.
+     *
+     * @param source
+     */
+    void copy_on_write_from(MessageHeaders source) {
+        check_not_frozen();
+        mime_type = source.mime_type;
+        from = source.from;
+        to = source.to;
+        transaction_id = source.transaction_id;
+        timestamp_epoch_ms = source.timestamp_epoch_ms;
+        transaction_expiration_epoch_ms = source.transaction_expiration_epoch_ms;
+        expiration_epoch_ms = source.expiration_epoch_ms;
+        extension_headers = source.extension_headers;
+        if (extension_headers != null) {
+            // Both sides must copy before writing (the source might be not frozen)
+            extension_headers_shared = true;
+            source.extension_headers_shared = true;
+        }
+    }
+
+    /**
+     * Forget all the headers and un-freeze (used when the pooled message is
+     * recycled, see MessagePool).
+     */
+    void reset() {
+        frozen = false;
+        clear();
+    }
+
+    private void check_not_frozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("MessageHeaders are frozen (read-only), use derive() to get a modifiable copy");
+        }
+    }
+
+    // Get extension_headers map we can write into (allocate it or make our own copy if it is shared)
+    private HashMap<String, Object> writable_extension_headers() {
+        if (extension_headers == null) {
+            extension_headers = new HashMap<>();
+            extension_headers_shared = false;
+        } else if (extension_headers_shared) {
+            extension_headers = new HashMap<>(extension_headers);
+            extension_headers_shared = false;
+        }
+        return extension_headers;
+    }
+
+    private static String string_or_null(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static long long_or_zero(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private void remove_extension_header(String key) {
+        if (extension_headers != null && extension_headers.containsKey(key)) {
+            writable_extension_headers().remove(key);
+        }
+    }
+
+    // ----------------------------------- HashMap "view" -----------------------------------
+    //
+    // Returned by get_typed() for the custom (not well-known) headers
+    private static final Object NOT_WELL_KNOWN = new Object();
+
+    /**
+     * Get the well-known header value (boxed) or null if it is not set
+     * (typed). Return NOT_WELL_KNOWN for the custom headers.
+     */
+    private Object get_typed(Object key) {
+        if (!(key instanceof String)) {
+            return NOT_WELL_KNOWN;
+        }
+        switch ((String) key) {
+            case MIME_TYPE:
+                return mime_type;
+            case FROM:
+                return from;
+            case TO:
+                return to;
+            case TRANSACTION_ID:
+                return transaction_id;
+            case TIMESTAMP_EPOCH_MS:
+                return timestamp_epoch_ms != 0 ? (Object) timestamp_epoch_ms : null;
+            case TRANSACTION_EXPIRATION_EPOCH_MS:
+                return transaction_expiration_epoch_ms != 0 ? (Object) transaction_expiration_epoch_ms : null;
+            case EXPIRATION_EPOCH_MS:
+                return expiration_epoch_ms != 0 ? (Object) expiration_epoch_ms : null;
+            default:
+                return NOT_WELL_KNOWN;
+        }
+    }
+
+    /**
+     * Try to store the well-known header in its typed field.
+     *
+     * @return true if stored, false if it is not a well-known header or the
+     * value type doesn't fit the field (then it goes to the extension map)
+     */
+    private boolean put_typed(String key, Object value) {
+        switch (key) {
+            case MIME_TYPE:
+                if (value == null || value instanceof MessageHeaderMimeType) {
+                    set_mime_type((MessageHeaderMimeType) value);
+                    return true;
+                }
+                break;
+            case FROM:
+                if (value == null || value instanceof String) {
+                    set_from((String) value);
+                    return true;
+                }
+                break;
+            case TO:
+                if (value == null || value instanceof String) {
+                    set_to((String) value);
+                    return true;
+                }
+                break;
+            case TRANSACTION_ID:
+                if (value == null || value instanceof String) {
+                    set_transaction_id((String) value);
+                    return true;
+                }
+                break;
+            case TIMESTAMP_EPOCH_MS:
+                if (value == null || value instanceof Long) {
+                    set_timestamp_epoch_ms(value == null ? 0 : (Long) value);
+                    return true;
+                }
+                timestamp_epoch_ms = 0;
+                break;
+            case TRANSACTION_EXPIRATION_EPOCH_MS:
+                if (value == null || value instanceof Long) {
+                    set_transaction_expiration_epoch_ms(value == null ? 0 : (Long) value);
+                    return true;
+                }
+                transaction_expiration_epoch_ms = 0;
+                break;
+            case EXPIRATION_EPOCH_MS:
+                if (value == null || value instanceof Long) {
+                    set_expiration_epoch_ms(value == null ? 0 : (Long) value);
+                    return true;
+                }
+                expiration_epoch_ms = 0;
+                break;
+            default:
+                return false;
+        }
+        // Well-known header of unexpected type: clear the typed field (the value goes to the extension map)
+        switch (key) {
+            case MIME_TYPE:
+                mime_type = null;
+                break;
+            case FROM:
+                from = null;
+                break;
+            case TO:
+                to = null;
+                break;
+            case TRANSACTION_ID:
+                transaction_id = null;
+                break;
+            default:
+        }
+        return false;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = get_typed(key);
+        if (value != null && value != NOT_WELL_KNOWN) {
+            return value;
+        }
+        return extension_headers != null ? extension_headers.get(key) : null;
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object default_value) {
+        Object value = get(key);
+        return value != null ? value : default_value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null || (extension_headers != null && extension_headers.containsKey(key));
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        check_not_frozen();
+        Object previous_value = get(key);
+        if (!put_typed(key, value)) {
+            writable_extension_headers().put(key, value);
+        }
+        return previous_value;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> headers) {
+        for (Map.Entry<? extends String, ? extends Object> entry : headers.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value) {
+        Object previous_value = get(key);
+        if (previous_value == null) {
+            put(key, value);
+        }
+        return previous_value;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        check_not_frozen();
+        Object previous_value = get(key);
+        if (get_typed(key) != NOT_WELL_KNOWN) {
+            put_typed((String) key, null);
+        }
+        if (extension_headers != null && extension_headers.containsKey(key)) {
+            writable_extension_headers().remove(key);
+        }
+        return previous_value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (containsKey(key) && Objects.equals(get(key), value)) {
+            remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object replace(String key, Object value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(String key, Object old_value, Object new_value) {
+        if (containsKey(key) && Objects.equals(get(key), old_value)) {
+            put(key, new_value);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object computeIfAbsent(String key, Function<? super String, ? extends Object> mapping_function) {
+        Object value = get(key);
+        if (value == null) {
+            value = mapping_function.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ? extends Object> remapping_function) {
+        Object value = get(key);
+        if (value == null) {
+            return null;
+        }
+        Object new_value = remapping_function.apply(key, value);
+        if (new_value == null) {
+            remove(key);
+        } else {
+            put(key, new_value);
+        }
+        return new_value;
+    }
+
+    @Override
+    public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> remapping_function) {
+        Object new_value = remapping_function.apply(key, get(key));
+        if (new_value == null) {
+            remove(key);
+        } else {
+            put(key, new_value);
+        }
+        return new_value;
+    }
+
+    @Override
+    public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ? extends Object> remapping_function) {
+        Object old_value = get(key);
+        Object new_value = old_value == null ? value : remapping_function.apply(old_value, value);
+        if (new_value == null) {
+            remove(key);
+        } else {
+            put(key, new_value);
+        }
+        return new_value;
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+        for (Map.Entry<String, Object> entry : entrySet()) {
+            put(entry.getKey(), function.apply(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    @Override
+    public void clear() {
+        check_not_frozen();
+        mime_type = null;
+        from = null;
+        to = null;
+        transaction_id = null;
+        timestamp_epoch_ms = 0;
+        transaction_expiration_epoch_ms = 0;
+        expiration_epoch_ms = 0;
+        extension_headers = null;
+        extension_headers_shared = false;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        size += mime_type != null ? 1 : 0;
+        size += from != null ? 1 : 0;
+        size += to != null ? 1 : 0;
+        size += transaction_id != null ? 1 : 0;
+        size += timestamp_epoch_ms != 0 ? 1 : 0;
+        size += transaction_expiration_epoch_ms != 0 ? 1 : 0;
+        size += expiration_epoch_ms != 0 ? 1 : 0;
+        return size + (extension_headers != null ? extension_headers.size() : 0);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (Map.Entry<String, Object> entry : entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Read-only snapshot of all the headers (well-known ones first).
+     *
+     * @return
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        LinkedHashMap<String, Object> snapshot = new LinkedHashMap<>();
+        String[] well_known_keys = {MIME_TYPE, FROM, TO, TRANSACTION_ID, TIMESTAMP_EPOCH_MS, TRANSACTION_EXPIRATION_EPOCH_MS, EXPIRATION_EPOCH_MS};
+        for (String key : well_known_keys) {
+            Object value = get_typed(key);
+            if (value != null) {
+                snapshot.put(key, value);
+            }
+        }
+        if (extension_headers != null) {
+            snapshot.putAll(extension_headers);
+        }
+        ArrayList<Map.Entry<String, Object>> entries = new ArrayList<>(snapshot.size());
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            entries.add(new SimpleImmutableEntry<>(entry));
+        }
+        return Collections.unmodifiableSet(new LinkedHashSet<>(entries));
+    }
+
+    @Override
+    public Set<String> keySet() {
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (Map.Entry<String, Object> entry : entrySet()) {
+            keys.add(entry.getKey());
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    public Collection<Object> values() {
+        ArrayList<Object> values = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : entrySet()) {
+            values.add(entry.getValue());
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Deep (modifiable, not frozen) copy of the headers. Prefer derive(),
+     * which doesn't copy the custom headers map until it is modified.
+     *
+     * @return
+     */
+    @Override
+    public Object clone() {
+        MessageHeaders copy = new MessageHeaders();
+        copy.mime_type = mime_type;
+        copy.from = from;
+        copy.to = to;
+        copy.transaction_id = transaction_id;
+        copy.timestamp_epoch_ms = timestamp_epoch_ms;
+        copy.transaction_expiration_epoch_ms = transaction_expiration_epoch_ms;
+        copy.expiration_epoch_ms = expiration_epoch_ms;
+        copy.extension_headers = extension_headers != null ? new HashMap<>(extension_headers) : null;
+        return copy;
+    }
+}
@@ -0,0 +1,338 @@
+package ca.dimon.delivery_service.message;
+
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * Opt-in pool of Message instances (see Message.set_default_pool()), so the hot publishing path
+ * doesn't allocate a new Message (with its headers, stats and config maps) per published message.
+ *
+ * Pooled message lifecycle (reference counted):
+ *   - Message.create_new_*() factories borrow() a message from the pool (ref_count = 1, owned by the producer)
+ *   - the producer hands its reference over to the delivery service with send_*() / enqueue()
+ *   - DeliveryService.route() retains the message once per subscriber delivery and releases the producer
+ *     reference once routing is done (so undeliverable / expired messages go back to the pool right away)
+ *   - each consumer calls message.release() once it is done with the message (after processing it)
+ *   - once the ref_count drops to zero the message is reset and goes back to the pool
+ *
+ * Note: calling release() on a non-pooled message (created by "new Message()", by gson etc.) is a no-op,
+ * so consumers can release() every message they process, no matter if pooling is enabled or not.
+ *
+ * The pool is striped: each thread borrows from / releases to "its own" stripe (picked by the thread id),
+ * so producers and consumers running on different threads rarely contend on the same monitor. If the own
+ * stripe is empty we steal from the other stripes before allocating a new message (consumers usually
+ * release on different threads than the producers borrow on).
+ *
+ * Leak detection (debug mode, see set_leak_detection_enabled()): every borrowed message remembers where
+ * (stack trace) and when it was borrowed, and the pool keeps all the outstanding messages in a set, so
+ * find_leaks(older_than_ms) / visualize_leaks(older_than_ms) can show us who forgot to release() them.
+ * It is expensive (one stack trace per borrow), so don't enable it in production.
+ *
+ * Usage example:
+ *     Message.set_default_pool(new MessagePool("message_pool", 8, 1024));
+ *     Message message = Message.create_new_publish(from, "/scanners", body); // borrowed from the pool
+ *     ...
+ *     // consumer side:
+ *     while ((incoming_message = incoming_messages_queue.poll()) != null) {
+ *         ... process incoming_message
+ *         incoming_message.release();
+ *     }
+ *
+ * </pre>
+ */
+public class MessagePool extends ManagedObject {
+
+    public static final int DEFAULT_STRIPES_COUNT = 8;
+    public static final int DEFAULT_STRIPE_CAPACITY = 1024;
+
+    /**
+     * One stripe: a bounded stack of free messages guarded by its own monitor.
+     */
+    private static class Stripe {
+
+        private final Message[] free_messages;
+        private int size = 0;
+
+        private Stripe(int capacity) {
+            free_messages = new Message[capacity];
+        }
+
+        private synchronized Message pop() {
+            if (size == 0) {
+                return null;
+            }
+            Message message = free_messages[--size];
+            free_messages[size] = null;
+            return message;
+        }
+
+        private synchronized boolean push(Message message) {
+            if (size == free_messages.length) {
+                return false;
+            }
+            free_messages[size++] = message;
+            return true;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int stripes_mask;
+    private final int stripe_capacity;
+
+    // Debug mode: remember where each message was borrowed and keep all the outstanding messages
+    private volatile boolean leak_detection_enabled = false;
+    private final Set<Message> outstanding_messages = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // Stats (LongAdder, since they are updated by all the producer / consumer threads)
+    private final LongAdder borrowed_count = new LongAdder();
+    private final LongAdder pool_hit_count = new LongAdder();
+    private final LongAdder pool_miss_count = new LongAdder();
+    private final LongAdder recycled_count = new LongAdder();
+    private final LongAdder discarded_count = new LongAdder();
+    private final AtomicLong outstanding_count = new AtomicLong();
+
+    public MessagePool(String uri) {
+        this(uri, DEFAULT_STRIPES_COUNT, DEFAULT_STRIPE_CAPACITY);
+    }
+
+    /**
+     * @param uri
+     * @param stripes_count (rounded up to the next power of 2)
+     * @param stripe_capacity max number of free messages kept by each stripe
+     * (the rest are left to the GC)
+     */
+    public MessagePool(String uri, int stripes_count, int stripe_capacity) {
+        if (stripes_count <= 0 || stripes_count > (1 << 16)) {
+            throw new IllegalArgumentException("MessagePool: stripes_count must be in 1.." + (1 << 16) + " range, got: " + stripes_count);
+        }
+        if (stripe_capacity <= 0) {
+            throw new IllegalArgumentException("MessagePool: stripe_capacity must be positive, got: " + stripe_capacity);
+        }
+        int size = Integer.highestOneBit(stripes_count);
+        if (size < stripes_count) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(stripe_capacity);
+        }
+        this.stripes_mask = size - 1;
+        this.stripe_capacity = stripe_capacity;
+        this.set_uri(uri);
+    }
+
+    private int own_stripe_index() {
+        long thread_id = Thread.currentThread().getId();
+        return (int) (thread_id ^ (thread_id >>> 16)) & stripes_mask;
+    }
+
+    /**
+     * Borrow a clean message (no headers, no body) from the pool, or allocate
+     * a new one if the pool is empty. The returned message has ref_count = 1
+     * (owned by the caller).
+     *
+     * @return
+     */
+    public Message borrow() {
+        int own_stripe_index = own_stripe_index();
+        Message message = stripes[own_stripe_index].pop();
+
+        // Own stripe is empty, try to steal from the others
+        for (int i = 1; message == null && i < stripes.length; i++) {
+            message = stripes[(own_stripe_index + i) & stripes_mask].pop();
+        }
+
+        if (message != null) {
+            pool_hit_count.increment();
+        } else {
+            pool_miss_count.increment();
+            message = new Message();
+        }
+
+        message.on_borrowed_from(this);
+        borrowed_count.increment();
+        outstanding_count.incrementAndGet();
+
+        if (leak_detection_enabled) {
+            message.borrowed_at = new Throwable("Message borrowed from the " + get_uri() + " pool here");
+            message.borrowed_epoch_ms = System.currentTimeMillis();
+            outstanding_messages.add(message);
+        }
+        return message;
+    }
+
+    /**
+     * Called by Message.release() once the last reference is released:
+     * reset the message and put it back into the pool (or leave it to the GC
+     * if the pool is full).
+     *
+     * @param message
+     */
+    void recycle(Message message) {
+        outstanding_count.decrementAndGet();
+        if (message.borrowed_at != null) {
+            outstanding_messages.remove(message);
+            message.borrowed_at = null;
+            message.borrowed_epoch_ms = 0;
+        }
+
+        message.reset();
+        if (stripes[own_stripe_index()].push(message)) {
+            recycled_count.increment();
+        } else {
+            discarded_count.increment();
+        }
+    }
+
+    /**
+     * Report misuse of the reference counting (like retain() after the last
+     * release(), or release() called too many times).
+     *
+     * @param error_details
+     */
+    void report_ref_count_error(String error_details) {
+        System.err.println("Error: MessagePool " + get_uri() + ": " + error_details);
+        this.increment_stats("errors_count");
+        this.increment_stats("ref_count_errors_count");
+    }
+
+    /**
+     * Enable / disable leak detection (debug mode). Only the messages
+     * borrowed after the call are tracked.
+     *
+     * @param leak_detection_enabled
+     */
+    public void set_leak_detection_enabled(boolean leak_detection_enabled) {
+        this.leak_detection_enabled = leak_detection_enabled;
+        if (!leak_detection_enabled) {
+            outstanding_messages.clear();
+        }
+    }
+
+    public boolean is_leak_detection_enabled() {
+        return leak_detection_enabled;
+    }
+
+    /**
+     * Find outstanding (borrowed and not yet released) messages which were
+     * borrowed more than older_than_ms ago. Only works in the leak detection
+     * mode (returns an empty list otherwise).
+     *
+     * @param older_than_ms
+     * @return
+     */
+    public List<Message> find_leaks(long older_than_ms) {
+        long borrowed_before_epoch_ms = System.currentTimeMillis() - older_than_ms;
+        ArrayList<Message> leaks = new ArrayList<>();
+        for (Message message : outstanding_messages) {
+            long borrowed_epoch_ms = message.borrowed_epoch_ms;
+            if (borrowed_epoch_ms != 0 && borrowed_epoch_ms < borrowed_before_epoch_ms) {
+                leaks.add(message);
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Visualize suspected leaks (see find_leaks()) grouped by the place where
+     * they were borrowed.
+     *
+     * @param older_than_ms
+     * @return
+     */
+    public String visualize_leaks(long older_than_ms) {
+        // Group by borrow site (first few stack frames, skipping MessagePool / Message frames)
+        LinkedHashMap<String, Integer> leaks_by_site = new LinkedHashMap<>();
+        for (Message message : find_leaks(older_than_ms)) {
+            Throwable borrowed_at = message.borrowed_at;
+            if (borrowed_at == null) {
+                continue; // released meanwhile
+            }
+            StringBuilder site = new StringBuilder();
+            int frames_count = 0;
+            for (StackTraceElement frame : borrowed_at.getStackTrace()) {
+                if (frame.getClassName().equals(MessagePool.class.getName()) || frame.getClassName().equals(Message.class.getName())) {
+                    continue;
+                }
+                site.append("        at ").append(frame).append("\n");
+                if (++frames_count == 5) {
+                    break;
+                }
+            }
+            leaks_by_site.merge(site.toString(), 1, Integer::sum);
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ " + get_uri() + " leaks ]-------------------------------------------\n");
+        if (!leak_detection_enabled) {
+            result.append("leak detection is disabled (see set_leak_detection_enabled())\n");
+        }
+        for (Map.Entry<String, Integer> entry : leaks_by_site.entrySet()) {
+            result.append(entry.getValue()).append(" message(s) not released for more than ").append(older_than_ms).append(" ms, borrowed:\n");
+            result.append(entry.getKey());
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+
+    public int get_stripes_count() {
+        return stripes.length;
+    }
+
+    public int get_stripe_capacity() {
+        return stripe_capacity;
+    }
+
+    /**
+     * @return number of free messages currently sitting in the pool
+     */
+    public int get_free_count() {
+        int free_count = 0;
+        for (Stripe stripe : stripes) {
+            free_count += stripe.size();
+        }
+        return free_count;
+    }
+
+    /**
+     * @return number of borrowed messages not yet released back to the pool
+     */
+    public long get_outstanding_count() {
+        return outstanding_count.get();
+    }
+
+    /**
+     * @return share of borrow() calls served from the pool (0..1)
+     */
+    public double get_hit_rate() {
+        long borrowed = borrowed_count.sum();
+        return borrowed == 0 ? 0.0 : (double) pool_hit_count.sum() / borrowed;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("borrowed_count", borrowed_count.sum());
+        stats.put("pool_hit_count", pool_hit_count.sum());
+        stats.put("pool_miss_count", pool_miss_count.sum());
+        stats.put("hit_rate_percent", Math.round(get_hit_rate() * 100));
+        stats.put("recycled_count", recycled_count.sum());
+        stats.put("discarded_count", discarded_count.sum());
+        stats.put("outstanding_count", outstanding_count.get());
+        stats.put("free_count", (long) get_free_count());
+        return super.get_stats();
+    }
+}
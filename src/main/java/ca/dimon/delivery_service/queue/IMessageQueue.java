@@ -0,0 +1,105 @@
+package ca.dimon.delivery_service.queue;
+
+import ca.dimon.delivery_service.message.Message;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * The IMessageQueue is a small queue interface for all the "inboxes" (see
+ * Transportable.incoming_messages_queue). Any thread can offer() messages, but only
+ * the owner of the inbox (one consumer thread) is allowed to poll() / drain() them.
+ * The only exception is evict_oldest(), which the producers use to make room when the
+ * inbox overflow policy is DROP_OLDEST (see InboxOverflowPolicy).
+ *
+ * Usage example (consumer side):
+ *
+ *     Message incoming_message;
+ *     while ((incoming_message = incoming_messages_queue.poll()) != null) {
+ *         ... process incoming_message
+ *     }
+ *
+ * or simply:
+ *
+ *     incoming_messages_queue.drain(incoming_message -> process(incoming_message));
+ *
+ * </pre>
+ */
+public interface IMessageQueue {
+
+    /**
+     * Add message to the tail of the queue. Safe to be called from many
+     * threads at the same time.
+     *
+     * @param message
+     * @return false if the queue is full (message was not added)
+     */
+    boolean offer(Message message);
+
+    /**
+     * Bulk version of offer(): add messages[from_index..] to the tail of the
+     * queue (in the given order). Implementations try to claim room for all of
+     * them at once. Safe to be called from many threads at the same time.
+     *
+     * @param messages
+     * @param from_index
+     * @return number of messages added (starting from messages[from_index]),
+     * less than requested if the queue got full
+     */
+    int offer_all(List<Message> messages, int from_index);
+
+    /**
+     * Take message from the head of the queue. Only the consumer thread may
+     * call it.
+     *
+     * @return message or null if the queue is empty
+     */
+    Message poll();
+
+    /**
+     * Take the oldest message out of the queue to make room for the new one.
+     * Unlike poll(), safe to be called by any thread (at the same time as
+     * the consumer polls).
+     *
+     * @return evicted message (the caller owns it now) or null if the queue
+     * is empty
+     */
+    Message evict_oldest();
+
+    /**
+     * Poll up to "limit" messages and pass them one by one to the consumer.
+     *
+     * @param consumer
+     * @param limit
+     * @return number of drained messages
+     */
+    int drain(Consumer<Message> consumer, int limit);
+
+    /**
+     * Poll all the messages currently in the queue and pass them one by one to
+     * the consumer.
+     *
+     * @param consumer
+     * @return number of drained messages
+     */
+    int drain(Consumer<Message> consumer);
+
+    /**
+     * Poll up to "limit" messages and add them to the given list.
+     *
+     * @param target
+     * @param limit
+     * @return number of drained messages
+     */
+    int drain_to(List<Message> target, int limit);
+
+    /**
+     * Approximate number of messages in the queue (exact if no other thread
+     * touches the queue at the moment).
+     */
+    int size();
+
+    boolean is_empty();
+
+    int capacity();
+}
@@ -0,0 +1,236 @@
+package ca.dimon.delivery_service.queue;
+
+import ca.dimon.delivery_service.message.Message;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * Bounded lock-free multi-producer / single-consumer ring buffer of messages.
+ * This is the Dmitry Vyukov's bounded queue, where each slot has its own "sequence":
+ *   - sequence == position          -> slot is free and ready to be written at "position"
+ *   - sequence == position + 1      -> slot is written (published) and ready to be read
+ *   - sequence == position + capacity -> slot was read and is free for the next lap
+ *
+ * Producers claim a position by one CAS on producer_position, write the message and
+ * publish it by (ordered) writing the slot sequence. The consumer claims the next slot by
+ * one CAS on consumer_position: it is uncontended (so cheap) unless some producer evicts
+ * the oldest message at the same time (see evict_oldest(), the DROP_OLDEST overflow policy).
+ * No locks, no allocation per message, O(1) poll (instead of O(n) "remove(0)" of the
+ * synchronizedList we used before).
+ *
+ * See: http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ *
+ * </pre>
+ */
+public class MpscRingBuffer implements IMessageQueue {
+
+    private final int capacity;
+    private final int mask;
+    private final Message[] buffer;
+    private final AtomicLongArray sequences;
+
+    // Next position to be claimed by producers
+    private final AtomicLong producer_position = new AtomicLong(0);
+
+    // Next position to be read by the consumer (or evicted by the producers, see evict_oldest())
+    private final AtomicLong consumer_position = new AtomicLong(0);
+
+    /**
+     * @param requested_capacity will be rounded up to the next power of 2
+     */
+    public MpscRingBuffer(int requested_capacity) {
+        if (requested_capacity < 2) {
+            requested_capacity = 2;
+        }
+        this.capacity = Integer.highestOneBit(requested_capacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.buffer = new Message[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        long position = producer_position.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // Slot is free, try to claim it
+                if (producer_position.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = producer_position.get();
+            } else if (difference < 0) {
+                // Slot still holds the message from the previous lap - queue is full
+                return false;
+            } else {
+                // Other producer already claimed this position, re-read
+                position = producer_position.get();
+            }
+        }
+
+        // Write the message and publish it (lazySet gives us the "store-store" ordering we need)
+        buffer[index] = message;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Claim room for all the messages with a single CAS. Every slot of the
+     * range is checked before the CAS: the slots are not freed strictly in
+     * order (the consumer and evict_oldest() callers claim them by CAS, and a
+     * later one may finish reading before an earlier one), so the free last
+     * slot doesn't mean the slots before it are free too. Once the CAS moves
+     * producer_position past the range, no other producer can touch those
+     * checked (free) slots. If there is not enough room for the whole list,
+     * fall back to one-by-one offer() (so we add as many as we can).
+     */
+    @Override
+    public int offer_all(List<Message> messages, int from_index) {
+        int count = messages.size() - from_index;
+        if (count <= 0) {
+            return 0;
+        }
+        if (count > capacity) {
+            return offer_one_by_one(messages, from_index, count);
+        }
+
+        long position = producer_position.get();
+        while (true) {
+            long difference = range_difference(position, count);
+            if (difference == 0) {
+                if (producer_position.compareAndSet(position, position + count)) {
+                    break;
+                }
+                position = producer_position.get();
+            } else if (difference < 0) {
+                // Not enough room for all of them
+                return offer_one_by_one(messages, from_index, count);
+            } else {
+                position = producer_position.get();
+            }
+        }
+
+        // Write and publish all the claimed slots (in order)
+        for (int i = 0; i < count; i++) {
+            int index = (int) ((position + i) & mask);
+            buffer[index] = messages.get(from_index + i);
+            sequences.lazySet(index, position + i + 1);
+        }
+        return count;
+    }
+
+    /**
+     * @return 0 if all the slots of [position, position + count) are free for
+     * this lap, negative if some slot still holds (or is being read from) the
+     * previous lap, positive if some other producer already claimed a slot of
+     * the range
+     */
+    private long range_difference(long position, int count) {
+        for (int i = 0; i < count; i++) {
+            long difference = sequences.get((int) ((position + i) & mask)) - (position + i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    private int offer_one_by_one(List<Message> messages, int from_index, int count) {
+        int added_count = 0;
+        while (added_count < count && offer(messages.get(from_index + added_count))) {
+            added_count++;
+        }
+        return added_count;
+    }
+
+    @Override
+    public Message poll() {
+        long position = consumer_position.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                // Message is published, claim it (races only with evict_oldest())
+                if (consumer_position.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = consumer_position.get();
+            } else if (difference < 0) {
+                // Either empty or the producer claimed the slot, but didn't publish the message yet.
+                return null;
+            } else {
+                // Somebody else took this one already, re-read
+                position = consumer_position.get();
+            }
+        }
+        Message message = buffer[index];
+        buffer[index] = null;
+
+        // Free the slot for the next lap
+        sequences.lazySet(index, position + capacity);
+        return message;
+    }
+
+    @Override
+    public Message evict_oldest() {
+        return poll();
+    }
+
+    @Override
+    public int drain(Consumer<Message> consumer, int limit) {
+        int count = 0;
+        Message message;
+        while (count < limit && (message = poll()) != null) {
+            consumer.accept(message);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int drain(Consumer<Message> consumer) {
+        return drain(consumer, capacity);
+    }
+
+    @Override
+    public int drain_to(List<Message> target, int limit) {
+        int count = 0;
+        Message message;
+        while (count < limit && (message = poll()) != null) {
+            target.add(message);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size() {
+        // Read consumer position first, so we never return negative number
+        long consumer = consumer_position.get();
+        long producer = producer_position.get();
+        long size = producer - consumer;
+        if (size < 0) {
+            return 0;
+        }
+        return size > capacity ? capacity : (int) size;
+    }
+
+    @Override
+    public boolean is_empty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
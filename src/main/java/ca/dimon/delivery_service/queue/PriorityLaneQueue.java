@@ -0,0 +1,307 @@
+package ca.dimon.delivery_service.queue;
+
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.message.MessageHeaderMimeType;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <pre>
+ * Message queue with priority lanes (one bounded MpscRingBuffer each), drained by the weighted fair
+ * (deficit round robin) scheduler: the consumer takes up to weights[lane] messages from each
+ * non-empty lane in turn. So a burst in one lane can't starve the others, and while the high lane
+ * has messages, each of them waits behind at most (sum of the other lanes weights) messages of the
+ * other lanes per round, plus the ones ahead of it in its own lane.
+ *
+ * Lane of the message:
+ *   - "priority" header (PRIORITY_HEADER): "high" / "normal" / "low" or the lane number (0, 1, 2)
+ *   - otherwise by mime_type: responses go to the high lane (somebody is waiting for them),
+ *     publishes and requests to the normal one
+ * Example (market data burst, which should not delay anything else):
+ *     message.headers.put(PriorityLaneQueue.PRIORITY_HEADER, "low");
+ *
+ * With the lanes disabled (set_lanes_enabled(false)) everything goes to the normal lane, which is
+ * a plain FIFO queue.
+ *
+ * Exported per lane: queue depth histogram (sampled when the scheduler starts taking messages from
+ * the lane) and wait time histogram (offer to poll, ns, one in WAIT_SAMPLE_RATE messages sampled).
+ *
+ * Same threading as MpscRingBuffer: any thread can offer(), only one consumer thread can poll(),
+ * any thread can evict_oldest() (which takes the oldest message of the lowest priority lane).
+ *
+ * </pre>
+ */
+public class PriorityLaneQueue implements IMessageQueue {
+
+    public static final String PRIORITY_HEADER = "priority";
+
+    public static final int LANE_HIGH = 0;
+    public static final int LANE_NORMAL = 1;
+    public static final int LANE_LOW = 2;
+    public static final String[] LANE_NAMES = {"high", "normal", "low"};
+
+    public static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+
+    // Wait time of one in WAIT_SAMPLE_RATE messages is recorded (must be a power of 2)
+    public static final int WAIT_SAMPLE_RATE = 16;
+
+    private final MpscRingBuffer[] lanes;
+    private final Histogram[] depth_histograms;
+    private final Histogram[] wait_ns_histograms;
+    private volatile int[] weights;
+    private volatile boolean lanes_enabled = true;
+
+    // Per lane (so a rare lane is sampled too), racy on purpose: lost increments just shift the sampling a bit
+    private final int[] wait_sample_counters;
+
+    // Scheduler state, only touched by the consumer thread
+    private int current_lane = 0;
+    private int remaining_quantum = 0;
+
+    /**
+     * Lanes with the default weights: the normal lane gets the given
+     * capacity, the high and low lanes a quarter of it each.
+     *
+     * @param capacity
+     */
+    public PriorityLaneQueue(int capacity) {
+        this(new int[]{Math.max(2, capacity / 4), capacity, Math.max(2, capacity / 4)}, DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * @param lane_capacities capacity of each lane (will be rounded up to the
+     * next power of 2), lane 0 is the highest priority
+     * @param weights messages taken from each lane per scheduler round
+     */
+    public PriorityLaneQueue(int[] lane_capacities, int[] weights) {
+        if (lane_capacities.length != LANE_NAMES.length) {
+            throw new IllegalArgumentException("PriorityLaneQueue: expected " + LANE_NAMES.length + " lane capacities, got: " + lane_capacities.length);
+        }
+        lanes = new MpscRingBuffer[lane_capacities.length];
+        depth_histograms = new Histogram[lane_capacities.length];
+        wait_ns_histograms = new Histogram[lane_capacities.length];
+        wait_sample_counters = new int[lane_capacities.length];
+        for (int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane] = new MpscRingBuffer(lane_capacities[lane]);
+            depth_histograms[lane] = new Histogram("lane_" + LANE_NAMES[lane] + "_depth");
+            wait_ns_histograms[lane] = new Histogram("lane_" + LANE_NAMES[lane] + "_wait_ns");
+        }
+        set_weights(weights);
+        // So the scheduler starts with the high lane
+        current_lane = lanes.length - 1;
+    }
+
+    /**
+     * Change the lane weights (picked up by the scheduler on its next lane
+     * switch).
+     *
+     * @param weights messages taken from each lane per scheduler round (at
+     * least 1 each)
+     */
+    public void set_weights(int[] weights) {
+        if (weights.length != lanes.length) {
+            throw new IllegalArgumentException("PriorityLaneQueue: expected " + lanes.length + " weights, got: " + weights.length);
+        }
+        int[] new_weights = new int[weights.length];
+        for (int lane = 0; lane < weights.length; lane++) {
+            if (weights[lane] < 1) {
+                throw new IllegalArgumentException("PriorityLaneQueue: lane " + LANE_NAMES[lane] + " weight must be at least 1, got: " + weights[lane]);
+            }
+            new_weights[lane] = weights[lane];
+        }
+        this.weights = new_weights;
+    }
+
+    public int[] get_weights() {
+        return weights.clone();
+    }
+
+    public void set_lanes_enabled(boolean lanes_enabled) {
+        this.lanes_enabled = lanes_enabled;
+    }
+
+    public boolean is_lanes_enabled() {
+        return lanes_enabled;
+    }
+
+    /**
+     * @param message
+     * @return lane of the message (see the class description)
+     */
+    public int select_lane(Message message) {
+        if (!lanes_enabled) {
+            return LANE_NORMAL;
+        }
+        Object priority = message.headers.get(PRIORITY_HEADER);
+        if (priority != null) {
+            if (priority instanceof Number) {
+                int lane = ((Number) priority).intValue();
+                if (lane >= 0 && lane < lanes.length) {
+                    return lane;
+                }
+            } else {
+                for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+                    if (LANE_NAMES[lane].equals(priority)) {
+                        return lane;
+                    }
+                }
+            }
+        }
+        return message.header_get_mime_type() == MessageHeaderMimeType.RESPONSE ? LANE_HIGH : LANE_NORMAL;
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        int lane = select_lane(message);
+        message.set_queued_ns((++wait_sample_counters[lane] & (WAIT_SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0);
+        return lanes[lane].offer(message);
+    }
+
+    /**
+     * Messages may go to the different lanes, so they are offered one by one
+     * (still in the given order within each lane).
+     */
+    @Override
+    public int offer_all(List<Message> messages, int from_index) {
+        int added_count = 0;
+        for (int i = from_index; i < messages.size(); i++) {
+            if (!offer(messages.get(i))) {
+                break;
+            }
+            added_count++;
+        }
+        return added_count;
+    }
+
+    @Override
+    public Message poll() {
+        // One full round over the lanes at most (plus the current one), so an empty queue costs a few checks
+        for (int attempts = 0; attempts <= lanes.length; attempts++) {
+            if (remaining_quantum > 0) {
+                MpscRingBuffer lane = lanes[current_lane];
+                if (remaining_quantum == weights[current_lane]) {
+                    // Starting the lane quantum: sample its depth
+                    int depth = lane.size();
+                    if (depth > 0) {
+                        depth_histograms[current_lane].record(depth);
+                    }
+                }
+                Message message = lane.poll();
+                if (message != null) {
+                    remaining_quantum--;
+                    long queued_ns = message.get_queued_ns();
+                    if (queued_ns != 0) {
+                        wait_ns_histograms[current_lane].record(System.nanoTime() - queued_ns);
+                    }
+                    return message;
+                }
+            }
+            // Lane quantum used up (or the lane is empty): next lane
+            current_lane = current_lane + 1 < lanes.length ? current_lane + 1 : 0;
+            remaining_quantum = weights[current_lane];
+        }
+        return null;
+    }
+
+    @Override
+    public Message evict_oldest() {
+        for (int lane = lanes.length - 1; lane >= 0; lane--) {
+            Message message = lanes[lane].evict_oldest();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int drain(Consumer<Message> consumer, int limit) {
+        int count = 0;
+        Message message;
+        while (count < limit && (message = poll()) != null) {
+            consumer.accept(message);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int drain(Consumer<Message> consumer) {
+        return drain(consumer, capacity());
+    }
+
+    @Override
+    public int drain_to(List<Message> target, int limit) {
+        int count = 0;
+        Message message;
+        while (count < limit && (message = poll()) != null) {
+            target.add(message);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (MpscRingBuffer lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean is_empty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int capacity() {
+        int capacity = 0;
+        for (MpscRingBuffer lane : lanes) {
+            capacity += lane.capacity();
+        }
+        return capacity;
+    }
+
+    public int get_lanes_count() {
+        return lanes.length;
+    }
+
+    public int get_lane_depth(int lane) {
+        return lanes[lane].size();
+    }
+
+    public int get_lane_capacity(int lane) {
+        return lanes[lane].capacity();
+    }
+
+    public Histogram get_lane_depth_histogram(int lane) {
+        return depth_histograms[lane];
+    }
+
+    public Histogram get_lane_wait_ns_histogram(int lane) {
+        return wait_ns_histograms[lane];
+    }
+
+    /**
+     * Visualize the lanes: weight, current depth, depth and wait time
+     * histograms.
+     *
+     * @return
+     */
+    public String visualize() {
+        StringBuilder result = new StringBuilder();
+        int[] current_weights = weights;
+        result.append("priority lanes: ").append(lanes_enabled ? "enabled" : "disabled (all in the normal lane)").append("\n");
+        for (int lane = 0; lane < lanes.length; lane++) {
+            result.append("lane ").append(LANE_NAMES[lane])
+                    .append(": weight: ").append(current_weights[lane])
+                    .append(", depth: ").append(lanes[lane].size()).append(" / ").append(lanes[lane].capacity()).append("\n");
+            result.append("    ").append(depth_histograms[lane].visualize()).append("\n");
+            result.append("    ").append(wait_ns_histograms[lane].visualize()).append("\n");
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package ca.dimon.delivery_service.router;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * Exponential backoff: first spin "max_spins" cycles, then yield "max_yields" cycles,
+ * then park for min_park_ns, 2 * min_park_ns, 4 * ... up to max_park_ns.
+ * As soon as the router does some work the strategy goes back to spinning.
+ *
+ * A good compromise between BusySpinIdleStrategy (lowest latency, burns a core) and
+ * ParkingIdleStrategy (zero cpu, but each wake-up costs a few microseconds):
+ * during bursts we stay hot, when traffic stops we quickly calm down.
+ * The producer signal() also wakes us up from the "park" phase.
+ *
+ * </pre>
+ */
+public class BackoffIdleStrategy extends IdleStrategy {
+
+    private final long max_spins;
+    private final long max_yields;
+    private final long min_park_ns;
+    private final long max_park_ns;
+
+    // Current state
+    private long spins = 0;
+    private long yields = 0;
+    private long park_ns;
+    private volatile Thread parked_thread = null;
+    private volatile boolean waiting = false;
+
+    private volatile long spin_count = 0;
+    private volatile long yield_count = 0;
+    private volatile long park_count = 0;
+
+    public BackoffIdleStrategy() {
+        this(100, 10, 1_000L, 1_000_000L); // park from 1 us up to 1 ms
+    }
+
+    public BackoffIdleStrategy(long max_spins, long max_yields, long min_park_ns, long max_park_ns) {
+        this.max_spins = max_spins;
+        this.max_yields = max_yields;
+        this.min_park_ns = min_park_ns;
+        this.max_park_ns = max_park_ns;
+        this.park_ns = min_park_ns;
+    }
+
+    @Override
+    protected void idle() {
+        if (spins < max_spins) {
+            spins++;
+            spin_count++;
+        } else if (yields < max_yields) {
+            yields++;
+            yield_count++;
+            Thread.yield();
+        } else {
+            park_count++;
+            parked_thread = Thread.currentThread();
+            waiting = true;
+            LockSupport.parkNanos(this, park_ns);
+            waiting = false;
+            park_ns = Math.min(park_ns << 1, max_park_ns);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        spins = 0;
+        yields = 0;
+        park_ns = min_park_ns;
+    }
+
+    @Override
+    public void signal() {
+        if (waiting) {
+            LockSupport.unpark(parked_thread);
+        }
+    }
+
+    @Override
+    protected void update_stats() {
+        super.update_stats();
+        stats.put("spin_count", spin_count);
+        stats.put("yield_count", yield_count);
+        stats.put("park_count", park_count);
+    }
+}
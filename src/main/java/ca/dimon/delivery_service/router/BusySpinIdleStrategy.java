@@ -0,0 +1,14 @@
+package ca.dimon.delivery_service.router;
+
+/**
+ * Never give up the cpu - simply return and let the router check its inbox
+ * again. Lowest possible latency at the price of 100% usage of one core. Only
+ * makes sense when the router thread is pinned to a dedicated (isolated) core.
+ */
+public class BusySpinIdleStrategy extends IdleStrategy {
+
+    @Override
+    protected void idle() {
+        // Nothing to do, just spin.
+    }
+}
@@ -0,0 +1,208 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.transport.Transport;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * Credits of one producing transport (see FlowController). The producer spends one credit per
+ * message it puts into the router inbox (acquire(): one CAS, no allocation), the router takes the
+ * credit back once the message is routed (on_routed()) and hands the collected credits back to the
+ * producer in batches (grant(), called by the router thread via FlowController.grant_credits()).
+ *
+ * While some subscriber inbox the producer messages go to is congested (its "bottleneck"), the
+ * credits the producer has left are revoked and the returned ones are held back, so the producer
+ * stops before that inbox overflows (only the messages already in flight get there). Out of credits,
+ * the producer waits (up to the acquire timeout), poking the router every WAIT_PARK_NS to grant
+ * whatever it collected so far.
+ *
+ * The gauges (available credits, routed but not granted yet, bottleneck) and the throttling
+ * counters go to the stats of the producer transport.
+ *
+ * </pre>
+ */
+public class CreditGate {
+
+    static final long WAIT_PARK_NS = 50_000; // 50 us
+
+    private final FlowController flow_controller;
+    private final Transport transport;
+    private final long acquire_timeout_ns;
+
+    // Credits the producer can spend
+    private final AtomicLong available_credits;
+
+    // Credits of the routed messages, not granted back to the producer yet
+    private final AtomicLong returned_credits = new AtomicLong();
+
+    // Credits taken away from the producer while the bottleneck is congested (granted back with the returned ones)
+    private final AtomicLong revoked_credits = new AtomicLong();
+
+    // Queued for the router to grant (see FlowController.schedule())
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // Held back by the router thread (see FlowController.grant_credits()), only touched by the router thread
+    boolean held = false;
+
+    private volatile boolean waiting = false;
+    private volatile Transport bottleneck = null;
+
+    CreditGate(FlowController flow_controller, Transport transport, long initial_credits, long acquire_timeout_ns) {
+        this.flow_controller = flow_controller;
+        this.transport = transport;
+        this.available_credits = new AtomicLong(initial_credits);
+        this.acquire_timeout_ns = acquire_timeout_ns;
+    }
+
+    public FlowController get_flow_controller() {
+        return flow_controller;
+    }
+
+    public Transport get_transport() {
+        return transport;
+    }
+
+    /**
+     * @return true if got the credit right away (never waits)
+     */
+    public boolean try_acquire() {
+        long credits;
+        while ((credits = available_credits.get()) > 0) {
+            if (available_credits.compareAndSet(credits, credits - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take one credit, waiting for the router to grant more if there are
+     * none left (up to the acquire timeout, zero: wait forever).
+     *
+     * @return false if timed out
+     */
+    public boolean acquire() {
+        if (try_acquire()) {
+            return true;
+        }
+        transport.increment_stats("flow_control_throttled_count");
+        long start_ns = System.nanoTime();
+        waiting = true;
+        try {
+            while (true) {
+                // Ask the router for whatever credits it collected (not just the full batches)
+                flow_controller.schedule(this);
+                LockSupport.parkNanos(WAIT_PARK_NS);
+                if (try_acquire()) {
+                    return true;
+                }
+                if (acquire_timeout_ns > 0 && System.nanoTime() - start_ns > acquire_timeout_ns) {
+                    transport.increment_stats("flow_control_timeout_count");
+                    return false;
+                }
+            }
+        } finally {
+            waiting = false;
+            transport.increment_stats("flow_control_throttled_ns", System.nanoTime() - start_ns);
+        }
+    }
+
+    /**
+     * Give the credit back (the message carrying it was not enqueued after
+     * all).
+     */
+    public void refund() {
+        available_credits.incrementAndGet();
+    }
+
+    /**
+     * The message which carried our credit is done with (routed or dropped).
+     * The credit goes back to the producer with the next grant: once a batch
+     * is collected or right away if the producer waits for it.
+     */
+    public void on_routed() {
+        if (returned_credits.incrementAndGet() >= flow_controller.get_grant_batch_credits() || waiting) {
+            flow_controller.schedule(this);
+        }
+    }
+
+    /**
+     * The message which carries our credit was just delivered into the
+     * congested inbox (see FlowController.is_congested()): revoke the credits
+     * we have left and hold the returned ones back until it drains.
+     *
+     * @param congested_transport
+     */
+    void set_bottleneck(Transport congested_transport) {
+        if (bottleneck != congested_transport) {
+            bottleneck = congested_transport;
+        }
+        if (available_credits.get() > 0) {
+            long credits = available_credits.getAndSet(0);
+            if (credits > 0) {
+                revoked_credits.addAndGet(credits);
+            }
+        }
+    }
+
+    /**
+     * Hand the returned credits back to the producer, unless the bottleneck
+     * is still congested. Router thread only.
+     *
+     * @return number of granted credits or -1 if held back
+     */
+    long grant() {
+        Transport congested_transport = bottleneck;
+        if (congested_transport != null) {
+            if (flow_controller.is_congested(congested_transport)) {
+                return -1;
+            }
+            bottleneck = null;
+        }
+        long credits = returned_credits.getAndSet(0) + revoked_credits.getAndSet(0);
+        if (credits > 0) {
+            available_credits.addAndGet(credits);
+        }
+        return credits;
+    }
+
+    public long get_available_credits() {
+        return available_credits.get();
+    }
+
+    public long get_returned_credits() {
+        return returned_credits.get();
+    }
+
+    public long get_revoked_credits() {
+        return revoked_credits.get();
+    }
+
+    /**
+     * @return the congested inbox owner transport our credits are held back
+     * for, or null
+     */
+    public Transport get_bottleneck() {
+        return bottleneck;
+    }
+
+    public boolean is_waiting() {
+        return waiting;
+    }
+
+    /**
+     * Take the credit the message carries (if any) back, see on_routed().
+     *
+     * @param message
+     */
+    public static void release_credit(Message message) {
+        CreditGate credit_gate = message.get_credit_gate();
+        if (credit_gate != null) {
+            message.set_credit_gate(null);
+            credit_gate.on_routed();
+        }
+    }
+}
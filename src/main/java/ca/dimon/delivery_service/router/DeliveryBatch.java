@@ -0,0 +1,79 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.transport.Transport;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * <pre>
+ * DeliveryBatch collects all the deliveries made while routing one batch of messages
+ * and groups them by destination transport. On flush() each transport gets a single
+ * bulk deliver_back_to_client(list) call, so each client inbox gets one bulk enqueue
+ * per batch instead of one enqueue per message.
+ *
+ * Messages for the same transport keep their routing order (FIFO per destination).
+ * Not thread-safe: each router thread owns its own DeliveryBatch instance.
+ *
+ * </pre>
+ */
+public class DeliveryBatch {
+
+    // Once we've seen this many different transports we drop the cached per-transport lists (so we don't hold
+    // references to the transports which are long gone).
+    private static final int MAX_CACHED_TRANSPORTS = 1024;
+
+    private final IdentityHashMap<Transport, ArrayList<Message>> messages_by_transport = new IdentityHashMap<>();
+    private final ArrayList<Transport> transports_in_batch = new ArrayList<>();
+    private int deliveries_count = 0;
+
+    /**
+     * Remember the message to be delivered to the given transport on the next
+     * flush().
+     *
+     * @param transport
+     * @param message
+     */
+    public void add(Transport transport, Message message) {
+        ArrayList<Message> messages = messages_by_transport.get(transport);
+        if (messages == null) {
+            messages = new ArrayList<>();
+            messages_by_transport.put(transport, messages);
+        }
+        if (messages.isEmpty()) {
+            transports_in_batch.add(transport);
+        }
+        messages.add(message);
+        deliveries_count++;
+    }
+
+    /**
+     * Deliver everything collected so far (one bulk call per transport).
+     *
+     * @return number of delivered messages (counting each delivery separately)
+     */
+    public int flush() {
+        int flushed_count = deliveries_count;
+        for (int i = 0; i < transports_in_batch.size(); i++) {
+            Transport transport = transports_in_batch.get(i);
+            ArrayList<Message> messages = messages_by_transport.get(transport);
+            transport.deliver_back_to_client(messages);
+            messages.clear();
+        }
+        transports_in_batch.clear();
+        deliveries_count = 0;
+
+        if (messages_by_transport.size() > MAX_CACHED_TRANSPORTS) {
+            messages_by_transport.clear();
+        }
+        return flushed_count;
+    }
+
+    public int get_transports_count() {
+        return transports_in_batch.size();
+    }
+
+    public int get_deliveries_count() {
+        return deliveries_count;
+    }
+}
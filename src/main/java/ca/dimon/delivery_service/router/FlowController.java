@@ -0,0 +1,224 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.common.Aid;
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.transport.Transport;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <pre>
+ * Credit-based flow control between the producing transports and the router (see
+ * DeliveryService.enable_flow_control()). Each producing transport gets a CreditGate with
+ * window_credits credits: one credit per message in flight (enqueued into the router, not routed
+ * yet). The router takes the credits back as it routes the messages and grants them back in
+ * batches of grant_batch_credits, so neither the producer nor the router touch the shared state
+ * more than once per message (one CAS on each side) and the producer is woken up once per batch.
+ *
+ * Downstream capacity: when the router delivers a gated message into a subscriber inbox with less
+ * than congested_free_percent of its capacity free, the producer credits are revoked / held back
+ * until that inbox drains. So a fast publisher stops before the slow subscriber inbox overflows
+ * (instead of relying on the inbox overflow policy, see InboxOverflowPolicy), as long as its window
+ * (the messages in flight) fits into congested_free_percent of that inbox: the default window of
+ * 1024 credits fits the default 4096 messages inbox.
+ *
+ * Only the router thread (DeliveryService shovel thread) grants the credits (grant_credits()):
+ *   - gates with a full batch of returned credits (or a waiting producer) are queued for it
+ *     (schedule()), and the router is signaled
+ *   - held back gates are re-checked on every pass
+ *
+ * Producers which run out of credits wait up to acquire_timeout_ms (local transports, the publish
+ * then returns FunctionResult.INBOX_FULL) or remote_acquire_timeout_ms (remote transports, the
+ * message goes anyway and is counted as "flow_control_overdraft_count": blocking the remote
+ * ingress thread for long could stall the bridge which drains the congested inbox itself).
+ *
+ * </pre>
+ */
+public class FlowController extends ManagedObject {
+
+    public static final int DEFAULT_WINDOW_CREDITS = 1024;
+    public static final int DEFAULT_GRANT_BATCH_CREDITS = 64;
+    public static final int DEFAULT_CONGESTED_FREE_PERCENT = 25;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 1000;
+    public static final long DEFAULT_REMOTE_ACQUIRE_TIMEOUT_MS = 10;
+
+    private final int window_credits;
+    private final int grant_batch_credits;
+    private final int congested_free_percent;
+    private final long acquire_timeout_ms;
+    private final long remote_acquire_timeout_ms;
+
+    // Wakes the router thread up (so it grants the scheduled credits)
+    private final Runnable router_signal;
+
+    private final ConcurrentHashMap<Transport, CreditGate> credit_gates = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<CreditGate> scheduled_gates = new ConcurrentLinkedQueue<>();
+
+    // Router thread only
+    private final ArrayList<CreditGate> held_gates = new ArrayList<>();
+
+    public FlowController(Runnable router_signal) {
+        this(router_signal, DEFAULT_WINDOW_CREDITS, DEFAULT_GRANT_BATCH_CREDITS, DEFAULT_CONGESTED_FREE_PERCENT, DEFAULT_ACQUIRE_TIMEOUT_MS, DEFAULT_REMOTE_ACQUIRE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param router_signal wakes the router thread up
+     * @param window_credits credits of each producing transport (messages in
+     * flight)
+     * @param grant_batch_credits credits granted back at once (unless the
+     * producer waits for them)
+     * @param congested_free_percent subscriber inbox with less free room
+     * than this (percent of its capacity) holds the producer credits back
+     * @param acquire_timeout_ms longest wait for a credit of the local
+     * producers (zero: wait forever)
+     * @param remote_acquire_timeout_ms same for the remote producers (zero:
+     * wait forever)
+     */
+    public FlowController(Runnable router_signal, int window_credits, int grant_batch_credits, int congested_free_percent, long acquire_timeout_ms, long remote_acquire_timeout_ms) {
+        if (window_credits < 1 || grant_batch_credits < 1 || grant_batch_credits > window_credits || congested_free_percent < 0 || congested_free_percent > 100) {
+            throw new IllegalArgumentException("FlowController: expected 1 <= grant_batch_credits <= window_credits and congested_free_percent within 0..100, got: "
+                    + grant_batch_credits + ", " + window_credits + ", " + congested_free_percent);
+        }
+        this.router_signal = router_signal;
+        this.window_credits = window_credits;
+        this.grant_batch_credits = grant_batch_credits;
+        this.congested_free_percent = congested_free_percent;
+        this.acquire_timeout_ms = Math.max(0, acquire_timeout_ms);
+        this.remote_acquire_timeout_ms = Math.max(0, remote_acquire_timeout_ms);
+        this.set_uri("flow_controller");
+    }
+
+    public int get_window_credits() {
+        return window_credits;
+    }
+
+    public int get_grant_batch_credits() {
+        return grant_batch_credits;
+    }
+
+    /**
+     * @param transport producing transport
+     * @param remote true for the remote (Aeron) transports (see
+     * remote_acquire_timeout_ms)
+     * @return
+     */
+    public CreditGate get_or_create_credit_gate(Transport transport, boolean remote) {
+        return credit_gates.computeIfAbsent(transport, key -> {
+            this.increment_stats("credit_gates_created_count");
+            return new CreditGate(this, key, window_credits, (remote ? remote_acquire_timeout_ms : acquire_timeout_ms) * 1_000_000L);
+        });
+    }
+
+    public void remove_credit_gate(Transport transport) {
+        credit_gates.remove(transport);
+    }
+
+    /**
+     * @param transport subscriber transport
+     * @return true if its client inbox has less than congested_free_percent
+     * of the capacity free
+     */
+    public boolean is_congested(Transport transport) {
+        return (long) transport.get_client_inbox_free_capacity() * 100 < (long) congested_free_percent * transport.get_client_inbox_capacity();
+    }
+
+    /**
+     * Router: the gated message is being delivered to the subscriber
+     * transport, hold the producer credits back if its inbox is congested.
+     *
+     * @param credit_gate
+     * @param subscriber_transport
+     */
+    public void on_delivery(CreditGate credit_gate, Transport subscriber_transport) {
+        if (is_congested(subscriber_transport)) {
+            credit_gate.set_bottleneck(subscriber_transport);
+        }
+    }
+
+    // Queue the gate for the router thread to grant its credits
+    void schedule(CreditGate credit_gate) {
+        if (credit_gate.scheduled.compareAndSet(false, true)) {
+            scheduled_gates.add(credit_gate);
+            router_signal.run();
+        }
+    }
+
+    /**
+     * Grant the returned credits of the scheduled gates and re-check the held
+     * back ones. Router thread only (called on every pass).
+     *
+     * @return number of granted credits
+     */
+    public int grant_credits() {
+        long granted_credits = 0;
+        for (int i = held_gates.size() - 1; i >= 0; i--) {
+            CreditGate credit_gate = held_gates.get(i);
+            long credits = credit_gate.grant();
+            if (credits >= 0) {
+                credit_gate.held = false;
+                held_gates.remove(i);
+                granted_credits += credits;
+            }
+        }
+        CreditGate credit_gate;
+        while ((credit_gate = scheduled_gates.poll()) != null) {
+            credit_gate.scheduled.set(false);
+            long credits = credit_gate.grant();
+            if (credits >= 0) {
+                granted_credits += credits;
+            } else if (!credit_gate.held) {
+                credit_gate.held = true;
+                held_gates.add(credit_gate);
+                this.increment_stats("held_back_count");
+            }
+        }
+        if (granted_credits > 0) {
+            this.increment_stats("grants_count");
+            this.increment_stats("granted_credits_count", granted_credits);
+        }
+        return (int) granted_credits;
+    }
+
+    /**
+     * Visualize the credits of all the producing transports: who is
+     * throttled and why (the congested subscriber inbox, if any).
+     *
+     * @return
+     */
+    public String visualize() {
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ flow control ]-------------------------------------------\n");
+        result.append("window_credits: ").append(window_credits).append(", grant_batch_credits: ").append(grant_batch_credits)
+                .append(", congested_free_percent: ").append(congested_free_percent).append(", stats: ").append(get_stats()).append("\n");
+        result.append(Aid.pad_string_with_spaces(" transport.client_uri", 32)
+                + " | " + Aid.pad_string_with_spaces(" available", 10)
+                + " | " + Aid.pad_string_with_spaces(" returned", 10)
+                + " | " + Aid.pad_string_with_spaces(" revoked", 10)
+                + " | " + Aid.pad_string_with_spaces(" throttled", 10)
+                + " | " + Aid.pad_string_with_spaces(" throttled ms", 13)
+                + " | bottleneck (congested inbox)\n");
+        for (CreditGate credit_gate : credit_gates.values()) {
+            Transport transport = credit_gate.get_transport();
+            Transport bottleneck = credit_gate.get_bottleneck();
+            Long throttled_count = transport.get_stats_value("flow_control_throttled_count");
+            Long throttled_ns = transport.get_stats_value("flow_control_throttled_ns");
+            result.append(Aid.pad_string_with_spaces(transport.get_client_uri(), 32)
+                    + " | " + Aid.pad_string_with_spaces(String.valueOf(credit_gate.get_available_credits()), 10)
+                    + " | " + Aid.pad_string_with_spaces(String.valueOf(credit_gate.get_returned_credits()), 10)
+                    + " | " + Aid.pad_string_with_spaces(String.valueOf(credit_gate.get_revoked_credits()), 10)
+                    + " | " + Aid.pad_string_with_spaces(String.valueOf(throttled_count != null ? throttled_count : 0), 10)
+                    + " | " + Aid.pad_string_with_spaces(String.valueOf(throttled_ns != null ? throttled_ns / 1_000_000 : 0), 13)
+                    + " | " + (bottleneck != null ? bottleneck.get_client_uri() : (credit_gate.is_waiting() ? "(waiting for the router)" : "-")) + "\n");
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("credit_gates_count", (long) credit_gates.size());
+        return super.get_stats();
+    }
+}
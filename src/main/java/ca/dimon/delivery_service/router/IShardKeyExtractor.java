@@ -0,0 +1,19 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.message.Message;
+
+/**
+ * <pre>
+ * In sharded routing mode (see DeliveryService.enable_sharded_routing()) each message
+ * goes to one of the router shards chosen by hashing its "shard key". All the messages
+ * with equal shard keys end up in the same shard, so they are routed in FIFO order.
+ *
+ * Default shard key is the "to" header:
+ *     IShardKeyExtractor shard_key_extractor = message -> message.header_get_to();
+ *
+ * </pre>
+ */
+public interface IShardKeyExtractor {
+
+    Object get_shard_key(Message message);
+}
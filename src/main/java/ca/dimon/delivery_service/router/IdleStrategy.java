@@ -0,0 +1,94 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.common.ManagedObject;
+import java.util.HashMap;
+
+/**
+ * <pre>
+ * IdleStrategy decides what the router (DeliveryService shovel thread) does when it
+ * finished one pass over its inbox. The router loop looks like this:
+ *
+ *     while (true) {
+ *         int work_count = shovel_all_incoming_messages();
+ *         idle_strategy.idle(work_count);
+ *     }
+ *
+ * If the pass did some work (work_count > 0) the strategy simply resets itself and returns
+ * immediately, otherwise it "idles" in its own way (spin, yield, backoff, park...).
+ * Producers call signal() right after they put a message into the router inbox, so
+ * strategies which can sleep (park) are woken up as soon as there is something to do.
+ *
+ * Each strategy counts idle/busy cycles. We don't use increment_stats() on every cycle
+ * (busy-spin strategy calls idle() millions times per second and HashMap+boxed Long on
+ * each call would cost more than the spin itself), instead we keep primitive counters
+ * and copy them into the "stats" HashMap when someone asks for stats. The counters are
+ * volatile with a single writer (the router thread), so the stats readers (any thread)
+ * see their latest values without any lock on the router side.
+ *
+ * </pre>
+ */
+public abstract class IdleStrategy extends ManagedObject {
+
+    // Number of idle() calls with work_count > 0 (router did something useful on that pass)
+    protected volatile long busy_cycles_count = 0;
+
+    // Number of idle() calls with work_count == 0 (router found nothing to do on that pass)
+    protected volatile long idle_cycles_count = 0;
+
+    /**
+     * Called by the router thread after each pass over its inbox.
+     *
+     * @param work_count number of messages processed during the last pass
+     */
+    public void idle(int work_count) {
+        if (work_count > 0) {
+            busy_cycles_count++;
+            reset();
+            return;
+        }
+        idle_cycles_count++;
+        idle();
+    }
+
+    /**
+     * Strategy-specific idle action (spin, yield, park, etc.). Only called
+     * when the last pass found no work.
+     */
+    protected abstract void idle();
+
+    /**
+     * Reset strategy state (if any) after the router did some work.
+     */
+    protected void reset() {
+    }
+
+    /**
+     * Called by producers (any thread) right after enqueue() into the router
+     * inbox. Strategies that never sleep can ignore it.
+     */
+    public void signal() {
+    }
+
+    /**
+     * Copy primitive counters into the "stats" HashMap. Subclasses with extra
+     * counters should override and call super. Called by get_stats() /
+     * get_stats_value() under the monitor, which guards the "stats" HashMap
+     * only (the router thread never takes it).
+     */
+    protected void update_stats() {
+        stats.put("busy_cycles_count", busy_cycles_count);
+        stats.put("idle_cycles_count", idle_cycles_count);
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        update_stats();
+        return super.get_stats();
+    }
+
+    @Override
+    public synchronized Long get_stats_value(String stats_key) {
+        update_stats();
+        return super.get_stats_value(stats_key);
+    }
+}
@@ -0,0 +1,181 @@
+package ca.dimon.delivery_service.router;
+
+import ca.dimon.delivery_service.DeliveryService;
+import ca.dimon.delivery_service.common.FunctionResult;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.queue.PriorityLaneQueue;
+import ca.dimon.delivery_service.transport.InboxOverflowPolicy;
+import ca.dimon.delivery_service.transport.Transportable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <pre>
+ * One partition of the sharded router (see DeliveryService.enable_sharded_routing()).
+ * Each shard owns:
+ *   - its own inbox with the priority lanes (see PriorityLaneQueue), set up like the router
+ *     inbox lanes, so the responses don't wait behind the publish bursts in the sharded mode
+ *     either, and with the same overflow policy as the router inbox (see Transportable.offer(),
+ *     InboxOverflowPolicy): a full shard inbox is the backpressure the publishers see in the
+ *     sharded mode
+ *   - its own routing thread, which drains the inbox in batches and calls
+ *     delivery_service.route(...) for each message
+ *   - its own idle strategy and delivery batch
+ *
+ * The DeliveryService picks the shard by hashing the message "shard key" (the "to"
+ * header by default), so all messages for the same destination are routed by the same
+ * thread in FIFO order, while different destinations are routed in parallel.
+ *
+ * </pre>
+ */
+public class RouterShard extends Transportable {
+
+    private final int shard_number;
+    private final DeliveryService delivery_service;
+    private final IdleStrategy idle_strategy;
+
+    // Our inbox (same instance as incoming_messages_queue)
+    private final PriorityLaneQueue lanes;
+
+    // These are only touched by the shard thread
+    private final ArrayList<Message> route_batch_messages = new ArrayList<>();
+    private final DeliveryBatch delivery_batch = new DeliveryBatch();
+    private final FunctionResult function_result = new FunctionResult();
+
+    // Written only by the shard thread, read by anyone (visualize / stats)
+    private volatile long routed_messages_count = 0;
+    private volatile long route_batch_count = 0;
+
+    // Used to calculate throughput between 2 consecutive calls of get_throughput_messages_per_second()
+    private long last_throughput_check_nano_time = System.nanoTime();
+    private long last_throughput_check_routed_messages_count = 0;
+
+    private Thread thread;
+
+    public RouterShard(int shard_number, DeliveryService delivery_service, int inbox_capacity, IdleStrategy idle_strategy) {
+        super(new PriorityLaneQueue(inbox_capacity));
+        this.lanes = (PriorityLaneQueue) incoming_messages_queue;
+        PriorityLaneQueue router_lanes = delivery_service.get_router_lanes();
+        lanes.set_weights(router_lanes.get_weights());
+        lanes.set_lanes_enabled(router_lanes.is_lanes_enabled());
+        this.shard_number = shard_number;
+        this.delivery_service = delivery_service;
+        this.idle_strategy = idle_strategy;
+        this.set_uri("router_shard_" + shard_number);
+        set_inbox_overflow_policy(delivery_service.get_inbox_overflow_policy(), delivery_service.get_inbox_block_timeout_ms());
+    }
+
+    /**
+     * Put message into this shard inbox (any thread), applying the inbox
+     * overflow policy if it is full, and wake up the shard thread.
+     *
+     * @param message
+     * @return same as Transportable.offer(): FunctionResult.INBOX_FULL if the
+     * message was not taken (the caller still owns it)
+     */
+    @Override
+    public FunctionResult offer(Message message) {
+        FunctionResult result = super.offer(message);
+        idle_strategy.signal();
+        return result;
+    }
+
+    @Override
+    public int offer_all(List<Message> messages) {
+        int taken_count = super.offer_all(messages);
+        idle_strategy.signal();
+        return taken_count;
+    }
+
+    /**
+     * Start the shard routing thread.
+     */
+    public void start() {
+        Runnable runnable = () -> {
+            while (true) {
+                int work_count = 0;
+                int batch_size;
+                while ((batch_size = route_batch()) > 0) {
+                    work_count += batch_size;
+                }
+                idle_strategy.idle(work_count);
+            }
+        };
+        thread = new Thread(runnable, get_uri());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private int route_batch() {
+        int batch_size = incoming_messages_queue.drain_to(route_batch_messages, delivery_service.get_route_batch_size());
+        if (batch_size == 0) {
+            return 0;
+        }
+
+        long now_epoch_ms = System.currentTimeMillis();
+        for (int i = 0; i < batch_size; i++) {
+            // Note: route() reports errors and increases stats by itself.
+            delivery_service.route(route_batch_messages.get(i), now_epoch_ms, function_result, delivery_batch);
+        }
+        delivery_batch.flush();
+        route_batch_messages.clear();
+
+        routed_messages_count += batch_size;
+        route_batch_count++;
+        return batch_size;
+    }
+
+    public int get_shard_number() {
+        return shard_number;
+    }
+
+    public int get_queue_depth() {
+        return incoming_messages_queue.size();
+    }
+
+    public int get_queue_capacity() {
+        return incoming_messages_queue.capacity();
+    }
+
+    public long get_routed_messages_count() {
+        return routed_messages_count;
+    }
+
+    public IdleStrategy get_idle_strategy() {
+        return idle_strategy;
+    }
+
+    /**
+     * @return priority lanes of the shard inbox (see
+     * DeliveryService.set_router_lane_weights() to tune all the shards at once)
+     */
+    public PriorityLaneQueue get_lanes() {
+        return lanes;
+    }
+
+    /**
+     * Average throughput since the previous call of this function (or since
+     * the shard creation if called for the first time).
+     *
+     * @return routed messages per second
+     */
+    public synchronized double get_throughput_messages_per_second() {
+        long now_nano_time = System.nanoTime();
+        long routed_count = routed_messages_count;
+        long elapsed_ns = now_nano_time - last_throughput_check_nano_time;
+        double throughput = elapsed_ns > 0 ? (routed_count - last_throughput_check_routed_messages_count) * 1e9 / elapsed_ns : 0;
+        last_throughput_check_nano_time = now_nano_time;
+        last_throughput_check_routed_messages_count = routed_count;
+        return throughput;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("routed_messages_count", routed_messages_count);
+        stats.put("route_batch_count", route_batch_count);
+        stats.put("queue_depth", (long) incoming_messages_queue.size());
+        stats.put("queue_capacity", (long) incoming_messages_queue.capacity());
+        return super.get_stats();
+    }
+}
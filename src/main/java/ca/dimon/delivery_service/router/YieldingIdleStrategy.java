@@ -0,0 +1,22 @@
+package ca.dimon.delivery_service.router;
+
+/**
+ * Call Thread.yield() on every idle cycle. Still burns cpu, but lets other
+ * runnable threads (like our own clients) share the core with the router.
+ */
+public class YieldingIdleStrategy extends IdleStrategy {
+
+    private volatile long yield_count = 0;
+
+    @Override
+    protected void idle() {
+        yield_count++;
+        Thread.yield();
+    }
+
+    @Override
+    protected void update_stats() {
+        super.update_stats();
+        stats.put("yield_count", yield_count);
+    }
+}
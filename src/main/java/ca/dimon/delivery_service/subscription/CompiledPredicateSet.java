@@ -0,0 +1,398 @@
+package ca.dimon.delivery_service.subscription;
+
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.message.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ * All the PredicateMatcher subscriptions compiled into one shared graph of distinct predicates.
+ *
+ * Compilation interns every (sub-)predicate: equal predicates (see HeaderPredicate.equals())
+ * become one node, no matter how many subscriptions use them. Example, 3 subscriptions:
+ *
+ *     and(mime_type == PUBLISH, to starts with /md/)
+ *     and(mime_type == PUBLISH, symbol in [AAPL, MSFT])
+ *     and(mime_type == PUBLISH, to starts with /md/)        &lt;- same as the 1st one
+ *
+ * give us 5 nodes (3 leaves + 2 "and" roots) and 2 root groups, so "mime_type == PUBLISH"
+ * is evaluated at most once per message and the 1st and 3rd subscriptions share one root.
+ *
+ * On top of that, all the header_equals() leaves on the same header form an "equals group":
+ * we get the header value once and find the only matching leaf by a single hash lookup,
+ * so 1000 subscriptions on 1000 different "symbol" values cost one lookup, not 1000 compares.
+ *
+ * And finally the roots which can only be true when some header_equals() leaf is true (the leaf
+ * itself or and(..., leaf, ...)) are "guarded" by that leaf (the one from the most selective
+ * equals group), so they are not evaluated at all unless their guard leaf matched the message.
+ * Only unguarded roots (or/not/prefix/range etc. at the top) are evaluated for every message.
+ *
+ * The compiled set is immutable (DeliveryService re-compiles it after subscription changes)
+ * and can be used by several router threads at once: per-message memo (which nodes are
+ * already evaluated) lives in a per-thread context.
+ *
+ * Routing cost grows with the number of distinct predicates, not with the number of subscriptions.
+ *
+ * </pre>
+ */
+public class CompiledPredicateSet {
+
+    private static final int KIND_LEAF = 0;
+    private static final int KIND_EQUALS = 1;
+    private static final int KIND_AND = 2;
+    private static final int KIND_OR = 3;
+    private static final int KIND_NOT = 4;
+
+    // Nodes (distinct predicates), children always have smaller ids than their parents
+    private final int[] node_kinds;
+    private final HeaderPredicate[] node_predicates;
+    private final int[][] node_children;
+    private final int[] node_equals_group;     // KIND_EQUALS only: index of the equals group
+
+    // Equals groups: header name and (header value -> node id) map
+    private final String[] equals_group_header_names;
+    private final ArrayList<HashMap<Object, Integer>> equals_group_node_ids;
+
+    // Distinct roots and their subscribers
+    private final int[] root_node_ids;
+    private final SubscriberDetails[][] root_subscribers;
+
+    // Indexes of the roots evaluated for every message, and the guarded ones:
+    // guarded_root_indexes[equals_node_id] = indexes of the roots guarded by that equals leaf (or null)
+    private final int[] unguarded_root_indexes;
+    private final int[][] guarded_root_indexes;
+    private final int[] guarding_equals_groups;
+    private final int subscriptions_count;
+
+    // Number of nodes actually evaluated per message (shared between the compiled sets, see DeliveryService)
+    private final Histogram evaluated_nodes_histogram;
+
+    /**
+     * Per-thread memo: a node (or equals group) value is valid for the current
+     * message only if its stamp equals the current message generation, so we
+     * never have to clear the arrays.
+     */
+    private static class EvaluationContext {
+
+        int generation = 0;
+        final int[] node_stamps;
+        final boolean[] node_values;
+        final int[] equals_group_stamps;
+        final int[] equals_group_matched_node_ids;
+        int evaluated_nodes_count;
+
+        EvaluationContext(int nodes_count, int equals_groups_count) {
+            node_stamps = new int[nodes_count];
+            node_values = new boolean[nodes_count];
+            equals_group_stamps = new int[equals_groups_count];
+            equals_group_matched_node_ids = new int[equals_groups_count];
+        }
+    }
+
+    private final ThreadLocal<EvaluationContext> evaluation_context;
+
+    /**
+     * Compile all the given subscriptions.
+     *
+     * @param subscriptions key = PredicateMatcher, value = its subscriber
+     * details
+     * @param evaluated_nodes_histogram where to record number of evaluated
+     * nodes per message
+     * @return
+     */
+    public static CompiledPredicateSet compile(Map<? extends SubscriptionMatcher, SubscriberDetails> subscriptions, Histogram evaluated_nodes_histogram) {
+        return new CompiledPredicateSet(subscriptions, evaluated_nodes_histogram);
+    }
+
+    private CompiledPredicateSet(Map<? extends SubscriptionMatcher, SubscriberDetails> subscriptions, Histogram evaluated_nodes_histogram) {
+        Compiler compiler = new Compiler();
+
+        // Group subscriptions by the (interned) root node
+        HashMap<Integer, List<SubscriberDetails>> subscribers_by_root = new HashMap<>();
+        ArrayList<Integer> roots = new ArrayList<>();
+        int count = 0;
+        for (Map.Entry<? extends SubscriptionMatcher, SubscriberDetails> entry : subscriptions.entrySet()) {
+            HeaderPredicate predicate = ((PredicateMatcher) entry.getKey()).get_predicate();
+            int root_node_id = compiler.intern(predicate);
+            List<SubscriberDetails> subscribers = subscribers_by_root.get(root_node_id);
+            if (subscribers == null) {
+                subscribers = new ArrayList<>();
+                subscribers_by_root.put(root_node_id, subscribers);
+                roots.add(root_node_id);
+            }
+            subscribers.add(entry.getValue());
+            count++;
+        }
+
+        int nodes_count = compiler.predicates.size();
+        this.node_kinds = new int[nodes_count];
+        this.node_predicates = compiler.predicates.toArray(new HeaderPredicate[nodes_count]);
+        this.node_children = compiler.children.toArray(new int[nodes_count][]);
+        this.node_equals_group = new int[nodes_count];
+        for (int i = 0; i < nodes_count; i++) {
+            node_kinds[i] = compiler.kinds.get(i);
+            node_equals_group[i] = compiler.equals_groups.get(i);
+        }
+        int equals_groups_count = compiler.equals_group_header_names.size();
+        this.equals_group_header_names = compiler.equals_group_header_names.toArray(new String[equals_groups_count]);
+        this.equals_group_node_ids = compiler.equals_group_node_ids;
+
+        this.root_node_ids = new int[roots.size()];
+        this.root_subscribers = new SubscriberDetails[roots.size()][];
+        for (int i = 0; i < roots.size(); i++) {
+            root_node_ids[i] = roots.get(i);
+            List<SubscriberDetails> subscribers = subscribers_by_root.get(roots.get(i));
+            root_subscribers[i] = subscribers.toArray(new SubscriberDetails[subscribers.size()]);
+        }
+
+        // Find the guard (most selective equals leaf) of each root
+        ArrayList<Integer> unguarded = new ArrayList<>();
+        HashMap<Integer, ArrayList<Integer>> guarded = new HashMap<>();
+        ArrayList<Integer> guarding_groups = new ArrayList<>();
+        for (int i = 0; i < root_node_ids.length; i++) {
+            int guard_node_id = find_guard(root_node_ids[i]);
+            if (guard_node_id < 0) {
+                unguarded.add(i);
+                continue;
+            }
+            ArrayList<Integer> indexes = guarded.get(guard_node_id);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                guarded.put(guard_node_id, indexes);
+                if (!guarding_groups.contains(node_equals_group[guard_node_id])) {
+                    guarding_groups.add(node_equals_group[guard_node_id]);
+                }
+            }
+            indexes.add(i);
+        }
+        this.unguarded_root_indexes = to_int_array(unguarded);
+        this.guarded_root_indexes = new int[nodes_count][];
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : guarded.entrySet()) {
+            guarded_root_indexes[entry.getKey()] = to_int_array(entry.getValue());
+        }
+        this.guarding_equals_groups = to_int_array(guarding_groups);
+        this.subscriptions_count = count;
+        this.evaluated_nodes_histogram = evaluated_nodes_histogram;
+        this.evaluation_context = ThreadLocal.withInitial(() -> new EvaluationContext(nodes_count, equals_groups_count));
+    }
+
+    /**
+     * The root can only be true if its guard (equals leaf) is true.
+     *
+     * @param root_node_id
+     * @return guard node id or -1 if there's no guard
+     */
+    private int find_guard(int root_node_id) {
+        if (node_kinds[root_node_id] == KIND_EQUALS) {
+            return root_node_id;
+        }
+        int guard_node_id = -1;
+        if (node_kinds[root_node_id] == KIND_AND) {
+            for (int child : node_children[root_node_id]) {
+                if (node_kinds[child] == KIND_EQUALS
+                        && (guard_node_id < 0 || equals_group_node_ids.get(node_equals_group[child]).size() > equals_group_node_ids.get(node_equals_group[guard_node_id]).size())) {
+                    guard_node_id = child;
+                }
+            }
+        }
+        return guard_node_id;
+    }
+
+    private static int[] to_int_array(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Interns predicates into nodes (used only while compiling).
+     */
+    private static class Compiler {
+
+        final HashMap<HeaderPredicate, Integer> node_ids = new HashMap<>();
+        final ArrayList<HeaderPredicate> predicates = new ArrayList<>();
+        final ArrayList<Integer> kinds = new ArrayList<>();
+        final ArrayList<int[]> children = new ArrayList<>();
+        final ArrayList<Integer> equals_groups = new ArrayList<>();
+        final HashMap<String, Integer> equals_group_ids = new HashMap<>();
+        final ArrayList<String> equals_group_header_names = new ArrayList<>();
+        final ArrayList<HashMap<Object, Integer>> equals_group_node_ids = new ArrayList<>();
+
+        int intern(HeaderPredicate predicate) {
+            Integer node_id = node_ids.get(predicate);
+            if (node_id != null) {
+                return node_id;
+            }
+
+            // Children first (so they get smaller ids)
+            List<HeaderPredicate> predicate_children = predicate.get_children();
+            int[] children_node_ids = new int[predicate_children.size()];
+            for (int i = 0; i < children_node_ids.length; i++) {
+                children_node_ids[i] = intern(predicate_children.get(i));
+            }
+
+            int kind;
+            int equals_group = -1;
+            if (predicate instanceof HeaderPredicate.And) {
+                kind = KIND_AND;
+            } else if (predicate instanceof HeaderPredicate.Or) {
+                kind = KIND_OR;
+            } else if (predicate instanceof HeaderPredicate.Not) {
+                kind = KIND_NOT;
+            } else if (predicate instanceof HeaderPredicate.HeaderEquals) {
+                kind = KIND_EQUALS;
+                String header_name = ((HeaderPredicate.HeaderEquals) predicate).get_header_name();
+                Integer group = equals_group_ids.get(header_name);
+                if (group == null) {
+                    group = equals_group_header_names.size();
+                    equals_group_ids.put(header_name, group);
+                    equals_group_header_names.add(header_name);
+                    equals_group_node_ids.add(new HashMap<>());
+                }
+                equals_group = group;
+            } else {
+                kind = KIND_LEAF;
+            }
+
+            node_id = predicates.size();
+            predicates.add(predicate);
+            kinds.add(kind);
+            children.add(children_node_ids);
+            equals_groups.add(equals_group);
+            if (kind == KIND_EQUALS) {
+                equals_group_node_ids.get(equals_group).put(((HeaderPredicate.HeaderEquals) predicate).get_value(), node_id);
+            }
+            node_ids.put(predicate, node_id);
+            return node_id;
+        }
+    }
+
+    /**
+     * Collect subscribers of all the matching predicates.
+     *
+     * @param message
+     * @param collector found subscribers are added here
+     * @return number of evaluated nodes
+     */
+    public int match(Message message, List<SubscriberDetails> collector) {
+        EvaluationContext context = evaluation_context.get();
+        context.generation++;
+        if (context.generation == 0) {
+            // Wrapped around (after ~4 billion messages), stale stamps could look valid again
+            Arrays.fill(context.node_stamps, 0);
+            Arrays.fill(context.equals_group_stamps, 0);
+            context.generation = 1;
+        }
+        context.evaluated_nodes_count = 0;
+
+        for (int root_index : unguarded_root_indexes) {
+            match_root(root_index, message, context, collector);
+        }
+        for (int group : guarding_equals_groups) {
+            int matched_node_id = evaluate_equals_group(group, message, context);
+            if (matched_node_id >= 0 && guarded_root_indexes[matched_node_id] != null) {
+                for (int root_index : guarded_root_indexes[matched_node_id]) {
+                    match_root(root_index, message, context, collector);
+                }
+            }
+        }
+
+        evaluated_nodes_histogram.record(context.evaluated_nodes_count);
+        return context.evaluated_nodes_count;
+    }
+
+    private void match_root(int root_index, Message message, EvaluationContext context, List<SubscriberDetails> collector) {
+        if (evaluate(root_node_ids[root_index], message, context)) {
+            for (SubscriberDetails subscriber_details : root_subscribers[root_index]) {
+                subscriber_details.subscription_matcher.increment_stats("match_found_count");
+                collector.add(subscriber_details);
+            }
+        }
+    }
+
+    /**
+     * Evaluate all the equals leaves of the given group at once: one header
+     * get + one hash lookup (done once per message).
+     *
+     * @return id of the only matching equals leaf or -1 if none matched
+     */
+    private int evaluate_equals_group(int group, Message message, EvaluationContext context) {
+        if (context.equals_group_stamps[group] != context.generation) {
+            Object header_value = message.headers.get(equals_group_header_names[group]);
+            Integer matched_node_id = header_value == null ? null : equals_group_node_ids.get(group).get(header_value);
+            context.equals_group_matched_node_ids[group] = matched_node_id == null ? -1 : matched_node_id;
+            context.equals_group_stamps[group] = context.generation;
+            context.evaluated_nodes_count++;
+        }
+        return context.equals_group_matched_node_ids[group];
+    }
+
+    private boolean evaluate(int node_id, Message message, EvaluationContext context) {
+        if (node_kinds[node_id] == KIND_EQUALS) {
+            // No memo needed for the equals leaves, their group is evaluated once per message
+            return evaluate_equals_group(node_equals_group[node_id], message, context) == node_id;
+        }
+        if (context.node_stamps[node_id] == context.generation) {
+            return context.node_values[node_id];
+        }
+        context.evaluated_nodes_count++;
+
+        boolean value;
+        int[] children = node_children[node_id];
+        switch (node_kinds[node_id]) {
+            case KIND_AND:
+                value = true;
+                for (int child : children) {
+                    if (!evaluate(child, message, context)) {
+                        value = false;
+                        break;
+                    }
+                }
+                break;
+            case KIND_OR:
+                value = false;
+                for (int child : children) {
+                    if (evaluate(child, message, context)) {
+                        value = true;
+                        break;
+                    }
+                }
+                break;
+            case KIND_NOT:
+                value = !evaluate(children[0], message, context);
+                break;
+            default:
+                value = node_predicates[node_id].test(message);
+        }
+
+        context.node_values[node_id] = value;
+        context.node_stamps[node_id] = context.generation;
+        return value;
+    }
+
+    public int get_nodes_count() {
+        return node_kinds.length;
+    }
+
+    public int get_roots_count() {
+        return root_node_ids.length;
+    }
+
+    public int get_unguarded_roots_count() {
+        return unguarded_root_indexes.length;
+    }
+
+    public int get_equals_groups_count() {
+        return equals_group_header_names.length;
+    }
+
+    public int get_subscriptions_count() {
+        return subscriptions_count;
+    }
+}
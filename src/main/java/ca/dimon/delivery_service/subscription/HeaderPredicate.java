@@ -0,0 +1,481 @@
+package ca.dimon.delivery_service.subscription;
+
+import ca.dimon.delivery_service.message.Message;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <pre>
+ * Declarative predicate over the message headers (see PredicateMatcher). Unlike the opaque
+ * IMatcher lambdas, predicates are plain values: two predicates built the same way are equal()
+ * and have the same hashCode(), so the DeliveryService can intern them and evaluate each
+ * distinct (sub-)predicate only once per message, no matter how many subscriptions use it
+ * (see CompiledPredicateSet).
+ *
+ * Available predicates (static factories):
+ *   - header_equals("to", "/scanners")                    header value equals given value
+ *   - header_in("symbol", "AAPL", "MSFT")                 header value is one of the given values
+ *   - header_prefix("to", "/md/")                         String header value starts with given prefix
+ *   - header_range("price", 10, 20)                       Number header value is within [min, max]
+ *   - header_exists("transaction_id")                     header is present (not null)
+ *   - and(...), or(...), not(...)                         combine other predicates
+ *   - lambda(matcher)                                     raw IMatcher lambda as a leaf predicate
+ *                                                         (compared by reference, so re-use the same
+ *                                                         IMatcher instance to share it)
+ *
+ * Usage example:
+ *     HeaderPredicate is_publish = HeaderPredicate.header_equals("mime_type", MessageHeaderMimeType.PUBLISH);
+ *     subscribe(new PredicateMatcher(HeaderPredicate.and(is_publish, HeaderPredicate.header_prefix("to", "/md/"))), "market data");
+ *
+ * </pre>
+ */
+public abstract class HeaderPredicate {
+
+    /**
+     * Evaluate this predicate (and all its children, if any) on the given
+     * message.
+     *
+     * @param message
+     * @return
+     */
+    public abstract boolean test(Message message);
+
+    /**
+     * @return child predicates of and/or/not, empty list for the leaf
+     * predicates
+     */
+    public List<HeaderPredicate> get_children() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Check if this predicate (with all its children) only looks at the
+     * given headers. Lambda leaves are opaque, so they never do.
+     *
+     * @param header_names
+     * @return
+     */
+    public abstract boolean depends_only_on(Set<String> header_names);
+
+    // ----------------------------------- static factories -----------------------------------
+    //
+    public static HeaderPredicate header_equals(String header_name, Object value) {
+        return new HeaderEquals(header_name, value);
+    }
+
+    public static HeaderPredicate header_in(String header_name, Object... values) {
+        return new HeaderIn(header_name, values);
+    }
+
+    public static HeaderPredicate header_prefix(String header_name, String prefix) {
+        return new HeaderPrefix(header_name, prefix);
+    }
+
+    public static HeaderPredicate header_range(String header_name, double min, double max) {
+        return new HeaderRange(header_name, min, max);
+    }
+
+    public static HeaderPredicate header_exists(String header_name) {
+        return new HeaderExists(header_name);
+    }
+
+    public static HeaderPredicate and(HeaderPredicate... children) {
+        return new And(children);
+    }
+
+    public static HeaderPredicate or(HeaderPredicate... children) {
+        return new Or(children);
+    }
+
+    public static HeaderPredicate not(HeaderPredicate child) {
+        return new Not(child);
+    }
+
+    public static HeaderPredicate lambda(IMatcher matcher) {
+        return new Lambda(matcher);
+    }
+
+    // ----------------------------------- leaf predicates -----------------------------------
+    //
+    public static final class HeaderEquals extends HeaderPredicate {
+
+        private final String header_name;
+        private final Object value;
+
+        private HeaderEquals(String header_name, Object value) {
+            this.header_name = Objects.requireNonNull(header_name);
+            this.value = Objects.requireNonNull(value);
+        }
+
+        public String get_header_name() {
+            return header_name;
+        }
+
+        public Object get_value() {
+            return value;
+        }
+
+        @Override
+        public boolean test(Message message) {
+            return value.equals(message.headers.get(header_name));
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return header_names.contains(header_name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof HeaderEquals
+                    && header_name.equals(((HeaderEquals) other).header_name)
+                    && value.equals(((HeaderEquals) other).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * header_name.hashCode() + value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return header_name + " == " + value;
+        }
+    }
+
+    public static final class HeaderIn extends HeaderPredicate {
+
+        private final String header_name;
+        private final HashSet<Object> values;
+
+        private HeaderIn(String header_name, Object[] values) {
+            this.header_name = Objects.requireNonNull(header_name);
+            this.values = new HashSet<>(Arrays.asList(values));
+        }
+
+        @Override
+        public boolean test(Message message) {
+            Object header_value = message.headers.get(header_name);
+            return header_value != null && values.contains(header_value);
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return header_names.contains(header_name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof HeaderIn
+                    && header_name.equals(((HeaderIn) other).header_name)
+                    && values.equals(((HeaderIn) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return 37 * header_name.hashCode() + values.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return header_name + " in " + values;
+        }
+    }
+
+    public static final class HeaderPrefix extends HeaderPredicate {
+
+        private final String header_name;
+        private final String prefix;
+
+        private HeaderPrefix(String header_name, String prefix) {
+            this.header_name = Objects.requireNonNull(header_name);
+            this.prefix = Objects.requireNonNull(prefix);
+        }
+
+        @Override
+        public boolean test(Message message) {
+            Object header_value = message.headers.get(header_name);
+            return header_value instanceof String && ((String) header_value).startsWith(prefix);
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return header_names.contains(header_name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof HeaderPrefix
+                    && header_name.equals(((HeaderPrefix) other).header_name)
+                    && prefix.equals(((HeaderPrefix) other).prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return 41 * header_name.hashCode() + prefix.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return header_name + " starts with " + prefix;
+        }
+    }
+
+    public static final class HeaderRange extends HeaderPredicate {
+
+        private final String header_name;
+        private final double min;
+        private final double max;
+
+        private HeaderRange(String header_name, double min, double max) {
+            this.header_name = Objects.requireNonNull(header_name);
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public boolean test(Message message) {
+            Object header_value = message.headers.get(header_name);
+            if (!(header_value instanceof Number)) {
+                return false;
+            }
+            double number = ((Number) header_value).doubleValue();
+            return number >= min && number <= max;
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return header_names.contains(header_name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof HeaderRange
+                    && header_name.equals(((HeaderRange) other).header_name)
+                    && Double.compare(min, ((HeaderRange) other).min) == 0
+                    && Double.compare(max, ((HeaderRange) other).max) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(header_name, min, max);
+        }
+
+        @Override
+        public String toString() {
+            return header_name + " in [" + min + ", " + max + "]";
+        }
+    }
+
+    public static final class HeaderExists extends HeaderPredicate {
+
+        private final String header_name;
+
+        private HeaderExists(String header_name) {
+            this.header_name = Objects.requireNonNull(header_name);
+        }
+
+        @Override
+        public boolean test(Message message) {
+            return message.headers.get(header_name) != null;
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return header_names.contains(header_name);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof HeaderExists && header_name.equals(((HeaderExists) other).header_name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 43 * header_name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "exists " + header_name;
+        }
+    }
+
+    public static final class Lambda extends HeaderPredicate {
+
+        private final IMatcher matcher;
+
+        private Lambda(IMatcher matcher) {
+            this.matcher = Objects.requireNonNull(matcher);
+        }
+
+        @Override
+        public boolean test(Message message) {
+            return Boolean.TRUE.equals(matcher.match(message));
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            // Lambdas are opaque, the best we can do is to compare them by reference
+            return other instanceof Lambda && matcher == ((Lambda) other).matcher;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(matcher);
+        }
+
+        @Override
+        public String toString() {
+            return "lambda " + matcher;
+        }
+    }
+
+    // ----------------------------------- combinators -----------------------------------
+    //
+    public static final class And extends HeaderPredicate {
+
+        private final List<HeaderPredicate> children;
+
+        private And(HeaderPredicate[] children) {
+            this.children = Collections.unmodifiableList(Arrays.asList(children.clone()));
+        }
+
+        @Override
+        public boolean test(Message message) {
+            for (HeaderPredicate child : children) {
+                if (!child.test(message)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public List<HeaderPredicate> get_children() {
+            return children;
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            for (HeaderPredicate child : children) {
+                if (!child.depends_only_on(header_names)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof And && children.equals(((And) other).children);
+        }
+
+        @Override
+        public int hashCode() {
+            return 47 * children.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "and" + children;
+        }
+    }
+
+    public static final class Or extends HeaderPredicate {
+
+        private final List<HeaderPredicate> children;
+
+        private Or(HeaderPredicate[] children) {
+            this.children = Collections.unmodifiableList(Arrays.asList(children.clone()));
+        }
+
+        @Override
+        public boolean test(Message message) {
+            for (HeaderPredicate child : children) {
+                if (child.test(message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public List<HeaderPredicate> get_children() {
+            return children;
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            for (HeaderPredicate child : children) {
+                if (!child.depends_only_on(header_names)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Or && children.equals(((Or) other).children);
+        }
+
+        @Override
+        public int hashCode() {
+            return 53 * children.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "or" + children;
+        }
+    }
+
+    public static final class Not extends HeaderPredicate {
+
+        private final HeaderPredicate child;
+
+        private Not(HeaderPredicate child) {
+            this.child = Objects.requireNonNull(child);
+        }
+
+        @Override
+        public boolean test(Message message) {
+            return !child.test(message);
+        }
+
+        @Override
+        public List<HeaderPredicate> get_children() {
+            return Collections.singletonList(child);
+        }
+
+        @Override
+        public boolean depends_only_on(Set<String> header_names) {
+            return child.depends_only_on(header_names);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Not && child.equals(((Not) other).child);
+        }
+
+        @Override
+        public int hashCode() {
+            return 59 * child.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "not(" + child + ")";
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ca.dimon.delivery_service.subscription;
+
+/**
+ * <pre>
+ * Gets notified about every change of the DeliveryService subscriptions_common table (subscribe,
+ * unsubscribe, expiration), see DeliveryService.add_subscription_listener().
+ *
+ * Both methods are called while the DeliveryService holds its subscriptions lock, so they must be
+ * quick and must not (un)subscribe anything themselves.
+ *
+ * </pre>
+ */
+public interface ISubscriptionListener {
+
+    void on_subscribed(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details);
+
+    void on_unsubscribed(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details);
+}
@@ -0,0 +1,40 @@
+package ca.dimon.delivery_service.subscription;
+
+/**
+ * <pre>
+ * Subscription defined by a declarative HeaderPredicate instead of an opaque lambda.
+ * The DeliveryService compiles all the PredicateMatcher subscriptions into one shared
+ * CompiledPredicateSet, so equal (sub-)predicates used by many subscriptions are evaluated
+ * once per message.
+ *
+ * Usage example:
+ *     subscribe(new PredicateMatcher(HeaderPredicate.and(
+ *             HeaderPredicate.header_equals("mime_type", MessageHeaderMimeType.PUBLISH),
+ *             HeaderPredicate.header_in("symbol", "AAPL", "MSFT"))), "AAPL and MSFT publishes");
+ *
+ * </pre>
+ */
+public class PredicateMatcher extends SubscriptionMatcher {
+
+    private final HeaderPredicate predicate;
+
+    public PredicateMatcher(HeaderPredicate predicate) {
+        // The lambda is still here, so the matcher works just like any other one (if called directly).
+        super(message -> predicate.test(message));
+        this.predicate = predicate;
+    }
+
+    public HeaderPredicate get_predicate() {
+        return predicate;
+    }
+
+    @Override
+    public boolean depends_only_on_routing_headers() {
+        return predicate.depends_only_on(ROUTING_HEADERS);
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (" + predicate + ")";
+    }
+}
@@ -1,6 +1,8 @@
 package ca.dimon.delivery_service.subscription;
 
+import ca.dimon.delivery_service.common.HashedTimerWheel;
 import ca.dimon.delivery_service.transport.Transport;
+import java.util.Arrays;
 import java.util.HashMap;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
 
@@ -42,6 +44,10 @@ public class SubscriberDetails {
     // Set value to null or to zero to indicate "no expiration" subscriptions.
     public Long expiration_epoch_ms;
 
+    // If expiration_epoch_ms is set, then DeliveryService tracks it in its timer wheel and keeps
+    // the wheel timeout here (so it can be cancelled on unsubscribe).
+    public volatile HashedTimerWheel.Timeout expiration_timeout;
+
     public SubscriptionMatcher subscription_matcher;
     public String description = null; // only useful for debug and/or educational purposes.. if set it might be used to tell (otherwise looking very similarly) subscriptions apart :)
 
@@ -120,4 +126,52 @@ public class SubscriberDetails {
             return null;
         }
     }
+
+    /**
+     * Copy-on-write helper: return a new array with given subscriber_details
+     * appended to the end of the given array (which can be null).
+     *
+     * @param array
+     * @param subscriber_details
+     * @return
+     */
+    public static SubscriberDetails[] array_append(SubscriberDetails[] array, SubscriberDetails subscriber_details) {
+        if (array == null) {
+            return new SubscriberDetails[]{subscriber_details};
+        }
+        SubscriberDetails[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = subscriber_details;
+        return result;
+    }
+
+    /**
+     * Copy-on-write helper: return a new array without given
+     * subscriber_details (compared by reference) or null if nothing left.
+     *
+     * @param array
+     * @param subscriber_details
+     * @return
+     */
+    public static SubscriberDetails[] array_remove(SubscriberDetails[] array, SubscriberDetails subscriber_details) {
+        if (array == null) {
+            return null;
+        }
+        int index = -1;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == subscriber_details) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return array;
+        }
+        if (array.length == 1) {
+            return null;
+        }
+        SubscriberDetails[] result = new SubscriberDetails[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
 }
@@ -2,6 +2,10 @@ package ca.dimon.delivery_service.subscription;
 
 import ca.dimon.delivery_service.message.Message;
 import ca.dimon.delivery_service.common.ManagedObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * <pre>
@@ -25,6 +29,13 @@ public class SubscriptionMatcher extends ManagedObject {
     // Lambda (passed via constructor) will be stored here:
     private IMatcher lambda_matcher_function;
 
+    // The "routing headers": the route cache (see DeliveryService.enable_route_cache()) keys resolved
+    // subscriber lists by these headers, so it can only be used when all the matchers look at nothing else.
+    public static final Set<String> ROUTING_HEADERS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("to", "mime_type")));
+
+    // Set to true if the lambda only looks at the ROUTING_HEADERS (see depends_only_on_routing_headers())
+    private final boolean depends_only_on_routing_headers;
+
     /**
      * Constructor accepts lambda, which takes argument and return some value as
      * defined in IMatcher
@@ -32,8 +43,35 @@ public class SubscriptionMatcher extends ManagedObject {
      * @param lambda_matcher_function
      */
     public SubscriptionMatcher(IMatcher lambda_matcher_function) {
+        this(lambda_matcher_function, false);
+    }
+
+    /**
+     * Same as SubscriptionMatcher(lambda), but lets the caller declare that
+     * the given lambda decides only by the ROUTING_HEADERS ("to" and
+     * "mime_type"). Example:
+     *
+     *     new SubscriptionMatcher(message -&gt; message.headers.get("to").toString().endsWith("/quotes"), true);
+     *
+     * @param lambda_matcher_function
+     * @param depends_only_on_routing_headers
+     */
+    public SubscriptionMatcher(IMatcher lambda_matcher_function, boolean depends_only_on_routing_headers) {
         // Simply store given lambda.
         this.lambda_matcher_function = lambda_matcher_function;
+        this.depends_only_on_routing_headers = depends_only_on_routing_headers;
+    }
+
+    /**
+     * If true, then match(message) result depends only on the message
+     * ROUTING_HEADERS, so the result for one message is also valid for every
+     * other message with the same routing headers (see
+     * DeliveryService.enable_route_cache()).
+     *
+     * @return
+     */
+    public boolean depends_only_on_routing_headers() {
+        return depends_only_on_routing_headers;
     }
 
     /**
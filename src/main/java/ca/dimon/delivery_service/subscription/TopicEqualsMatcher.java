@@ -0,0 +1,43 @@
+package ca.dimon.delivery_service.subscription;
+
+/**
+ * <pre>
+ * The most common subscription of all: "deliver me all the messages sent to this topic",
+ * which is the same as the lambda matcher:
+ *
+ *     new SubscriptionMatcher(message -> message.headers.get("to").equals("/scanners"));
+ *
+ * but declarative, so the DeliveryService does not have to call it for every message.
+ * Instead it keeps all TopicEqualsMatcher subscriptions in a hash index (topic -> subscribers)
+ * and finds them with a single O(1) lookup by the message "to" header. Only "opaque"
+ * lambda matchers are still evaluated one by one.
+ *
+ * Usage example:
+ *     subscribe(new TopicEqualsMatcher("/scanners"), "/scanners");
+ *
+ * </pre>
+ */
+public class TopicEqualsMatcher extends SubscriptionMatcher {
+
+    private final String topic;
+
+    public TopicEqualsMatcher(String topic) {
+        // The lambda is still here, so the matcher works just like any other one (if called directly).
+        super(message -> topic.equals(message.header_get_to()));
+        this.topic = topic;
+    }
+
+    public String get_topic() {
+        return topic;
+    }
+
+    @Override
+    public boolean depends_only_on_routing_headers() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (to == " + topic + ")";
+    }
+}
@@ -0,0 +1,182 @@
+package ca.dimon.delivery_service.subscription;
+
+import ca.dimon.delivery_service.common.Histogram;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <pre>
+ * Topic trie for the wildcard subscriptions (see TopicWildcardMatcher). Each trie node
+ * is one topic level, example: patterns "/md/#" and "/md/*&#47;quotes" give us:
+ *
+ *     (root) -> "" -> "md" -> [#: subscribers of "/md/#"]
+ *                          -> "*" -> "quotes" -> [subscribers of "/md/*&#47;quotes"]
+ *
+ * Matching a topic walks the trie level by level, following both the exact child and
+ * the "*" child, and collecting "#" subscribers on the way, so the cost is O(depth)
+ * (times the number of "*" branches) and does not depend on the number of subscriptions.
+ *
+ * Changes (add/remove) are synchronized, match() is lock-free: children maps are
+ * concurrent and subscriber lists are copy-on-write arrays.
+ *
+ * </pre>
+ */
+public class TopicTrie {
+
+    private static class Node {
+
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+
+        // Subscribers whose pattern ends exactly at this node
+        volatile SubscriberDetails[] subscribers = null;
+
+        // Subscribers whose pattern ends with "#" right after this node
+        volatile SubscriberDetails[] multi_level_subscribers = null;
+
+        boolean is_empty() {
+            return children.isEmpty() && subscribers == null && multi_level_subscribers == null;
+        }
+    }
+
+    private final Node root = new Node();
+    private volatile int node_count = 1;
+    private volatile int subscriptions_count = 0;
+
+    // Number of trie nodes visited per match() call
+    private final Histogram match_depth_histogram = new Histogram("topic_trie_match_visited_nodes");
+
+    /**
+     * Add subscription for the given pattern (already split into levels, see
+     * TopicWildcardMatcher.get_pattern_levels()).
+     *
+     * @param pattern_levels
+     * @param subscriber_details
+     */
+    public synchronized void add(String[] pattern_levels, SubscriberDetails subscriber_details) {
+        Node node = root;
+        for (String level : pattern_levels) {
+            if (level.equals(TopicWildcardMatcher.MULTI_LEVEL_WILDCARD)) {
+                node.multi_level_subscribers = SubscriberDetails.array_append(node.multi_level_subscribers, subscriber_details);
+                subscriptions_count++;
+                return;
+            }
+            Node child = node.children.get(level);
+            if (child == null) {
+                child = new Node();
+                node.children.put(level, child);
+                node_count++;
+            }
+            node = child;
+        }
+        node.subscribers = SubscriberDetails.array_append(node.subscribers, subscriber_details);
+        subscriptions_count++;
+    }
+
+    /**
+     * Remove subscription (added before with the same pattern levels) and
+     * prune the nodes which became empty.
+     *
+     * @param pattern_levels
+     * @param subscriber_details
+     * @return true if found and removed
+     */
+    public synchronized boolean remove(String[] pattern_levels, SubscriberDetails subscriber_details) {
+        return remove(root, pattern_levels, 0, subscriber_details);
+    }
+
+    private boolean remove(Node node, String[] pattern_levels, int level_index, SubscriberDetails subscriber_details) {
+        if (level_index == pattern_levels.length || pattern_levels[level_index].equals(TopicWildcardMatcher.MULTI_LEVEL_WILDCARD)) {
+            boolean is_multi_level = level_index < pattern_levels.length;
+            SubscriberDetails[] before = is_multi_level ? node.multi_level_subscribers : node.subscribers;
+            SubscriberDetails[] after = SubscriberDetails.array_remove(before, subscriber_details);
+            if (after == before) {
+                return false;
+            }
+            if (is_multi_level) {
+                node.multi_level_subscribers = after;
+            } else {
+                node.subscribers = after;
+            }
+            subscriptions_count--;
+            return true;
+        }
+
+        String level = pattern_levels[level_index];
+        Node child = node.children.get(level);
+        if (child == null) {
+            return false;
+        }
+        boolean removed = remove(child, pattern_levels, level_index + 1, subscriber_details);
+        if (removed && child.is_empty()) {
+            node.children.remove(level);
+            node_count--;
+        }
+        return removed;
+    }
+
+    /**
+     * Collect all the subscribers whose pattern matches the given topic.
+     *
+     * @param topic
+     * @param collector found subscribers are added here
+     * @return number of visited trie nodes
+     */
+    public int match(String topic, List<SubscriberDetails> collector) {
+        int visited_nodes_count = match(root, topic, 0, collector);
+        match_depth_histogram.record(visited_nodes_count);
+        return visited_nodes_count;
+    }
+
+    private int match(Node node, String topic, int level_start, List<SubscriberDetails> collector) {
+        int visited_nodes_count = 1;
+
+        // "#" after this node matches the rest of the topic (including "nothing")
+        add_all(node.multi_level_subscribers, collector);
+
+        if (level_start > topic.length()) {
+            // No more levels in the topic - the pattern must end exactly here
+            add_all(node.subscribers, collector);
+            return visited_nodes_count;
+        }
+
+        int level_end = topic.indexOf('/', level_start);
+        if (level_end < 0) {
+            level_end = topic.length();
+        }
+
+        Node child = node.children.get(topic.substring(level_start, level_end));
+        if (child != null) {
+            visited_nodes_count += match(child, topic, level_end + 1, collector);
+        }
+        Node single_level_wildcard_child = node.children.get(TopicWildcardMatcher.SINGLE_LEVEL_WILDCARD);
+        if (single_level_wildcard_child != null && single_level_wildcard_child != child) {
+            visited_nodes_count += match(single_level_wildcard_child, topic, level_end + 1, collector);
+        }
+        return visited_nodes_count;
+    }
+
+    private static void add_all(SubscriberDetails[] subscribers, List<SubscriberDetails> collector) {
+        if (subscribers != null) {
+            for (SubscriberDetails subscriber_details : subscribers) {
+                subscriber_details.subscription_matcher.increment_stats("match_found_count");
+                collector.add(subscriber_details);
+            }
+        }
+    }
+
+    public boolean is_empty() {
+        return subscriptions_count == 0;
+    }
+
+    public int get_node_count() {
+        return node_count;
+    }
+
+    public int get_subscriptions_count() {
+        return subscriptions_count;
+    }
+
+    public Histogram get_match_depth_histogram() {
+        return match_depth_histogram;
+    }
+}
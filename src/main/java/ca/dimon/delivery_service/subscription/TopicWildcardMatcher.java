@@ -0,0 +1,97 @@
+package ca.dimon.delivery_service.subscription;
+
+/**
+ * <pre>
+ * MQTT/NATS-style wildcard subscription on the "to" header. Topic levels are separated
+ * by "/" and the pattern can use 2 wildcards:
+ *   - "*" matches exactly one level:     "/md/*&#47;quotes" matches "/md/AAPL/quotes"
+ *   - "#" matches any number of levels (including zero), allowed only as the last level:
+ *                                         "/md/#" matches "/md", "/md/AAPL", "/md/AAPL/quotes" etc.
+ *
+ * The DeliveryService keeps all TopicWildcardMatcher subscriptions in a topic trie
+ * (see TopicTrie), so a publish to "/md/AAPL/quotes" walks O(depth) trie nodes instead
+ * of calling every matcher lambda.
+ *
+ * Usage example:
+ *     subscribe(new TopicWildcardMatcher("/md/#"), "all market data");
+ *
+ * </pre>
+ */
+public class TopicWildcardMatcher extends SubscriptionMatcher {
+
+    public static final String SINGLE_LEVEL_WILDCARD = "*";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final String pattern;
+    private final String[] pattern_levels;
+
+    public TopicWildcardMatcher(String pattern) {
+        this(pattern, split_levels(pattern));
+    }
+
+    private TopicWildcardMatcher(String pattern, String[] pattern_levels) {
+        // The lambda is still here, so the matcher works just like any other one (if called directly).
+        super(message -> {
+            String to = message.header_get_to();
+            return to != null && topic_matches(pattern_levels, to);
+        });
+        for (int i = 0; i < pattern_levels.length - 1; i++) {
+            if (pattern_levels[i].equals(MULTI_LEVEL_WILDCARD)) {
+                throw new IllegalArgumentException("TopicWildcardMatcher: multi-level wildcard \"#\" is only allowed as the last level, pattern: " + pattern);
+            }
+        }
+        this.pattern = pattern;
+        this.pattern_levels = pattern_levels;
+    }
+
+    public String get_pattern() {
+        return pattern;
+    }
+
+    public String[] get_pattern_levels() {
+        return pattern_levels;
+    }
+
+    /**
+     * Split topic (or pattern) into levels: "/md/AAPL" -> ["", "md", "AAPL"]
+     *
+     * @param topic
+     * @return
+     */
+    public static String[] split_levels(String topic) {
+        return topic.split("/", -1);
+    }
+
+    /**
+     * Check if the topic matches the pattern (given as already split levels).
+     *
+     * @param pattern_levels
+     * @param topic
+     * @return
+     */
+    public static boolean topic_matches(String[] pattern_levels, String topic) {
+        String[] topic_levels = split_levels(topic);
+        for (int i = 0; i < pattern_levels.length; i++) {
+            if (pattern_levels[i].equals(MULTI_LEVEL_WILDCARD)) {
+                return true;
+            }
+            if (i >= topic_levels.length) {
+                return false;
+            }
+            if (!pattern_levels[i].equals(SINGLE_LEVEL_WILDCARD) && !pattern_levels[i].equals(topic_levels[i])) {
+                return false;
+            }
+        }
+        return pattern_levels.length == topic_levels.length;
+    }
+
+    @Override
+    public boolean depends_only_on_routing_headers() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (to ~ " + pattern + ")";
+    }
+}
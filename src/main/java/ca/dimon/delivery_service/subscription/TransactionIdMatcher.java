@@ -0,0 +1,30 @@
+package ca.dimon.delivery_service.subscription;
+
+/**
+ * <pre>
+ * Matcher for the "subscriptions_transactions" table: matches the response messages
+ * with the given "transaction_id" header. It is declarative (keeps the transaction_id),
+ * so the DeliveryService routes responses through a direct transaction_id -> SubscriberDetails
+ * map instead of calling every matcher in the table until the right one is found.
+ *
+ * </pre>
+ */
+public class TransactionIdMatcher extends SubscriptionMatcher {
+
+    private final String transaction_id;
+
+    public TransactionIdMatcher(String transaction_id) {
+        // The lambda is still here, so the matcher works just like any other one (if called directly).
+        super(message -> transaction_id.equals(message.header_get_transaction_id()));
+        this.transaction_id = transaction_id;
+    }
+
+    public String get_transaction_id() {
+        return transaction_id;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (transaction_id == " + transaction_id + ")";
+    }
+}
@@ -0,0 +1,386 @@
+package ca.dimon.delivery_service.transport;
+
+import ca.dimon.delivery_service.DeliveryService;
+import ca.dimon.delivery_service.common.FunctionResult;
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.router.BackoffIdleStrategy;
+import ca.dimon.delivery_service.router.IdleStrategy;
+import ca.dimon.delivery_service.subscription.ISubscriptionListener;
+import ca.dimon.delivery_service.subscription.SubscriberDetails;
+import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
+import ca.dimon.delivery_service.subscription.TopicWildcardMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * <pre>
+ * Glues the AeronMessaging client / server with the DeliveryService routing tables:
+ *   - incoming: the text frames from the AeronMessaging message handler (on_private_message() /
+ *     on_all_clients_message()) are decoded by the RemotePeer of the session and routed locally
+ *   - outgoing: each RemotePeer subscribes (forward_matcher) for what the remote side should get,
+ *     the bridge thread drains the peers inboxes and hands the frames to the IRemoteFrameSender
+ *
+ * One RemotePeer per remote session: on the server side they show up with the first frame of each
+ * client session, on the client side there's one peer (SERVER_SESSION_ID), created right away.
+ * No peers are created (so nothing is routed into their inboxes) until the frame sender is set:
+ * the incoming frames are dropped till then (counted as "no_sender_dropped_frames_count").
+ * The server is the hub (is_hub): it relays the messages between its clients, the clients never
+ * send the remote messages back out (see RemotePeer).
+ *
+ * Interest propagation (see InterestSummary): the bridge listens to the local subscriptions changes
+ * (ISubscriptionListener) and sends each peer our interest summary (the full one right after the
+ * codec hello, then the deltas). Each peer only forwards what the remote summary might match, and
+ * everything until the remote side tells us what it is interested in (legacy peers never do). The
+ * hub advertises to each peer its own subscriptions plus the interest of all the other peers, so
+ * a client publish only goes through the hub if some other node is interested.
+ *
+ * </pre>
+ */
+public class AeronBridge extends ManagedObject implements Runnable, ISubscriptionListener {
+
+    // Session id of the server peer on the client side (the AeronMessaging client has one session)
+    public static final Integer SERVER_SESSION_ID = -1;
+
+    private final DeliveryService delivery_service;
+    private final boolean is_hub;
+    private final Supplier<SubscriptionMatcher> forward_matcher_factory;
+
+    private final ConcurrentHashMap<Integer, RemotePeer> peers = new ConcurrentHashMap<>();
+    // Peers snapshot for the bridge thread loop (rebuilt on every peer change)
+    private volatile RemotePeer[] peers_snapshot = new RemotePeer[0];
+
+    // Our own interest (local subscriptions, without the ones of the remote peers). All the interest changes
+    // (local and remote) and the peers_snapshot changes are done under interest_lock, so every peer gets
+    // every change exactly once.
+    private final InterestSummary local_interest;
+    private final Object interest_lock = new Object();
+
+    private volatile IRemoteFrameSender frame_sender = null;
+    private final IdleStrategy idle_strategy = new BackoffIdleStrategy();
+    private volatile boolean running = false;
+    private Thread bridge_thread;
+
+    /**
+     * @param uri
+     * @param delivery_service
+     * @param is_hub true on the server side (relays messages between the
+     * remote peers)
+     */
+    public AeronBridge(String uri, DeliveryService delivery_service, boolean is_hub) {
+        this(uri, delivery_service, is_hub, () -> new TopicWildcardMatcher(TopicWildcardMatcher.MULTI_LEVEL_WILDCARD));
+    }
+
+    /**
+     * @param uri
+     * @param delivery_service
+     * @param is_hub
+     * @param forward_matcher_factory creates the subscription (one instance
+     * per peer) for the messages to be forwarded to the peer, or returns null
+     * to forward only the messages addressed to the peer explicitly
+     */
+    public AeronBridge(String uri, DeliveryService delivery_service, boolean is_hub, Supplier<SubscriptionMatcher> forward_matcher_factory) {
+        this.delivery_service = delivery_service;
+        this.is_hub = is_hub;
+        this.forward_matcher_factory = forward_matcher_factory;
+        this.set_uri(uri);
+        this.local_interest = new InterestSummary(uri + "_local_interest", true);
+        delivery_service.add_subscription_listener(this);
+    }
+
+    public void set_frame_sender(IRemoteFrameSender frame_sender) {
+        this.frame_sender = frame_sender;
+        signal();
+    }
+
+    public IRemoteFrameSender get_frame_sender() {
+        return frame_sender;
+    }
+
+    public boolean is_hub() {
+        return is_hub;
+    }
+
+    public InterestSummary get_local_interest() {
+        return local_interest;
+    }
+
+    /**
+     * @param session_id
+     * @return the peer of the session (created on the first call), or null if
+     * the frame sender is not set yet (nothing could be sent to the peer)
+     */
+    public RemotePeer get_or_create_peer(Integer session_id) {
+        RemotePeer peer = peers.get(session_id);
+        if (peer != null) {
+            return peer;
+        }
+        if (frame_sender == null) {
+            return null;
+        }
+        synchronized (peers) {
+            peer = peers.get(session_id);
+            if (peer == null) {
+                peer = new RemotePeer(this, delivery_service, session_id, forward_matcher_factory.get());
+                synchronized (interest_lock) {
+                    // Our full summary goes right after the hello, the hub also includes the interest of the other peers
+                    List<InterestDelta> deltas = new ArrayList<>(local_interest.to_deltas());
+                    if (is_hub) {
+                        for (RemotePeer other_peer : peers_snapshot) {
+                            deltas.addAll(other_peer.get_remote_interest().to_deltas());
+                        }
+                        // ... and tells the other peers about the new one ("everything" until we hear from it)
+                        relay_interest(peer, peer.get_remote_interest().to_deltas());
+                    }
+                    peer.advertise(deltas, true);
+                    peers.put(session_id, peer);
+                    peers_snapshot = peers.values().toArray(new RemotePeer[0]);
+                }
+                this.increment_stats("peers_created_count");
+            }
+        }
+        signal();
+        return peer;
+    }
+
+    public RemotePeer get_peer(Integer session_id) {
+        return peers.get(session_id);
+    }
+
+    /**
+     * Forget the peer (the remote session is gone): nothing is forwarded to
+     * it any more.
+     *
+     * @param session_id
+     */
+    public void remove_peer(Integer session_id) {
+        synchronized (peers) {
+            RemotePeer peer = peers.remove(session_id);
+            if (peer == null) {
+                return;
+            }
+            synchronized (interest_lock) {
+                peers_snapshot = peers.values().toArray(new RemotePeer[0]);
+                if (is_hub) {
+                    relay_interest(peer, negate(peer.get_remote_interest().to_deltas()));
+                }
+            }
+            peer.close();
+            this.increment_stats("peers_removed_count");
+        }
+        signal();
+    }
+
+    /**
+     * Frame from the given remote session (AeronMessaging "private message").
+     *
+     * @param session_id
+     * @param text_frame
+     * @return
+     */
+    public FunctionResult on_private_message(Integer session_id, String text_frame) {
+        RemotePeer peer = get_or_create_peer(session_id);
+        if (peer == null) {
+            String error_details = "Error: AeronBridge " + get_uri() + ".on_private_message(): frame sender is not set, frame from session " + session_id + " dropped";
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("no_sender_dropped_frames_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        return peer.on_incoming_text_frame(text_frame);
+    }
+
+    /**
+     * Frame from the AeronMessaging shared ("all clients") channel, which is
+     * fed by the server.
+     *
+     * @param text_frame
+     * @return
+     */
+    public FunctionResult on_all_clients_message(String text_frame) {
+        return on_private_message(SERVER_SESSION_ID, text_frame);
+    }
+
+    /**
+     * Local subscription added: tell all the peers (subscriptions of the
+     * remote peers themselves are not our interest).
+     *
+     * @param subscription_matcher
+     * @param subscriber_details
+     */
+    @Override
+    public void on_subscribed(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
+        on_local_interest_changed(subscription_matcher, subscriber_details, 1);
+    }
+
+    @Override
+    public void on_unsubscribed(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details) {
+        on_local_interest_changed(subscription_matcher, subscriber_details, -1);
+    }
+
+    private void on_local_interest_changed(SubscriptionMatcher subscription_matcher, SubscriberDetails subscriber_details, int delta) {
+        if (subscriber_details.transport instanceof AeronTransport) {
+            return;
+        }
+        List<InterestDelta> deltas = local_interest.create_deltas(subscription_matcher, delta);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        synchronized (interest_lock) {
+            local_interest.apply(deltas);
+            for (RemotePeer peer : peers_snapshot) {
+                peer.advertise(deltas, false);
+            }
+        }
+        this.increment_stats("local_interest_changes_count");
+        signal();
+    }
+
+    /**
+     * Interest frame from the peer: update its summary and (on the hub) pass
+     * the change on to all the other peers.
+     *
+     * @param peer
+     * @param frame
+     * @return
+     */
+    FunctionResult on_remote_interest_frame(RemotePeer peer, byte[] frame) {
+        InterestSummary remote_interest = peer.get_remote_interest();
+        List<InterestDelta> deltas = new ArrayList<>();
+        boolean reset;
+        try {
+            reset = remote_interest.decode_frame(frame, deltas);
+        } catch (IllegalArgumentException ex) {
+            String error_details = "Error: AeronBridge " + get_uri() + ".on_remote_interest_frame(): malformed interest frame from " + peer.get_uri() + ": " + ex.getMessage();
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("on_remote_interest_frame_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        synchronized (interest_lock) {
+            List<InterestDelta> changes = new ArrayList<>();
+            if (reset) {
+                changes.addAll(negate(remote_interest.to_deltas()));
+                remote_interest.reset();
+            }
+            remote_interest.apply(deltas);
+            changes.addAll(deltas);
+            if (is_hub && peers.get(peer.get_session_id()) == peer) {
+                relay_interest(peer, changes);
+            }
+        }
+        this.increment_stats("interest_frames_received_count");
+        this.increment_stats("interest_deltas_received_count", deltas.size());
+        signal();
+        return new FunctionResult().set_success();
+    }
+
+    // Pass the interest change of the given peer on to all the other peers. Caller must hold interest_lock.
+    private void relay_interest(RemotePeer source_peer, List<InterestDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        for (RemotePeer peer : peers_snapshot) {
+            if (peer != source_peer) {
+                peer.advertise(deltas, false);
+            }
+        }
+        this.increment_stats("interest_deltas_relayed_count", deltas.size());
+    }
+
+    private static List<InterestDelta> negate(List<InterestDelta> deltas) {
+        ArrayList<InterestDelta> negated = new ArrayList<>(deltas.size());
+        for (InterestDelta delta : deltas) {
+            negated.add(delta.negate());
+        }
+        return negated;
+    }
+
+    /**
+     * One pass over all the peers (see RemotePeer.flush_outgoing()). Also
+     * drops the reassemblies of the big incoming messages which stalled (see
+     * FrameReassembler.expire_incomplete_if_due()), even if the peer sends
+     * nothing any more.
+     *
+     * @return work count
+     */
+    public int do_work() {
+        IRemoteFrameSender sender = frame_sender;
+        long now_epoch_ms = System.currentTimeMillis();
+        int work_count = 0;
+        for (RemotePeer peer : peers_snapshot) {
+            work_count += peer.flush_outgoing(sender, is_hub);
+            peer.get_aeron_transport().get_reassembler().expire_incomplete_if_due(now_epoch_ms);
+        }
+        return work_count;
+    }
+
+    /**
+     * Wake the bridge thread up (called by the peers right after enqueue()).
+     */
+    public void signal() {
+        idle_strategy.signal();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        bridge_thread = new Thread(this, get_uri());
+        bridge_thread.setDaemon(true);
+        bridge_thread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = bridge_thread;
+            bridge_thread = null;
+        }
+        signal();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            idle_strategy.idle(do_work());
+        }
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("peers_count", (long) peers.size());
+        return super.get_stats();
+    }
+
+    /**
+     * Visualize the bridge and per-peer stats (frames, suppressed messages,
+     * codecs, compression, fragmentation).
+     *
+     * @return
+     */
+    public String visualize() {
+        StringBuilder result = new StringBuilder();
+        result.append("----------------------------------------------[ " + get_uri() + " ]-------------------------------------------\n");
+        result.append((is_hub ? "hub" : "leaf") + ", sender " + (frame_sender != null ? "set" : "NOT set") + ", stats: " + get_stats() + "\n");
+        result.append(local_interest.get_uri()).append(": ").append(local_interest.get_stats()).append("\n");
+        for (RemotePeer peer : peers_snapshot) {
+            result.append(peer.get_uri()).append(": ").append(peer.get_stats()).append("\n");
+            result.append(peer.get_remote_interest().get_uri()).append(": ").append(peer.get_remote_interest().get_stats()).append("\n");
+            result.append(peer.get_aeron_transport().visualize_codec_stats());
+        }
+        result.append("-----------------------------------------------------------------------------------------------\n");
+        return result.toString();
+    }
+}
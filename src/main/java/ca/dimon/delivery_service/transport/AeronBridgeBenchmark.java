@@ -0,0 +1,112 @@
+package ca.dimon.delivery_service.transport;
+
+import ca.dimon.delivery_service.DeliveryService;
+import ca.dimon.delivery_service.codec.CodecSession;
+import ca.dimon.delivery_service.codec.MessageCodec;
+import ca.dimon.delivery_service.common.Histogram;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.subscription.TopicEqualsMatcher;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * End-to-end check and benchmark of the AeronBridge: the message published locally goes out through
+ * one remote peer (session 1) and comes back in through another one (session 2), so it makes the
+ * whole remote hop (routing, codec, fragmentation, text frames, decoding, routing again) in-process,
+ * without the media driver:
+ *
+ *     publisher -> routing -> peer 1 -> frame sender -> peer 2 -> routing -> subscriber
+ *
+ * The frames sent to session 2 are counted and dropped (they'd go to the remote node, which would
+ * not send them back anyway: the non-hub node never forwards the messages it got from the remote
+ * peers, see RemotePeer), except for the codec hello and interest summary frames, which go to
+ * peer 1.
+ *
+ * Every other message is published to NOISE_TOPIC, which nobody subscribes to: the interest
+ * summaries keep those off the wire (see "interest_suppressed_count" in the peer stats).
+ *
+ * Run it with:
+ *     java -cp target/delivery_service-0.1.0.jar ca.dimon.delivery_service.transport.AeronBridgeBenchmark [messages_count]
+ *
+ * Prints the hop latency histogram (publish to delivery, ns), the throughput and the bridge stats
+ * (including the batch frames histograms, see FrameBatcher).
+ * Exits with status 1 if not all the messages made it through the bridge.
+ *
+ * </pre>
+ */
+public class AeronBridgeBenchmark {
+
+    private static final String TOPIC = "/bench/ping";
+    private static final String NOISE_TOPIC = "/bench/noise";
+    private static final String SEND_NS_HEADER = "bench_send_ns";
+
+    // Codec hello and interest frames, but not the batches of messages (see FrameBatcher)
+    private static boolean is_negotiation_frame(byte[] frame) {
+        return frame.length > 1 && frame[0] == MessageCodec.CONTROL_CODEC_ID && frame[1] != CodecSession.CONTROL_BATCH;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages_count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        DeliveryService delivery_service = DeliveryService.get_singleton_instance(null);
+
+        AeronBridge bridge = new AeronBridge("aeron_bridge_benchmark", delivery_service, false);
+        AtomicLong dropped_frames_count = new AtomicLong();
+        bridge.set_frame_sender((session_id, frame) -> {
+            if (session_id == 1) {
+                bridge.on_private_message(2, frame);
+            } else if (is_negotiation_frame(AeronTextFrames.from_text(frame))) {
+                // Control frames of peer 2 (codec hello, interest summary) go to peer 1, so the pair negotiates the codec
+                // and peer 1 knows what peer 2 is interested in
+                bridge.on_private_message(1, frame);
+            } else {
+                dropped_frames_count.incrementAndGet();
+            }
+            return true;
+        });
+        bridge.get_or_create_peer(1);
+        bridge.get_or_create_peer(2);
+        bridge.start();
+
+        Transportable participant = new Transportable();
+        participant.set_uri("aeron_bridge_benchmark_participant");
+        participant.transport = delivery_service.create_new_transport(participant, TransportType.LOCAL);
+        participant.subscribe(new TopicEqualsMatcher(TOPIC), "benchmark");
+
+        Histogram hop_latency_ns = new Histogram("hop_latency_ns");
+        long start_ns = System.nanoTime();
+        long received_count = 0;
+        long deadline_ns = start_ns + 30_000_000_000L;
+        int published_count = 0;
+        while (received_count < messages_count && System.nanoTime() < deadline_ns) {
+            // Keep at most 1000 messages in flight
+            if (published_count < messages_count && published_count - received_count < 1000) {
+                Message message = Message.create_new_publish(participant.get_uri(), TOPIC, "ping " + published_count);
+                message.headers.put(SEND_NS_HEADER, System.nanoTime());
+                participant.publish(message);
+                participant.publish(Message.create_new_publish(participant.get_uri(), NOISE_TOPIC, "noise " + published_count));
+                published_count++;
+            }
+            Message message;
+            while ((message = participant.incoming_messages_queue.poll()) != null) {
+                // The local copy (origin == null) is not what we measure
+                if (message.get_origin_transport() != null) {
+                    Object send_ns = message.headers.get(SEND_NS_HEADER);
+                    if (send_ns instanceof Number) {
+                        hop_latency_ns.record(System.nanoTime() - ((Number) send_ns).longValue());
+                    }
+                    received_count++;
+                }
+                message.release();
+            }
+        }
+        long elapsed_ns = System.nanoTime() - start_ns;
+        bridge.stop();
+
+        System.out.println("published: " + published_count + ", received through the bridge: " + received_count
+                + ", data frames sent to session 2: " + dropped_frames_count.get());
+        System.out.println("throughput: " + (received_count * 1_000_000_000L / Math.max(elapsed_ns, 1)) + " messages/s");
+        System.out.println(hop_latency_ns.visualize());
+        System.out.println(bridge.visualize());
+        System.exit(received_count == messages_count ? 0 : 1);
+    }
+}
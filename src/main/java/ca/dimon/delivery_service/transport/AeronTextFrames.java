@@ -0,0 +1,48 @@
+package ca.dimon.delivery_service.transport;
+
+import ca.dimon.delivery_service.codec.JsonMessageCodec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * <pre>
+ * AeronMessaging client / server exchange Strings, while our frames (see MessageCodec) are bytes.
+ * Text form of the frame:
+ *   - json frames (first byte '{') go as is, so the legacy json peers and the debugging tools keep
+ *     reading them
+ *   - everything else (binary codec frames, fragments, control frames) goes as base64, which never
+ *     starts with '{'
+ *
+ * Base64 adds a third to the binary frames, they are still about half the size of the json ones.
+ *
+ * </pre>
+ */
+public final class AeronTextFrames {
+
+    private AeronTextFrames() {
+    }
+
+    public static String to_text(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        if (length > 0 && bytes[0] == JsonMessageCodec.CODEC_ID) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * @param text
+     * @return frame bytes
+     * @throws IllegalArgumentException if the text is neither json nor base64
+     */
+    public static byte[] from_text(String text) {
+        if (!text.isEmpty() && text.charAt(0) == JsonMessageCodec.CODEC_ID) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        return Base64.getDecoder().decode(text);
+    }
+}
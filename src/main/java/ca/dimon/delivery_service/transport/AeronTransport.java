@@ -1,10 +1,21 @@
 package ca.dimon.delivery_service.transport;
 
 import ca.dimon.delivery_service.DeliveryService;
+import ca.dimon.delivery_service.codec.BinaryMessageCodec;
+import ca.dimon.delivery_service.codec.BodyCompression;
+import ca.dimon.delivery_service.codec.CodecSession;
+import ca.dimon.delivery_service.codec.FrameBatcher;
+import ca.dimon.delivery_service.codec.FrameFragmenter;
+import ca.dimon.delivery_service.codec.FrameReassembler;
+import ca.dimon.delivery_service.codec.JsonMessageCodec;
+import ca.dimon.delivery_service.codec.MessageCodecRegistry;
 import ca.dimon.delivery_service.common.FunctionResult;
 import ca.dimon.delivery_service.message.Message;
 import ca.dimon.delivery_service.message.MessageHeaderMimeType;
 import ca.dimon.delivery_service.subscription.SubscriberDetails;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
@@ -41,8 +52,287 @@ import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
  */
 public class AeronTransport extends Transport {
 
+    // Codecs we can speak with the remote peer, most preferred first (json is the fallback every peer understands)
+    public static final byte[] DEFAULT_CODEC_IDS = {BinaryMessageCodec.CODEC_ID, JsonMessageCodec.CODEC_ID};
+
+    // Biggest message we encode for the remote peer (the encoding buffer grows up to this size)
+    public static final int MAX_ENCODED_MESSAGE_LENGTH = FrameReassembler.DEFAULT_MAX_MESSAGE_LENGTH;
+
+    // Per-session codec negotiation state (see CodecSession)
+    private final CodecSession codec_session;
+
+    // Big messages are sent as the fragments interleaved with the small ones and put back together on the receiving side
+    private final FrameFragmenter fragmenter;
+    private final FrameReassembler reassembler;
+
+    // Small frames are coalesced into the batch frames once the remote peer speaks our codecs (see FrameBatcher)
+    private final FrameBatcher batcher;
+
+    // Encoding buffer of queue_outgoing_message() (grows on demand)
+    private final ThreadLocal<ByteBuffer> encoding_buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
     public AeronTransport(Transportable client, DeliveryService delivery_service, TransportType transport_type) {
         super(client, delivery_service, transport_type);
+        codec_session = new CodecSession(get_uri() + "_codec_session", MessageCodecRegistry.get_default_registry(), DEFAULT_CODEC_IDS);
+        fragmenter = new FrameFragmenter(get_uri() + "_fragmenter");
+        reassembler = new FrameReassembler(get_uri() + "_reassembler");
+        batcher = new FrameBatcher(get_uri() + "_batcher", Math.min(FrameBatcher.DEFAULT_MAX_BATCH_BYTES, fragmenter.get_max_frame_length()), FrameBatcher.DEFAULT_MAX_DELAY_NS);
+    }
+
+    public CodecSession get_codec_session() {
+        return codec_session;
+    }
+
+    /**
+     * Body compression of this transport (disabled by default). Turn it on
+     * for the links which carry the big bodies, for example:
+     * get_body_compression().set_threshold_bytes(32 * 1024).set_enabled(true)
+     *
+     * @return
+     */
+    public BodyCompression get_body_compression() {
+        return codec_session.get_body_compression();
+    }
+
+    /**
+     * Visualize the codec session state, the body compression stats (ratio,
+     * compress / decompress time) and the fragmentation queues of this
+     * transport.
+     *
+     * @return
+     */
+    public String visualize_codec_stats() {
+        StringBuilder result = new StringBuilder();
+        result.append(codec_session).append("\n");
+        result.append(codec_session.get_body_compression().visualize());
+        result.append(fragmenter.get_uri()).append(": ").append(fragmenter.get_stats()).append("\n");
+        result.append(reassembler.get_uri()).append(": ").append(reassembler.get_stats()).append("\n");
+        result.append(batcher.visualize());
+        return result.toString();
+    }
+
+    /**
+     * @return the codec "hello" control frame, to be sent to the remote peer
+     * right after the connection is established (see CodecSession)
+     */
+    public ByteBuffer create_codec_hello_frame() {
+        increment_stats("codec_hello_sent_count");
+        return codec_session.create_hello_frame();
+    }
+
+    /**
+     * Encode the message for the remote peer with the negotiated codec (each
+     * frame is tagged with its codec id).
+     *
+     * @param message
+     * @param buffer
+     * @param offset
+     * @return frame length or -1 if the frame doesn't fit into the buffer
+     */
+    public int encode_outgoing_frame(Message message, ByteBuffer buffer, int offset) {
+        int frame_length = codec_session.encode(message, buffer, offset);
+        if (frame_length < 0) {
+            increment_stats("encode_outgoing_frame_overflow_count");
+        }
+        return frame_length;
+    }
+
+    /**
+     * Encode the message for the remote peer and queue it for the publisher
+     * (see poll_outgoing_frame()). Messages bigger than the fragmenter
+     * max_frame_length go as the fragments, interleaved with the small
+     * messages. The message is encoded right away (not retained), so the
+     * caller can release it as soon as this returns. The outgoing queue is
+     * bounded (see has_outgoing_room()): the message is refused when it is
+     * full.
+     *
+     * @param message
+     * @return
+     */
+    public FunctionResult queue_outgoing_message(Message message) {
+        if (fragmenter.is_full()) {
+            increment_stats("outgoing_queue_full_count");
+            return new FunctionResult().set_fail("Error: AeronTransport " + get_uri() + ".queue_outgoing_message(): outgoing queue is full (" + fragmenter.get_max_queued_bytes() + " bytes)");
+        }
+        ByteBuffer buffer = encoding_buffer.get();
+        int frame_length;
+        while ((frame_length = codec_session.encode(message, buffer, 0)) < 0) {
+            if (buffer.capacity() >= MAX_ENCODED_MESSAGE_LENGTH) {
+                String error_details = "Error: AeronTransport.queue_outgoing_message(): message is bigger than " + MAX_ENCODED_MESSAGE_LENGTH + " bytes (to: " + message.header_get_to() + ")";
+                System.err.println(error_details);
+                increment_stats("errors_count");
+                increment_stats("queue_outgoing_message_errors_count");
+                return new FunctionResult().set_fail(error_details);
+            }
+            buffer = ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2, MAX_ENCODED_MESSAGE_LENGTH));
+            encoding_buffer.set(buffer);
+        }
+        if (codec_session.is_negotiated()) {
+            // The peer told us (hello) it speaks our codecs, so it can unpack the batch frames too
+            batcher.offer(buffer, 0, frame_length, System.nanoTime(), fragmenter);
+        } else {
+            fragmenter.offer(buffer, 0, frame_length);
+        }
+        increment_stats("queue_outgoing_message_count");
+        return new FunctionResult().set_success();
+    }
+
+    /**
+     * Queue the already encoded frame (ex: a control frame) for the publisher,
+     * in order with the small messages.
+     *
+     * @param frame
+     * @param offset
+     * @param length
+     */
+    public void queue_outgoing_frame(ByteBuffer frame, int offset, int length) {
+        // Messages waiting in the batch go first, so the order is kept
+        batcher.flush(fragmenter);
+        fragmenter.offer(frame, offset, length);
+        increment_stats("queue_outgoing_frame_count");
+    }
+
+    /**
+     * Take the next frame to be offered to the publication: a small message
+     * or the next fragment of a big one.
+     *
+     * @param buffer
+     * @param offset
+     * @return frame length, 0 if there's nothing to send, -1 if the buffer is
+     * smaller than get_max_frame_length()
+     */
+    public int poll_outgoing_frame(ByteBuffer buffer, int offset) {
+        return fragmenter.poll(buffer, offset);
+    }
+
+    /**
+     * @return false if the outgoing queue is full (the publisher is behind),
+     * so queue_outgoing_message() would refuse the message
+     */
+    public boolean has_outgoing_room() {
+        return !fragmenter.is_full();
+    }
+
+    public int get_max_frame_length() {
+        return fragmenter.get_max_frame_length();
+    }
+
+    public FrameReassembler get_reassembler() {
+        return reassembler;
+    }
+
+    /**
+     * Process the frame received from the remote peer: fragments are put
+     * together first (see FrameReassembler), batch frames are unpacked (see
+     * FrameBatcher), codec control frames (negotiation) are consumed by the
+     * codec session, messages are decoded (by the codec the frame is tagged
+     * with) and sent on to the delivery service via deliver(message).
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return
+     */
+    public FunctionResult process_incoming_frame(ByteBuffer buffer, int offset, int length) {
+        if (FrameFragmenter.is_fragment(buffer, offset, length)) {
+            ByteBuffer reassembled_frame = reassembler.on_fragment(buffer, offset, length, System.currentTimeMillis());
+            if (reassembled_frame == null) {
+                // More fragments to come (or refused / malformed, already reported by the reassembler)
+                return new FunctionResult().set_success();
+            }
+            try {
+                return process_complete_frame(reassembled_frame, 0, reassembled_frame.limit());
+            } finally {
+                reassembler.release_buffer(reassembled_frame);
+            }
+        }
+        return process_complete_frame(buffer, offset, length);
+    }
+
+    private FunctionResult process_complete_frame(ByteBuffer buffer, int offset, int length) {
+        if (FrameBatcher.is_batch(buffer, offset, length)) {
+            return process_batch_frame(buffer, offset, length);
+        }
+        Message message = decode_incoming_frame(buffer, offset, length);
+        if (message == null) {
+            // Either the control frame (already processed) or malformed frame (already reported)
+            return new FunctionResult().set_success();
+        }
+        return deliver(message);
+    }
+
+    /**
+     * Unpack the batch frame and hand all its messages to the delivery
+     * service with one bulk enqueue, so they are routed in one batch pass.
+     * Requests get their transaction subscriptions first (same as
+     * deliver_request()).
+     */
+    private FunctionResult process_batch_frame(ByteBuffer buffer, int offset, int length) {
+        int frames_count = buffer.getShort(offset + FrameBatcher.COUNT_OFFSET) & 0xFFFF;
+        int end = offset + length;
+        int position = offset + FrameBatcher.HEADER_LENGTH;
+        ArrayList<Message> messages = new ArrayList<>(frames_count);
+        String error_details = null;
+        for (int i = 0; i < frames_count; i++) {
+            int frame_length = position + FrameBatcher.FRAME_LENGTH_PREFIX <= end ? buffer.getInt(position) : -1;
+            if (frame_length <= 0 || frame_length > end - position - FrameBatcher.FRAME_LENGTH_PREFIX) {
+                error_details = "Error: AeronTransport.process_batch_frame(): malformed batch frame (" + length + " bytes, " + frames_count + " frames), frame #" + i + " is out of bounds, the rest of the batch is dropped";
+                break;
+            }
+            Message message = decode_incoming_frame(buffer, position + FrameBatcher.FRAME_LENGTH_PREFIX, frame_length);
+            position += FrameBatcher.FRAME_LENGTH_PREFIX + frame_length;
+            if (message == null) {
+                continue;
+            }
+            if (message.header_get_mime_type() == MessageHeaderMimeType.REQUEST && prepare_request(message).failed()) {
+                increment_stats("errors_count");
+                increment_stats("process_batch_frame_errors_count");
+                message.release();
+                continue;
+            }
+            if (message.header_get_mime_type() != MessageHeaderMimeType.RESPONSE) {
+                acquire_remote_credit(message);
+            }
+            messages.add(message);
+        }
+        if (!messages.isEmpty()) {
+            delivery_service.enqueue(messages);
+        }
+        increment_stats("process_batch_frame_count");
+        increment_stats("process_batch_frame_messages_count", messages.size());
+        if (error_details != null) {
+            System.err.println(error_details);
+            increment_stats("errors_count");
+            increment_stats("process_batch_frame_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        return new FunctionResult().set_success();
+    }
+
+    /**
+     * Decode one (complete, not batched) frame into the message, marked with
+     * this transport as its origin.
+     *
+     * @return the message or null for the control frames and malformed
+     * frames (reported and counted)
+     */
+    private Message decode_incoming_frame(ByteBuffer buffer, int offset, int length) {
+        Message message = codec_session.decode(buffer, offset, length);
+        if (message == null) {
+            return null;
+        }
+        increment_stats("process_incoming_frame_count");
+        if (message.header_get_mime_type() == null) {
+            String error_details = "Error: AeronTransport.process_incoming_frame(): decoded message has no mime_type header";
+            System.err.println(error_details);
+            increment_stats("errors_count");
+            increment_stats("process_incoming_frame_errors_count");
+            message.release();
+            return null;
+        }
+        // Remember where it came from, so it is never sent back to the same peer (see RemotePeer)
+        message.set_origin_transport(this);
+        return message;
     }
 
     /**
@@ -91,12 +381,52 @@ public class AeronTransport extends Transport {
 
         // Check inputs: we have a message with headers
         Objects.requireNonNull(message, "message");
+        acquire_remote_credit(message);
         delivery_service.enqueue(message);
         increment_stats("deliver_publish_count");
 
         return result.set_success();
     }
 
+    /**
+     * Flow control of the remote producers (if enabled): wait for the credit
+     * (not receiving from the remote peer meanwhile is what slows it down),
+     * but not for longer than the remote acquire timeout (see
+     * FlowController). If none was granted the message goes anyway, without
+     * the credit ("flow_control_overdraft_count").
+     *
+     * @param message
+     */
+    private void acquire_remote_credit(Message message) {
+        if (!acquire_credit(message)) {
+            increment_stats("flow_control_overdraft_count");
+        }
+    }
+
+    /**
+     * Hand the batch to the fragmenter (so poll_outgoing_frame() sees it) if
+     * its first frame waited long enough. Called by the sending thread on
+     * every pass (see RemotePeer.flush_outgoing()).
+     *
+     * @param now_ns System.nanoTime()
+     * @return true if flushed
+     */
+    public boolean flush_outgoing_batch_if_due(long now_ns) {
+        return batcher.flush_if_due(now_ns, fragmenter);
+    }
+
+    /**
+     * @return true if some frames wait in the batch (not yet visible to
+     * poll_outgoing_frame())
+     */
+    public boolean has_pending_batch() {
+        return batcher.has_pending_frames();
+    }
+
+    public FrameBatcher get_frame_batcher() {
+        return batcher;
+    }
+
     /**
      * <pre>
      * We're sending request from client to some other client via delivery service.
@@ -112,6 +442,29 @@ public class AeronTransport extends Transport {
      */
     @Override
     public FunctionResult deliver_request(Message message) {
+        FunctionResult result = prepare_request(message);
+        if (result.failed()) {
+            return result;
+        }
+
+        // 2) "send" the message by enqueueing it into delivery service
+        acquire_remote_credit(message);
+        delivery_service.enqueue(message);
+        increment_stats("deliver_request_count");
+
+        return result;
+    }
+
+    /**
+     * Check the request headers (fill in the missing ones) and add the
+     * record into delivery service transactional subscriptions, so the
+     * responses are routed back to this transport. The message is not
+     * enqueued.
+     *
+     * @param message
+     * @return
+     */
+    private FunctionResult prepare_request(Message message) {
         FunctionResult result = new FunctionResult();
 
         // Check inputs: we have a message with headers
@@ -127,30 +480,27 @@ public class AeronTransport extends Transport {
         }
 
         // Set proper message header mime_type if it isn't yet set
-        if (message.headers.get("mime_type") == null) {
+        if (message.header_get_mime_type() == null) {
             // This mime_type supposed to be set by Message.create_new_request() static factory, but
             // if user build message himself (and forgot to put proper mime_type) let's fix it here by adding proper mime_type.
-            message.headers.put("mime_type", MessageHeaderMimeType.REQUEST);
+            message.headers.set_mime_type(MessageHeaderMimeType.REQUEST);
         }
 
         // Add unuque transaction id into the headers if message doesn't have such header set yet
-        if (message.headers.get("transaction_id") == null) {
+        if (message.header_get_transaction_id() == null) {
             // Generate new unique transaction_id message header
             UUID uuid = UUID.randomUUID();
             String new_transaction_id = "transactioon-id-" + uuid.toString();
-            message.headers.put("transaction_id", new_transaction_id);
+            message.headers.set_transaction_id(new_transaction_id);
         }
 
         // The "transaction_expiration_epoch_ms" meassage header must be set, take it's value for subscription expiration.
-        Long transaction_expiration_epoch_ms = null;
-        if (message.headers.get("transaction_expiration_epoch_ms") instanceof Long) {
+        long transaction_expiration_epoch_ms = message.header_get_transaction_expiration_epoch_ms();
+        if (transaction_expiration_epoch_ms == 0) {
             // Error: the message headers does not specify "transaction_expiration_epoch_ms"
             String error_details = "Error: the message headers does not specify \"transaction_expiration_epoch_ms\". Details: message: " + message.to_json();
-            result.set_fail(mime_type);
+            result.set_fail(error_details);
             return result;
-        } else {
-            // Found "transaction_expiration_epoch_ms" in the message headers. Take it's value.
-            transaction_expiration_epoch_ms = (Long) message.headers.get("transaction_expiration_epoch_ms");
         }
 
         // Compose the "subacriber details". For a simple LocalTransport we only need to put a reference to the transport
@@ -158,11 +508,7 @@ public class AeronTransport extends Transport {
         SubscriberDetails subscriber_details = new SubscriberDetails(this, transaction_expiration_epoch_ms);
 
         // 1) we add a record into delivery service transactional subscriptions
-        delivery_service.subscribe_transaction(message.headers.get("transaction_id").toString(), subscriber_details);
-
-        // 2) "send" the message by enqueueing it into delivery service
-        delivery_service.enqueue(message);
-        increment_stats("deliver_request_count");
+        delivery_service.subscribe_transaction(message.header_get_transaction_id(), subscriber_details);
 
         return result.set_success();
     }
@@ -202,35 +548,62 @@ public class AeronTransport extends Transport {
 
         // Check inputs: we have a message
         Objects.requireNonNull(message, "message");
-        client.enqueue(message);
+        FunctionResult enqueue_result = client.offer(message);
+        if (enqueue_result.failed()) {
+            // Client inbox is full and its overflow policy didn't take the message (counted in our stats, see InboxOverflowPolicy)
+            message.release();
+            return enqueue_result;
+        }
         increment_stats("deliver_back_to_client_count");
 
         return result.set_success();
     }
 
     /**
-     * We'd never use loopback_transport.subscribe(...) since it makes no sense.
-     * This method is here just because we need to implement all the abstract
-     * methods of the "Transport" class, which we extend here.
+     * Bulk version of deliver_back_to_client(message): one bulk enqueue into
+     * the client "inbox" for the whole list.
      *
-     * @param selector
+     * @param messages
+     */
+    @Override
+    public FunctionResult deliver_back_to_client(List<Message> messages) {
+        FunctionResult result = new FunctionResult();
+
+        int taken_count = client.offer_all(messages);
+        increment_stats("deliver_back_to_client_count", taken_count);
+        increment_stats("deliver_back_to_client_bulk_count");
+        if (taken_count < messages.size()) {
+            // Client inbox is full and its overflow policy didn't take the rest (counted in our stats, see InboxOverflowPolicy)
+            for (int i = taken_count; i < messages.size(); i++) {
+                messages.get(i).release();
+            }
+            return result.set_inbox_full("Error: inbox of " + client.get_uri() + " is full, " + (messages.size() - taken_count) + " of " + messages.size() + " messages not delivered");
+        }
+
+        return result.set_success();
+    }
+
+    /**
+     * Subscribe on behalf of the remote peer: whatever matches gets routed to
+     * this transport and sent over Aeron (see RemotePeer).
+     *
+     * @param subscription_matcher
      * @param expiration_epoch_ms
+     * @param subscriber_details_description
      */
     @Override
     public void subscribe(SubscriptionMatcher subscription_matcher, long expiration_epoch_ms, String subscriber_details_description) {
-//        SubscriberDetails subscriber_details = new SubscriberDetails(this, expiration_epoch_ms);
-//        if (subscriber_details_description != null) {
-//            subscriber_details.subscriber_details_description = subscriber_details_description;
-//        }
-//        delivery_service.subscribe(subscription_matcher, subscriber_details);
-//        increment_stats("subscribe_count");
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        SubscriberDetails subscriber_details = new SubscriberDetails(this, expiration_epoch_ms);
+        if (subscriber_details_description != null) {
+            subscriber_details.description = subscriber_details_description;
+        }
+        delivery_service.subscribe(subscription_matcher, subscriber_details);
+        increment_stats("subscribe_count");
     }
 
     @Override
     public void subscribe(SubscriptionMatcher subscription_matcher, long expiration_epoch_ms) {
-        increment_stats("subscribe_count");
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        subscribe(subscription_matcher, expiration_epoch_ms, null);
     }
 
     @Override
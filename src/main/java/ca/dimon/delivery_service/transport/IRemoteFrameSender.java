@@ -0,0 +1,26 @@
+package ca.dimon.delivery_service.transport;
+
+/**
+ * <pre>
+ * Hands one outgoing text frame (see AeronTextFrames) to the AeronMessaging client / server. The
+ * AeronBridge calls it from its own thread, one frame at a time, in order.
+ *
+ * DeliveryService sets it up with the factory of the AeronMessagingConfiguration, example:
+ *     aeron_messaging_configuration.server_frame_sender_factory = server -&gt; (session_id, frame) -&gt; {
+ *         ... hand the frame to the server (private message to session_id),
+ *         return false if it was not taken (back pressure, session not connected)
+ *     };
+ *
+ * </pre>
+ */
+public interface IRemoteFrameSender {
+
+    /**
+     * @param session_id remote session (AeronBridge.SERVER_SESSION_ID on the
+     * client side)
+     * @param frame
+     * @return false if the frame could not be sent right now (back pressure,
+     * not connected), the bridge will retry the same frame later
+     */
+    boolean send_frame(Integer session_id, String frame);
+}
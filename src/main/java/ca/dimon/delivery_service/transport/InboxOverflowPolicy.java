@@ -0,0 +1,37 @@
+package ca.dimon.delivery_service.transport;
+
+/**
+ * <pre>
+ * What Transportable.offer() does when the inbox is full (see Transportable.set_inbox_overflow_policy()):
+ *   - BLOCK:       wait (yielding) until the consumer makes some room, at most the block timeout
+ *                  (Transportable.DEFAULT_INBOX_BLOCK_TIMEOUT_MS by default, zero: wait forever). On
+ *                  timeout the message is rejected ("inbox_block_timeout_count"). The router inbox
+ *                  default, so the publishers slow down with the router
+ *   - DROP_NEWEST: drop the message being offered ("inbox_dropped_newest_count")
+ *   - DROP_OLDEST: drop the oldest message of the inbox to make room ("inbox_dropped_oldest_count"),
+ *                  good for the "latest value wins" feeds
+ *   - REJECT:      don't take the message, return FunctionResult.INBOX_FULL to the caller
+ *                  ("inbox_rejected_count"). The participant inbox default: the router drops what
+ *                  a slow participant doesn't take instead of waiting for it
+ * The counters go to the stats of the inbox owner transport.
+ *
+ * Usage example:
+ *   participant.set_inbox_overflow_policy(InboxOverflowPolicy.DROP_OLDEST, 0);
+ *
+ * </pre>
+ */
+public enum InboxOverflowPolicy {
+    BLOCK(0),
+    DROP_NEWEST(1),
+    DROP_OLDEST(2),
+    REJECT(3);
+    public int numeric_value;
+
+    InboxOverflowPolicy(int numVal) {
+        this.numeric_value = numVal;
+    }
+
+    public int get_numeric_value() {
+        return numeric_value;
+    }
+}
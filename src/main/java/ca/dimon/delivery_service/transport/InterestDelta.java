@@ -0,0 +1,60 @@
+package ca.dimon.delivery_service.transport;
+
+/**
+ * <pre>
+ * One change of the node interest (see InterestSummary): delta is added to
+ *   - TYPE_TOPIC_COUNTER: the counter at the position of the exact topics Bloom filter
+ *   - TYPE_PATTERN:       the subscriptions count of the wildcard pattern
+ *   - TYPE_OPAQUE:        the count of the subscriptions we can't summarize (lambdas, predicates)
+ *
+ * </pre>
+ */
+public final class InterestDelta {
+
+    public static final byte TYPE_TOPIC_COUNTER = 1;
+    public static final byte TYPE_PATTERN = 2;
+    public static final byte TYPE_OPAQUE = 3;
+
+    public final byte type;
+    public final int position;
+    public final String pattern;
+    public final int delta;
+
+    private InterestDelta(byte type, int position, String pattern, int delta) {
+        this.type = type;
+        this.position = position;
+        this.pattern = pattern;
+        this.delta = delta;
+    }
+
+    public static InterestDelta topic_counter(int position, int delta) {
+        return new InterestDelta(TYPE_TOPIC_COUNTER, position, null, delta);
+    }
+
+    public static InterestDelta pattern(String pattern, int delta) {
+        return new InterestDelta(TYPE_PATTERN, 0, pattern, delta);
+    }
+
+    public static InterestDelta opaque(int delta) {
+        return new InterestDelta(TYPE_OPAQUE, 0, null, delta);
+    }
+
+    /**
+     * @return the delta which undoes this one
+     */
+    public InterestDelta negate() {
+        return new InterestDelta(type, position, pattern, -delta);
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case TYPE_TOPIC_COUNTER:
+                return "topic_counter[" + position + "] " + (delta > 0 ? "+" : "") + delta;
+            case TYPE_PATTERN:
+                return "pattern " + pattern + " " + (delta > 0 ? "+" : "") + delta;
+            default:
+                return "opaque " + (delta > 0 ? "+" : "") + delta;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package ca.dimon.delivery_service.transport;
+
+import ca.dimon.delivery_service.codec.CodecSession;
+import ca.dimon.delivery_service.codec.MessageCodec;
+import ca.dimon.delivery_service.common.CountingBloomFilter;
+import ca.dimon.delivery_service.common.ManagedObject;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
+import ca.dimon.delivery_service.subscription.TopicEqualsMatcher;
+import ca.dimon.delivery_service.subscription.TopicWildcardMatcher;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ * Compact summary of what a node is subscribed to (its subscriptions_common), which the nodes
+ * exchange so each one only forwards the messages the peer might want (see AeronBridge):
+ *   - exact topics (TopicEqualsMatcher): counting Bloom filter of the topics, so thousands of topics
+ *     cost a fixed 32K counters and a lookup never allocates
+ *   - wildcard patterns (TopicWildcardMatcher): kept as is, with their subscriptions count
+ *   - opaque matchers (lambdas, predicates): can't be summarized, we only count them. While the
+ *     count is above zero the peer gets everything (same as before the summaries)
+ *
+ * The summary of the peer we haven't heard from yet (or a legacy peer, which never sends it) has one
+ * opaque subscription, so it gets everything too.
+ *
+ * Everything is a counter, so the summary changes are the deltas (see InterestDelta): "+1 at these
+ * Bloom positions", "-1 subscription of that pattern" etc. The hub merges the summaries of its
+ * peers by simply relaying their deltas.
+ *
+ * Interest frame layout (a control frame, see CodecSession):
+ *
+ *     offset  size     field
+ *     ---------------------------------------------------------------------------------------
+ *      0      int8     MessageCodec.CONTROL_CODEC_ID (0)
+ *      1      int8     CodecSession.CONTROL_INTEREST
+ *      2      int8     flags (FLAG_RESET: forget the previous summary, the full one follows)
+ *      3      int8     Bloom filter hash count
+ *      4      int32    Bloom filter counters count
+ *      8      int32    deltas count
+ *     12      deltas:  int8 type, int32 delta, then
+ *                        TYPE_TOPIC_COUNTER: int32 position
+ *                        TYPE_PATTERN:       int16 pattern length, pattern bytes (utf-8)
+ *
+ * </pre>
+ */
+public class InterestSummary extends ManagedObject {
+
+    public static final byte FLAG_RESET = 0x01;
+    public static final int HEADER_LENGTH = 12;
+
+    private final CountingBloomFilter topics = new CountingBloomFilter();
+    private final HashMap<String, Integer> pattern_counts = new HashMap<>();
+    private final HashMap<String, String[]> pattern_levels = new HashMap<>();
+    private int opaque_count;
+    private boolean known;
+
+    /**
+     * @param uri
+     * @param known false: the summary of the peer we haven't heard from yet
+     * (might match everything until the first reset frame arrives)
+     */
+    public InterestSummary(String uri, boolean known) {
+        this.set_uri(uri);
+        this.known = known;
+        this.opaque_count = known ? 0 : 1;
+    }
+
+    public synchronized boolean is_known() {
+        return known;
+    }
+
+    /**
+     * @param message
+     * @return false if none of the summarized subscriptions can match the
+     * message, true if some might
+     */
+    public synchronized boolean might_match(Message message) {
+        if (opaque_count > 0) {
+            return true;
+        }
+        String to = message.header_get_to();
+        if (to == null) {
+            return false;
+        }
+        if (topics.might_contain(to)) {
+            return true;
+        }
+        for (String[] levels : pattern_levels.values()) {
+            if (TopicWildcardMatcher.topic_matches(levels, to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deltas to add (delta &gt; 0) or remove (delta &lt; 0) one subscription
+     * with the given matcher. The node-local topics ("/local/...") are never
+     * forwarded, so they are not part of the summary.
+     *
+     * @param subscription_matcher
+     * @param delta
+     * @return
+     */
+    public List<InterestDelta> create_deltas(SubscriptionMatcher subscription_matcher, int delta) {
+        ArrayList<InterestDelta> deltas = new ArrayList<>();
+        if (subscription_matcher instanceof TopicEqualsMatcher) {
+            String topic = ((TopicEqualsMatcher) subscription_matcher).get_topic();
+            if (!topic.startsWith(RemotePeer.LOCAL_TOPIC_PREFIX)) {
+                int[] positions = new int[topics.get_hash_count()];
+                topics.get_positions(topic, positions);
+                for (int position : positions) {
+                    deltas.add(InterestDelta.topic_counter(position, delta));
+                }
+            }
+        } else if (subscription_matcher instanceof TopicWildcardMatcher) {
+            String pattern = ((TopicWildcardMatcher) subscription_matcher).get_pattern();
+            if (!pattern.startsWith(RemotePeer.LOCAL_TOPIC_PREFIX)) {
+                deltas.add(InterestDelta.pattern(pattern, delta));
+            }
+        } else {
+            deltas.add(InterestDelta.opaque(delta));
+        }
+        return deltas;
+    }
+
+    /**
+     * Apply the deltas (local subscription changes or the ones received from
+     * the peer).
+     *
+     * @param deltas
+     */
+    public synchronized void apply(List<InterestDelta> deltas) {
+        for (InterestDelta delta : deltas) {
+            boolean consistent = true;
+            switch (delta.type) {
+                case InterestDelta.TYPE_TOPIC_COUNTER:
+                    consistent = topics.add_at(delta.position, delta.delta);
+                    break;
+                case InterestDelta.TYPE_PATTERN:
+                    int count = pattern_counts.getOrDefault(delta.pattern, 0) + delta.delta;
+                    if (count > 0) {
+                        pattern_counts.put(delta.pattern, count);
+                        pattern_levels.computeIfAbsent(delta.pattern, TopicWildcardMatcher::split_levels);
+                    } else {
+                        consistent = count == 0;
+                        pattern_counts.remove(delta.pattern);
+                        pattern_levels.remove(delta.pattern);
+                    }
+                    break;
+                default:
+                    opaque_count += delta.delta;
+                    if (opaque_count < 0) {
+                        opaque_count = 0;
+                        consistent = false;
+                    }
+            }
+            if (!consistent) {
+                // Some removal without the matching add: not fatal (the counter stays at zero), but worth knowing
+                this.increment_stats("inconsistent_deltas_count");
+            }
+        }
+        this.increment_stats("applied_deltas_count", deltas.size());
+    }
+
+    /**
+     * Forget everything (the full summary follows).
+     */
+    public synchronized void reset() {
+        topics.clear();
+        pattern_counts.clear();
+        pattern_levels.clear();
+        opaque_count = 0;
+        known = true;
+        this.increment_stats("reset_count");
+    }
+
+    /**
+     * @return the deltas which build this summary from scratch (the negated
+     * ones take it all back)
+     */
+    public synchronized List<InterestDelta> to_deltas() {
+        ArrayList<InterestDelta> deltas = new ArrayList<>();
+        for (int position = 0; position < topics.get_counters_count(); position++) {
+            int counter = topics.get_counter(position);
+            if (counter != 0) {
+                deltas.add(InterestDelta.topic_counter(position, counter));
+            }
+        }
+        for (Map.Entry<String, Integer> entry : pattern_counts.entrySet()) {
+            deltas.add(InterestDelta.pattern(entry.getKey(), entry.getValue()));
+        }
+        if (opaque_count != 0) {
+            deltas.add(InterestDelta.opaque(opaque_count));
+        }
+        return deltas;
+    }
+
+    /**
+     * Encode the deltas into the interest frames, none bigger than
+     * max_frame_length. Only the first one has the FLAG_RESET (if reset is
+     * true). At least one frame is returned (even for no deltas).
+     *
+     * @param deltas
+     * @param reset
+     * @param max_frame_length
+     * @return
+     */
+    public List<ByteBuffer> encode_frames(List<InterestDelta> deltas, boolean reset, int max_frame_length) {
+        ArrayList<ByteBuffer> frames = new ArrayList<>();
+        ByteBuffer frame = start_frame(reset, max_frame_length);
+        int frame_deltas_count = 0;
+        for (InterestDelta delta : deltas) {
+            byte[] pattern_bytes = delta.type == InterestDelta.TYPE_PATTERN ? delta.pattern.getBytes(StandardCharsets.UTF_8) : null;
+            int delta_length = 5 + (pattern_bytes != null ? 2 + pattern_bytes.length : (delta.type == InterestDelta.TYPE_TOPIC_COUNTER ? 4 : 0));
+            if (HEADER_LENGTH + delta_length > max_frame_length || (pattern_bytes != null && pattern_bytes.length > Short.MAX_VALUE)) {
+                String error_details = "Error: InterestSummary " + get_uri() + ".encode_frames(): pattern is too long (" + pattern_bytes.length + " bytes), skipped: " + delta;
+                System.err.println(error_details);
+                this.increment_stats("errors_count");
+                this.increment_stats("encode_frames_errors_count");
+                continue;
+            }
+            if (frame.position() + delta_length > max_frame_length) {
+                frames.add(finish_frame(frame, frame_deltas_count));
+                frame = start_frame(false, max_frame_length);
+                frame_deltas_count = 0;
+            }
+            frame.put(delta.type);
+            frame.putInt(delta.delta);
+            if (delta.type == InterestDelta.TYPE_TOPIC_COUNTER) {
+                frame.putInt(delta.position);
+            } else if (pattern_bytes != null) {
+                frame.putShort((short) pattern_bytes.length);
+                frame.put(pattern_bytes);
+            }
+            frame_deltas_count++;
+        }
+        frames.add(finish_frame(frame, frame_deltas_count));
+        return frames;
+    }
+
+    private ByteBuffer start_frame(boolean reset, int max_frame_length) {
+        ByteBuffer frame = ByteBuffer.allocate(max_frame_length);
+        frame.put(MessageCodec.CONTROL_CODEC_ID);
+        frame.put(CodecSession.CONTROL_INTEREST);
+        frame.put(reset ? FLAG_RESET : 0);
+        frame.put((byte) topics.get_hash_count());
+        frame.putInt(topics.get_counters_count());
+        frame.putInt(0); // deltas count, see finish_frame()
+        return frame;
+    }
+
+    private static ByteBuffer finish_frame(ByteBuffer frame, int deltas_count) {
+        frame.putInt(8, deltas_count);
+        frame.flip();
+        return frame;
+    }
+
+    public static boolean is_interest_frame(byte[] frame) {
+        return frame.length >= HEADER_LENGTH && frame[0] == MessageCodec.CONTROL_CODEC_ID && frame[1] == CodecSession.CONTROL_INTEREST;
+    }
+
+    /**
+     * Decode the interest frame.
+     *
+     * @param frame
+     * @param deltas decoded deltas are added here
+     * @return true if the frame has the FLAG_RESET
+     * @throws IllegalArgumentException if the frame is malformed or its Bloom
+     * filter geometry is not the same as ours
+     */
+    public boolean decode_frame(byte[] frame, List<InterestDelta> deltas) {
+        if (!is_interest_frame(frame)) {
+            throw new IllegalArgumentException("not an interest frame (" + frame.length + " bytes)");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        boolean reset = (buffer.get(2) & FLAG_RESET) != 0;
+        int hash_count = buffer.get(3);
+        int counters_count = buffer.getInt(4);
+        if (hash_count != topics.get_hash_count() || counters_count != topics.get_counters_count()) {
+            throw new IllegalArgumentException("Bloom filter geometry mismatch: " + counters_count + " counters / " + hash_count + " hashes, expected: "
+                    + topics.get_counters_count() + " / " + topics.get_hash_count());
+        }
+        int deltas_count = buffer.getInt(8);
+        buffer.position(HEADER_LENGTH);
+        try {
+            for (int i = 0; i < deltas_count; i++) {
+                byte type = buffer.get();
+                int delta = buffer.getInt();
+                switch (type) {
+                    case InterestDelta.TYPE_TOPIC_COUNTER:
+                        int position = buffer.getInt();
+                        if (position < 0 || position >= counters_count) {
+                            throw new IllegalArgumentException("topic counter position out of range: " + position);
+                        }
+                        deltas.add(InterestDelta.topic_counter(position, delta));
+                        break;
+                    case InterestDelta.TYPE_PATTERN:
+                        byte[] pattern_bytes = new byte[buffer.getShort()];
+                        buffer.get(pattern_bytes);
+                        deltas.add(InterestDelta.pattern(new String(pattern_bytes, StandardCharsets.UTF_8), delta));
+                        break;
+                    case InterestDelta.TYPE_OPAQUE:
+                        deltas.add(InterestDelta.opaque(delta));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown delta type: " + type);
+                }
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            throw new IllegalArgumentException("truncated interest frame (" + frame.length + " bytes, " + deltas_count + " deltas)");
+        }
+        return reset;
+    }
+
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        stats.put("topic_counters_non_zero_count", (long) topics.get_non_zero_count());
+        stats.put("patterns_count", (long) pattern_counts.size());
+        stats.put("opaque_count", (long) opaque_count);
+        stats.put("known", known ? 1L : 0L);
+        return super.get_stats();
+    }
+}
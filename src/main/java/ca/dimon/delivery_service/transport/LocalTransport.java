@@ -5,6 +5,7 @@ import ca.dimon.delivery_service.common.FunctionResult;
 import ca.dimon.delivery_service.message.Message;
 import ca.dimon.delivery_service.message.MessageHeaderMimeType;
 import ca.dimon.delivery_service.subscription.SubscriberDetails;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
@@ -35,19 +36,14 @@ public class LocalTransport extends Transport {
     public FunctionResult deliver(Message message) {
         FunctionResult result = new FunctionResult();
 
+        // The deliver_*() results are passed on, so the caller sees the backpressure (FunctionResult.INBOX_FULL)
         switch (message.header_get_mime_type()) {
             case PUBLISH:
-                this.deliver_publish(message);
-                result.set_success();
-                break;
+                return this.deliver_publish(message);
             case REQUEST:
-                this.deliver_request(message);
-                result.set_success();
-                break;
+                return this.deliver_request(message);
             case RESPONSE:
-                this.deliver_response(message);
-                result.set_success();
-                break;
+                return this.deliver_response(message);
             default:
                 String error_details = "Error: unknonwn message header mime_type '" + message.header_get_mime_type() + "'.";
                 result.set_fail(error_details);
@@ -82,13 +78,24 @@ public class LocalTransport extends Transport {
         }
 
         // Set proper message header mime_type if it isn't yet set
-        if (message.headers.get("mime_type") == null) {
+        if (message.header_get_mime_type() == null) {
             // This mime_type supposed to be set by Message.create_new_request() static factory, but
             // if user build message himself (and forgot to put proper mime_type) let's fix it here by adding proper mime_type.
-            message.headers.put("mime_type", MessageHeaderMimeType.PUBLISH);
+            message.headers.set_mime_type(MessageHeaderMimeType.PUBLISH);
+        }
+        // Flow control (if enabled): wait for the credit, so we slow down before the queues overflow
+        if (!acquire_credit(message)) {
+            increment_stats("deliver_publish_inbox_full_count");
+            return result.set_inbox_full("Error: no flow control credits granted within the timeout (see DeliveryService.visualize_flow_control())");
         }
         // Enqueue the message into the corresponding queue
-        delivery_service.enqueue(message);
+        FunctionResult enqueue_result = delivery_service.offer(message);
+        if (enqueue_result.failed()) {
+            // Router inbox is full (see InboxOverflowPolicy): the caller still owns the message and may retry
+            refund_credit(message);
+            increment_stats("deliver_publish_inbox_full_count");
+            return enqueue_result;
+        }
         increment_stats("deliver_publish_count");
 
         return result.set_success();
@@ -124,42 +131,55 @@ public class LocalTransport extends Transport {
         }
 
         // Set proper message header mime_type if it isn't yet set
-        if (message.headers.get("mime_type") == null) {
+        if (message.header_get_mime_type() == null) {
             // This mime_type supposed to be set by Message.create_new_request() static factory, but
             // if user build message himself (and forgot to put proper mime_type) let's fix it here by adding proper mime_type.
-            message.headers.put("mime_type", MessageHeaderMimeType.REQUEST);
+            message.headers.set_mime_type(MessageHeaderMimeType.REQUEST);
         }
 
         // Add unuque transaction id into the headers if message doesn't have such header set yet
-        if (message.headers.get("transaction_id") == null) {
+        if (message.header_get_transaction_id() == null) {
             // Generate new unique transaction_id message header
             UUID uuid = UUID.randomUUID();
             String new_transaction_id = "transactioon-id-" + uuid.toString();
-            message.headers.put("transaction_id", new_transaction_id);
+            message.headers.set_transaction_id(new_transaction_id);
         }
 
         // The "transaction_expiration_epoch_ms" meassage header must be set.
         // Take it's value from the message headersfor subscription expiration.
-        Long transaction_expiration_epoch_ms = null;
-        if (message.headers.get("transaction_expiration_epoch_ms") instanceof Long) {
-            // Found "transaction_expiration_epoch_ms" in the message headers. Take it's value.
-            transaction_expiration_epoch_ms = (Long) message.headers.get("transaction_expiration_epoch_ms");
-        } else {
+        long transaction_expiration_epoch_ms = message.header_get_transaction_expiration_epoch_ms();
+        if (transaction_expiration_epoch_ms == 0) {
             // Error: the message headers does not specify "transaction_expiration_epoch_ms"
             String error_details = "Error: the message headers does not specify \"transaction_expiration_epoch_ms\". Details: message: " + message.to_json();
             result.set_fail(error_details);
             return result;
         }
 
+        // Flow control (if enabled): wait for the credit, so we slow down before the queues overflow
+        if (!acquire_credit(message)) {
+            increment_stats("deliver_request_inbox_full_count");
+            return result.set_inbox_full("Error: no flow control credits granted within the timeout (see DeliveryService.visualize_flow_control())");
+        }
+
         // Create the "subacriber details". For a simple LocalTransport we only need to put a reference to the transport
         // instance itself into subscription table (no need for "tunnel headers" like for AeronTransport)
         SubscriberDetails subscriber_details = new SubscriberDetails(this, transaction_expiration_epoch_ms);
 
-        // 1) we add a record into delivery service transactional subscriptions
-        delivery_service.subscribe_transaction(message.headers.get("transaction_id").toString(), subscriber_details);
+        // 1) we add a record into delivery service transactional subscriptions (before the request is enqueued,
+        // so even the quickest response finds it)
+        String transaction_id = message.header_get_transaction_id();
+        delivery_service.subscribe_transaction(transaction_id, subscriber_details);
 
         // 2) "send" the message by enqueueing it into delivery service
-        delivery_service.enqueue(message);
+        FunctionResult enqueue_result = delivery_service.offer(message);
+        if (enqueue_result.failed()) {
+            // Router inbox is full (see InboxOverflowPolicy): the caller still owns the message and may retry,
+            // so no response is coming for this attempt and its transaction subscription goes away right now
+            delivery_service.unsubscribe_transaction(transaction_id, subscriber_details);
+            refund_credit(message);
+            increment_stats("deliver_request_inbox_full_count");
+            return enqueue_result;
+        }
         increment_stats("deliver_request_count");
 
         return result.set_success();
@@ -194,14 +214,19 @@ public class LocalTransport extends Transport {
         }
 
         // Set proper message header mime_type if it isn't yet set
-        if (message.headers.get("mime_type") == null) {
+        if (message.header_get_mime_type() == null) {
             // This mime_type supposed to be set by Message.create_new_request() static factory, but
             // if user build message himself (and forgot to put proper mime_type) let's fix it here by adding proper mime_type.
-            message.headers.put("mime_type", MessageHeaderMimeType.RESPONSE);
+            message.headers.set_mime_type(MessageHeaderMimeType.RESPONSE);
         }
 
         // Enqueue the message into the corresponding queue
-        delivery_service.enqueue(message);
+        FunctionResult enqueue_result = delivery_service.offer(message);
+        if (enqueue_result.failed()) {
+            // Router inbox is full (see InboxOverflowPolicy): the caller still owns the message and may retry
+            increment_stats("deliver_response_inbox_full_count");
+            return enqueue_result;
+        }
         increment_stats("deliver_response_count");
 
         return result.set_success();
@@ -222,12 +247,41 @@ public class LocalTransport extends Transport {
 
         // No need to modify message header mime_type.. it was presumably already set by the sender.
         // Enqueue the message into the corresponding queue
-        client.enqueue(message);
+        FunctionResult enqueue_result = client.offer(message);
+        if (enqueue_result.failed()) {
+            // Client inbox is full and its overflow policy didn't take the message (counted in our stats, see InboxOverflowPolicy)
+            message.release();
+            return enqueue_result;
+        }
         increment_stats("deliver_back_to_client_count");
 
         return result.set_success();
     }
 
+    /**
+     * Bulk version of deliver_back_to_client(message): one bulk enqueue into
+     * the client "inbox" for the whole list.
+     *
+     * @param messages
+     */
+    @Override
+    public FunctionResult deliver_back_to_client(List<Message> messages) {
+        FunctionResult result = new FunctionResult();
+
+        int taken_count = client.offer_all(messages);
+        increment_stats("deliver_back_to_client_count", taken_count);
+        increment_stats("deliver_back_to_client_bulk_count");
+        if (taken_count < messages.size()) {
+            // Client inbox is full and its overflow policy didn't take the rest (counted in our stats, see InboxOverflowPolicy)
+            for (int i = taken_count; i < messages.size(); i++) {
+                messages.get(i).release();
+            }
+            return result.set_inbox_full("Error: inbox of " + client.get_uri() + " is full, " + (messages.size() - taken_count) + " of " + messages.size() + " messages not delivered");
+        }
+
+        return result.set_success();
+    }
+
     /**
      * We'd never use loopback_transport.subscribe(...) since it makes no sense.
      * This method is here just because we need to implement all the abstract
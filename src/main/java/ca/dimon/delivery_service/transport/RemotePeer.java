@@ -0,0 +1,347 @@
+package ca.dimon.delivery_service.transport;
+
+import ca.dimon.delivery_service.DeliveryService;
+import ca.dimon.delivery_service.common.FunctionResult;
+import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.message.MessageHeaderMimeType;
+import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <pre>
+ * The remote node (one AeronMessaging session) as seen by the local DeliveryService: an ordinary
+ * participant with its own AeronTransport, so it subscribes and receives the routed messages just
+ * like the local clients do, except that the AeronBridge thread drains its inbox and sends the
+ * messages out over Aeron (see flush_outgoing()).
+ *
+ * Incoming frames (on_incoming_text_frame()) go through the AeronTransport (codec negotiation,
+ * fragment reassembly, decoding) straight into the DeliveryService routing, marked with the
+ * origin transport (Message.get_origin_transport()), so they are never sent back where they came
+ * from.
+ *
+ * The publishes / requests none of the peer subscriptions can match (according to the peer interest
+ * summary, see InterestSummary) don't even get into our inbox: offer() / offer_all() take them and
+ * release them right away (counted as "interest_suppressed_count"), so they neither cost the bridge
+ * thread anything nor push the wanted messages out of the bounded inbox. Responses are always
+ * taken (they are routed to us by transaction id, not by the peer subscriptions).
+ *
+ * Outgoing messages which are NOT forwarded after all (counted as "suppressed_count" when the bridge
+ * thread drains the inbox):
+ *   - the ones which came from this very peer (echo)
+ *   - the ones which came from any remote peer, unless this node is the hub (the server): the
+ *     "split horizon" rule, which keeps a star of nodes free of the loops
+ *   - the node-local topics (LOCAL_TOPIC_PREFIX, ex: "/local/broadcast")
+ * Everything else is "forwarded_count".
+ *
+ * Our own interest (see AeronBridge) goes to the peer as the interest frames: the full summary right
+ * after the codec hello, then the deltas.
+ *
+ * Nothing piles up on the heap when the link is slow or down: the inbox is drained only while the
+ * frames go out (see flush_outgoing()), so the bounded inbox and its overflow policy take the excess.
+ *
+ * </pre>
+ */
+public class RemotePeer extends Transportable {
+
+    public static final String LOCAL_TOPIC_PREFIX = "/local/";
+
+    private final AeronBridge bridge;
+    private final Integer session_id;
+    private final AeronTransport aeron_transport;
+    private final SubscriptionMatcher forward_matcher;
+
+    // What the peer is subscribed to (unknown, so "everything", until its first interest frame arrives)
+    private final InterestSummary remote_interest;
+
+    // Our interest changes not sent to the peer yet (see advertise())
+    private final ArrayList<InterestDelta> pending_interest_deltas = new ArrayList<>();
+    private boolean pending_interest_reset = false;
+
+    // Owned by the bridge thread: frame buffer and the frame the sender didn't take yet (back pressure)
+    private final ByteBuffer outgoing_frame_buffer;
+    private String pending_frame = null;
+
+    RemotePeer(AeronBridge bridge, DeliveryService delivery_service, Integer session_id, SubscriptionMatcher forward_matcher) {
+        this.bridge = bridge;
+        this.session_id = session_id;
+        this.forward_matcher = forward_matcher;
+        this.set_uri(bridge.get_uri() + "_peer_" + session_id);
+        this.remote_interest = new InterestSummary(get_uri() + "_remote_interest", false);
+        this.transport = delivery_service.create_new_transport(this, TransportType.REMOTE_TUNNEL_AERON);
+        this.aeron_transport = (AeronTransport) transport;
+        this.outgoing_frame_buffer = ByteBuffer.allocate(aeron_transport.get_max_frame_length());
+
+        // Whatever the link can't take in time waits in our inbox: drop the oldest messages rather than
+        // block the router thread (and every other subscriber) behind a slow or missing frame sender
+        set_inbox_overflow_policy(InboxOverflowPolicy.DROP_OLDEST, 0);
+
+        // What the remote side gets from us (forward_matcher == null: only what is addressed to the peer explicitly)
+        if (forward_matcher != null) {
+            // The forward matcher covers the default subscriptions ("/broadcast", the peer uri), drop them
+            // so the same message is not routed (and sent over the wire) twice
+            for (SubscriptionMatcher default_matcher : new ArrayList<>(transport.subscriptions_common.keySet())) {
+                transport.unsubscribe(default_matcher);
+            }
+            transport.subscribe(forward_matcher, 0, "forward to remote peer " + session_id);
+        }
+
+        // Codec negotiation: our hello is the very first frame the peer gets from us
+        ByteBuffer hello_frame = aeron_transport.create_codec_hello_frame();
+        pending_frame = AeronTextFrames.to_text(hello_frame, 0, hello_frame.limit());
+    }
+
+    public Integer get_session_id() {
+        return session_id;
+    }
+
+    public AeronTransport get_aeron_transport() {
+        return aeron_transport;
+    }
+
+    public InterestSummary get_remote_interest() {
+        return remote_interest;
+    }
+
+    /**
+     * Queue our interest changes for the peer (sent by the bridge thread, see
+     * flush_outgoing()).
+     *
+     * @param deltas
+     * @param reset true: the deltas are the full summary, the peer forgets the
+     * previous one
+     */
+    synchronized void advertise(List<InterestDelta> deltas, boolean reset) {
+        if (reset) {
+            pending_interest_deltas.clear();
+            pending_interest_reset = true;
+        }
+        pending_interest_deltas.addAll(deltas);
+    }
+
+    /**
+     * Same as Transportable.offer() (so enqueue() too), but also wake the
+     * bridge thread up. The messages the peer is not interested in are taken
+     * (released) without being queued.
+     *
+     * @param message
+     */
+    @Override
+    public FunctionResult offer(Message message) {
+        if (!is_wanted(message)) {
+            message.release();
+            this.increment_stats("interest_suppressed_count");
+            return new FunctionResult().set_success();
+        }
+        FunctionResult result = super.offer(message);
+        bridge.signal();
+        return result;
+    }
+
+    /**
+     * Same as Transportable.offer_all(), without the messages the peer is not
+     * interested in (those are taken and released, see offer()).
+     *
+     * @param messages
+     * @return number of messages taken (from the head of the list)
+     */
+    @Override
+    public int offer_all(List<Message> messages) {
+        ArrayList<Message> wanted_messages = null;
+        // Index (in messages) of each of the wanted_messages
+        int[] wanted_indexes = null;
+        for (int i = 0; i < messages.size(); i++) {
+            boolean wanted = is_wanted(messages.get(i));
+            if (wanted_messages == null) {
+                if (wanted) {
+                    continue;
+                }
+                // The first unwanted message: from now on collect the wanted ones (the common case allocates nothing)
+                wanted_messages = new ArrayList<>(messages.size());
+                wanted_indexes = new int[messages.size()];
+                for (int j = 0; j < i; j++) {
+                    wanted_indexes[wanted_messages.size()] = j;
+                    wanted_messages.add(messages.get(j));
+                }
+            } else if (wanted) {
+                wanted_indexes[wanted_messages.size()] = i;
+                wanted_messages.add(messages.get(i));
+            }
+        }
+        if (wanted_messages == null) {
+            int taken_count = super.offer_all(messages);
+            bridge.signal();
+            return taken_count;
+        }
+        int wanted_taken_count = wanted_messages.isEmpty() ? 0 : super.offer_all(wanted_messages);
+        // The unwanted messages ahead of the first wanted one not taken are taken too (the caller owns the rest)
+        int taken_count = wanted_taken_count < wanted_messages.size() ? wanted_indexes[wanted_taken_count] : messages.size();
+        int suppressed_count = 0;
+        for (int i = 0, j = 0; i < taken_count; i++) {
+            if (j < wanted_taken_count && wanted_indexes[j] == i) {
+                j++;
+                continue;
+            }
+            messages.get(i).release();
+            suppressed_count++;
+        }
+        this.increment_stats("interest_suppressed_count", suppressed_count);
+        if (wanted_taken_count > 0) {
+            bridge.signal();
+        }
+        return taken_count;
+    }
+
+    /**
+     * Process the text frame received from the peer (see AeronTextFrames).
+     *
+     * @param text_frame
+     * @return
+     */
+    public FunctionResult on_incoming_text_frame(String text_frame) {
+        byte[] frame;
+        try {
+            frame = AeronTextFrames.from_text(text_frame);
+        } catch (IllegalArgumentException ex) {
+            String error_details = "Error: RemotePeer " + get_uri() + ".on_incoming_text_frame(): not a frame (" + text_frame.length() + " chars): " + ex.getMessage();
+            System.err.println(error_details);
+            this.increment_stats("errors_count");
+            this.increment_stats("on_incoming_text_frame_errors_count");
+            return new FunctionResult().set_fail(error_details);
+        }
+        this.increment_stats("frames_received_count");
+        if (InterestSummary.is_interest_frame(frame)) {
+            return bridge.on_remote_interest_frame(this, frame);
+        }
+        return aeron_transport.process_incoming_frame(ByteBuffer.wrap(frame), 0, frame.length);
+    }
+
+    /**
+     * Drain the inbox into the transport outgoing queue, then send the queued
+     * frames (small messages interleaved with the fragments of the big ones)
+     * with the given sender. Called by the bridge thread only.
+     *
+     * The inbox is only drained while the frames actually go out: with no
+     * sender, under the sender back pressure (a frame it didn't take) or with
+     * the outgoing queue full, the messages stay in our bounded inbox, so its
+     * overflow policy (DROP_OLDEST by default, see the constructor) and the
+     * flow control congestion detection (see FlowController) apply to the
+     * remote peer just like to a slow local subscriber.
+     *
+     * @param frame_sender null: nothing is sent (or taken out of the inbox)
+     * until the sender is set
+     * @param is_hub
+     * @return work count (messages taken + frames sent)
+     */
+    int flush_outgoing(IRemoteFrameSender frame_sender, boolean is_hub) {
+        if (frame_sender == null) {
+            return 0;
+        }
+        int work_count = send_queued_frames(frame_sender);
+        if (pending_frame != null) {
+            // The sender is behind, try again on the next flush
+            return work_count;
+        }
+        work_count += queue_interest_frames();
+        Message message;
+        while (aeron_transport.has_outgoing_room() && (message = incoming_messages_queue.poll()) != null) {
+            work_count++;
+            try {
+                if (should_forward(message, is_hub)) {
+                    aeron_transport.queue_outgoing_message(message);
+                }
+            } finally {
+                message.release();
+            }
+        }
+        // The small messages wait in the batch up to its max delay (see FrameBatcher)
+        aeron_transport.flush_outgoing_batch_if_due(System.nanoTime());
+        work_count += send_queued_frames(frame_sender);
+        if (aeron_transport.has_pending_batch()) {
+            // Don't let the bridge thread park past the batch delay
+            work_count = Math.max(work_count, 1);
+        }
+        return work_count;
+    }
+
+    // Offer the queued frames to the sender until it stops taking them (back pressure) or there's nothing left
+    private int send_queued_frames(IRemoteFrameSender frame_sender) {
+        int sent_count = 0;
+        while (true) {
+            if (pending_frame == null) {
+                int frame_length = aeron_transport.poll_outgoing_frame(outgoing_frame_buffer, 0);
+                if (frame_length <= 0) {
+                    break;
+                }
+                pending_frame = AeronTextFrames.to_text(outgoing_frame_buffer, 0, frame_length);
+            }
+            boolean sent;
+            try {
+                sent = frame_sender.send_frame(session_id, pending_frame);
+            } catch (RuntimeException ex) {
+                String error_details = "Error: RemotePeer " + get_uri() + ".flush_outgoing(): frame sender failed: " + ex;
+                System.err.println(error_details);
+                this.increment_stats("errors_count");
+                this.increment_stats("flush_outgoing_errors_count");
+                sent = false;
+            }
+            if (!sent) {
+                // Keep the frame, try again on the next flush
+                this.increment_stats("send_back_pressure_count");
+                break;
+            }
+            pending_frame = null;
+            sent_count++;
+            this.increment_stats("frames_sent_count");
+        }
+        return sent_count;
+    }
+
+    // Encode the pending interest changes (if any) into the interest frames, ahead of the messages
+    private int queue_interest_frames() {
+        List<InterestDelta> deltas;
+        boolean reset;
+        synchronized (this) {
+            if (pending_interest_deltas.isEmpty() && !pending_interest_reset) {
+                return 0;
+            }
+            deltas = new ArrayList<>(pending_interest_deltas);
+            reset = pending_interest_reset;
+            pending_interest_deltas.clear();
+            pending_interest_reset = false;
+        }
+        List<ByteBuffer> frames = remote_interest.encode_frames(deltas, reset, aeron_transport.get_max_frame_length());
+        for (ByteBuffer frame : frames) {
+            aeron_transport.queue_outgoing_frame(frame, 0, frame.limit());
+        }
+        this.increment_stats("interest_frames_sent_count", frames.size());
+        this.increment_stats("interest_deltas_sent_count", deltas.size());
+        return frames.size();
+    }
+
+    private boolean should_forward(Message message, boolean is_hub) {
+        Transport origin_transport = message.get_origin_transport();
+        String to = message.header_get_to();
+        if (origin_transport == transport || (origin_transport != null && !is_hub) || (to != null && to.startsWith(LOCAL_TOPIC_PREFIX))) {
+            this.increment_stats("suppressed_count");
+            return false;
+        }
+        this.increment_stats("forwarded_count");
+        return true;
+    }
+
+    // Responses always, the publishes / requests only if some of the peer subscriptions might match them
+    private boolean is_wanted(Message message) {
+        return message.header_get_mime_type() == MessageHeaderMimeType.RESPONSE || remote_interest.might_match(message);
+    }
+
+    /**
+     * Stop forwarding to this peer (the session is gone).
+     */
+    void close() {
+        if (forward_matcher != null) {
+            transport.unsubscribe(forward_matcher);
+        }
+    }
+}
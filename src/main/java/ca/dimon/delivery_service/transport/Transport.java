@@ -3,10 +3,13 @@ package ca.dimon.delivery_service.transport;
 import ca.dimon.delivery_service.DeliveryService;
 import ca.dimon.delivery_service.common.FunctionResult;
 import ca.dimon.delivery_service.message.Message;
+import ca.dimon.delivery_service.router.CreditGate;
+import ca.dimon.delivery_service.router.FlowController;
 import ca.dimon.delivery_service.subscription.SubscriberDetails;
 import ca.dimon.delivery_service.common.ManagedObject;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -34,6 +37,9 @@ public abstract class Transport extends ManagedObject {
     public final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_transactions = new ConcurrentHashMap<>();
     public final ConcurrentHashMap<SubscriptionMatcher, SubscriberDetails> subscriptions_transactions_sniffers = new ConcurrentHashMap<>();
 
+    // Our flow control credits as a producer (see DeliveryService.enable_flow_control()), created on the first use
+    private volatile CreditGate credit_gate = null;
+
     Transport(Transportable client, DeliveryService delivery_service, TransportType transport_type) {
         this.client = client;
         this.delivery_service = delivery_service;
@@ -53,6 +59,92 @@ public abstract class Transport extends ManagedObject {
         return client.get_uri();
     }
 
+    public TransportType get_transport_type() {
+        return transport_type;
+    }
+
+    /**
+     * @return free room in the client "inbox" (see Transportable.offer())
+     */
+    public int get_client_inbox_free_capacity() {
+        return client.get_inbox_free_capacity();
+    }
+
+    public int get_client_inbox_capacity() {
+        return client.get_inbox_capacity();
+    }
+
+    /**
+     * @return our credit gate (see FlowController) or null if the flow
+     * control is disabled
+     */
+    public CreditGate get_credit_gate() {
+        FlowController flow_controller = delivery_service.get_flow_controller();
+        if (flow_controller == null) {
+            return null;
+        }
+        CreditGate gate = credit_gate;
+        if (gate == null || gate.get_flow_controller() != flow_controller) {
+            gate = flow_controller.get_or_create_credit_gate(this, transport_type == TransportType.REMOTE_TUNNEL_AERON);
+            credit_gate = gate;
+        }
+        return gate;
+    }
+
+    /**
+     * Flow control: take one credit for the message about to be enqueued into
+     * the router (waits for the router to grant more if we ran out, see
+     * CreditGate.acquire()). The message carries the credit until it is
+     * routed. No-op if the flow control is disabled.
+     *
+     * @param message
+     * @return false if no credit was granted within the acquire timeout
+     */
+    protected boolean acquire_credit(Message message) {
+        CreditGate gate = get_credit_gate();
+        if (gate == null) {
+            return true;
+        }
+        if (!gate.acquire()) {
+            return false;
+        }
+        message.set_credit_gate(gate);
+        return true;
+    }
+
+    /**
+     * Give the credit of the message back (it was not enqueued after all).
+     *
+     * @param message
+     */
+    protected void refund_credit(Message message) {
+        CreditGate gate = message.get_credit_gate();
+        if (gate != null) {
+            message.set_credit_gate(null);
+            gate.refund();
+        }
+    }
+
+    /**
+     * Transport stats plus the flow control gauges (if enabled): credits we
+     * can still spend, credits of the routed messages not granted back yet,
+     * credits revoked and whether they are held back by a congested
+     * subscriber inbox.
+     *
+     * @return
+     */
+    @Override
+    public synchronized HashMap<String, Long> get_stats() {
+        CreditGate gate = credit_gate;
+        if (gate != null) {
+            stats.put("flow_control_credits_available", gate.get_available_credits());
+            stats.put("flow_control_credits_returned", gate.get_returned_credits());
+            stats.put("flow_control_credits_revoked", gate.get_revoked_credits());
+            stats.put("flow_control_credits_held_back", gate.get_bottleneck() != null ? 1L : 0L);
+        }
+        return super.get_stats();
+    }
+
     /**
      * General "deliver(message)" will figure out which type of the message is
      * given and it will use eiher: - deliver_publish - deliver_request -
@@ -94,6 +186,21 @@ public abstract class Transport extends ManagedObject {
      */
     public abstract FunctionResult deliver_back_to_client(Message message);
 
+    /**
+     * Bulk version of deliver_back_to_client(message), used by the delivery
+     * service when it routes messages in batches. Default implementation
+     * simply delivers messages one by one, transports which can do better
+     * (like one bulk enqueue into the client inbox) override it.
+     *
+     * @param messages
+     */
+    public FunctionResult deliver_back_to_client(List<Message> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            deliver_back_to_client(messages.get(i));
+        }
+        return new FunctionResult().set_success();
+    }
+
     /**
      * Case: client wants to subscribe to some "virtual channel" (example:
      * "/room/temperature" updates or "/scanners" or it can subscribe to some
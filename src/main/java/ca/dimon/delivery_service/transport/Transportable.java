@@ -4,10 +4,11 @@ import ca.dimon.delivery_service.common.Aid;
 import ca.dimon.delivery_service.common.FunctionResult;
 import ca.dimon.delivery_service.message.Message;
 import ca.dimon.delivery_service.common.ManagedObject;
-import java.util.ArrayList;
-import java.util.Collections;
+import ca.dimon.delivery_service.queue.IMessageQueue;
+import ca.dimon.delivery_service.queue.MpscRingBuffer;
+import ca.dimon.delivery_service.router.CreditGate;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Objects;
 import ca.dimon.delivery_service.subscription.SubscriptionMatcher;
 
 /**
@@ -19,21 +20,88 @@ public class Transportable extends ManagedObject {
 
     public Transport transport;
 
+    // Default capacity of the "inbox" (can be overriden via Transportable(int) constructor)
+    public static final int DEFAULT_INCOMING_MESSAGES_QUEUE_CAPACITY = 4096;
+
     /**
      * <pre>
-     * We could use ConcurrentLinkedDeque instead of synchronized list, but it
-     * does not like .size() method (will have to iterate whole collection on
-     * that). The only disadvantage of the synchronizedList is that it makes
-     * "atomic" calls on that collection thread-safe, but if you create
-     * iterator and about to do the loop to iterate all the items, you don't
-     * want any other thread to modify (example: inject new item) your
-     * collection thus you'd have to wrap whole "take iteration and loop them
-     * all" into  a single synchronized block like this:
+     * Our "inbox". Delivery service (router thread) and possibly other producers put
+     * messages here, while only this instance (its own thread) takes them out.
+     * It is a bounded lock-free multi-producer / single-consumer ring buffer, so
+     * there's no global monitor on each add() and no O(n) remove(0) any more.
+     * Example of processing the inbox:
      *
-     *     synchronize(incoming_messages_queue){ // create the incoming_messages_queue iterator and loop over that collection inside this synchronized block
+     *     Message incoming_message;
+     *     while ((incoming_message = incoming_messages_queue.poll()) != null) {
+     *         ... process incoming_message
+     *         incoming_message.release(); // only matters for the pooled messages (see MessagePool)
+     *     }
      * </pre>
      */
-    protected final List<Message> incoming_messages_queue = Collections.synchronizedList(new ArrayList<>());
+    protected final IMessageQueue incoming_messages_queue;
+
+    // Default longest wait of the BLOCK policy (see set_inbox_overflow_policy())
+    public static final long DEFAULT_INBOX_BLOCK_TIMEOUT_MS = 1000;
+
+    // What offer() does when the inbox is full (see InboxOverflowPolicy). Default: REJECT, so the router never waits
+    // on a slow participant (the delivery it doesn't take is counted as "inbox_rejected_count" and dropped). The
+    // router inbox itself uses BLOCK with the DEFAULT_INBOX_BLOCK_TIMEOUT_MS (see DeliveryService).
+    private volatile InboxOverflowPolicy inbox_overflow_policy = InboxOverflowPolicy.REJECT;
+    private volatile long inbox_block_timeout_ns = DEFAULT_INBOX_BLOCK_TIMEOUT_MS * 1_000_000L;
+
+    public Transportable() {
+        this(DEFAULT_INCOMING_MESSAGES_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param incoming_messages_queue_capacity (will be rounded up to the next
+     * power of 2)
+     */
+    public Transportable(int incoming_messages_queue_capacity) {
+        this(new MpscRingBuffer(incoming_messages_queue_capacity));
+    }
+
+    /**
+     * @param incoming_messages_queue our "inbox" implementation (ex:
+     * PriorityLaneQueue)
+     */
+    public Transportable(IMessageQueue incoming_messages_queue) {
+        this.incoming_messages_queue = Objects.requireNonNull(incoming_messages_queue, "incoming_messages_queue");
+    }
+
+    /**
+     * What to do when the inbox is full (see InboxOverflowPolicy). One slow
+     * consumer with the BLOCK policy stalls the router for everyone (up to
+     * the timeout, on every message), so pick the policy which fits the
+     * traffic (ex: DROP_OLDEST for the "latest value wins" feeds, REJECT for
+     * the producers which can retry).
+     *
+     * @param inbox_overflow_policy
+     * @param block_timeout_ms BLOCK policy only: longest wait for the room in
+     * the inbox (ex: DEFAULT_INBOX_BLOCK_TIMEOUT_MS), then the message is not
+     * taken ("inbox_block_timeout_count"). Zero: wait forever (the router may
+     * deadlock with a consumer which publishes into the full router inbox)
+     */
+    public void set_inbox_overflow_policy(InboxOverflowPolicy inbox_overflow_policy, long block_timeout_ms) {
+        this.inbox_block_timeout_ns = Math.max(0, block_timeout_ms) * 1_000_000L;
+        this.inbox_overflow_policy = Objects.requireNonNull(inbox_overflow_policy, "inbox_overflow_policy");
+    }
+
+    public InboxOverflowPolicy get_inbox_overflow_policy() {
+        return inbox_overflow_policy;
+    }
+
+    public long get_inbox_block_timeout_ms() {
+        return inbox_block_timeout_ns / 1_000_000L;
+    }
+
+    public int get_inbox_free_capacity() {
+        return incoming_messages_queue.capacity() - incoming_messages_queue.size();
+    }
+
+    public int get_inbox_capacity() {
+        return incoming_messages_queue.capacity();
+    }
 
     /**
      * Delivery Service will use our transport to send us messages (be it
@@ -41,9 +109,123 @@ public class Transportable extends ManagedObject {
      * "incoming" messages will be delivered to us vie this "enqueue(message)"
      * method.
      *
+     * Fire-and-forget version of offer(message): if the inbox overflow policy
+     * doesn't take the message, it is released (dropped).
      */
     public void enqueue(Message message) {
-        incoming_messages_queue.add(message);
+        if (offer(message).failed()) {
+            drop(message);
+        }
+    }
+
+    /**
+     * Bulk version of enqueue(message): all the given messages are added to
+     * our inbox in the given order (used by the delivery service when it
+     * routes messages in batches).
+     *
+     * @param messages
+     */
+    public void enqueue(List<Message> messages) {
+        for (int i = offer_all(messages); i < messages.size(); i++) {
+            drop(messages.get(i));
+        }
+    }
+
+    /**
+     * Put the message into our inbox, applying the inbox overflow policy if
+     * it is full (see set_inbox_overflow_policy()).
+     *
+     * @param message
+     * @return success if the message was taken (queued, or dropped by the
+     * DROP_NEWEST policy), FunctionResult.INBOX_FULL if it wasn't (REJECT
+     * policy or BLOCK timeout): the caller still owns the message then
+     */
+    public FunctionResult offer(Message message) {
+        if (incoming_messages_queue.offer(message)) {
+            return new FunctionResult().set_success();
+        }
+        switch (inbox_overflow_policy) {
+            case DROP_NEWEST:
+                drop(message);
+                increment_transport_stats("inbox_dropped_newest_count", 1);
+                return new FunctionResult().set_success();
+            case DROP_OLDEST:
+                do {
+                    Message oldest_message = incoming_messages_queue.evict_oldest();
+                    if (oldest_message != null) {
+                        drop(oldest_message);
+                        increment_transport_stats("inbox_dropped_oldest_count", 1);
+                    }
+                } while (!incoming_messages_queue.offer(message));
+                return new FunctionResult().set_success();
+            case REJECT:
+                increment_transport_stats("inbox_rejected_count", 1);
+                return new FunctionResult().set_inbox_full("Error: inbox of " + get_uri() + " is full (" + incoming_messages_queue.capacity() + " messages), message rejected");
+            default:
+                increment_transport_stats("inbox_blocked_count", 1);
+                long deadline_ns = System.nanoTime() + inbox_block_timeout_ns;
+                while (!incoming_messages_queue.offer(message)) {
+                    if (inbox_block_timeout_ns > 0 && System.nanoTime() - deadline_ns > 0) {
+                        increment_transport_stats("inbox_block_timeout_count", 1);
+                        return new FunctionResult().set_inbox_full("Error: inbox of " + get_uri() + " is full (" + incoming_messages_queue.capacity() + " messages), timed out after " + (inbox_block_timeout_ns / 1_000_000L) + " ms");
+                    }
+                    Thread.yield();
+                }
+                return new FunctionResult().set_success();
+        }
+    }
+
+    /**
+     * Bulk version of offer(message): the messages are added in the given
+     * order, with the inbox overflow policy applied to the ones which don't
+     * fit.
+     *
+     * @param messages
+     * @return number of messages taken (from the head of the list), the
+     * caller still owns the rest (REJECT policy or BLOCK timeout)
+     */
+    public int offer_all(List<Message> messages) {
+        int taken_count = incoming_messages_queue.offer_all(messages, 0);
+        while (taken_count < messages.size()) {
+            if (offer(messages.get(taken_count)).failed()) {
+                // The rest is not taken either: count them all, not just the first one
+                increment_not_taken_stats(messages.size() - taken_count - 1);
+                break;
+            }
+            taken_count++;
+            // The room might be back, try the rest in one go again
+            taken_count += incoming_messages_queue.offer_all(messages, taken_count);
+        }
+        return taken_count;
+    }
+
+    /**
+     * Count the messages of the bulk offer which were not even tried once
+     * the offer of the message before them failed (that one is already
+     * counted by offer()).
+     *
+     * @param not_taken_count
+     */
+    protected void increment_not_taken_stats(int not_taken_count) {
+        if (not_taken_count > 0) {
+            increment_transport_stats(inbox_overflow_policy == InboxOverflowPolicy.REJECT ? "inbox_rejected_count" : "inbox_block_timeout_count", not_taken_count);
+        }
+    }
+
+    // Done with the message which never gets routed: its flow control credit goes back (see CreditGate) and the reference is released
+    private static void drop(Message message) {
+        CreditGate.release_credit(message);
+        message.release();
+    }
+
+    // The overflow counters belong to our transport stats (see Transport.stats), the same place all the delivery counters are
+    private void increment_transport_stats(String stats_key, long value) {
+        Transport own_transport = transport;
+        if (own_transport != null) {
+            own_transport.increment_stats(stats_key, value);
+        } else {
+            increment_stats(stats_key, value);
+        }
     }
 
     /**